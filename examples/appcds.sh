@@ -0,0 +1,25 @@
+#!/bin/bash
+# Creates an AppCDS archive of the classes loaded by the sample app so that later launches
+# map them from the archive instead of loading and verifying them again. Requires JDK 13 or
+# later and a packaged app (mvn package). run.sh uses the archive when it exists.
+#
+# Usage: ./appcds.sh [<training action args>...]
+# The training run defaults to "version"; a representative action such as
+# "getString <containerName> <blobName>" or "batch <manifest>" archives more classes.
+
+cd "$(dirname "$0")"
+ARCHIVE=target/IonicAzureStorageSampleApp.jsa
+
+if [ ! -f target/IonicAzureStorageSampleApp.jar ]; then
+    echo "target/IonicAzureStorageSampleApp.jar not found, run mvn package first" >&2
+    exit 1
+fi
+if [ $# -eq 0 ]; then
+    set -- version
+fi
+
+rm -f "$ARCHIVE"
+java -XX:ArchiveClassesAtExit="$ARCHIVE" -jar target/IonicAzureStorageSampleApp.jar "$@"
+if [ -f "$ARCHIVE" ]; then
+    echo "Created $ARCHIVE"
+fi
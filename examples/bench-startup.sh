@@ -0,0 +1,69 @@
+#!/bin/bash
+# Compares the wall-clock time of launching the sample app as a JVM jar, as a JVM jar with the
+# AppCDS archive from appcds.sh, and as the native executable from mvn -Pnative package.
+# Launchers that have not been built are skipped.
+#
+# Usage: ./bench-startup.sh [-n <runs>] [<action args>...]
+# The action defaults to "version", which measures startup alone; pass e.g.
+# "getString <containerName> <blobName>" to include Ionic and Azure initialization.
+
+cd "$(dirname "$0")"
+RUNS=10
+if [ "$1" = "-n" ]; then
+    RUNS=$2
+    shift 2
+fi
+if [ $# -eq 0 ]; then
+    set -- version
+fi
+
+JAR=target/IonicAzureStorageSampleApp.jar
+ARCHIVE=target/IonicAzureStorageSampleApp.jsa
+NATIVE=target/ionic-azurestorage
+
+declare -a NAMES COMMANDS
+if [ -f "$JAR" ]; then
+    NAMES+=("jvm")
+    COMMANDS+=("java -jar $JAR")
+fi
+if [ -f "$JAR" ] && [ -f "$ARCHIVE" ]; then
+    NAMES+=("jvm+appcds")
+    COMMANDS+=("java -XX:SharedArchiveFile=$ARCHIVE -Xshare:auto -jar $JAR")
+fi
+if [ -x "$NATIVE" ]; then
+    NAMES+=("native")
+    COMMANDS+=("$NATIVE")
+fi
+if [ ${#COMMANDS[@]} -eq 0 ]; then
+    echo "Nothing to benchmark, run mvn package and/or mvn -Pnative package first" >&2
+    exit 1
+fi
+
+if command -v hyperfine > /dev/null; then
+    ARGS=()
+    for i in "${!COMMANDS[@]}"; do
+        ARGS+=(-n "${NAMES[$i]}" "${COMMANDS[$i]} $*")
+    done
+    exec hyperfine -N --warmup 2 --runs "$RUNS" "${ARGS[@]}"
+fi
+
+printf "%-12s %10s %10s %10s\n" launcher "mean ms" "min ms" "max ms"
+for i in "${!COMMANDS[@]}"; do
+    ${COMMANDS[$i]} "$@" > /dev/null 2>&1
+    TOTAL=0
+    MIN=
+    MAX=0
+    for ((run = 0; run < RUNS; run++)); do
+        START=$(date +%s%N)
+        ${COMMANDS[$i]} "$@" > /dev/null 2>&1
+        ELAPSED=$((($(date +%s%N) - START) / 1000000))
+        TOTAL=$((TOTAL + ELAPSED))
+        if [ -z "$MIN" ] || [ $ELAPSED -lt $MIN ]; then
+            MIN=$ELAPSED
+        fi
+        if [ $ELAPSED -gt $MAX ]; then
+            MAX=$ELAPSED
+        fi
+    done
+    printf "%-12s %10d %10d %10d\n" "${NAMES[$i]}" $((TOTAL / RUNS)) "$MIN" "$MAX"
+done
@@ -0,0 +1,7 @@
+#!/bin/bash
+# Runs the load generator against Azurite and the in-process key service by default.
+# Start Azurite first, for example:
+#   docker run -p 10000:10000 mcr.microsoft.com/azure-storage/azurite \
+#       azurite-blob --blobHost 0.0.0.0
+DIR="$(dirname "$0")"
+exec java -jar "$DIR/target/IonicAzureStorageLoadGenerator.jar" "$@"
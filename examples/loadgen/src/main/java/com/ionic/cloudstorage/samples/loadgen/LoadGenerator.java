@@ -0,0 +1,408 @@
+/*
+ * (c) 2021 Ionic Security Inc. By using this code, I agree to the LICENSE included, as well as the
+ * Terms & Conditions (https://dev.ionic.com/use) and the Privacy Policy
+ * (https://ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.samples.loadgen;
+
+import com.ionic.cloudstorage.azurestorage.IonicBlobTransfer;
+import com.ionic.cloudstorage.azurestorage.IonicKeyResolverFactory;
+import com.ionic.sdk.agent.Agent;
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.device.profile.persistor.DeviceProfilePersistorPlainText;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Drives a mixed put/get workload through {@link IonicBlobTransfer} at a fixed arrival rate
+ * and reports latency percentiles.
+ *
+ * <p>Operations are issued on an open model: operation n is due at start + n / rate whether or
+ * not earlier operations have completed, and its latency is measured from when it was due
+ * rather than from when a worker picked it up. Queueing behind slow operations therefore shows
+ * up in the percentiles instead of being hidden by a slowed-down load generator (coordinated
+ * omission). Blobs are chosen with a Zipfian distribution, so a few blobs are read and
+ * rewritten far more often than the rest, and each blob keeps one size drawn from the size
+ * mix.</p>
+ *
+ * <p>By default the blobs are stored in Azurite, the local Azure Storage emulator, and keys are
+ * created and fetched from an in-process stand-in for the Ionic key service with a simulated
+ * round-trip latency. Run with {@code --help} for the options.</p>
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: run.sh [options]",
+            "  --rate <ops/s>            arrival rate (default 1000)",
+            "  --duration <s>            measured run time (default 60)",
+            "  --warmup <s>              unmeasured run time before it (default 10)",
+            "  --read-ratio <0..1>       fraction of operations which are gets (default 0.8)",
+            "  --blobs <n>               number of distinct blobs (default 10000)",
+            "  --skew <0..1)             Zipfian skew of blob popularity, 0 is uniform "
+                    + "(default 0.99)",
+            "  --sizes <size:weight,..>  blob size mix (default 1k:60,16k:30,1m:10)",
+            "  --threads <n>             worker threads (default 64)",
+            "  --connection <string>     Azure Storage connection string "
+                    + "(default UseDevelopmentStorage=true, i.e. Azurite)",
+            "  --container <name>        container for the blobs (default ionic-loadgen)",
+            "  --key-service <local|ionic>  in-process stand-in, or the Ionic key service of",
+            "                            ~/.ionicsecurity/profiles.pt (default local)",
+            "  --key-latency <us>        simulated local key service latency (default 2000)",
+            "  --hlog <file>             also write interval histograms in HdrHistogram log "
+                    + "format",
+            "  --seed <n>                seed for blob sizes (default 1)");
+
+    private static final String BLOB_PREFIX = "loadgen-";
+
+    private final Map<String, String> options;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final double readRatio;
+    private final int blobs;
+    private final int threads;
+    private final SizeMix sizes;
+    private final ZipfianGenerator popularity;
+    private final byte[] payload;
+
+    private final Recorder getRecorder = new Recorder(3);
+    private final Recorder putRecorder = new Recorder(3);
+    private final Histogram getTotal = new Histogram(3);
+    private final Histogram putTotal = new Histogram(3);
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private Histogram getInterval;
+    private Histogram putInterval;
+    private HistogramLogWriter log;
+
+    private CloudBlobContainer container;
+    private IonicBlobTransfer transfer;
+
+    LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.rate = Double.parseDouble(option("rate", "1000"));
+        this.durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "60")));
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "10")));
+        this.readRatio = Double.parseDouble(option("read-ratio", "0.8"));
+        this.blobs = Integer.parseInt(option("blobs", "10000"));
+        this.threads = Integer.parseInt(option("threads", "64"));
+        this.sizes = new SizeMix(option("sizes", "1k:60,16k:30,1m:10"),
+                Long.parseLong(option("seed", "1")));
+        this.popularity = new ZipfianGenerator(blobs,
+                Double.parseDouble(option("skew", "0.99")));
+        if (rate <= 0 || threads <= 0 || readRatio < 0 || readRatio > 1) {
+            throw new IllegalArgumentException("Invalid rate, threads or read ratio");
+        }
+        this.payload = new byte[sizes.getMaxSize()];
+        new Random(0).nextBytes(payload);
+    }
+
+    /**
+     * Main function of the load generator.
+     *
+     * @param args the options, see {@code --help}.
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].equals("--help") || i + 1 == args.length) {
+                System.err.println(USAGE);
+                System.exit(args[i].equals("--help") ? 0 : 1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        try {
+            new LoadGenerator(options).run(System.out);
+        } catch (Exception e) {
+            System.err.println("Load generation failed: " + e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    void run(PrintStream out) throws Exception {
+        CloudStorageAccount account = CloudStorageAccount.parse(
+                option("connection", "UseDevelopmentStorage=true"));
+        container = account.createCloudBlobClient().getContainerReference(
+                option("container", "ionic-loadgen"));
+        container.createIfNotExists();
+        transfer = new IonicBlobTransfer(createKeyResolverFactory());
+        String hlog = options.get("hlog");
+        if (hlog != null) {
+            log = openLog(hlog);
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            preload(out, workers);
+            generate(out, workers);
+        } finally {
+            workers.shutdownNow();
+            if (log != null) {
+                log.close();
+            }
+        }
+        summarize(out);
+    }
+
+    private IonicKeyResolverFactory createKeyResolverFactory() throws Exception {
+        String keyService = option("key-service", "local");
+        if (keyService.equals("local")) {
+            return new LocalKeyService(Long.parseLong(option("key-latency", "2000")));
+        } else if (keyService.equals("ionic")) {
+            String persistorPath = System.getProperty("user.home")
+                    + "/.ionicsecurity/profiles.pt";
+            return new IonicKeyResolverFactory(
+                    new Agent(new DeviceProfilePersistorPlainText(persistorPath)));
+        }
+        throw new IllegalArgumentException("Unknown key service " + keyService);
+    }
+
+    private static HistogramLogWriter openLog(String path) throws FileNotFoundException {
+        HistogramLogWriter writer = new HistogramLogWriter(new File(path));
+        writer.outputLogFormatVersion();
+        writer.outputStartTime(System.currentTimeMillis());
+        writer.outputLegend();
+        return writer;
+    }
+
+    /**
+     * Writes every blob once so that gets never miss.
+     */
+    private void preload(PrintStream out, ExecutorService workers) throws InterruptedException {
+        out.printf("Preloading %d blobs into %s%n", blobs, container.getName());
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(blobs);
+        for (int i = 0; i < blobs; i++) {
+            final int index = i;
+            workers.execute(() -> {
+                try {
+                    put(index);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        if (failed.get() > 0) {
+            throw new IllegalStateException(failed.get() + " blobs could not be preloaded");
+        }
+    }
+
+    /**
+     * Issues operations at the arrival rate for the warmup and measured durations, reporting
+     * each second.
+     */
+    private void generate(PrintStream out, ExecutorService workers) {
+        out.printf("Running %.0f ops/s, %.0f%% gets, for %ds after %ds warmup%n", rate,
+                readRatio * 100, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+        out.println("  time  phase     gets/s  get p50 ms  get p99 ms    puts/s  put p50 ms"
+                + "  put p99 ms  errors  backlog");
+        long start = System.nanoTime();
+        long end = start + warmupNanos + durationNanos;
+        double interval = 1e9 / rate;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> report(out, start), 1, 1, TimeUnit.SECONDS);
+        try {
+            for (long n = 0; ; n++) {
+                long due = start + (long) (n * interval);
+                if (due >= end) {
+                    break;
+                }
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                outstanding.incrementAndGet();
+                workers.execute(() -> operate(due));
+            }
+            while (outstanding.get() > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        } finally {
+            reporter.shutdownNow();
+        }
+        report(out, start);
+    }
+
+    private void operate(long due) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean get = random.nextDouble() < readRatio;
+        int index = (int) popularity.next(random);
+        try {
+            if (get) {
+                get(index);
+            } else {
+                put(index);
+            }
+            long latencyMicros = (System.nanoTime() - due) / 1000;
+            (get ? getRecorder : putRecorder).recordValue(latencyMicros);
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        } finally {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    private void put(int index) throws Exception {
+        int size = sizes.sizeOf(index);
+        transfer.upload(container.getBlockBlobReference(BLOB_PREFIX + index),
+                new ByteArrayInputStream(payload, 0, size), new CreateKeysRequest.Key(""));
+    }
+
+    private void get(int index) throws Exception {
+        transfer.download(container.getBlockBlobReference(BLOB_PREFIX + index), DISCARD);
+    }
+
+    private synchronized void report(PrintStream out, long start) {
+        long elapsed = System.nanoTime() - start;
+        getInterval = getRecorder.getIntervalHistogram(getInterval);
+        putInterval = putRecorder.getIntervalHistogram(putInterval);
+        boolean measured = elapsed > warmupNanos;
+        if (measured) {
+            getTotal.add(getInterval);
+            putTotal.add(putInterval);
+            if (log != null) {
+                getInterval.setTag("get");
+                putInterval.setTag("put");
+                log.outputIntervalHistogram(getInterval);
+                log.outputIntervalHistogram(putInterval);
+            }
+        }
+        double seconds = (getInterval.getEndTimeStamp() - getInterval.getStartTimeStamp())
+                / 1000.0;
+        out.println(String.format(Locale.ROOT,
+                "%5ds  %-7s %9.0f %11.2f %11.2f %9.0f %11.2f %11.2f %7d %8d",
+                TimeUnit.NANOSECONDS.toSeconds(elapsed), measured ? "measure" : "warmup",
+                rate(getInterval, seconds), millis(getInterval, 50), millis(getInterval, 99),
+                rate(putInterval, seconds), millis(putInterval, 50), millis(putInterval, 99),
+                errors.get(), outstanding.get()));
+    }
+
+    private void summarize(PrintStream out) {
+        double seconds = durationNanos / 1e9;
+        out.println();
+        out.printf(Locale.ROOT, "Gets: %d (%.0f/s)%n", getTotal.getTotalCount(),
+                getTotal.getTotalCount() / seconds);
+        getTotal.outputPercentileDistribution(out, 1000.0);
+        out.println();
+        out.printf(Locale.ROOT, "Puts: %d (%.0f/s)%n", putTotal.getTotalCount(),
+                putTotal.getTotalCount() / seconds);
+        putTotal.outputPercentileDistribution(out, 1000.0);
+        out.println();
+        out.printf("Errors: %d%n", errors.get());
+        out.println("Latencies are in milliseconds, measured from each operation's scheduled "
+                + "start.");
+    }
+
+    private static double rate(Histogram histogram, double seconds) {
+        return seconds <= 0 ? 0 : histogram.getTotalCount() / seconds;
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getTotalCount() == 0 ? 0
+                : histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    /**
+     * A weighted mix of blob sizes, with each blob index assigned a fixed size.
+     */
+    static final class SizeMix {
+
+        private final int[] sizes;
+        private final int[] cumulativeWeights;
+        private final long seed;
+
+        SizeMix(String spec, long seed) {
+            String[] entries = spec.split(",");
+            sizes = new int[entries.length];
+            cumulativeWeights = new int[entries.length];
+            int total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].trim().split(":");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid size mix entry " + entries[i]);
+                }
+                sizes[i] = parseSize(parts[0]);
+                total += Integer.parseInt(parts[1]);
+                cumulativeWeights[i] = total;
+            }
+            if (total <= 0) {
+                throw new IllegalArgumentException("Size mix weights must be positive");
+            }
+            this.seed = seed;
+        }
+
+        int sizeOf(int index) {
+            int total = cumulativeWeights[cumulativeWeights.length - 1];
+            int draw = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + index).nextInt(total);
+            for (int i = 0; i < sizes.length; i++) {
+                if (draw < cumulativeWeights[i]) {
+                    return sizes[i];
+                }
+            }
+            return sizes[sizes.length - 1];
+        }
+
+        int getMaxSize() {
+            int max = 0;
+            for (int size : sizes) {
+                max = Math.max(max, size);
+            }
+            return max;
+        }
+
+        static int parseSize(String size) {
+            String lower = size.trim().toLowerCase(Locale.ROOT);
+            int multiplier = 1;
+            if (lower.endsWith("k")) {
+                multiplier = 1024;
+            } else if (lower.endsWith("m")) {
+                multiplier = 1024 * 1024;
+            }
+            if (multiplier != 1) {
+                lower = lower.substring(0, lower.length() - 1);
+            }
+            return Math.multiplyExact(Integer.parseInt(lower), multiplier);
+        }
+    }
+}
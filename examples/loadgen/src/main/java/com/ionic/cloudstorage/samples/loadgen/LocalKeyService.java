@@ -0,0 +1,92 @@
+/*
+ * (c) 2021 Ionic Security Inc. By using this code, I agree to the LICENSE included, as well as the
+ * Terms & Conditions (https://dev.ionic.com/use) and the Privacy Policy
+ * (https://ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.samples.loadgen;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ionic.cloudstorage.azurestorage.IonicKeyResolverFactory;
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.error.AgentErrorModuleConstants;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in for the Ionic key service, so that load can be generated without an
+ * Ionic enrollment. Keys are random and held in memory for the life of the process. Every
+ * create or fetch request waits for a configurable latency, standing in for the round trip.
+ */
+final class LocalKeyService extends IonicKeyResolverFactory {
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, byte[]> keys = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicLong nextKeyId = new AtomicLong();
+    private final long latencyNanos;
+
+    LocalKeyService(long latencyMicros) {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    @Override
+    protected SymmetricKey createIonicKey(CreateKeysRequest.Key key) throws IonicException {
+        roundTrip();
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        String keyId = String.format("LOCAL%011d", nextKeyId.incrementAndGet());
+        keys.put(keyId, keyBytes);
+        return new SymmetricKey(keyId, keyBytes);
+    }
+
+    @Override
+    protected Map<String, IKey> resolveKeys(Collection<String> keyIds) throws IonicException {
+        roundTrip();
+        Map<String, IKey> resolved = new HashMap<String, IKey>();
+        for (String keyId : keyIds) {
+            byte[] keyBytes = keys.get(keyId);
+            if (keyBytes != null) {
+                resolved.put(keyId, new SymmetricKey(keyId, keyBytes));
+            }
+        }
+        return resolved;
+    }
+
+    @Override
+    public IonicKeyResolver createKeyResolver() {
+        return new LocalKeyResolver();
+    }
+
+    private void roundTrip() {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    private final class LocalKeyResolver extends IonicKeyResolver {
+        @Override
+        public ListenableFuture<IKey> resolveKeyAsync(String keyId) {
+            SettableFuture<IKey> future = SettableFuture.create();
+            roundTrip();
+            byte[] keyBytes = keys.get(keyId);
+            if (keyBytes == null) {
+                future.setException(new IonicException(
+                        AgentErrorModuleConstants.ISAGENT_KEY_DENIED.value(),
+                        "Unknown key " + keyId));
+            } else {
+                future.set(new SymmetricKey(keyId, keyBytes));
+            }
+            return future;
+        }
+    }
+}
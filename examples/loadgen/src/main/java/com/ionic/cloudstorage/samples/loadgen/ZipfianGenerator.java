@@ -0,0 +1,60 @@
+/*
+ * (c) 2021 Ionic Security Inc. By using this code, I agree to the LICENSE included, as well as the
+ * Terms & Conditions (https://dev.ionic.com/use) and the Privacy Policy
+ * (https://ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.samples.loadgen;
+
+import java.util.Random;
+
+/**
+ * Draws item indexes in [0, items) from a Zipfian distribution, using the rejection-free
+ * method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases". Index 0 is
+ * the most popular item. A skew of 0 is uniform; YCSB uses 0.99.
+ */
+final class ZipfianGenerator {
+
+    private final long items;
+    private final double theta;
+    private final double alpha;
+    private final double zetan;
+    private final double eta;
+
+    ZipfianGenerator(long items, double theta) {
+        if (items <= 0) {
+            throw new IllegalArgumentException("items must be positive");
+        }
+        if (theta < 0 || theta >= 1) {
+            throw new IllegalArgumentException("skew must be in [0, 1)");
+        }
+        this.items = items;
+        this.theta = theta;
+        this.alpha = 1 / (1 - theta);
+        this.zetan = zeta(items, theta);
+        double zeta2 = zeta(Math.min(2, items), theta);
+        this.eta = items < 2 ? 1
+                : (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+    }
+
+    long next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+        if (uz < 1) {
+            return 0;
+        }
+        if (items > 1 && uz < 1 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+        long item = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+        return Math.min(item, items - 1);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
@@ -1,2 +1,9 @@
 #!/bin/bash
-java -jar target/IonicAzureStorageSampleApp.jar "$@"
+DIR="$(dirname "$0")"
+ARCHIVE="$DIR/target/IonicAzureStorageSampleApp.jsa"
+if [ -f "$ARCHIVE" ]; then
+    # Created by appcds.sh
+    exec java -XX:SharedArchiveFile="$ARCHIVE" -Xshare:auto \
+        -jar "$DIR/target/IonicAzureStorageSampleApp.jar" "$@"
+fi
+exec java -jar "$DIR/target/IonicAzureStorageSampleApp.jar" "$@"
@@ -0,0 +1,219 @@
+/*
+ * (c) 2021 Ionic Security Inc. By using this code, I agree to the LICENSE included, as well as the
+ * Terms & Conditions (https://dev.ionic.com/use) and the Privacy Policy
+ * (https://ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.samples;
+
+import com.ionic.cloudstorage.azurestorage.IonicUploadSession;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+/**
+ * Runs the sample's put and get actions from a manifest concurrently against one warm
+ * {@link com.ionic.cloudstorage.azurestorage.IonicUploadSession}, so that the JVM, the Azure
+ * client and the Ionic Agent are initialized once for any number of actions.
+ *
+ * <p>Each manifest line is either CSV fields in command line order, for example
+ * {@code putString,mycontainer,greeting,"Hello, World",classification:public}, or a JSON
+ * object such as
+ * {@code {"action":"getFile","container":"mycontainer","blob":"greeting","path":"out.txt"}}.
+ * Blank lines and lines starting with # are ignored. The latency of every action is reported
+ * as it completes, followed by a summary with the aggregate throughput.</p>
+ */
+public class BatchRunner {
+
+    static final int DEFAULT_THREADS = 8;
+
+    private final IonicUploadSession session;
+    private final int threads;
+    private final List<Long> latencies = new ArrayList<Long>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+
+    BatchRunner(IonicUploadSession session, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        this.session = session;
+        this.threads = threads;
+    }
+
+    /**
+     * Runs every action in the manifest, printing per-action results and a summary.
+     *
+     * @return true if every action succeeded.
+     */
+    boolean run(Reader manifest, PrintStream out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Bound the actions read ahead of the workers so that stdin is consumed as a stream.
+        Semaphore pending = new Semaphore(threads * 2);
+        long start = System.nanoTime();
+        BufferedReader reader = new BufferedReader(manifest);
+        int lineNumber = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                final int number = lineNumber;
+                final String[] args;
+                try {
+                    args = parseLine(trimmed);
+                } catch (IllegalArgumentException e) {
+                    failures.incrementAndGet();
+                    report(out, number, trimmed, "FAILED", 0, 0, e.getMessage());
+                    continue;
+                }
+                pending.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        execute(out, number, args);
+                    } finally {
+                        pending.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        summarize(out, System.nanoTime() - start);
+        return failures.get() == 0;
+    }
+
+    private void execute(PrintStream out, int number, String[] args) {
+        String description = String.join(" ", Arrays.copyOf(args, Math.min(args.length, 3)));
+        long start = System.nanoTime();
+        try {
+            long transferred = IonicAzureStorageSampleApp.runAction(args, session, false);
+            long elapsed = System.nanoTime() - start;
+            bytes.addAndGet(transferred);
+            synchronized (latencies) {
+                latencies.add(elapsed);
+            }
+            report(out, number, description, "OK", elapsed, transferred, null);
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            report(out, number, description, "FAILED", System.nanoTime() - start, 0,
+                    e.getMessage());
+        }
+    }
+
+    private static void report(PrintStream out, int number, String description, String status,
+            long elapsedNanos, long transferred, String message) {
+        String line = String.format("%6d %-6s %9.2f ms %12d bytes  %s", number, status,
+                elapsedNanos / 1e6, transferred, description);
+        if (message != null) {
+            line += "  (" + message + ")";
+        }
+        synchronized (out) {
+            out.println(line);
+        }
+    }
+
+    private void summarize(PrintStream out, long elapsedNanos) {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = new long[latencies.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = latencies.get(i);
+            }
+        }
+        Arrays.sort(sorted);
+        double seconds = elapsedNanos / 1e9;
+        out.println("Batch summary:");
+        out.printf("    actions    = %d succeeded, %d failed, %d threads%n", sorted.length,
+                failures.get(), threads);
+        out.printf("    elapsed    = %.3f s%n", seconds);
+        out.printf("    throughput = %.1f actions/s, %.2f MiB/s%n", sorted.length / seconds,
+                bytes.get() / seconds / (1024 * 1024));
+        if (sorted.length > 0) {
+            out.printf("    latency    = p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6,
+                    percentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Converts a manifest line to arguments laid out as on the command line.
+     */
+    static String[] parseLine(String line) {
+        if (line.startsWith("{")) {
+            JsonObject json;
+            try (JsonReader reader = Json.createReader(new StringReader(line))) {
+                json = reader.readObject();
+            } catch (JsonException e) {
+                throw new IllegalArgumentException("Malformed JSON: " + e.getMessage(), e);
+            }
+            String action = json.getString("action", "");
+            String operand = json.getString("content", json.getString("path", ""));
+            return new String[] {action, json.getString("container", ""),
+                json.getString("blob", ""), operand, json.getString("attributes", "")};
+        }
+        return parseCsv(line);
+    }
+
+    /**
+     * Splits a CSV line, honoring double quoted fields with doubled quotes as escapes.
+     */
+    static String[] parseCsv(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+}
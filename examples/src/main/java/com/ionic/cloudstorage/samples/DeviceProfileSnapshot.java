@@ -0,0 +1,151 @@
+/*
+ * (c) 2021 Ionic Security Inc. By using this code, I agree to the LICENSE included, as well as the
+ * Terms & Conditions (https://dev.ionic.com/use) and the Privacy Policy
+ * (https://ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.samples;
+
+import com.ionic.sdk.agent.Agent;
+import com.ionic.sdk.device.profile.DeviceProfile;
+import com.ionic.sdk.device.profile.persistor.DeviceProfilePersistorPlainText;
+import com.ionic.sdk.error.IonicException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads Ionic device profiles from a plain-text persistor through a compact binary snapshot.
+ * The first load parses the persistor and writes the parsed profiles next to it; later loads
+ * read the snapshot directly into an Agent, skipping the JSON parse. The snapshot records the
+ * size and modification time of the persistor it was taken from and is rewritten whenever the
+ * persistor changes.
+ *
+ * <p>The snapshot holds the same key material as the plain-text persistor, so it is created
+ * readable by its owner only where the file system supports POSIX permissions.</p>
+ */
+final class DeviceProfileSnapshot {
+
+    static final String SUFFIX = ".snapshot";
+
+    private static final int MAGIC = 0x49445053;
+    private static final int VERSION = 1;
+
+    private DeviceProfileSnapshot() {}
+
+    /**
+     * Returns an Agent initialized with the profiles of the plain-text persistor, loading them
+     * from the snapshot when it is current.
+     */
+    static Agent load(Path persistorPath) throws IOException, IonicException {
+        Path snapshotPath = persistorPath.resolveSibling(persistorPath.getFileName() + SUFFIX);
+        BasicFileAttributes source = Files.readAttributes(persistorPath,
+                BasicFileAttributes.class);
+
+        Agent agent = read(snapshotPath, source);
+        if (agent != null) {
+            return agent;
+        }
+        agent = new Agent(new DeviceProfilePersistorPlainText(persistorPath.toString()));
+        try {
+            write(snapshotPath, source, agent);
+        } catch (IOException e) {
+            // The snapshot only speeds up later launches.
+            Files.deleteIfExists(snapshotPath);
+        }
+        return agent;
+    }
+
+    private static Agent read(Path snapshotPath, BasicFileAttributes source)
+            throws IonicException {
+        if (!Files.isRegularFile(snapshotPath)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(snapshotPath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != source.size()
+                    || in.readLong() != source.lastModifiedTime().toMillis()) {
+                return null;
+            }
+            String activeDeviceId = in.readUTF();
+            int count = in.readInt();
+            List<DeviceProfile> profiles = new ArrayList<DeviceProfile>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long created = in.readLong();
+                String deviceId = in.readUTF();
+                String server = in.readUTF();
+                byte[] idcKey = readBytes(in);
+                byte[] eiKey = readBytes(in);
+                profiles.add(new DeviceProfile(name, created, deviceId, server, idcKey, eiKey));
+            }
+            Agent agent = new Agent();
+            agent.initializeWithoutProfiles();
+            for (DeviceProfile profile : profiles) {
+                agent.addProfile(profile, profile.getDeviceId().equals(activeDeviceId));
+            }
+            return agent;
+        } catch (IOException e) {
+            // A truncated or unreadable snapshot is rebuilt from the persistor.
+            return null;
+        }
+    }
+
+    private static void write(Path snapshotPath, BasicFileAttributes source, Agent agent)
+            throws IOException {
+        Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        try {
+            Files.createFile(temp, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(temp);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.size());
+            out.writeLong(source.lastModifiedTime().toMillis());
+            out.writeUTF(agent.hasActiveProfile() ? agent.getActiveProfile().getDeviceId() : "");
+            List<DeviceProfile> profiles = agent.getAllProfiles();
+            out.writeInt(profiles.size());
+            for (DeviceProfile profile : profiles) {
+                out.writeUTF(profile.getName());
+                out.writeLong(profile.getCreationTimestampSecs());
+                out.writeUTF(profile.getDeviceId());
+                out.writeUTF(profile.getServer());
+                writeBytes(out, profile.getAesCdIdcProfileKey());
+                writeBytes(out, profile.getAesCdEiProfileKey());
+            }
+        }
+        try {
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+}
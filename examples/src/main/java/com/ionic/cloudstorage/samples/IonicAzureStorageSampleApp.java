@@ -10,23 +10,24 @@
 
 package com.ionic.cloudstorage.samples;
 
+import com.google.common.io.CountingInputStream;
+import com.ionic.cloudstorage.azurestorage.IonicBlobBuffers;
+import com.ionic.cloudstorage.azurestorage.IonicBlobTransfer;
 import com.ionic.cloudstorage.azurestorage.IonicKeyResolverFactory;
+import com.ionic.cloudstorage.azurestorage.IonicUploadSession;
 import com.ionic.cloudstorage.azurestorage.Version;
 import com.ionic.sdk.agent.Agent;
 import com.ionic.sdk.agent.data.MetadataMap;
 import com.ionic.sdk.agent.key.KeyAttributesMap;
-import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
 import com.ionic.sdk.agent.request.getkey.GetKeysResponse;
-import com.ionic.sdk.device.profile.persistor.DeviceProfilePersistorPlainText;
 import com.ionic.sdk.error.IonicException;
-import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
 import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.blob.BlobEncryptionPolicy;
-import com.microsoft.azure.storage.blob.BlobRequestOptions;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -34,16 +35,17 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringBufferInputStream;
+import java.io.Reader;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.InvalidKeyException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 
 public class IonicAzureStorageSampleApp {
@@ -53,6 +55,7 @@ public class IonicAzureStorageSampleApp {
         GETFILE("getFile"),
         PUTSTRING("putString"),
         PUTFILE("putFile"),
+        BATCH("batch"),
         VERSION("version"),;
 
         final String str;
@@ -60,131 +63,116 @@ public class IonicAzureStorageSampleApp {
         Action(String name) {
             this.str = name;
         }
+
+        static Action fromString(String name) {
+            for (Action a : Action.values()) {
+                if (a.str.equals(name)) {
+                    return a;
+                }
+            }
+            return null;
+        }
     }
 
     private static final String HOME = System.getProperty("user.home");
 
+    private static final int ACTION_ARG = 0;
+    private static final int CONTAINER_NAME_ARG = 1;
+    private static final int OBJECT_KEY_ARG = 2;
+    private static final int MINIMUM_ARGS = 3; // minimum number of args for actions
+    private static final int OBJECT_CONTENT_ARG = 3;
+    private static final int FILE_PATH_ARG = 3;
+    private static final int ATTRIBUTES_ARG = 4;
+    private static final int MANIFEST_ARG = 1;
+    private static final int THREADS_ARG = 2;
+
+    private static final String STDIN_PATH = "-";
+
     private static String mAccountName;
     private static String mAccountKey;
     private static String mStorageConnectionString;
 
-    static void doBlobUpload(InputStream inputStream, long streamLength, String containerName,
-            String blobName, CloudBlobClient serviceClient,
-            IonicKeyResolverFactory keyResolverFactory, KeyAttributesMap attributes) {
+    static long doBlobUpload(InputStream inputStream, long streamLength, String containerName,
+            String blobName, IonicUploadSession session, KeyAttributesMap attributes)
+            throws IOException, StorageException, URISyntaxException, IonicException {
 
+        // A streamLength of -1, as for stdin, is encrypted and uploaded block by block.
+        CountingInputStream counted = streamLength < 0 ? new CountingInputStream(inputStream)
+                : null;
         try {
             // Note: Container name must be lower case.
-            CloudBlobContainer container = serviceClient.getContainerReference(containerName);
-            container.createIfNotExists();
+            // The session creates the container only if the upload reports it missing, and
+            // retains pre-existing Metadata through a conditional retry only if the blob exists.
+            session.upload(containerName, blobName, counted == null ? inputStream : counted,
+                    streamLength, attributes);
+        } finally {
+            inputStream.close();
+        }
+        return counted == null ? streamLength : counted.getCount();
+    }
 
-            // Upload a string.
-            CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+    static long doBlobDownload(String containerName, String blobName, CloudBlobClient serviceClient,
+            IonicKeyResolverFactory keyResolverFactory, File downloadTargetFile, boolean display)
+            throws IOException, StorageException, URISyntaxException, IonicException {
 
-            // Create the IKey used for encryption.
-            SymmetricKey key;
+        // Note: Container name must be lower case.
+        CloudBlobContainer container = serviceClient.getContainerReference(containerName);
 
-            if (attributes != null) {
-                key = keyResolverFactory.create(new CreateKeysRequest.Key("", 1, attributes));
-            } else {
-                key = keyResolverFactory.create();
-            }
-
-            // Create the encryption policy to be used for upload.
-            BlobEncryptionPolicy policy = new BlobEncryptionPolicy(key, null);
+        // Download an string.
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
 
-            // Set the encryption policy on the request options.
-            BlobRequestOptions options = new BlobRequestOptions();
-            options.setEncryptionPolicy(policy);
+        // Download the encrypted blob.
+        // For downloads, a resolver can be set up that will help pick the
+        // key based on the key id.
+        IonicKeyResolverFactory.IonicKeyResolver keyResolver =
+                keyResolverFactory.createKeyResolver();
 
-            if (blob.exists()) {
-                // Download pre-existing Metadata to retain when uploading new attributes
-                blob.downloadAttributes();
+        // Download and decrypt the encrypted contents from the blob. The Metadata is
+        // downloaded along with the first range of the contents, so no separate request
+        // checks the container or fetches the attributes first. Blobs which are not Ionic
+        // protected are rejected, as the client's default request options require encryption.
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try {
+            new IonicBlobTransfer(keyResolverFactory).download(blob, byteArrayOutputStream,
+                    keyResolver);
+        } catch (StorageException e) {
+            if (StorageErrorCodeStrings.CONTAINER_NOT_FOUND.equals(e.getErrorCode())) {
+                throw new FileNotFoundException("Container does not exist.");
             }
-
-            // Upload the encrypted contents to the blob.
-            blob.upload(inputStream, streamLength, null, options, null);
-
-        } catch (IOException | StorageException | URISyntaxException | IonicException e) {
-            System.err.println(e.getMessage());
-            System.exit(-1);
+            throw e;
         }
-    }
-
-    static void doBlobDownload(String containerName, String blobName, CloudBlobClient serviceClient,
-            IonicKeyResolverFactory keyResolverFactory, File downloadTargetFile) {
 
-        OutputStream fileOutputStream = null;
-
-        try {
-            // Note: Container name must be lower case.
-            CloudBlobContainer container = serviceClient.getContainerReference(containerName);
-            if (container.exists()) {
-
-                // Download an string.
-                CloudBlockBlob blob = container.getBlockBlobReference(blobName);
-
-                // Download the encrypted blob.
-                // For downloads, a resolver can be set up that will help pick the
-                // key based on the key id.
-                // Create the encryption policy to be used for download.
-                IonicKeyResolverFactory.IonicKeyResolver keyResolver =
-                        keyResolverFactory.createKeyResolver();
-                BlobEncryptionPolicy downloadPolicy =
-                        new BlobEncryptionPolicy(null, keyResolver);
-
-                // Set the encryption policy on the request options.
-                BlobRequestOptions options = new BlobRequestOptions();
-                options.setEncryptionPolicy(downloadPolicy);
-
-                // Download the MetaData so you can get it with the HashMap Iterator
-                blob.downloadAttributes();
-
-                // Display the downloaded attributes
-                System.out.println("Display Blob Metadata:");
-                HashMap<String, String> metadata = blob.getMetadata();
-                Iterator it = metadata.entrySet().iterator();
-                while (it.hasNext()) {
-                    Map.Entry pair = (Map.Entry) it.next();
-                    System.out.printf("    %s = %s%n", pair.getKey(), pair.getValue());
-                    it.remove();
-                }
-
-                // Download and decrypt the encrypted contents from the blob.
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                blob.download(byteArrayOutputStream, null, options, null);
+        if (display) {
+            // Display the downloaded attributes
+            System.out.println("Display Blob Metadata:");
+            for (Map.Entry<String, String> pair : blob.getMetadata().entrySet()) {
+                System.out.printf("    %s = %s%n", pair.getKey(), pair.getValue());
+            }
 
-                GetKeysResponse.Key ionicKey = keyResolver.getKey();
+            GetKeysResponse.Key ionicKey = keyResolver.getKey();
+            if (ionicKey != null) {
                 // Display the ionic key attributes
                 System.out.println("Display Ionic Key Attributes:");
                 printMap(ionicKey.getAttributesMap());
-
-                if (downloadTargetFile == null) {
-                    // print string to stdout
-                    System.out.println("Display Blob as string:");
-                    System.out.println(byteArrayOutputStream);
-                } else {
-                    // Write file to destination file
-                    System.out.println("Stream Blob to target file");
-                    fileOutputStream = new FileOutputStream(downloadTargetFile);
-                    byteArrayOutputStream.writeTo(fileOutputStream);
-                }
-            } else {
-                System.out.println("Container does not exist.");
             }
+        }
 
-        } catch (StorageException | URISyntaxException | IOException e) {
-            System.err.println(e.getMessage());
-            System.exit(-1);
-        } finally {
-            if (fileOutputStream != null) {
-                try {
-                    fileOutputStream.close();
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                    System.exit(-1);
-                }
+        if (downloadTargetFile == null) {
+            if (display) {
+                // print string to stdout
+                System.out.println("Display Blob as string:");
+                System.out.println(byteArrayOutputStream);
+            }
+        } else {
+            // Write file to destination file
+            if (display) {
+                System.out.println("Stream Blob to target file");
+            }
+            try (OutputStream fileOutputStream = new FileOutputStream(downloadTargetFile)) {
+                byteArrayOutputStream.writeTo(fileOutputStream);
             }
         }
+        return byteArrayOutputStream.size();
     }
 
 
@@ -198,107 +186,183 @@ public class IonicAzureStorageSampleApp {
     }
 
 
-    static void putString(String containerName, String blobName, String objectContent,
-            CloudBlobClient serviceClient, IonicKeyResolverFactory keyResolverFactory,
-            KeyAttributesMap attributes) {
+    static long putString(String containerName, String blobName, String objectContent,
+            IonicUploadSession session, KeyAttributesMap attributes)
+            throws IOException, StorageException, URISyntaxException, IonicException {
 
-        doBlobUpload(new StringBufferInputStream(objectContent), objectContent.length(),
-                containerName, blobName, serviceClient, keyResolverFactory, attributes);
+        byte[] content = objectContent.getBytes(StandardCharsets.UTF_8);
+        return doBlobUpload(new ByteArrayInputStream(content), content.length, containerName,
+                blobName, session, attributes);
     }
 
-    static void getString(String containerName, String blobName, CloudBlobClient serviceClient,
-            IonicKeyResolverFactory keyResolverFactory) {
+    static long getString(String containerName, String blobName, CloudBlobClient serviceClient,
+            IonicKeyResolverFactory keyResolverFactory, boolean display)
+            throws IOException, StorageException, URISyntaxException, IonicException {
+
+        // Note: Container name must be lower case.
+        CloudBlobContainer container = serviceClient.getContainerReference(containerName);
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        IonicKeyResolverFactory.IonicKeyResolver keyResolver =
+                keyResolverFactory.createKeyResolver();
+
+        // Download and decrypt the blob in a single buffer. The Metadata is downloaded along
+        // with the contents, so no separate request checks the container first. Blobs which
+        // are not Ionic protected are rejected, as the client's default request options
+        // require encryption.
+        ByteBuffer content;
+        try {
+            content = IonicBlobBuffers.download(blob, keyResolver);
+        } catch (StorageException e) {
+            if (StorageErrorCodeStrings.CONTAINER_NOT_FOUND.equals(e.getErrorCode())) {
+                throw new FileNotFoundException("Container does not exist.");
+            }
+            throw e;
+        }
+
+        if (display) {
+            System.out.println("Display Blob Metadata:");
+            for (Map.Entry<String, String> pair : blob.getMetadata().entrySet()) {
+                System.out.printf("    %s = %s%n", pair.getKey(), pair.getValue());
+            }
 
-        doBlobDownload(containerName, blobName, serviceClient, keyResolverFactory, null);
-    }
+            GetKeysResponse.Key ionicKey = keyResolver.getKey();
+            if (ionicKey != null) {
+                System.out.println("Display Ionic Key Attributes:");
+                printMap(ionicKey.getAttributesMap());
+            }
 
-    static void putFile(String containerName, String blobName, String filePath,
-            CloudBlobClient serviceClient, IonicKeyResolverFactory keyResolverFactory,
-            KeyAttributesMap attributes) {
+            System.out.println("Display Blob as string:");
+            System.out.println(StandardCharsets.UTF_8.decode(content.duplicate()));
+        }
+        return content.remaining();
+    }
 
-        String srcFilePathStr = getCanonicalPathString(filePath);
+    static long putFile(String containerName, String blobName, String filePath,
+            IonicUploadSession session, KeyAttributesMap attributes)
+            throws IOException, StorageException, URISyntaxException, IonicException {
 
-        if ((srcFilePathStr == null) || (srcFilePathStr.isEmpty())) {
-            System.err.println("No filepath specified");
-            return;
+        if (filePath.equals(STDIN_PATH)) {
+            // Stream stdin, e.g. a database dump, without knowing its length up front.
+            return doBlobUpload(System.in, -1, containerName, blobName, session, attributes);
         }
 
+        String srcFilePathStr = getCanonicalPathString(filePath);
         Path srcFilePath = Paths.get(srcFilePathStr);
 
         if (!Files.exists(srcFilePath)) {
-            System.err.println("File " + srcFilePathStr + " does not exist.");
-            return;
+            throw new FileNotFoundException("File " + srcFilePathStr + " does not exist.");
         }
         if (!Files.isRegularFile(srcFilePath)) {
-            System.err.println("File " + srcFilePathStr + " not a file.");
-            return;
+            throw new FileNotFoundException("File " + srcFilePathStr + " not a file.");
         }
 
         // Write the Blob and put it in Azure Storage:
         File sourceFile = srcFilePath.toFile();
-
-        if (sourceFile.exists() && sourceFile.isFile()) {
-            try {
-                doBlobUpload(new FileInputStream(sourceFile), sourceFile.length(), containerName,
-                        blobName, serviceClient, keyResolverFactory, attributes);
-            } catch (FileNotFoundException e) {
-                System.err.println("File " + srcFilePathStr + " not found.");
-            }
-        }
+        return doBlobUpload(new FileInputStream(sourceFile), sourceFile.length(), containerName,
+                blobName, session, attributes);
     }
 
-    static void getFile(String containerName, String blobName, String destination,
-            CloudBlobClient serviceClient, IonicKeyResolverFactory keyResolverFactory) {
-
-        System.out.println("Getting object as file from container");
-
-        String destFilePathStr = getCanonicalPathString(destination);
+    static long getFile(String containerName, String blobName, String destination,
+            CloudBlobClient serviceClient, IonicKeyResolverFactory keyResolverFactory,
+            boolean display)
+            throws IOException, StorageException, URISyntaxException, IonicException {
 
-        if ((destFilePathStr == null) || (destFilePathStr.isEmpty())) {
-            System.err.println("No filepath specified");
-            return;
+        if (display) {
+            System.out.println("Getting object as file from container");
         }
 
+        String destFilePathStr = getCanonicalPathString(destination);
         Path destFilePath = Paths.get(destFilePathStr);
 
         // Check if file already exists but is not a file (e.g. don't try to overwrite a directory)
         if ((Files.exists(destFilePath)) && (!Files.isRegularFile(destFilePath))) {
-            System.err.println("File " + destFilePathStr + " not a file.");
-            return;
+            throw new IOException("File " + destFilePathStr + " not a file.");
         }
 
-        try {
-            // Safe to delete existing file
-            Files.deleteIfExists(destFilePath);
-        } catch (IOException e) {
-            System.err.println("IOException delete destination: " + destFilePathStr);
-            return;
+        // Safe to delete existing file
+        Files.deleteIfExists(destFilePath);
+
+        return doBlobDownload(containerName, blobName, serviceClient, keyResolverFactory,
+                destFilePath.toFile(), display);
+    }
+
+    /**
+     * Runs a single put or get action, with arguments laid out as on the command line.
+     *
+     * @return the number of plaintext bytes transferred.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    static long runAction(String[] args, IonicUploadSession session, boolean display)
+            throws IOException, StorageException, URISyntaxException, IonicException {
+
+        Action action = args.length > ACTION_ARG ? Action.fromString(args[ACTION_ARG]) : null;
+        if (action == null || action == Action.VERSION || action == Action.BATCH
+                || args.length < MINIMUM_ARGS) {
+            throw new IllegalArgumentException("Invalid action: " + String.join(" ", args));
+        }
+
+        // Get containerName arg
+        String containerName = args[CONTAINER_NAME_ARG];
+        // Note: IonicAzureStorageSampleApp does not protect against invalid entry of Azure
+        // container names. See current Rules for naming Azure containers.
+
+        // Get Object Key arg
+        String blobName = args[OBJECT_KEY_ARG];
+        // Note: IonicAzureStorageSampleApp does not protect against invalid entry of Azure blob
+        // names. See current rules for specifying Azure Blob names.
+
+        // Optional: parse any attributes
+        KeyAttributesMap attributes = null;
+        if (args.length > ATTRIBUTES_ARG && !args[ATTRIBUTES_ARG].isEmpty()) {
+            attributes = parseAttributes(args[ATTRIBUTES_ARG]);
         }
 
-        doBlobDownload(containerName, blobName, serviceClient, keyResolverFactory,
-                destFilePath.toFile());
+        CloudBlobClient serviceClient = session.getServiceClient();
+        IonicKeyResolverFactory keyResolverFactory = session.getKeyResolverFactory();
+
+        switch (action) {
+            case PUTFILE:
+                requireArg(args, FILE_PATH_ARG, action);
+                return putFile(containerName, blobName, args[FILE_PATH_ARG], session, attributes);
+
+            case PUTSTRING:
+                requireArg(args, OBJECT_CONTENT_ARG, action);
+                return putString(containerName, blobName, args[OBJECT_CONTENT_ARG], session,
+                        attributes);
+
+            case GETSTRING:
+                return getString(containerName, blobName, serviceClient, keyResolverFactory,
+                        display);
+
+            case GETFILE:
+                requireArg(args, FILE_PATH_ARG, action);
+                return getFile(containerName, blobName, args[FILE_PATH_ARG], serviceClient,
+                        keyResolverFactory, display);
+
+            default:
+                throw new IllegalArgumentException("Invalid action: " + action.str);
+        }
     }
 
-    private static CloudBlobClient initializeCloudBlobClient(String storageConnectionString) {
-        try {
-            CloudStorageAccount account = CloudStorageAccount.parse(storageConnectionString);
-            CloudBlobClient serviceClient = account.createCloudBlobClient();
-            return serviceClient;
-        } catch (InvalidKeyException | URISyntaxException e) {
-            System.err.println(e.getMessage());
-            System.exit(-1);
+    private static void requireArg(String[] args, int index, Action action) {
+        if (args.length <= index) {
+            throw new IllegalArgumentException("Missing argument for " + action.str);
         }
-        return null;
+    }
+
+    private static CloudBlobClient initializeCloudBlobClient(String storageConnectionString)
+            throws InvalidKeyException, URISyntaxException {
+        CloudStorageAccount account = CloudStorageAccount.parse(storageConnectionString);
+        CloudBlobClient serviceClient = account.createCloudBlobClient();
+        return serviceClient;
     }
 
     private static IonicKeyResolverFactory initializeIonicKeyResolverFactory()
             throws IOException, IonicException {
-        // Load a plain-text device profile (SEP) from disk
-        String persistorPath =
-                Paths.get(HOME + "/.ionicsecurity/profiles.pt").toFile().getCanonicalPath();
-        DeviceProfilePersistorPlainText ptPersistor =
-                new DeviceProfilePersistorPlainText(persistorPath);
-        Agent agent = new Agent(ptPersistor);
+        // Load a plain-text device profile (SEP) from disk, through a binary snapshot of the
+        // parsed profiles which is refreshed whenever profiles.pt changes
+        Path persistorPath = Paths.get(HOME + "/.ionicsecurity/profiles.pt").toRealPath();
+        Agent agent = DeviceProfileSnapshot.load(persistorPath);
         agent.setMetadata(getMetadataMap());
 
         return new IonicKeyResolverFactory(agent);
@@ -332,31 +396,14 @@ public class IonicAzureStorageSampleApp {
             return;
         }
 
-        Action action = null;
-        final int actionArg = 0;
-        final int containerNameArg = 1;
-        final int objectKeyArg = 2;
-        final int minimumArgs = 3; // minimum number of args for actions
-        final int objectContentArg = 3;
-        final int filePathArg = 3;
-        final int attributesArg = 4;
-
-        String filePath = null;
-        KeyAttributesMap attributes = null;
-
         // Command Line Processing
-        if (args.length <= actionArg) {
+        if (args.length <= ACTION_ARG) {
             usage();
             return;
         }
 
         // Determine Action (e.g. getString)
-        for (Action a : Action.values()) {
-            if (a.str.equals(args[actionArg])) {
-                action = a;
-                break;
-            }
-        }
+        Action action = Action.fromString(args[ACTION_ARG]);
         if (action == null) {
             usage();
             return;
@@ -366,103 +413,52 @@ public class IonicAzureStorageSampleApp {
         }
 
         // Test for minimum args
-        if (args.length < minimumArgs) {
+        if (action != Action.BATCH && args.length < MINIMUM_ARGS) {
             usage();
             return;
         }
 
-        // Get containerName arg
-        String containerName = new String(args[containerNameArg]);
-        // Note: IonicAzureStorageSampleApp does not protect against invalid entry of Azure
-        // container names. See current Rules for naming Azure containers.
-
-        // Get Object Key arg
-        String blobName = new String(args[objectKeyArg]);
-        // Note: IonicAzureStorageSampleApp does not protect against invalid entry of Azure blob
-        // names. See current rules for specifying Azure Blob names.
-
-        CloudBlobClient serviceClient;
-        serviceClient = initializeCloudBlobClient(mStorageConnectionString);
-
-        serviceClient.getDefaultRequestOptions().setRequireEncryption(true);
-
-        IonicKeyResolverFactory keyResolverFactory = null;
-
+        // Build one session shared by every action, so that the client and the Agent are
+        // initialized once.
+        IonicUploadSession session;
         try {
-            keyResolverFactory = initializeIonicKeyResolverFactory();
+            CloudBlobClient serviceClient = initializeCloudBlobClient(mStorageConnectionString);
+            serviceClient.getDefaultRequestOptions().setRequireEncryption(true);
+            session = new IonicUploadSession(serviceClient, initializeIonicKeyResolverFactory());
+        } catch (InvalidKeyException | URISyntaxException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+            return;
         } catch (IonicException e) {
             System.err.println("Can't get agent: " + e.getMessage());
             System.exit(-1);
+            return;
         }
 
-        switch (action) {
-            case PUTFILE:
-
-                if (args.length > filePathArg) {
-                    String srcFilePath =
-                            Paths.get(new String(args[filePathArg])).toFile().getCanonicalPath();
-
-                    // Optional: parse any attributes
-                    if (args.length > attributesArg) {
-                        attributes = parseAttributes(args[attributesArg]);
-                        if (attributes == null) {
-                            return;
-                        }
-                    }
-
-                    putFile(containerName, blobName, srcFilePath, serviceClient, keyResolverFactory,
-                            attributes);
-                } else {
-                    usage();
+        try {
+            if (action == Action.BATCH) {
+                String manifest = args.length > MANIFEST_ARG ? args[MANIFEST_ARG] : "-";
+                int threads = args.length > THREADS_ARG ? Integer.parseInt(args[THREADS_ARG])
+                        : BatchRunner.DEFAULT_THREADS;
+                BatchRunner runner = new BatchRunner(session, threads);
+                boolean succeeded;
+                try (Reader reader = "-".equals(manifest)
+                        ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                        : Files.newBufferedReader(Paths.get(manifest), StandardCharsets.UTF_8)) {
+                    succeeded = runner.run(reader, System.out);
                 }
-                break;
-
-            case PUTSTRING:
-                if (args.length > objectContentArg) {
-                    String objectContent = new String(args[objectContentArg]);
-
-                    // Optional: parse any attributes
-                    if (args.length > attributesArg) {
-                        attributes = parseAttributes(args[attributesArg]);
-                        if (attributes == null) {
-                            return;
-                        }
-                    }
-
-                    putString(containerName, blobName, objectContent, serviceClient,
-                            keyResolverFactory, attributes);
-                } else {
-                    usage();
+                if (!succeeded) {
+                    System.exit(1);
                 }
-
-                break;
-
-            case GETSTRING:
-
-                getString(containerName, blobName, serviceClient, keyResolverFactory);
-
-                break;
-
-            case GETFILE:
-                if (args.length > filePathArg) {
-                    String destFilePath =
-                            Paths.get(new String(args[filePathArg])).toFile().getCanonicalPath();
-
-                    getFile(containerName, blobName, destFilePath, serviceClient,
-                            keyResolverFactory);
-                } else {
-                    usage();
-                }
-
-                break;
-
-            case VERSION:
-                System.out.println(Version.getFullVersion());
-                break;
-
-            default:
-                usage();
-                break;
+            } else {
+                runAction(args, session, true);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        } catch (StorageException | URISyntaxException | IonicException | IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
         }
     }
 
@@ -491,34 +487,33 @@ public class IonicAzureStorageSampleApp {
         return applicationMetadata;
     }
 
-    public static String getCanonicalPathString(String originalPath) {
-        String canonicalPathStr = null;
-
-        try {
-            canonicalPathStr = Paths.get(originalPath).toFile().getCanonicalPath();
-        } catch (NullPointerException e) {
-            System.err.println("File path is null.");
-            System.exit(-1);
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
-            System.exit(-1);
+    public static String getCanonicalPathString(String originalPath) throws IOException {
+        if ((originalPath == null) || (originalPath.isEmpty())) {
+            throw new IllegalArgumentException("No filepath specified");
         }
-        return canonicalPathStr;
+        return Paths.get(originalPath).toFile().getCanonicalPath();
     }
 
     private static void usage() {
-        System.out.println("Usage: prog <put<x> command> | <get<x> command> | version");
+        System.out.println("Usage: prog <put<x> command> | <get<x> command> | batch command "
+                + "| version");
         System.out.println("put<x> commands:");
         System.out.println("\tNOTE: <attributes> for this command is a list of comma delimited "
                 + "tuples with each tuple composed of a key followed by a colon delimited list of "
                 +  "values");
         System.out.println("\t\t<key>:<value>[:<value>]...[,<key>:<value>[:<value>]...]...");
         System.out.println("");
+        System.out.println("\tNOTE: a <fileSourcePath> of - uploads stdin");
         System.out.println("\tputFile <containerName> <blobName> <fileSourcePath> [<attributes>]");
         System.out.println("\tputString <containerName> <blobName> <contentString> [<attributes>]");
         System.out.println("get<x> commands:");
         System.out.println("\tgetFile <containerName> <blobName> <destinationPath>");
         System.out.println("\tgetString <containerName> <blobName>");
+        System.out.println("batch command:");
+        System.out.println("\tNOTE: <manifest> is a file, or - for stdin, with one put<x> or "
+                + "get<x> command per line, either as CSV fields in command line order or as a "
+                + "JSON object with the fields action, container, blob, content, path and "
+                + "attributes");
+        System.out.println("\tbatch [<manifest>] [<threads>]");
     }
-
 }
@@ -0,0 +1,84 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+
+/**
+ * A bounded, lock-free pool of {@link javax.crypto.Cipher} instances initialized for a single
+ * Ionic Key, transformation and mode. Only suitable for transformations which do not take
+ * a per-call parameter (such as AESWrap), since pooled ciphers are never re-initialized.
+ */
+final class CipherPool {
+
+    static final int DEFAULT_MAX_IDLE = 16;
+
+    private final IonicKey key;
+    private final String transformation;
+    private final int mode;
+    private final int maxIdle;
+    private final ConcurrentLinkedDeque<Cipher> idle = new ConcurrentLinkedDeque<Cipher>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    CipherPool(IonicKey key, String transformation, int mode) {
+        this(key, transformation, mode, DEFAULT_MAX_IDLE);
+    }
+
+    CipherPool(IonicKey key, String transformation, int mode, int maxIdle) {
+        this.key = key;
+        this.transformation = transformation;
+        this.mode = mode;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns an idle initialized cipher, or a newly initialized one if none is idle.
+     */
+    Cipher borrow() throws GeneralSecurityException {
+        if (key.isDestroyed()) {
+            throw new IonicKey.DestroyedKeyException(key.getKid());
+        }
+        Cipher cipher = idle.pollFirst();
+        if (cipher != null) {
+            idleCount.decrementAndGet();
+            return cipher;
+        }
+        cipher = Cipher.getInstance(transformation);
+        key.init(cipher, mode, null);
+        return cipher;
+    }
+
+    /**
+     * Returns a cipher to the pool once its operation has completed. Ciphers are dropped if the
+     * pool is full or the key has been destroyed.
+     */
+    void release(Cipher cipher) {
+        if (key.isDestroyed()) {
+            return;
+        }
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offerFirst(cipher);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    int idleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Drops all idle ciphers, releasing the key schedules they hold.
+     */
+    void clear() {
+        while (idle.pollFirst() != null) {
+            idleCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Compression applied to plaintext before it is encrypted by {@link IonicBlobTransfer}.
+ * The codec is recorded in blob metadata under {@link #METADATA_KEY} so downloads decompress
+ * transparently. Only codecs available in the JDK are provided.
+ */
+public enum CompressionCodec {
+
+    /**
+     * No compression.
+     */
+    NONE("none") {
+        @Override
+        InputStream compress(InputStream source) {
+            return new FilterInputStream(source) {
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        OutputStream decompress(OutputStream target) {
+            return new FilterOutputStream(target) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+    },
+
+    /**
+     * Deflate (RFC 1951) compression.
+     */
+    DEFLATE("deflate") {
+        @Override
+        InputStream compress(InputStream source) {
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            return new DeflaterInputStream(source, deflater) {
+                @Override
+                public void close() {
+                    deflater.end();
+                }
+            };
+        }
+
+        @Override
+        OutputStream decompress(OutputStream target) {
+            final Inflater inflater = new Inflater(true);
+            return new InflaterOutputStream(target, inflater) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        finish();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    };
+
+    /**
+     * Blob metadata key recording the codec.
+     */
+    public static final String METADATA_KEY = "ioniccompression";
+
+    /**
+     * Number of leading bytes inspected by {@link #sniff}.
+     */
+    public static final int SNIFF_LENGTH = 64 * 1024;
+
+    private static final byte[][] COMPRESSED_SIGNATURES = {
+        {(byte) 0x1f, (byte) 0x8b},                          // gzip
+        {(byte) 0x50, (byte) 0x4b, (byte) 0x03, (byte) 0x04}, // zip
+        {(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd}, // zstd
+        {(byte) 0x04, (byte) 0x22, (byte) 0x4d, (byte) 0x18}, // lz4 frame
+        {(byte) 0x42, (byte) 0x5a, (byte) 0x68},              // bzip2
+        {(byte) 0xfd, (byte) 0x37, (byte) 0x7a, (byte) 0x58}, // xz
+        {(byte) 0x89, (byte) 0x50, (byte) 0x4e, (byte) 0x47}, // png
+        {(byte) 0xff, (byte) 0xd8, (byte) 0xff},              // jpeg
+    };
+
+    private final String name;
+
+    CompressionCodec(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the name recorded in blob metadata.
+     *
+     * @return the codec name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns a stream of the compressed source. Closing the returned stream releases the
+     * codec's resources but does not close the source.
+     */
+    abstract InputStream compress(InputStream source);
+
+    /**
+     * Returns a stream decompressing into the target. Closing the returned stream flushes any
+     * remaining output but does not close the target.
+     */
+    abstract OutputStream decompress(OutputStream target);
+
+    /**
+     * Returns the codec recorded in blob metadata, NONE if no codec is recorded.
+     *
+     * @param metadata blob metadata.
+     * @return a CompressionCodec.
+     * @throws IllegalArgumentException if the recorded codec is unknown.
+     */
+    public static CompressionCodec fromMetadata(Map<String, String> metadata) {
+        String value = metadata == null ? null : metadata.get(METADATA_KEY);
+        if (value == null) {
+            return NONE;
+        }
+        for (CompressionCodec codec : values()) {
+            if (codec.name.equals(value)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression codec " + value);
+    }
+
+    /**
+     * Returns true if the sample looks compressible: it does not start with the signature of a
+     * common compressed format, and a fast trial compression saves at least 10%.
+     *
+     * @param sample the leading bytes of the content.
+     * @param length the number of valid bytes in sample.
+     * @return true if compressing the content is likely worthwhile.
+     */
+    public static boolean isCompressible(byte[] sample, int length) {
+        if (length == 0) {
+            return false;
+        }
+        for (byte[] signature : COMPRESSED_SIGNATURES) {
+            if (startsWith(sample, length, signature)) {
+                return false;
+            }
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(buffer);
+            }
+            return compressed < length * 0.9;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean startsWith(byte[] sample, int length, byte[] signature) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (sample[i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.StorageException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Helpers for resolving Ionic Keys and wrapping or unwrapping content keys, translating the
+ * future based {@link com.microsoft.azure.keyvault.core.IKey} API into checked exceptions.
+ */
+final class ContentKeys {
+
+    private ContentKeys() {}
+
+    /**
+     * Resolves the key with the IKeyResolver, rethrowing an underlying IonicException.
+     */
+    static IKey resolve(IKeyResolver resolver, String keyId) throws IonicException, IOException {
+        IKey key = get(resolver.resolveKeyAsync(keyId));
+        if (key == null) {
+            throw new IOException("Key " + keyId + " could not be resolved");
+        }
+        return key;
+    }
+
+    /**
+     * Resolves the key named in the EncryptionData and unwraps the content key.
+     */
+    static byte[] unwrap(EncryptionData data, IKeyResolver resolver)
+            throws IonicException, IOException {
+        return unwrap(data.getEncryptedKey(), data.getKeyWrapAlgorithm(), resolver,
+                data.getKeyId());
+    }
+
+    /**
+     * Resolves the key and unwraps the content key, resolving the key again if it was evicted
+     * from its {@link IonicKeyStore} between being resolved and used.
+     */
+    static byte[] unwrap(byte[] encryptedKey, String keyWrapAlgorithm, IKeyResolver resolver,
+            String keyId) throws IonicException, IOException {
+        try {
+            return unwrap(encryptedKey, keyWrapAlgorithm, resolve(resolver, keyId));
+        } catch (IOException e) {
+            if (!isDestroyed(e)) {
+                throw e;
+            }
+            return unwrap(encryptedKey, keyWrapAlgorithm, resolve(resolver, keyId));
+        }
+    }
+
+    /**
+     * Returns true if the exception reports the use of an evicted {@link IonicKey}.
+     */
+    static boolean isDestroyed(IOException e) {
+        return e.getCause() instanceof IonicKey.DestroyedKeyException;
+    }
+
+    /**
+     * Returns true if the key is an {@link IonicKey} whose material has been destroyed.
+     */
+    static boolean isDestroyed(IKey key) {
+        return key instanceof IonicKey && ((IonicKey) key).isDestroyed();
+    }
+
+    static byte[] unwrap(EncryptionData data, IKey key) throws IonicException, IOException {
+        return unwrap(data.getEncryptedKey(), data.getKeyWrapAlgorithm(), key);
+    }
+
+    static byte[] unwrap(byte[] encryptedKey, String keyWrapAlgorithm, IKey key)
+            throws IonicException, IOException {
+        try {
+            return get(key.unwrapKeyAsync(encryptedKey, keyWrapAlgorithm));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to unwrap content key", e);
+        }
+    }
+
+    /**
+     * Wraps a content key under the key's default key wrap algorithm.
+     */
+    static Pair<byte[], String> wrap(byte[] contentKey, IKey key)
+            throws IonicException, IOException {
+        try {
+            return get(key.wrapKeyAsync(contentKey, key.getDefaultKeyWrapAlgorithm()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to wrap content key", e);
+        }
+    }
+
+    static <T> T get(Future<T> future) throws IonicException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IonicException) {
+                throw (IonicException) cause;
+            }
+            throw asIOException(cause);
+        }
+    }
+
+    /**
+     * Waits for a transfer task, rethrowing StorageException and IOException causes.
+     */
+    static <T> T await(Future<T> future) throws StorageException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            throw asIOException(cause);
+        }
+    }
+
+    static IOException asIOException(Throwable cause) {
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause.getMessage(), cause);
+    }
+}
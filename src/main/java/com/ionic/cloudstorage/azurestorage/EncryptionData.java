@@ -0,0 +1,307 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.io.StringReader;
+import java.util.Base64;
+import java.util.Map;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+/**
+ * The client-side encryption metadata stored on a blob under the {@link #METADATA_KEY} key.
+ * Both the Azure Storage SDK AES-CBC envelope (protocol 1.0) and the segmented AES-GCM format
+ * written by {@link IonicBlobTransfer} (protocol {@link #PROTOCOL_GCM}) are represented, as
+ * are packed record blobs written by {@link IonicPackedBlobWriter}. The AES-CBC envelope is
+ * also written by {@link IonicBlobOutputStream}.
+ * Fields not modeled by this class are preserved when the metadata is rewritten.
+ */
+public final class EncryptionData {
+
+    /**
+     * Blob metadata key holding the encryption data.
+     */
+    public static final String METADATA_KEY = "encryptiondata";
+
+    /**
+     * Protocol written by the Azure Storage SDK BlobEncryptionPolicy.
+     */
+    public static final String PROTOCOL_CBC = "1.0";
+
+    /**
+     * Protocol written by {@link IonicBlobTransfer} for segmented AES-GCM blobs.
+     */
+    public static final String PROTOCOL_GCM = "Ionic-GCM-1.0";
+
+    /**
+     * Protocol written by {@link IonicPackedBlobWriter} for packed record blobs.
+     */
+    public static final String PROTOCOL_PACK = "Ionic-Pack-1.0";
+
+    static final String ALGORITHM_CBC = "AES_CBC_256";
+    static final String ALGORITHM_GCM = "AES_GCM_256";
+
+    private final JsonObject source;
+    private final String keyId;
+    private final byte[] encryptedKey;
+    private final String keyWrapAlgorithm;
+    private final String protocol;
+    private final String encryptionAlgorithm;
+    private final byte[] contentEncryptionIV;
+    private final int segmentLength;
+
+    private EncryptionData(JsonObject source) {
+        this.source = source;
+        JsonObject wrapped = source.getJsonObject("WrappedContentKey");
+        JsonObject agent = source.getJsonObject("EncryptionAgent");
+        if (wrapped == null || agent == null) {
+            throw new IllegalArgumentException("Encryption data is missing required fields");
+        }
+        this.keyId = wrapped.getString("KeyId");
+        this.encryptedKey = Base64.getDecoder().decode(wrapped.getString("EncryptedKey"));
+        this.keyWrapAlgorithm = wrapped.getString("Algorithm");
+        this.protocol = agent.getString("Protocol");
+        this.encryptionAlgorithm = agent.getString("EncryptionAlgorithm");
+        String iv = source.getString("ContentEncryptionIV", null);
+        this.contentEncryptionIV = iv == null ? null : Base64.getDecoder().decode(iv);
+        JsonObject region = source.getJsonObject("EncryptedRegionInfo");
+        if (region != null) {
+            JsonNumber length = region.getJsonNumber("DataLength");
+            this.segmentLength = length == null ? 0 : length.intValue();
+        } else {
+            this.segmentLength = 0;
+        }
+    }
+
+    /**
+     * Parses the JSON encryption data.
+     *
+     * @param json the value of the {@link #METADATA_KEY} metadata entry.
+     * @return an EncryptionData.
+     * @throws IllegalArgumentException if the JSON is malformed or incomplete.
+     */
+    public static EncryptionData parse(String json) {
+        try (JsonReader reader = Json.createReader(new StringReader(json))) {
+            return new EncryptionData(reader.readObject());
+        } catch (JsonException | ClassCastException | NullPointerException e) {
+            throw new IllegalArgumentException("Malformed encryption data", e);
+        }
+    }
+
+    /**
+     * Returns the EncryptionData from blob metadata, or null if the blob is not encrypted.
+     *
+     * @param metadata blob metadata, e.g. from
+     *        {@link com.microsoft.azure.storage.blob.CloudBlob#getMetadata()}.
+     * @return an EncryptionData or null.
+     */
+    public static EncryptionData fromMetadata(Map<String, String> metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        String json = metadata.get(METADATA_KEY);
+        return json == null ? null : parse(json);
+    }
+
+    /**
+     * Builds the EncryptionData of the Azure Storage SDK AES-CBC envelope.
+     */
+    static EncryptionData forCbc(String keyId, byte[] encryptedKey, String keyWrapAlgorithm,
+            byte[] contentEncryptionIV) {
+        JsonObject json = Json.createObjectBuilder()
+                .add("EncryptionMode", "FullBlob")
+                .add("WrappedContentKey", wrappedContentKey(keyId, encryptedKey,
+                        keyWrapAlgorithm))
+                .add("EncryptionAgent", Json.createObjectBuilder()
+                        .add("Protocol", PROTOCOL_CBC)
+                        .add("EncryptionAlgorithm", ALGORITHM_CBC))
+                .add("ContentEncryptionIV",
+                        Base64.getEncoder().encodeToString(contentEncryptionIV))
+                .add("KeyWrappingMetadata", keyWrappingMetadata())
+                .build();
+        return new EncryptionData(json);
+    }
+
+    /**
+     * Builds the EncryptionData for a segmented AES-GCM blob.
+     */
+    static EncryptionData forGcm(String keyId, byte[] encryptedKey, String keyWrapAlgorithm,
+            int segmentLength) {
+        return forGcm(PROTOCOL_GCM, keyId, encryptedKey, keyWrapAlgorithm, segmentLength);
+    }
+
+    /**
+     * Builds the EncryptionData for a packed record blob.
+     */
+    static EncryptionData forPack(String keyId, byte[] encryptedKey, String keyWrapAlgorithm,
+            int maxRecordLength) {
+        return forGcm(PROTOCOL_PACK, keyId, encryptedKey, keyWrapAlgorithm, maxRecordLength);
+    }
+
+    private static EncryptionData forGcm(String protocol, String keyId, byte[] encryptedKey,
+            String keyWrapAlgorithm, int segmentLength) {
+        JsonObject json = Json.createObjectBuilder()
+                .add("EncryptionMode", "FullBlob")
+                .add("WrappedContentKey", wrappedContentKey(keyId, encryptedKey,
+                        keyWrapAlgorithm))
+                .add("EncryptionAgent", Json.createObjectBuilder()
+                        .add("Protocol", protocol)
+                        .add("EncryptionAlgorithm", ALGORITHM_GCM))
+                .add("EncryptedRegionInfo", Json.createObjectBuilder()
+                        .add("DataLength", segmentLength)
+                        .add("NonceLength", SegmentCipher.NONCE_LENGTH))
+                .add("KeyWrappingMetadata", keyWrappingMetadata())
+                .build();
+        return new EncryptionData(json);
+    }
+
+    private static JsonObjectBuilder keyWrappingMetadata() {
+        return Json.createObjectBuilder().add("EncryptionLibrary", "Java "
+                + Version.getArtifactId() + " " + Version.getVersion());
+    }
+
+    private static JsonObjectBuilder wrappedContentKey(String keyId, byte[] encryptedKey,
+            String keyWrapAlgorithm) {
+        return Json.createObjectBuilder()
+                .add("KeyId", keyId)
+                .add("EncryptedKey", Base64.getEncoder().encodeToString(encryptedKey))
+                .add("Algorithm", keyWrapAlgorithm);
+    }
+
+    /**
+     * Returns a copy of this EncryptionData with the content key wrapped under a different key.
+     * All other fields are preserved.
+     *
+     * @param newKeyId the ID of the key wrapping the content key.
+     * @param newEncryptedKey the wrapped content key.
+     * @param newKeyWrapAlgorithm the key wrap algorithm.
+     * @return a new EncryptionData.
+     */
+    public EncryptionData withWrappedContentKey(String newKeyId, byte[] newEncryptedKey,
+            String newKeyWrapAlgorithm) {
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        for (Map.Entry<String, JsonValue> entry : source.entrySet()) {
+            if (!"WrappedContentKey".equals(entry.getKey())) {
+                builder.add(entry.getKey(), entry.getValue());
+            }
+        }
+        builder.add("WrappedContentKey", wrappedContentKey(newKeyId, newEncryptedKey,
+                newKeyWrapAlgorithm));
+        return new EncryptionData(builder.build());
+    }
+
+    /**
+     * Returns the ID of the Ionic Key wrapping the content key.
+     *
+     * @return an Ionic Key ID.
+     */
+    public String getKeyId() {
+        return keyId;
+    }
+
+    /**
+     * Returns the wrapped content key.
+     *
+     * @return the wrapped content key bytes.
+     */
+    public byte[] getEncryptedKey() {
+        return encryptedKey.clone();
+    }
+
+    /**
+     * Returns the algorithm used to wrap the content key.
+     *
+     * @return a key wrap algorithm name such as A256KW.
+     */
+    public String getKeyWrapAlgorithm() {
+        return keyWrapAlgorithm;
+    }
+
+    /**
+     * Returns the encryption agent protocol.
+     *
+     * @return {@link #PROTOCOL_CBC}, {@link #PROTOCOL_GCM} or another protocol string.
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Returns the content encryption algorithm.
+     *
+     * @return a content encryption algorithm name such as AES_CBC_256.
+     */
+    public String getEncryptionAlgorithm() {
+        return encryptionAlgorithm;
+    }
+
+    /**
+     * Returns the IV of an AES-CBC blob, or null for other formats.
+     *
+     * @return the content encryption IV.
+     */
+    public byte[] getContentEncryptionIV() {
+        return contentEncryptionIV == null ? null : contentEncryptionIV.clone();
+    }
+
+    /**
+     * Returns the plaintext length of each segment of an AES-GCM blob, the maximum record
+     * length of a packed blob, or 0 for other formats.
+     *
+     * @return the segment length in bytes.
+     */
+    public int getSegmentLength() {
+        return segmentLength;
+    }
+
+    /**
+     * Returns true if the blob was written by the Azure Storage SDK BlobEncryptionPolicy.
+     *
+     * @return true for the AES-CBC envelope.
+     */
+    public boolean isCbc() {
+        return PROTOCOL_CBC.equals(protocol) && ALGORITHM_CBC.equals(encryptionAlgorithm);
+    }
+
+    /**
+     * Returns true if the blob was written in the segmented AES-GCM format.
+     *
+     * @return true for the segmented AES-GCM format.
+     */
+    public boolean isGcm() {
+        return PROTOCOL_GCM.equals(protocol) && ALGORITHM_GCM.equals(encryptionAlgorithm)
+                && segmentLength > 0;
+    }
+
+    /**
+     * Returns true if the blob was written by {@link IonicPackedBlobWriter}.
+     *
+     * @return true for the packed record format.
+     */
+    public boolean isPacked() {
+        return PROTOCOL_PACK.equals(protocol) && ALGORITHM_GCM.equals(encryptionAlgorithm)
+                && segmentLength > 0;
+    }
+
+    /**
+     * Returns the JSON representation stored in blob metadata.
+     *
+     * @return a JSON string.
+     */
+    public String toJson() {
+        return source.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
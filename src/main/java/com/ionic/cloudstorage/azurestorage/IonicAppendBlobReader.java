@@ -0,0 +1,236 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Reads the frames written by an {@link IonicAppendBlobWriter}, incrementally and while the
+ * blob is still being written. Each call to {@link #poll(OutputStream)} fetches the blob's
+ * length and then only what has been appended since the previous call, authenticates and
+ * decrypts every complete frame in order and writes the plaintext to the OutputStream. The
+ * reader keeps one buffer, which starts small and grows up to {@link #READ_LENGTH} with the
+ * appends, and carries a partial trailing frame over to the next call rather than fetching it
+ * again. The content key of a frame is unwrapped once
+ * per key epoch, resolving the Ionic Key with the IKeyResolver when the writer rolled to a new
+ * key.
+ *
+ * <p>Since every frame is self-describing, a reader can start at any frame boundary given by
+ * {@link #getPosition()} and {@link #getSequence()} of an earlier reader, for instance to
+ * continue tailing after a restart.</p>
+ */
+public class IonicAppendBlobReader {
+
+    /**
+     * Maximum length of the ranges fetched while reading, which holds at least one whole frame.
+     */
+    public static final int READ_LENGTH = IonicAppendBlobWriter.MAX_APPEND_LENGTH;
+
+    private static final int INITIAL_BUFFER_LENGTH = 64 * 1024;
+
+    private final CloudBlob blob;
+    private final IKeyResolver resolver;
+    private final BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+    private long position;
+    private long sequence;
+    private long epoch = -1;
+    private byte[] keyHeader;
+    private SegmentCipher cipher;
+    private byte[] buffer = new byte[0];
+    private int pending;
+    private byte[] plaintext = new byte[0];
+
+    /**
+     * Constructs a reader of the blob from its start, resolving keys with the IKeyResolver.
+     *
+     * @param blob the {@link com.microsoft.azure.storage.blob.CloudBlob} being read.
+     * @param resolver an {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     */
+    public IonicAppendBlobReader(CloudBlob blob, IKeyResolver resolver) {
+        this(blob, resolver, 0, 0);
+    }
+
+    /**
+     * Constructs a reader of the blob from a frame boundary, resolving keys with the
+     * IKeyResolver.
+     *
+     * @param blob the {@link com.microsoft.azure.storage.blob.CloudBlob} being read.
+     * @param resolver an {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @param position the offset of the frame in the blob.
+     * @param sequence the sequence number of the frame.
+     */
+    public IonicAppendBlobReader(CloudBlob blob, IKeyResolver resolver, long position,
+            long sequence) {
+        if (position < 0 || sequence < 0) {
+            throw new IllegalArgumentException("position and sequence must not be negative");
+        }
+        this.blob = blob;
+        this.resolver = resolver;
+        this.position = position;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Returns the offset in the blob of the next frame to be read.
+     *
+     * @return the position.
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the sequence number of the next frame to be read.
+     *
+     * @return the sequence number.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Reads every complete frame appended since the previous call and writes its plaintext to
+     * the OutputStream. Returns 0 if nothing new has been appended.
+     *
+     * @param out the OutputStream receiving the plaintext.
+     * @return the number of plaintext bytes written.
+     * @throws IonicException if an Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if a frame is invalid or fails authentication.
+     */
+    public synchronized long poll(OutputStream out)
+            throws IonicException, StorageException, IOException {
+        blob.downloadAttributes(null, options, null);
+        long length = blob.getProperties().getLength();
+        long plaintextLength = 0;
+        while (position + pending < length) {
+            long remaining = length - position - pending;
+            if (buffer.length - pending < Math.min(remaining, READ_LENGTH - pending)) {
+                grow((int) Math.min(READ_LENGTH, pending + remaining));
+            }
+            int fetch = (int) Math.min(remaining, buffer.length - pending);
+            int read = blob.downloadRangeToByteArray(position + pending, (long) fetch, buffer,
+                    pending, null, options, null);
+            if (read != fetch) {
+                throw new IOException("Short read at offset " + (position + pending)
+                        + " of blob " + blob.getName());
+            }
+            pending += read;
+            int offset = 0;
+            try {
+                int frameLength;
+                while ((frameLength = frameLength(buffer, offset, pending - offset)) > 0) {
+                    plaintextLength += decrypt(buffer, offset, frameLength, out);
+                    offset += frameLength;
+                    position += frameLength;
+                    sequence++;
+                }
+            } finally {
+                pending -= offset;
+                System.arraycopy(buffer, offset, buffer, 0, pending);
+            }
+        }
+        return plaintextLength;
+    }
+
+    /**
+     * Grows the buffer, by doubling, to at least the length, keeping the pending bytes.
+     */
+    private void grow(int length) {
+        int capacity = Math.max(INITIAL_BUFFER_LENGTH, buffer.length);
+        while (capacity < length) {
+            capacity = (int) Math.min(READ_LENGTH, 2L * capacity);
+        }
+        buffer = Arrays.copyOf(buffer, capacity);
+    }
+
+    /**
+     * Returns the length of the frame at the offset of the array, the next frame to be read,
+     * or 0 if it is not complete.
+     */
+    private int frameLength(byte[] array, int offset, int available) throws IOException {
+        if (available < IonicAppendBlobWriter.FIXED_HEADER_LENGTH) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.wrap(array, offset, available);
+        int magic = header.getInt();
+        int version = header.get();
+        header.get();
+        int headerLength = header.getShort() & 0xffff;
+        header.position(header.position() + 16);
+        int ciphertextLength = header.getInt();
+        if (magic != IonicAppendBlobWriter.MAGIC || version != IonicAppendBlobWriter.VERSION
+                || headerLength < IonicAppendBlobWriter.FIXED_HEADER_LENGTH
+                || headerLength > IonicAppendBlobWriter.MAX_HEADER_LENGTH
+                || ciphertextLength < SegmentCipher.OVERHEAD
+                || ciphertextLength > IonicAppendBlobWriter.MAX_FRAME_LENGTH
+                        + SegmentCipher.OVERHEAD) {
+            throw new IOException("Blob " + blob.getName() + " has an invalid frame at offset "
+                    + position);
+        }
+        int frameLength = headerLength + ciphertextLength;
+        return frameLength <= available ? frameLength : 0;
+    }
+
+    private long decrypt(byte[] array, int offset, int frameLength, OutputStream out)
+            throws IonicException, IOException {
+        ByteBuffer header = ByteBuffer.wrap(array, offset, frameLength);
+        header.position(header.position() + 6);
+        int headerLength = header.getShort() & 0xffff;
+        long frameEpoch = header.getLong();
+        long frameSequence = header.getLong();
+        if (frameSequence != sequence) {
+            throw new IOException("Blob " + blob.getName() + " has frame " + frameSequence
+                    + " where frame " + sequence + " was expected");
+        }
+        byte[] frameKeyHeader = Arrays.copyOfRange(array,
+                offset + IonicAppendBlobWriter.FIXED_HEADER_LENGTH, offset + headerLength);
+        if (cipher == null || frameEpoch != epoch || !Arrays.equals(frameKeyHeader, keyHeader)) {
+            unwrap(frameKeyHeader);
+            epoch = frameEpoch;
+            keyHeader = frameKeyHeader;
+        }
+        byte[] aad = Arrays.copyOfRange(array, offset, offset + headerLength);
+        int ciphertextLength = frameLength - headerLength;
+        if (plaintext.length < ciphertextLength - SegmentCipher.OVERHEAD) {
+            plaintext = new byte[ciphertextLength - SegmentCipher.OVERHEAD];
+        }
+        try {
+            int length = cipher.decrypt(aad, array, offset + headerLength, ciphertextLength,
+                    plaintext, 0);
+            out.write(plaintext, 0, length);
+            return length;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Frame " + frameSequence + " of blob " + blob.getName()
+                    + " failed authentication", e);
+        }
+    }
+
+    private void unwrap(byte[] frameKeyHeader) throws IonicException, IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frameKeyHeader));
+        String keyId = in.readUTF();
+        String keyWrapAlgorithm = in.readUTF();
+        byte[] encryptedKey = new byte[in.readUnsignedShort()];
+        in.readFully(encryptedKey);
+        byte[] contentKey = ContentKeys.unwrap(encryptedKey, keyWrapAlgorithm, resolver, keyId);
+        try {
+            cipher = new SegmentCipher(contentKey, IonicAppendBlobWriter.MAX_FRAME_LENGTH);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * An OutputStream encrypting a continuous stream, such as a log, into an append blob. Content
+ * is cut into frames of at most {@link #getFrameLength()} plaintext bytes, each encrypted and
+ * authenticated independently with AES-GCM under a content key wrapped by an Ionic Key from
+ * {@link IonicKeyResolverFactory#create()}. Frames are committed together in a single append,
+ * once {@link #getCommitLength()} bytes are pending or {@link #getCommitInterval()}
+ * milliseconds after the first pending byte was written, whichever comes first. A new Ionic
+ * Key and content key are created every {@link #getFramesPerKey()} frames. The frames can be
+ * read while the blob is still being written with {@link IonicAppendBlobReader}.
+ *
+ * <p>Every frame is self-describing: it starts with a header holding the {@link #MAGIC} value,
+ * the format version, the header length, the key epoch, the frame sequence number, the
+ * ciphertext length, the Ionic Key ID and the wrapped content key, followed by the nonce, the
+ * ciphertext and the GCM tag. The whole header is authenticated with the frame, so reordered,
+ * dropped or altered frames fail authentication or the sequence check of the reader.</p>
+ *
+ * <p>The writer creates the blob on its first commit and fails if the blob already exists.
+ * Each append is conditional on the append position, so a second writer of the same blob
+ * fails rather than interleaving its frames.</p>
+ */
+public class IonicAppendBlobWriter extends OutputStream {
+
+    /**
+     * Magic value starting the header of every frame.
+     */
+    public static final int MAGIC = 0x49414631;
+
+    /**
+     * Version of the frame format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Maximum length of a single append to an append blob.
+     */
+    public static final int MAX_APPEND_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Maximum length of the header of a frame.
+     */
+    public static final int MAX_HEADER_LENGTH = 1024;
+
+    /**
+     * Maximum plaintext length of a frame, such that a frame fits in a single append.
+     */
+    public static final int MAX_FRAME_LENGTH =
+            MAX_APPEND_LENGTH - MAX_HEADER_LENGTH - SegmentCipher.OVERHEAD;
+
+    /**
+     * Default plaintext length of a frame.
+     */
+    public static final int DEFAULT_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * Default number of pending bytes at which frames are committed.
+     */
+    public static final int DEFAULT_COMMIT_LENGTH = MAX_APPEND_LENGTH;
+
+    /**
+     * Default maximum time, in milliseconds, for which written content remains uncommitted.
+     */
+    public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+
+    /**
+     * Default number of frames encrypted under one content key and Ionic Key.
+     */
+    public static final long DEFAULT_FRAMES_PER_KEY = 65536;
+
+    /**
+     * Length of the fixed part of a frame header, before the key ID and wrapped content key.
+     */
+    static final int FIXED_HEADER_LENGTH = 28;
+
+    private static final int HTTP_PRECONDITION_FAILED = 412;
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1,
+            r -> {
+                Thread thread = new Thread(r, "ionic-append-commit");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final CloudAppendBlob blob;
+    private final IonicKeyResolverFactory keyResolverFactory;
+    private final CreateKeysRequest.Key keyRequest;
+    private final BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+    private final IonicBlobBuffers.Buffer pending =
+            new IonicBlobBuffers.Buffer(MAX_APPEND_LENGTH);
+    private final byte[] single = new byte[1];
+    private int frameLength = DEFAULT_FRAME_LENGTH;
+    private int commitLength = DEFAULT_COMMIT_LENGTH;
+    private long commitInterval = DEFAULT_COMMIT_INTERVAL;
+    private long framesPerKey = DEFAULT_FRAMES_PER_KEY;
+    private byte[] frame;
+    private int framePosition = 0;
+    private byte[] encrypted;
+    private SegmentCipher cipher;
+    private byte[] keyHeader;
+    private long epoch = -1;
+    private long epochFrames = 0;
+    private long sequence = 0;
+    private long position = 0;
+    private long commits = 0;
+    private boolean created = false;
+    private ScheduledFuture<?> commitTimer;
+    private IOException failure;
+    private boolean closed = false;
+
+    /**
+     * Constructs a writer encrypting into the append blob under Ionic Keys created with the
+     * IonicKeyResolverFactory.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudAppendBlob}.
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     */
+    public IonicAppendBlobWriter(CloudAppendBlob blob,
+            IonicKeyResolverFactory keyResolverFactory) {
+        this(blob, keyResolverFactory, new CreateKeysRequest.Key(""));
+    }
+
+    /**
+     * Constructs a writer encrypting into the append blob under Ionic Keys created with the
+     * IonicKeyResolverFactory and the attributes of the CreateKeysRequest.Key.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudAppendBlob}.
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     * @param keyRequest a {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest.Key}
+     *        describing each Ionic Key to create.
+     */
+    public IonicAppendBlobWriter(CloudAppendBlob blob, IonicKeyResolverFactory keyResolverFactory,
+            CreateKeysRequest.Key keyRequest) {
+        this.blob = blob;
+        this.keyResolverFactory = keyResolverFactory;
+        this.keyRequest = keyRequest;
+    }
+
+    /**
+     * Sets the plaintext length of a frame. Must be set before anything is written.
+     *
+     * @param frameLength the frame length, at most {@link #MAX_FRAME_LENGTH}.
+     */
+    public synchronized void setFrameLength(int frameLength) {
+        if (frameLength <= 0 || frameLength > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("frameLength must be between 1 and "
+                    + MAX_FRAME_LENGTH);
+        }
+        checkNotStarted();
+        this.frameLength = frameLength;
+    }
+
+    /**
+     * Returns the plaintext length of a frame.
+     *
+     * @return the frame length.
+     */
+    public synchronized int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Sets the number of pending bytes at which frames are committed.
+     *
+     * @param commitLength the commit length, at most {@link #MAX_APPEND_LENGTH}.
+     */
+    public synchronized void setCommitLength(int commitLength) {
+        if (commitLength <= 0 || commitLength > MAX_APPEND_LENGTH) {
+            throw new IllegalArgumentException("commitLength must be between 1 and "
+                    + MAX_APPEND_LENGTH);
+        }
+        this.commitLength = commitLength;
+    }
+
+    /**
+     * Returns the number of pending bytes at which frames are committed.
+     *
+     * @return the commit length.
+     */
+    public synchronized int getCommitLength() {
+        return commitLength;
+    }
+
+    /**
+     * Sets the maximum time for which written content remains uncommitted. When it elapses
+     * the partial frame is encrypted and committed with any pending frames.
+     *
+     * @param commitInterval the commit interval in milliseconds, or 0 to commit only by
+     *        length, on flush and on close.
+     */
+    public synchronized void setCommitInterval(long commitInterval) {
+        if (commitInterval < 0) {
+            throw new IllegalArgumentException("commitInterval must not be negative");
+        }
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Returns the maximum time for which written content remains uncommitted.
+     *
+     * @return the commit interval in milliseconds.
+     */
+    public synchronized long getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * Sets the number of frames encrypted under one content key and Ionic Key before the
+     * writer rolls to a newly created key.
+     *
+     * @param framesPerKey the number of frames per key.
+     */
+    public synchronized void setFramesPerKey(long framesPerKey) {
+        if (framesPerKey <= 0) {
+            throw new IllegalArgumentException("framesPerKey must be positive");
+        }
+        this.framesPerKey = framesPerKey;
+    }
+
+    /**
+     * Returns the number of frames encrypted under one content key and Ionic Key.
+     *
+     * @return the number of frames per key.
+     */
+    public synchronized long getFramesPerKey() {
+        return framesPerKey;
+    }
+
+    /**
+     * Returns the number of frames encrypted so far.
+     *
+     * @return the frame count.
+     */
+    public synchronized long getFrameCount() {
+        return sequence;
+    }
+
+    /**
+     * Returns the number of Ionic Keys created so far.
+     *
+     * @return the key count.
+     */
+    public synchronized long getKeyCount() {
+        return epoch + 1;
+    }
+
+    /**
+     * Returns the number of appends made so far.
+     *
+     * @return the commit count.
+     */
+    public synchronized long getCommitCount() {
+        return commits;
+    }
+
+    /**
+     * Returns the length of the blob as committed by this writer.
+     *
+     * @return the committed length.
+     */
+    public synchronized long getCommittedLength() {
+        return position;
+    }
+
+    private void checkNotStarted() {
+        if (frame != null) {
+            throw new IllegalStateException("IonicAppendBlobWriter has already been written to");
+        }
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        if (frame == null) {
+            frame = new byte[frameLength];
+            encrypted = new byte[frameLength + SegmentCipher.OVERHEAD];
+        }
+        boolean succeeded = false;
+        try {
+            while (len > 0) {
+                int chunk = Math.min(len, frameLength - framePosition);
+                System.arraycopy(b, off, frame, framePosition, chunk);
+                framePosition += chunk;
+                off += chunk;
+                len -= chunk;
+                if (framePosition == frameLength) {
+                    sealFrame();
+                    if (pending.size() >= commitLength) {
+                        commit();
+                    }
+                }
+            }
+            if (commitTimer == null && commitInterval > 0
+                    && (framePosition > 0 || pending.size() > 0)) {
+                commitTimer = TIMER.schedule(this::commitOnTimer, commitInterval,
+                        TimeUnit.MILLISECONDS);
+            }
+            succeeded = true;
+        } catch (IonicException | StorageException e) {
+            throw fail(new IOException(e.getMessage(), e));
+        } catch (IOException e) {
+            throw fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException(e.getMessage(), e));
+            throw e;
+        } finally {
+            if (!succeeded && failure == null) {
+                failure = new IOException("IonicAppendBlobWriter failed while writing");
+            }
+        }
+    }
+
+    /**
+     * Encrypts the partial frame and commits all pending frames.
+     *
+     * @throws IOException if the frames could not be encrypted or committed.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        try {
+            flushFrames();
+        } catch (IonicException | StorageException e) {
+            throw fail(new IOException(e.getMessage(), e));
+        } catch (IOException e) {
+            throw fail(e);
+        }
+    }
+
+    /**
+     * Encrypts the partial frame and commits all pending frames. No content can be written
+     * after the writer has been closed.
+     *
+     * @throws IOException if the frames could not be encrypted or committed, or if a commit
+     *         made when the commit interval elapsed failed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            cancelTimer();
+            cipher = null;
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("IonicAppendBlobWriter has been closed");
+        }
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+    }
+
+    private IOException fail(IOException e) {
+        failure = e;
+        return e;
+    }
+
+    private synchronized void commitOnTimer() {
+        commitTimer = null;
+        if (closed || failure != null) {
+            return;
+        }
+        try {
+            flushFrames();
+        } catch (IonicException | StorageException e) {
+            fail(new IOException(e.getMessage(), e));
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException(e.getMessage(), e));
+        }
+    }
+
+    private void cancelTimer() {
+        if (commitTimer != null) {
+            commitTimer.cancel(false);
+            commitTimer = null;
+        }
+    }
+
+    private void flushFrames() throws IonicException, StorageException, IOException {
+        cancelTimer();
+        if (framePosition > 0) {
+            sealFrame();
+        }
+        commit();
+    }
+
+    private void sealFrame() throws IonicException, StorageException, IOException {
+        if (cipher == null || epochFrames >= framesPerKey) {
+            rollKey();
+        }
+        int ciphertextLength = framePosition + SegmentCipher.OVERHEAD;
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_LENGTH + keyHeader.length);
+        header.putInt(MAGIC).put((byte) VERSION).put((byte) 0)
+                .putShort((short) header.capacity()).putLong(epoch).putLong(sequence)
+                .putInt(ciphertextLength).put(keyHeader);
+        try {
+            cipher.encrypt(header.array(), frame, 0, framePosition, encrypted, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt frame", e);
+        }
+        if (pending.size() + header.capacity() + ciphertextLength > MAX_APPEND_LENGTH) {
+            commit();
+        }
+        pending.write(header.array(), 0, header.capacity());
+        pending.write(encrypted, 0, ciphertextLength);
+        framePosition = 0;
+        sequence++;
+        epochFrames++;
+    }
+
+    private void rollKey() throws IonicException, IOException {
+        IKey key = keyResolverFactory.create(keyRequest);
+        byte[] contentKey = SegmentCipher.generateContentKey();
+        try {
+            Pair<byte[], String> wrapped = ContentKeys.wrap(contentKey, key);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(key.getKid());
+            out.writeUTF(wrapped.getRight());
+            out.writeShort(wrapped.getLeft().length);
+            out.write(wrapped.getLeft());
+            out.flush();
+            if (FIXED_HEADER_LENGTH + bytes.size() > MAX_HEADER_LENGTH) {
+                throw new IOException("Frame header for key " + key.getKid() + " exceeds "
+                        + MAX_HEADER_LENGTH + " bytes");
+            }
+            keyHeader = bytes.toByteArray();
+            cipher = new SegmentCipher(contentKey, MAX_FRAME_LENGTH);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+        epoch++;
+        epochFrames = 0;
+    }
+
+    private void commit() throws StorageException, IOException {
+        int length = pending.size();
+        if (length == 0) {
+            return;
+        }
+        if (!created) {
+            blob.createOrReplace(AccessCondition.generateIfNotExistsCondition(), options, null);
+            created = true;
+        }
+        AccessCondition condition = new AccessCondition();
+        condition.setIfAppendPositionEqual(position);
+        try {
+            blob.appendBlock(new ByteArrayInputStream(pending.array(), 0, length), length,
+                    condition, options, null);
+        } catch (StorageException e) {
+            // A retried append whose first attempt succeeded fails its position condition.
+            if (e.getHttpStatusCode() != HTTP_PRECONDITION_FAILED || !appended(length)) {
+                throw e;
+            }
+        }
+        position += length;
+        commits++;
+        pending.reset();
+        if (framePosition == 0) {
+            cancelTimer();
+        }
+    }
+
+    private boolean appended(int length) throws StorageException {
+        blob.downloadAttributes(null, options, null);
+        return blob.getProperties().getLength() == position + length;
+    }
+}
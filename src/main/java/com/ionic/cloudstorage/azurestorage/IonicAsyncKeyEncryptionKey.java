@@ -0,0 +1,84 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.azure.core.cryptography.AsyncKeyEncryptionKey;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.azure.keyvault.core.IKey;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import org.apache.commons.lang3.tuple.Pair;
+import reactor.core.publisher.Mono;
+
+/**
+ * An {@link com.azure.core.cryptography.AsyncKeyEncryptionKey} backed by a resolved or newly
+ * created Ionic Key, for use with the Azure SDK v12 encrypted blob clients. Key wrapping is
+ * local to the process, so the returned Monos complete on the subscribing thread without
+ * blocking.
+ */
+public class IonicAsyncKeyEncryptionKey implements AsyncKeyEncryptionKey {
+
+    private final IKey key;
+
+    /**
+     * Constructs an IonicAsyncKeyEncryptionKey wrapping with the IKey, typically an
+     * {@link IonicKey} or a key from {@link IonicKeyResolverFactory#create()}.
+     *
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey}.
+     */
+    public IonicAsyncKeyEncryptionKey(IKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the IKey backing this key encryption key.
+     *
+     * @return the {@link com.microsoft.azure.keyvault.core.IKey}.
+     */
+    public IKey getKey() {
+        return key;
+    }
+
+    @Override
+    public Mono<String> getKeyId() {
+        return Mono.just(key.getKid());
+    }
+
+    @Override
+    public Mono<byte[]> wrapKey(String algorithm, byte[] contentKey) {
+        return Mono.defer(() -> {
+            try {
+                return toMono(key.wrapKeyAsync(contentKey, algorithm)).map(Pair::getLeft);
+            } catch (NoSuchAlgorithmException e) {
+                return Mono.error(e);
+            }
+        });
+    }
+
+    @Override
+    public Mono<byte[]> unwrapKey(String algorithm, byte[] encryptedKey) {
+        return Mono.defer(() -> {
+            try {
+                return toMono(key.unwrapKeyAsync(encryptedKey, algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                return Mono.error(e);
+            }
+        });
+    }
+
+    private static <T> Mono<T> toMono(ListenableFuture<T> future) {
+        return Mono.create(sink -> future.addListener(() -> {
+            try {
+                sink.success(future.get());
+            } catch (ExecutionException e) {
+                sink.error(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sink.error(e);
+            }
+        }, Runnable::run));
+    }
+}
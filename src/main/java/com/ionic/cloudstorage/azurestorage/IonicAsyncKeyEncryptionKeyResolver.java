@@ -0,0 +1,312 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.azure.core.cryptography.AsyncKeyEncryptionKeyResolver;
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.error.AgentErrorModuleConstants;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * An {@link com.azure.core.cryptography.AsyncKeyEncryptionKeyResolver} resolving Ionic Keys for
+ * the Azure SDK v12 encrypted blob clients, backed by an {@link IonicKeyResolverFactory}.
+ *
+ * <p>Calls to the Ionic key service block, so they are made on a small bounded
+ * {@link reactor.core.scheduler.Scheduler} and never on the subscribing event-loop thread.
+ * Concurrent requests for the same Key ID share one fetch, and Key IDs requested within
+ * {@link #getBatchDelayMillis()} of each other are fetched together with a single request of up
+ * to {@link #getMaxBatchSize()} keys. Resolved keys are cached in the factory's
+ * {@link IonicKeyStore} when one is set, so keys are shared with the factory's
+ * {@link IonicKeyResolverFactory.IonicKeyResolver}s, and cached keys resolve without a
+ * request.</p>
+ */
+public class IonicAsyncKeyEncryptionKeyResolver implements AsyncKeyEncryptionKeyResolver {
+
+    /**
+     * Default maximum number of threads making blocking Ionic key service calls.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Default maximum number of keys fetched with one request.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+    /**
+     * Default time requests are held to be batched with later requests.
+     */
+    public static final long DEFAULT_BATCH_DELAY_MILLIS = 2;
+
+    private static final int MAX_QUEUED_TASKS = 100000;
+
+    private final IonicKeyResolverFactory keyResolverFactory;
+    private final Scheduler scheduler;
+    private final Map<String, CompletableFuture<IKey>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<IKey>>();
+    private final Queue<String> pending = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long batchDelayMillis = DEFAULT_BATCH_DELAY_MILLIS;
+    private volatile KeyRequestPriority priority = KeyRequestPriority.INTERACTIVE;
+
+    /**
+     * Constructs an IonicAsyncKeyEncryptionKeyResolver making key service calls on a daemon
+     * scheduler of at most {@link #DEFAULT_THREADS} threads.
+     *
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     */
+    public IonicAsyncKeyEncryptionKeyResolver(IonicKeyResolverFactory keyResolverFactory) {
+        this(keyResolverFactory, Schedulers.newBoundedElastic(DEFAULT_THREADS, MAX_QUEUED_TASKS,
+                "ionic-key-service", 60, true));
+    }
+
+    /**
+     * Constructs an IonicAsyncKeyEncryptionKeyResolver making key service calls on the
+     * specified scheduler.
+     *
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     * @param scheduler a {@link reactor.core.scheduler.Scheduler} on which blocking calls may
+     *        be made.
+     */
+    public IonicAsyncKeyEncryptionKeyResolver(IonicKeyResolverFactory keyResolverFactory,
+            Scheduler scheduler) {
+        this.keyResolverFactory = keyResolverFactory;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the IonicKeyResolverFactory backing this resolver.
+     *
+     * @return an {@link IonicKeyResolverFactory}.
+     */
+    public IonicKeyResolverFactory getKeyResolverFactory() {
+        return keyResolverFactory;
+    }
+
+    /**
+     * Sets the maximum number of keys fetched with one request.
+     *
+     * @param maxBatchSize the maximum batch size.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Returns the maximum number of keys fetched with one request.
+     *
+     * @return the maximum batch size.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the time a request is held so that it can be batched with later requests. A delay of
+     * 0 fetches as soon as a scheduler thread is available.
+     *
+     * @param batchDelayMillis the batch delay in milliseconds.
+     */
+    public void setBatchDelayMillis(long batchDelayMillis) {
+        if (batchDelayMillis < 0) {
+            throw new IllegalArgumentException("batchDelayMillis must not be negative");
+        }
+        this.batchDelayMillis = batchDelayMillis;
+    }
+
+    /**
+     * Returns the time a request is held so that it can be batched with later requests.
+     *
+     * @return the batch delay in milliseconds.
+     */
+    public long getBatchDelayMillis() {
+        return batchDelayMillis;
+    }
+
+    /**
+     * Sets the {@link KeyRequestPriority} of the key service requests of this resolver, for
+     * instance {@link KeyRequestPriority#BULK} for a resolver serving a bulk restore.
+     *
+     * @param priority a {@link KeyRequestPriority}.
+     */
+    public void setPriority(KeyRequestPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the {@link KeyRequestPriority} of the key service requests of this resolver.
+     *
+     * @return a {@link KeyRequestPriority}
+     */
+    public KeyRequestPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Resolves the Ionic Key with the specified Key ID. If the key cannot be fetched the Mono
+     * signals an {@link com.ionic.sdk.error.IonicException}. The resolve span reported to the
+     * factory's {@link IonicTracer} ends when the Mono terminates or is cancelled, so it covers
+     * the fetch and records its failure; the fetch itself is also reported as a separate batch
+     * span on the scheduler thread.
+     *
+     * @param keyId an Ionic Key ID.
+     * @return a Mono emitting the {@link IonicAsyncKeyEncryptionKey}.
+     */
+    @Override
+    public Mono<IonicAsyncKeyEncryptionKey> buildAsyncKeyEncryptionKey(String keyId) {
+        return Mono.defer(() -> {
+            Object event = IonicFlightRecorder.beginKey();
+            IonicSpan span = keyResolverFactory.getTracer()
+                    .startAsyncSpan(IonicTracer.SPAN_KEY_RESOLVE);
+            boolean hit = false;
+            Mono<IonicAsyncKeyEncryptionKey> key;
+            try {
+                IonicKeyStore store = keyResolverFactory.getKeyStore();
+                IonicKey cached = store == null ? null : store.get(keyId);
+                hit = cached != null && !cached.isDestroyed();
+                span.setAttribute(IonicTracer.KEY_ID, keyId)
+                        .setAttribute(IonicTracer.CACHE_HIT, hit);
+                if (hit) {
+                    key = Mono.just(new IonicAsyncKeyEncryptionKey(cached));
+                } else {
+                    key = Mono.fromFuture(request(keyId)).map(IonicAsyncKeyEncryptionKey::new);
+                }
+            } catch (RuntimeException e) {
+                span.recordException(e);
+                span.end();
+                IonicFlightRecorder.commitKey(event, IonicTracer.SPAN_KEY_RESOLVE, keyId, 1, hit,
+                        false);
+                throw e;
+            }
+            // The span and event cover the fetch, so they end once the Mono terminates.
+            boolean cacheHit = hit;
+            AtomicBoolean succeeded = new AtomicBoolean();
+            return key.doOnSuccess(resolved -> succeeded.set(resolved != null))
+                    .doOnError(span::recordException)
+                    .doFinally(signal -> {
+                        span.end();
+                        IonicFlightRecorder.commitKey(event, IonicTracer.SPAN_KEY_RESOLVE, keyId,
+                                1, cacheHit, succeeded.get());
+                    });
+        });
+    }
+
+    /**
+     * Creates a new Ionic Key with the factory's default attributes.
+     *
+     * @return a Mono emitting the {@link IonicAsyncKeyEncryptionKey}.
+     */
+    public Mono<IonicAsyncKeyEncryptionKey> createKey() {
+        return createKey(new CreateKeysRequest.Key(""));
+    }
+
+    /**
+     * Creates a new Ionic Key with the factory's default attributes and the attributes of the
+     * CreateKeysRequest.Key.
+     *
+     * @param key a {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest.Key}.
+     * @return a Mono emitting the {@link IonicAsyncKeyEncryptionKey}.
+     */
+    public Mono<IonicAsyncKeyEncryptionKey> createKey(CreateKeysRequest.Key key) {
+        return Mono.fromCallable(() -> new IonicAsyncKeyEncryptionKey(
+                keyResolverFactory.create(key, priority))).subscribeOn(scheduler);
+    }
+
+    /**
+     * Returns the fetch in flight for the Key ID, queueing a new one if there is none.
+     */
+    private CompletableFuture<IKey> request(String keyId) {
+        CompletableFuture<IKey> created = new CompletableFuture<IKey>();
+        CompletableFuture<IKey> existing = inFlight.putIfAbsent(keyId, created);
+        if (existing != null) {
+            return existing;
+        }
+        pending.add(keyId);
+        scheduleFlush();
+        return created;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                if (batchDelayMillis == 0) {
+                    scheduler.schedule(this::flush);
+                } else {
+                    scheduler.schedule(this::flush, batchDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (RuntimeException e) {
+                flushScheduled.set(false);
+                failPending(e);
+            }
+        }
+    }
+
+    /**
+     * Fetches one batch of pending keys, rescheduling itself while keys remain.
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        List<String> batch = new ArrayList<String>();
+        String keyId;
+        while (batch.size() < maxBatchSize && (keyId = pending.poll()) != null) {
+            batch.add(keyId);
+        }
+        if (!pending.isEmpty()) {
+            scheduleFlush();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            Map<String, IKey> keys = keyResolverFactory.withPriority(priority,
+                    () -> keyResolverFactory.resolveKeys(batch));
+            for (String id : batch) {
+                IKey key = keys.get(id);
+                CompletableFuture<IKey> future = inFlight.remove(id);
+                if (key == null) {
+                    future.completeExceptionally(new IonicException(
+                            AgentErrorModuleConstants.ISAGENT_KEY_DENIED.value(),
+                            "Ionic Key " + id + " could not be fetched"));
+                } else {
+                    future.complete(key);
+                }
+            }
+        } catch (IonicException | RuntimeException e) {
+            for (String id : batch) {
+                CompletableFuture<IKey> future = inFlight.remove(id);
+                if (future != null) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private void failPending(Throwable cause) {
+        String keyId;
+        while ((keyId = pending.poll()) != null) {
+            CompletableFuture<IKey> future = inFlight.remove(keyId);
+            if (future != null) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+}
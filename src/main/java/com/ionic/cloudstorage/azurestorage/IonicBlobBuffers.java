@@ -0,0 +1,260 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Uploads and downloads small Ionic protected blobs held entirely in memory, such as JSON
+ * documents, with as few copies as possible. Uploads encrypt the content once into a buffer of
+ * exactly the ciphertext length, in the AES-CBC envelope of the Azure Storage SDK
+ * {@link com.microsoft.azure.storage.blob.BlobEncryptionPolicy}, and send it with a single
+ * request. Downloads fetch the ciphertext with a single request and decrypt it in place,
+ * returning a read-only view of the plaintext rather than a copy. Strings are encoded and
+ * decoded as UTF-8 exactly once.
+ *
+ * <p>Downloads read blobs written by a BlobEncryptionPolicy, by this class, by
+ * {@link IonicBlobOutputStream} and by {@link IonicBlobTransfer}, as well as unencrypted
+ * blobs unless the default request options of the blob's service client require
+ * encryption.</p>
+ */
+public final class IonicBlobBuffers {
+
+    private static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int AES_BLOCK_LENGTH = 16;
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private IonicBlobBuffers() {}
+
+    /**
+     * Encrypts and uploads the content under the specified key. The blob's existing metadata,
+     * as held by the CloudBlockBlob, is written along with the {@link EncryptionData}.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param content the plaintext.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the content could not be encrypted.
+     */
+    public static void upload(CloudBlockBlob blob, byte[] content, IKey key)
+            throws IonicException, StorageException, IOException {
+        upload(blob, content, 0, content.length, key);
+    }
+
+    /**
+     * Encrypts and uploads a range of the array under the specified key.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param content an array holding the plaintext.
+     * @param offset the offset of the plaintext in the array.
+     * @param length the length of the plaintext.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the content could not be encrypted.
+     */
+    public static void upload(CloudBlockBlob blob, byte[] content, int offset, int length,
+            IKey key) throws IonicException, StorageException, IOException {
+        byte[] contentKey = SegmentCipher.generateContentKey();
+        byte[] iv = new byte[AES_BLOCK_LENGTH];
+        RANDOM.nextBytes(iv);
+        byte[] ciphertext;
+        int ciphertextLength;
+        Pair<byte[], String> wrapped;
+        try {
+            wrapped = ContentKeys.wrap(contentKey, key);
+            Cipher cipher = Cipher.getInstance(CBC_TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(contentKey, "AES"),
+                    new IvParameterSpec(iv));
+            ciphertext = new byte[cipher.getOutputSize(length)];
+            ciphertextLength = cipher.doFinal(content, offset, length, ciphertext, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt content", e);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+        EncryptionData data = EncryptionData.forCbc(key.getKid(), wrapped.getLeft(),
+                wrapped.getRight(), iv);
+        blob.getMetadata().put(EncryptionData.METADATA_KEY, data.toJson());
+        blob.getMetadata().remove(CompressionCodec.METADATA_KEY);
+        blob.getMetadata().remove(IonicBlobTransfer.DIGEST_METADATA_KEY);
+        blob.uploadFromByteArray(ciphertext, 0, ciphertextLength, null,
+                IonicBlobTransfer.transferOptions(), null);
+    }
+
+    /**
+     * Encrypts and uploads the remaining bytes of the buffer under the specified key. The
+     * buffer's position is not changed. Buffers without an accessible array are copied once.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param content the plaintext.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the content could not be encrypted.
+     */
+    public static void upload(CloudBlockBlob blob, ByteBuffer content, IKey key)
+            throws IonicException, StorageException, IOException {
+        if (content.hasArray()) {
+            upload(blob, content.array(), content.arrayOffset() + content.position(),
+                    content.remaining(), key);
+        } else {
+            byte[] copy = new byte[content.remaining()];
+            content.duplicate().get(copy);
+            upload(blob, copy, key);
+        }
+    }
+
+    /**
+     * Encodes the text as UTF-8, then encrypts and uploads it under the specified key.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param text the plaintext.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the content could not be encrypted.
+     */
+    public static void uploadText(CloudBlockBlob blob, String text, IKey key)
+            throws IonicException, StorageException, IOException {
+        upload(blob, text.getBytes(StandardCharsets.UTF_8), key);
+    }
+
+    /**
+     * Downloads and decrypts the blob, resolving its key with the IKeyResolver. The blob's
+     * metadata is downloaded along with its content.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param resolver the {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @return a read-only ByteBuffer of the plaintext.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the content failed to decrypt or its format is not supported.
+     */
+    public static ByteBuffer download(CloudBlob blob, IKeyResolver resolver)
+            throws IonicException, StorageException, IOException {
+        return decrypt(blob, resolver).asReadOnlyBuffer();
+    }
+
+    /**
+     * Downloads and decrypts the blob, decoding the plaintext as UTF-8.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param resolver the {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @return the plaintext.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the content failed to decrypt or its format is not supported.
+     */
+    public static String downloadText(CloudBlob blob, IKeyResolver resolver)
+            throws IonicException, StorageException, IOException {
+        ByteBuffer plaintext = decrypt(blob, resolver);
+        return new String(plaintext.array(), plaintext.arrayOffset() + plaintext.position(),
+                plaintext.remaining(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Downloads the blob and decrypts it in the download buffer.
+     */
+    private static ByteBuffer decrypt(CloudBlob blob, IKeyResolver resolver)
+            throws IonicException, StorageException, IOException {
+        // The length is known if the blob came from a listing or had its attributes fetched.
+        Buffer buffer = new Buffer(blob.getProperties().getLength());
+        blob.download(buffer, null, IonicBlobTransfer.transferOptions(), null);
+        EncryptionData data = EncryptionData.fromMetadata(blob.getMetadata());
+        if (data == null) {
+            IonicBlobTransfer.checkUnencryptedAllowed(blob, null);
+            return buffer.toByteBuffer(0, buffer.size());
+        }
+        if (!data.isCbc() && !data.isGcm()) {
+            throw new IOException("Unsupported encryption protocol " + data.getProtocol());
+        }
+        byte[] contentKey = ContentKeys.unwrap(data, resolver);
+        int length;
+        try {
+            length = data.isCbc() ? decryptCbc(data, contentKey, buffer)
+                    : decryptGcm(data, contentKey, buffer);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Blob " + blob.getName() + " failed to decrypt", e);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+        CompressionCodec codec = CompressionCodec.fromMetadata(blob.getMetadata());
+        if (codec == CompressionCodec.NONE) {
+            return buffer.toByteBuffer(0, length);
+        }
+        Buffer decompressed = new Buffer(2L * length);
+        try (OutputStream stream = codec.decompress(decompressed)) {
+            stream.write(buffer.array(), 0, length);
+        }
+        return decompressed.toByteBuffer(0, decompressed.size());
+    }
+
+    static int decryptCbc(EncryptionData data, byte[] contentKey, Buffer buffer)
+            throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CBC_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(contentKey, "AES"),
+                new IvParameterSpec(data.getContentEncryptionIV()));
+        return cipher.doFinal(buffer.array(), 0, buffer.size(), buffer.array(), 0);
+    }
+
+    /**
+     * Decrypts each segment to its plaintext offset, which precedes its ciphertext offset.
+     */
+    private static int decryptGcm(EncryptionData data, byte[] contentKey, Buffer buffer)
+            throws GeneralSecurityException {
+        SegmentCipher cipher = new SegmentCipher(contentKey, data.getSegmentLength());
+        long ciphertextLength = buffer.size();
+        long segments = cipher.segmentCount(cipher.plaintextLength(ciphertextLength));
+        int length = 0;
+        for (long segment = 0; segment < segments; segment++) {
+            int offset = (int) cipher.ciphertextOffset(segment);
+            int encryptedLength = (int) Math.min(cipher.getEncryptedSegmentLength(),
+                    ciphertextLength - offset);
+            length += cipher.decrypt(segment, segment == segments - 1, buffer.array(), offset,
+                    encryptedLength, buffer.array(), length);
+        }
+        return length;
+    }
+
+    /**
+     * A ByteArrayOutputStream whose array can be used without copying it.
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(long expectedLength) {
+            super((int) Math.min(Integer.MAX_VALUE - 8,
+                    expectedLength > 0 ? expectedLength : DEFAULT_CAPACITY));
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        ByteBuffer toByteBuffer(int offset, int length) {
+            return ByteBuffer.wrap(buf, offset, length).slice();
+        }
+    }
+}
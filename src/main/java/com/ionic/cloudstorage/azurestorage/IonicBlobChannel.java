@@ -0,0 +1,287 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A read-only {@link java.nio.channels.SeekableByteChannel} over the plaintext of an Ionic
+ * protected blob. Reads at any position fetch only the ciphertext needed to decrypt that
+ * position: for blobs in the Azure Storage SDK AES-CBC envelope the cipher block aligned range
+ * plus the preceding block as IV, and for segmented AES-GCM blobs the containing segment.
+ * The most recently decrypted window is cached, so sequential reads issue one range request
+ * per window. Concurrent modification of the blob is detected through its ETag.
+ */
+public class IonicBlobChannel implements SeekableByteChannel {
+
+    /**
+     * Default length of the window fetched and decrypted for AES-CBC blobs.
+     */
+    public static final int DEFAULT_WINDOW_LENGTH = 1024 * 1024;
+
+    private static final int BLOCK_LENGTH = 16;
+
+    private final CloudBlob blob;
+    private final AccessCondition condition;
+    private final BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+    private final long ciphertextLength;
+    private final long size;
+    private final int windowLength;
+    private final SecretKeySpec cbcKey;
+    private final byte[] contentIV;
+    private final SegmentCipher segmentCipher;
+    private final Cipher cipher;
+
+    private long position = 0;
+    private byte[] window = new byte[0];
+    private long windowStart = 0;
+    private int windowSize = 0;
+    private boolean open = true;
+
+    /**
+     * Opens a channel over the blob, resolving its key with the IKeyResolver.
+     *
+     * @param blob the {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param resolver an {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the blob is not Ionic protected.
+     */
+    public IonicBlobChannel(CloudBlob blob, IKeyResolver resolver)
+            throws IonicException, StorageException, IOException {
+        this(blob, resolver, DEFAULT_WINDOW_LENGTH);
+    }
+
+    /**
+     * Opens a channel over the blob, resolving its key with the IKeyResolver and fetching
+     * windows of the specified length from AES-CBC blobs.
+     *
+     * @param blob the {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param resolver an {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @param windowLength the length of each window fetched, rounded up to the AES block size.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the blob is not Ionic protected.
+     */
+    public IonicBlobChannel(CloudBlob blob, IKeyResolver resolver, int windowLength)
+            throws IonicException, StorageException, IOException {
+        if (windowLength <= 0) {
+            throw new IllegalArgumentException("windowLength must be positive");
+        }
+        this.blob = blob;
+        this.windowLength = (windowLength + BLOCK_LENGTH - 1) / BLOCK_LENGTH * BLOCK_LENGTH;
+        blob.downloadAttributes(null, options, null);
+        EncryptionData data = EncryptionData.fromMetadata(blob.getMetadata());
+        if (data == null || !(data.isCbc() || data.isGcm())) {
+            throw new IOException("Blob " + blob.getName() + " is not Ionic protected");
+        }
+        if (CompressionCodec.fromMetadata(blob.getMetadata()) != CompressionCodec.NONE) {
+            throw new UnsupportedOperationException(
+                    "Random access is not supported for compressed blobs");
+        }
+        this.condition = AccessCondition.generateIfMatchCondition(
+                blob.getProperties().getEtag());
+        this.ciphertextLength = blob.getProperties().getLength();
+
+        byte[] contentKey = ContentKeys.unwrap(data, resolver);
+        try {
+            if (data.isGcm()) {
+                this.segmentCipher = new SegmentCipher(contentKey, data.getSegmentLength());
+                this.cbcKey = null;
+                this.contentIV = null;
+                this.cipher = null;
+                this.size = segmentCipher.plaintextLength(ciphertextLength);
+            } else {
+                this.segmentCipher = null;
+                this.cbcKey = new SecretKeySpec(contentKey, "AES");
+                this.contentIV = data.getContentEncryptionIV();
+                this.cipher = Cipher.getInstance("AES/CBC/NoPadding");
+                this.size = cbcPlaintextLength();
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypts the final cipher block to determine the padding length.
+     */
+    private long cbcPlaintextLength() throws StorageException, IOException {
+        if (ciphertextLength == 0 || ciphertextLength % BLOCK_LENGTH != 0) {
+            throw new IOException("Invalid AES-CBC ciphertext length " + ciphertextLength);
+        }
+        long lastBlock = ciphertextLength - BLOCK_LENGTH;
+        byte[] plaintext = decryptCbc(lastBlock, BLOCK_LENGTH);
+        int padding = plaintext[BLOCK_LENGTH - 1] & 0xff;
+        if (padding < 1 || padding > BLOCK_LENGTH) {
+            throw new IOException("Invalid padding in blob " + blob.getName());
+        }
+        for (int i = BLOCK_LENGTH - padding; i < BLOCK_LENGTH; i++) {
+            if ((plaintext[i] & 0xff) != padding) {
+                throw new IOException("Invalid padding in blob " + blob.getName());
+            }
+        }
+        return ciphertextLength - padding;
+    }
+
+    /**
+     * Fetches the block aligned ciphertext range, preceded by the previous block as IV unless
+     * the range starts the blob, and decrypts it without removing padding.
+     */
+    private byte[] decryptCbc(long start, int length) throws StorageException, IOException {
+        long fetchStart = start == 0 ? 0 : start - BLOCK_LENGTH;
+        int fetchLength = (int) (start + length - fetchStart);
+        byte[] ciphertext = fetch(fetchStart, fetchLength);
+        byte[] iv = start == 0 ? contentIV : Arrays.copyOf(ciphertext, BLOCK_LENGTH);
+        int ciphertextOffset = start == 0 ? 0 : BLOCK_LENGTH;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, cbcKey, new IvParameterSpec(iv));
+            return cipher.doFinal(ciphertext, ciphertextOffset, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private byte[] fetch(long offset, int length) throws StorageException, IOException {
+        byte[] buffer = new byte[length];
+        int read = blob.downloadRangeToByteArray(offset, (long) length, buffer, 0, condition,
+                options, null);
+        if (read != length) {
+            throw new IOException("Short read at offset " + offset + " of blob "
+                    + blob.getName());
+        }
+        return buffer;
+    }
+
+    /**
+     * Loads the window containing the position. The current window is invalidated first and
+     * the new one is published only once decrypted, so a failed load leaves no window.
+     */
+    private void load(long target) throws IOException {
+        windowSize = 0;
+        try {
+            if (segmentCipher != null) {
+                long segment = target / segmentCipher.getSegmentLength();
+                long offset = segmentCipher.ciphertextOffset(segment);
+                int length = (int) Math.min(segmentCipher.getEncryptedSegmentLength(),
+                        ciphertextLength - offset);
+                byte[] ciphertext = fetch(offset, length);
+                boolean last = offset + length == ciphertextLength;
+                if (window.length < length - SegmentCipher.OVERHEAD) {
+                    window = new byte[segmentCipher.getSegmentLength()];
+                }
+                int decrypted = segmentCipher.decrypt(segment, last, ciphertext, 0, length,
+                        window, 0);
+                windowStart = segment * segmentCipher.getSegmentLength();
+                windowSize = decrypted;
+            } else {
+                long start = target / BLOCK_LENGTH * BLOCK_LENGTH;
+                int length = (int) Math.min(windowLength, ciphertextLength - start);
+                byte[] decrypted = decryptCbc(start, length);
+                Arrays.fill(window, (byte) 0);
+                window = decrypted;
+                windowStart = start;
+                windowSize = (int) Math.min(length, size - start);
+            }
+        } catch (StorageException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch (GeneralSecurityException e) {
+            Arrays.fill(window, (byte) 0);
+            throw new IOException("Segment at position " + target + " failed authentication",
+                    e);
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            if (position < windowStart || position >= windowStart + windowSize) {
+                load(position);
+            }
+            int offset = (int) (position - windowStart);
+            int count = Math.min(dst.remaining(), windowSize - offset);
+            dst.put(window, offset, count);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("position must not be negative");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the channel and zeroes the cached plaintext window.
+     */
+    @Override
+    public synchronized void close() {
+        open = false;
+        Arrays.fill(window, (byte) 0);
+        windowSize = 0;
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,691 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.agent.key.KeyAttributesMap;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local index of the Ionic Keys protecting the blobs of one or more containers and of the
+ * attributes of those keys, answering questions such as "which blobs are protected by keys
+ * with classification=restricted" without downloading any blob content.
+ *
+ * <p>{@link #update} lists the containers concurrently with the blobs' metadata and records the
+ * Key ID from each blob's {@link EncryptionData}. The attributes of Key IDs new to the index are
+ * then fetched with batched requests; the key material is not retained. Key IDs which could not
+ * be fetched, for instance because access was denied, are retried by the next update. The
+ * requests are made with {@link KeyRequestPriority#BULK}.</p>
+ *
+ * <p>Each container is indexed by a pass over its listing. The listing marker is recorded after
+ * every page, so an update limited to a number of pages, or an index saved with
+ * {@link #save(Path)} part way through, continues the pass where it stopped. Blobs not seen
+ * during a completed pass are removed from the index, and blobs re-uploaded under a different
+ * key are moved to it. Queries are answered from in-memory maps, in time proportional to the
+ * size of the answer.</p>
+ *
+ * <p>Blob references are returned as {@code container/blob}, container names never containing
+ * a slash.</p>
+ */
+public class IonicBlobInventory {
+
+    /**
+     * Default number of blobs listed per page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 5000;
+
+    /**
+     * Default maximum number of containers listed at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_LISTINGS = 8;
+
+    private static final int KEY_BATCH_SIZE = 64;
+    private static final int FORMAT_MAGIC = 0x49424931;
+    private static final int FORMAT_VERSION = 1;
+
+    private final IonicKeyResolverFactory keyResolverFactory;
+    private final Map<String, KeyEntry> keys = new HashMap<String, KeyEntry>();
+    private final Map<String, Set<String>> attributeIndex = new HashMap<String, Set<String>>();
+    private final Map<String, ContainerEntry> containers = new HashMap<String, ContainerEntry>();
+    private ExecutorService executor = IonicBlobTransfer.SHARED_EXECUTOR;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int maxConcurrentListings = DEFAULT_MAX_CONCURRENT_LISTINGS;
+
+    /**
+     * Constructs an empty IonicBlobInventory fetching key attributes with the
+     * IonicKeyResolverFactory.
+     *
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     */
+    public IonicBlobInventory(IonicKeyResolverFactory keyResolverFactory) {
+        this.keyResolverFactory = keyResolverFactory;
+    }
+
+    /**
+     * Sets the ExecutorService listing containers and fetching key attributes.
+     *
+     * @param executor an {@link java.util.concurrent.ExecutorService} or null for the default.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor == null ? IonicBlobTransfer.SHARED_EXECUTOR : executor;
+    }
+
+    /**
+     * Sets the number of blobs listed per page.
+     *
+     * @param pageSize the page size, at most 5000.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0 || pageSize > 5000) {
+            throw new IllegalArgumentException("pageSize must be between 1 and 5000");
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the number of blobs listed per page.
+     *
+     * @return the page size.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the maximum number of containers listed at once.
+     *
+     * @param maxConcurrentListings the maximum number of concurrent listings.
+     */
+    public void setMaxConcurrentListings(int maxConcurrentListings) {
+        if (maxConcurrentListings <= 0) {
+            throw new IllegalArgumentException("maxConcurrentListings must be positive");
+        }
+        this.maxConcurrentListings = maxConcurrentListings;
+    }
+
+    /**
+     * Returns the maximum number of containers listed at once.
+     *
+     * @return the maximum number of concurrent listings.
+     */
+    public int getMaxConcurrentListings() {
+        return maxConcurrentListings;
+    }
+
+    /**
+     * Lists each container to the end of its current pass and fetches the attributes of any
+     * unresolved keys.
+     *
+     * @param containers the {@link com.microsoft.azure.storage.blob.CloudBlobContainer}s.
+     * @throws IonicException if key attributes could not be fetched.
+     * @throws StorageException if a container could not be listed.
+     * @throws IOException if the update was interrupted.
+     */
+    public void update(Collection<CloudBlobContainer> containers)
+            throws IonicException, StorageException, IOException {
+        update(containers, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Lists at most maxPages pages of each container, continuing any pass in progress, and
+     * fetches the attributes of any unresolved keys.
+     *
+     * @param containers the {@link com.microsoft.azure.storage.blob.CloudBlobContainer}s.
+     * @param maxPages the maximum number of pages listed per container.
+     * @return true if the pass over every container completed.
+     * @throws IonicException if key attributes could not be fetched.
+     * @throws StorageException if a container could not be listed.
+     * @throws IOException if the update was interrupted.
+     */
+    public boolean update(Collection<CloudBlobContainer> containers, int maxPages)
+            throws IonicException, StorageException, IOException {
+        Deque<Future<Boolean>> inFlight = new ArrayDeque<Future<Boolean>>();
+        List<Future<Boolean>> listings = new ArrayList<Future<Boolean>>();
+        for (CloudBlobContainer container : containers) {
+            if (inFlight.size() >= maxConcurrentListings) {
+                ContentKeys.await(inFlight.removeFirst());
+            }
+            Future<Boolean> listing = executor.submit(() -> list(container, maxPages));
+            inFlight.addLast(listing);
+            listings.add(listing);
+        }
+        boolean complete = true;
+        for (Future<Boolean> listing : listings) {
+            complete &= ContentKeys.await(listing);
+        }
+        resolveKeys();
+        return complete;
+    }
+
+    /**
+     * Lists one container from its recorded marker.
+     *
+     * @return true if the pass completed.
+     */
+    private boolean list(CloudBlobContainer container, int maxPages) throws StorageException {
+        ContainerEntry entry;
+        ResultContinuation token = null;
+        synchronized (this) {
+            entry = containers.get(container.getName());
+            if (entry == null) {
+                entry = new ContainerEntry(container.getName());
+                containers.put(entry.name, entry);
+            }
+            if (entry.marker == null) {
+                entry.generation++;
+            } else {
+                token = new ResultContinuation();
+                token.setContinuationType(ResultContinuationType.BLOB);
+                token.setNextMarker(entry.marker);
+            }
+        }
+        BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+        for (int page = 0; page < maxPages; page++) {
+            ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(null, true,
+                    EnumSet.of(BlobListingDetails.METADATA), pageSize, token, options, null);
+            List<String> names = new ArrayList<String>();
+            List<String> keyIds = new ArrayList<String>();
+            for (ListBlobItem item : segment.getResults()) {
+                if (item instanceof CloudBlob) {
+                    CloudBlob blob = (CloudBlob) item;
+                    names.add(blob.getName());
+                    keyIds.add(keyId(blob));
+                }
+            }
+            token = segment.getHasMoreResults() ? segment.getContinuationToken() : null;
+            synchronized (this) {
+                for (int i = 0; i < names.size(); i++) {
+                    record(entry, names.get(i), keyIds.get(i));
+                }
+                entry.marker = token == null ? null : token.getNextMarker();
+                if (token == null) {
+                    sweep(entry);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String keyId(CloudBlob blob) {
+        try {
+            EncryptionData data = EncryptionData.fromMetadata(blob.getMetadata());
+            return data == null ? null : data.getKeyId();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Fetches the attributes of every unresolved key with concurrent batched requests.
+     */
+    private void resolveKeys() throws IonicException, IOException {
+        List<String> unresolved = new ArrayList<String>();
+        synchronized (this) {
+            for (KeyEntry key : keys.values()) {
+                if (key.attributes == null) {
+                    unresolved.add(key.keyId);
+                }
+            }
+        }
+        List<Future<Map<String, KeyAttributesMap>>> batches =
+                new ArrayList<Future<Map<String, KeyAttributesMap>>>();
+        for (int i = 0; i < unresolved.size(); i += KEY_BATCH_SIZE) {
+            List<String> batch = unresolved.subList(i,
+                    Math.min(unresolved.size(), i + KEY_BATCH_SIZE));
+            batches.add(executor.submit(() -> keyResolverFactory.withPriority(
+                    KeyRequestPriority.BULK,
+                    () -> keyResolverFactory.resolveKeyAttributes(batch))));
+        }
+        IonicException failure = null;
+        for (Future<Map<String, KeyAttributesMap>> batch : batches) {
+            try {
+                for (Map.Entry<String, KeyAttributesMap> resolved
+                        : ContentKeys.get(batch).entrySet()) {
+                    putAttributes(resolved.getKey(), resolved.getValue());
+                }
+            } catch (IonicException e) {
+                // Keep the other batches; the failed keys are retried by the next update.
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Records the Key ID of a blob, or removes the blob if it is not encrypted.
+     */
+    private void record(ContainerEntry container, String blobName, String keyId) {
+        BlobEntry blob = container.blobs.get(blobName);
+        if (keyId == null) {
+            if (blob != null) {
+                remove(blob);
+            }
+            return;
+        }
+        if (blob == null) {
+            blob = new BlobEntry(container, blobName);
+            container.blobs.put(blobName, blob);
+        } else if (blob.key.keyId.equals(keyId)) {
+            blob.generation = container.generation;
+            return;
+        } else {
+            unlink(blob);
+        }
+        KeyEntry key = keys.get(keyId);
+        if (key == null) {
+            key = new KeyEntry(keyId);
+            keys.put(keyId, key);
+        }
+        key.blobs.add(blob);
+        blob.key = key;
+        blob.generation = container.generation;
+    }
+
+    /**
+     * Removes the blobs of the container not seen during the pass which just completed.
+     */
+    private void sweep(ContainerEntry container) {
+        Iterator<BlobEntry> blobs = container.blobs.values().iterator();
+        while (blobs.hasNext()) {
+            BlobEntry blob = blobs.next();
+            if (blob.generation < container.generation) {
+                blobs.remove();
+                unlink(blob);
+            }
+        }
+    }
+
+    private void remove(BlobEntry blob) {
+        blob.container.blobs.remove(blob.name);
+        unlink(blob);
+    }
+
+    /**
+     * Detaches the blob from its key, dropping the key once it protects no blob.
+     */
+    private void unlink(BlobEntry blob) {
+        KeyEntry key = blob.key;
+        key.blobs.remove(blob);
+        if (key.blobs.isEmpty()) {
+            keys.remove(key.keyId);
+            indexAttributes(key, false);
+        }
+    }
+
+    private void indexAttributes(KeyEntry key, boolean add) {
+        if (key.attributes == null) {
+            return;
+        }
+        for (Map.Entry<String, List<String>> attribute : key.attributes.entrySet()) {
+            for (String value : attribute.getValue()) {
+                String indexKey = indexKey(attribute.getKey(), value);
+                Set<String> keyIds = attributeIndex.get(indexKey);
+                if (add) {
+                    if (keyIds == null) {
+                        keyIds = new HashSet<String>();
+                        attributeIndex.put(indexKey, keyIds);
+                    }
+                    keyIds.add(key.keyId);
+                } else if (keyIds != null) {
+                    keyIds.remove(key.keyId);
+                    if (keyIds.isEmpty()) {
+                        attributeIndex.remove(indexKey);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String indexKey(String name, String value) {
+        return name + '\0' + value;
+    }
+
+    /**
+     * Records a blob as protected by the key, as if listed by a pass of its container in
+     * progress.
+     */
+    synchronized void put(String containerName, String blobName, String keyId) {
+        ContainerEntry container = containers.get(containerName);
+        if (container == null) {
+            container = new ContainerEntry(containerName);
+            containers.put(containerName, container);
+        }
+        record(container, blobName, keyId);
+    }
+
+    /**
+     * Records the attributes of a key of the index. Keys not in the index are ignored.
+     */
+    synchronized void putAttributes(String keyId, Map<String, List<String>> attributes) {
+        KeyEntry key = keys.get(keyId);
+        if (key == null) {
+            return;
+        }
+        indexAttributes(key, false);
+        key.attributes = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            key.attributes.put(attribute.getKey(),
+                    Collections.unmodifiableList(new ArrayList<String>(attribute.getValue())));
+        }
+        indexAttributes(key, true);
+    }
+
+    /**
+     * Returns the IDs of the indexed keys having the attribute value.
+     *
+     * @param name the attribute name, e.g. classification.
+     * @param value the attribute value, e.g. restricted.
+     * @return the matching Ionic Key IDs.
+     */
+    public synchronized Set<String> getKeyIds(String name, String value) {
+        Set<String> keyIds = attributeIndex.get(indexKey(name, value));
+        return keyIds == null ? Collections.<String>emptySet() : new HashSet<String>(keyIds);
+    }
+
+    /**
+     * Returns the blobs protected by keys having the attribute value.
+     *
+     * @param name the attribute name, e.g. classification.
+     * @param value the attribute value, e.g. restricted.
+     * @return the matching blobs as {@code container/blob}.
+     */
+    public synchronized List<String> findBlobs(String name, String value) {
+        List<String> blobs = new ArrayList<String>();
+        Set<String> keyIds = attributeIndex.get(indexKey(name, value));
+        if (keyIds != null) {
+            for (String keyId : keyIds) {
+                for (BlobEntry blob : keys.get(keyId).blobs) {
+                    blobs.add(blob.toString());
+                }
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Returns the blobs protected by the key.
+     *
+     * @param keyId an Ionic Key ID.
+     * @return the blobs as {@code container/blob}, empty if the key is not indexed.
+     */
+    public synchronized List<String> getBlobs(String keyId) {
+        List<String> blobs = new ArrayList<String>();
+        KeyEntry key = keys.get(keyId);
+        if (key != null) {
+            for (BlobEntry blob : key.blobs) {
+                blobs.add(blob.toString());
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Returns the attributes of an indexed key.
+     *
+     * @param keyId an Ionic Key ID.
+     * @return a {@link com.ionic.sdk.agent.key.KeyAttributesMap}, or null if the key is not
+     *         indexed or its attributes have not been fetched.
+     */
+    public synchronized KeyAttributesMap getAttributes(String keyId) {
+        KeyEntry key = keys.get(keyId);
+        if (key == null || key.attributes == null) {
+            return null;
+        }
+        KeyAttributesMap attributes = new KeyAttributesMap();
+        attributes.putAll(key.attributes);
+        return attributes;
+    }
+
+    /**
+     * Returns the ID of the key protecting an indexed blob.
+     *
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     * @return an Ionic Key ID, or null if the blob is not indexed.
+     */
+    public synchronized String getKeyId(String containerName, String blobName) {
+        ContainerEntry container = containers.get(containerName);
+        BlobEntry blob = container == null ? null : container.blobs.get(blobName);
+        return blob == null ? null : blob.key.keyId;
+    }
+
+    /**
+     * Returns the number of indexed blobs.
+     *
+     * @return the blob count.
+     */
+    public synchronized int getBlobCount() {
+        int count = 0;
+        for (ContainerEntry container : containers.values()) {
+            count += container.blobs.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of indexed keys.
+     *
+     * @return the key count.
+     */
+    public synchronized int getKeyCount() {
+        return keys.size();
+    }
+
+    /**
+     * Returns the number of indexed keys whose attributes have not been fetched.
+     *
+     * @return the unresolved key count.
+     */
+    public synchronized int getUnresolvedKeyCount() {
+        int count = 0;
+        for (KeyEntry key : keys.values()) {
+            count += key.attributes == null ? 1 : 0;
+        }
+        return count;
+    }
+
+    /**
+     * Writes the index, including the position of any passes in progress, to a compressed
+     * file. The file is replaced atomically.
+     *
+     * @param path the index file.
+     * @throws IOException if the file could not be written.
+     */
+    public synchronized void save(Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(temporary))))) {
+            out.writeInt(FORMAT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            Map<KeyEntry, Integer> ordinals = new IdentityHashMap<KeyEntry, Integer>();
+            out.writeInt(keys.size());
+            for (KeyEntry key : keys.values()) {
+                ordinals.put(key, ordinals.size());
+                writeString(out, key.keyId);
+                out.writeBoolean(key.attributes != null);
+                if (key.attributes != null) {
+                    out.writeInt(key.attributes.size());
+                    for (Map.Entry<String, List<String>> attribute
+                            : key.attributes.entrySet()) {
+                        writeString(out, attribute.getKey());
+                        out.writeInt(attribute.getValue().size());
+                        for (String value : attribute.getValue()) {
+                            writeString(out, value);
+                        }
+                    }
+                }
+            }
+            out.writeInt(containers.size());
+            for (ContainerEntry container : containers.values()) {
+                writeString(out, container.name);
+                out.writeBoolean(container.marker != null);
+                if (container.marker != null) {
+                    writeString(out, container.marker);
+                }
+                out.writeInt(container.generation);
+                out.writeInt(container.blobs.size());
+                for (BlobEntry blob : container.blobs.values()) {
+                    writeString(out, blob.name);
+                    out.writeInt(ordinals.get(blob.key));
+                    out.writeInt(blob.generation);
+                }
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an index written by {@link #save(Path)}.
+     *
+     * @param path the index file.
+     * @param keyResolverFactory the {@link IonicKeyResolverFactory} fetching key attributes on
+     *        later updates.
+     * @return the IonicBlobInventory.
+     * @throws IOException if the file could not be read or is not an index.
+     */
+    public static IonicBlobInventory load(Path path, IonicKeyResolverFactory keyResolverFactory)
+            throws IOException {
+        IonicBlobInventory inventory = new IonicBlobInventory(keyResolverFactory);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(path))))) {
+            if (in.readInt() != FORMAT_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException(path + " is not an IonicBlobInventory index");
+            }
+            KeyEntry[] ordinals = new KeyEntry[in.readInt()];
+            for (int i = 0; i < ordinals.length; i++) {
+                KeyEntry key = new KeyEntry(readString(in));
+                if (in.readBoolean()) {
+                    key.attributes = new HashMap<String, List<String>>();
+                    int attributes = in.readInt();
+                    for (int j = 0; j < attributes; j++) {
+                        String name = readString(in);
+                        List<String> values = new ArrayList<String>();
+                        int count = in.readInt();
+                        for (int k = 0; k < count; k++) {
+                            values.add(readString(in));
+                        }
+                        key.attributes.put(name, Collections.unmodifiableList(values));
+                    }
+                    inventory.indexAttributes(key, true);
+                }
+                inventory.keys.put(key.keyId, key);
+                ordinals[i] = key;
+            }
+            int containers = in.readInt();
+            for (int i = 0; i < containers; i++) {
+                ContainerEntry container = new ContainerEntry(readString(in));
+                container.marker = in.readBoolean() ? readString(in) : null;
+                container.generation = in.readInt();
+                int blobs = in.readInt();
+                for (int j = 0; j < blobs; j++) {
+                    BlobEntry blob = new BlobEntry(container, readString(in));
+                    blob.key = ordinals[in.readInt()];
+                    blob.generation = in.readInt();
+                    blob.key.blobs.add(blob);
+                    container.blobs.put(blob.name, blob);
+                }
+                inventory.containers.put(container.name, container);
+            }
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException(path + " is corrupt", e);
+        }
+        return inventory;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class KeyEntry {
+
+        private final String keyId;
+        private final Set<BlobEntry> blobs = new HashSet<BlobEntry>();
+        private Map<String, List<String>> attributes = null;
+
+        KeyEntry(String keyId) {
+            this.keyId = keyId;
+        }
+    }
+
+    private static final class ContainerEntry {
+
+        private final String name;
+        private final Map<String, BlobEntry> blobs = new HashMap<String, BlobEntry>();
+        private String marker = null;
+        private int generation = 0;
+
+        ContainerEntry(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * An indexed blob, unique within its container, so identity equality is sufficient.
+     */
+    private static final class BlobEntry {
+
+        private final ContainerEntry container;
+        private final String name;
+        private KeyEntry key;
+        private int generation;
+
+        BlobEntry(ContainerEntry container, String name) {
+            this.container = container;
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return container.name + "/" + name;
+        }
+    }
+}
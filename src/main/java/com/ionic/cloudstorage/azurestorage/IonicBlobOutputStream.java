@@ -0,0 +1,330 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * An OutputStream encrypting content of unknown length into a block blob as it is written.
+ * Content is encrypted with AES-CBC under a random content key wrapped by an Ionic Key, in the
+ * envelope written by the Azure Storage SDK
+ * {@link com.microsoft.azure.storage.blob.BlobEncryptionPolicy}, so the blob can be read with
+ * a BlobEncryptionPolicy and an {@link IonicKeyResolverFactory.IonicKeyResolver} or with
+ * {@link IonicBlobTransfer}.
+ *
+ * <p>Each block is staged as soon as it is full while the next one is written, so at most
+ * {@code (maxInFlightBlocks + 1) * blockLength} bytes are buffered whatever the length of the
+ * content. Closing the stream commits the blob, with its metadata as held by the
+ * CloudBlockBlob; until then the blob's previous content remains visible. If writing fails the
+ * blob is not committed when the stream is closed.</p>
+ */
+public class IonicBlobOutputStream extends OutputStream {
+
+    /**
+     * Default length of the blocks staged while writing.
+     */
+    public static final int DEFAULT_BLOCK_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Default maximum number of blocks being staged while the next one is written.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_BLOCKS = 4;
+
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int AES_BLOCK_LENGTH = 16;
+    private static final int TRANSFER_BUFFER_LENGTH = 64 * 1024;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final CloudBlockBlob blob;
+    private final int blockLength;
+    private final int maxInFlightBlocks;
+    private final ExecutorService executor;
+    private final BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+    private final Cipher cipher;
+    private final EncryptionData encryptionData;
+    private final List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+    private final Deque<Future<Void>> inFlight = new ArrayDeque<Future<Void>>();
+    private final Deque<byte[]> inFlightBuffers = new ArrayDeque<byte[]>();
+    private final Deque<byte[]> freeBuffers = new ArrayDeque<byte[]>();
+    private final byte[] single = new byte[1];
+    private AccessCondition accessCondition = null;
+    private byte[] block;
+    private int blockPosition = 0;
+    private long length = 0;
+    private boolean finished = false;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    /**
+     * Constructs an IonicBlobOutputStream writing to the blob under the specified key, typically
+     * from {@link IonicKeyResolverFactory#create()}, with the default block length and number
+     * of blocks in flight.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws IOException if the content key could not be wrapped.
+     */
+    public IonicBlobOutputStream(CloudBlockBlob blob, IKey key)
+            throws IonicException, IOException {
+        this(blob, key, DEFAULT_BLOCK_LENGTH, DEFAULT_MAX_IN_FLIGHT_BLOCKS,
+                IonicBlobTransfer.SHARED_EXECUTOR);
+    }
+
+    /**
+     * Constructs an IonicBlobOutputStream writing to the blob under the specified key.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @param blockLength the length of the staged blocks.
+     * @param maxInFlightBlocks the maximum number of blocks being staged at once.
+     * @param executor the ExecutorService staging blocks.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws IOException if the content key could not be wrapped.
+     */
+    public IonicBlobOutputStream(CloudBlockBlob blob, IKey key, int blockLength,
+            int maxInFlightBlocks, ExecutorService executor) throws IonicException, IOException {
+        if (blockLength < AES_BLOCK_LENGTH) {
+            throw new IllegalArgumentException("blockLength must be at least "
+                    + AES_BLOCK_LENGTH);
+        }
+        if (maxInFlightBlocks <= 0) {
+            throw new IllegalArgumentException("maxInFlightBlocks must be positive");
+        }
+        this.blob = blob;
+        this.blockLength = blockLength;
+        this.maxInFlightBlocks = maxInFlightBlocks;
+        this.executor = executor;
+
+        byte[] contentKey = SegmentCipher.generateContentKey();
+        byte[] iv = new byte[AES_BLOCK_LENGTH];
+        RANDOM.nextBytes(iv);
+        try {
+            Pair<byte[], String> wrapped = ContentKeys.wrap(contentKey, key);
+            this.encryptionData = EncryptionData.forCbc(key.getKid(), wrapped.getLeft(),
+                    wrapped.getRight(), iv);
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+            this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(contentKey, "AES"),
+                    new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to initialize content encryption", e);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+        // Room for the padding or the bytes held back by the cipher beyond a full block.
+        this.block = new byte[blockLength + AES_BLOCK_LENGTH];
+    }
+
+    /**
+     * Sets the condition under which the blob is committed, for instance an If-Match condition
+     * on the ETag of the blob being replaced.
+     *
+     * @param accessCondition an {@link com.microsoft.azure.storage.AccessCondition} or null.
+     */
+    public void setAccessCondition(AccessCondition accessCondition) {
+        this.accessCondition = accessCondition;
+    }
+
+    /**
+     * Returns the condition under which the blob is committed.
+     *
+     * @return an {@link com.microsoft.azure.storage.AccessCondition} or null.
+     */
+    public AccessCondition getAccessCondition() {
+        return accessCondition;
+    }
+
+    /**
+     * Returns the number of plaintext bytes written so far.
+     *
+     * @return the plaintext length.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            append(b, off, len);
+        } catch (StorageException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the channel to its end, writing everything read to this stream.
+     *
+     * @param channel the {@link java.nio.channels.ReadableByteChannel} supplying the content.
+     * @return the number of bytes read.
+     * @throws StorageException if a block could not be staged.
+     * @throws IOException if the channel could not be read or the content encrypted.
+     */
+    public long transferFrom(ReadableByteChannel channel) throws StorageException, IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_BUFFER_LENGTH);
+        long transferred = 0;
+        int read;
+        while ((read = channel.read(buffer)) >= 0) {
+            if (read > 0) {
+                append(buffer.array(), 0, buffer.position());
+                transferred += buffer.position();
+                buffer.clear();
+            }
+        }
+        return transferred;
+    }
+
+    private void append(byte[] b, int off, int len) throws StorageException, IOException {
+        if (closed || finished) {
+            throw new IOException("IonicBlobOutputStream has been closed");
+        }
+        boolean succeeded = false;
+        try {
+            while (len > 0) {
+                // At most blockLength - blockPosition + 15 bytes are output, which fit.
+                int chunk = Math.min(len, blockLength - blockPosition);
+                blockPosition += cipher.update(b, off, chunk, block, blockPosition);
+                off += chunk;
+                len -= chunk;
+                length += chunk;
+                if (blockPosition >= blockLength) {
+                    stageBlock();
+                }
+            }
+            succeeded = true;
+        } catch (ShortBufferException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            failed |= !succeeded;
+        }
+    }
+
+    private void stageBlock() throws StorageException, IOException {
+        if (inFlight.size() >= maxInFlightBlocks) {
+            ContentKeys.await(inFlight.removeFirst());
+            freeBuffers.addLast(inFlightBuffers.removeFirst());
+        }
+        String blockId = IonicBlobTransfer.blockId(blocks.size());
+        byte[] staged = block;
+        int stagedLength = blockPosition;
+        inFlight.addLast(executor.submit(() -> {
+            blob.uploadBlock(blockId, new ByteArrayInputStream(staged, 0, stagedLength),
+                    stagedLength, null, options, null);
+            return null;
+        }));
+        inFlightBuffers.addLast(staged);
+        blocks.add(new BlockEntry(blockId));
+        block = freeBuffers.isEmpty() ? new byte[blockLength + AES_BLOCK_LENGTH]
+                : freeBuffers.removeFirst();
+        blockPosition = 0;
+    }
+
+    /**
+     * Encrypts the final block and waits for every block to be staged, without committing.
+     */
+    void finish() throws StorageException, IOException {
+        if (finished) {
+            return;
+        }
+        if (closed || failed) {
+            throw new IOException("IonicBlobOutputStream has failed or been closed");
+        }
+        finished = true;
+        boolean succeeded = false;
+        try {
+            blockPosition += cipher.doFinal(block, blockPosition);
+            stageBlock();
+            while (!inFlight.isEmpty()) {
+                ContentKeys.await(inFlight.removeFirst());
+                inFlightBuffers.removeFirst();
+            }
+            succeeded = true;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt content", e);
+        } finally {
+            failed |= !succeeded;
+        }
+    }
+
+    /**
+     * Commits the staged blocks with the blob's metadata and the encryption data. May be
+     * repeated with a different condition if the commit fails.
+     */
+    void commit(AccessCondition condition) throws StorageException {
+        blob.getMetadata().put(EncryptionData.METADATA_KEY, encryptionData.toJson());
+        blob.commitBlockList(blocks, condition, options, null);
+    }
+
+    /**
+     * Cancels any blocks being staged. The blob is left uncommitted.
+     */
+    void abort() {
+        failed = true;
+        closed = true;
+        for (Future<Void> future : inFlight) {
+            future.cancel(true);
+        }
+        inFlight.clear();
+        inFlightBuffers.clear();
+        freeBuffers.clear();
+    }
+
+    /**
+     * Stages the final block and commits the blob under the access condition. If writing
+     * failed earlier the blob is not committed.
+     *
+     * @throws IOException if the blob could not be committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (failed) {
+            abort();
+            return;
+        }
+        try {
+            finish();
+            commit(accessCondition);
+        } catch (StorageException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            abort();
+        }
+    }
+}
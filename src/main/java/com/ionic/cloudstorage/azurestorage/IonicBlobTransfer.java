@@ -0,0 +1,928 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobEncryptionPolicy;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Uploads and downloads blobs protected with Ionic managed keys in a segmented AES-GCM format.
+ * The blob is split into fixed-size segments which are encrypted and authenticated
+ * independently under a random content key. The content key is wrapped with an Ionic Key and
+ * recorded in the blob's {@link EncryptionData}. Segments are encrypted, staged and decrypted
+ * concurrently, and ranged reads only fetch and decrypt the segments overlapping the range.
+ * Plaintext may optionally be compressed before encryption, see {@link CompressionCodec}.
+ * Blobs written by the Azure Storage SDK
+ * {@link com.microsoft.azure.storage.blob.BlobEncryptionPolicy} remain readable through
+ * {@link #download} and {@link #downloadRange}.
+ *
+ * <p>A whole download fetches the blob's first range in the same request that returns its
+ * metadata, so no separate attributes request precedes the data. The first segments of a
+ * segmented AES-GCM blob are fetched while its key is resolved and decrypt once the content key
+ * is unwrapped. Blobs which fit in the first range complete in a single storage request.</p>
+ *
+ * <p>Each upload and download is reported as a span to the {@link IonicTracer} of the
+ * IonicKeyResolverFactory, recording the time spent on the key service, on the network and in
+ * encryption.</p>
+ */
+public class IonicBlobTransfer {
+
+    /**
+     * Metadata key of the Base64 SHA-256 digest of a blob's plaintext, recorded by upload if
+     * {@link #setPlaintextDigest(boolean)} is enabled and checked by {@link IonicBlobVerifier}.
+     */
+    public static final String DIGEST_METADATA_KEY = "ionicplaintextsha256";
+
+    static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ionic-blob-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int AES_BLOCK_LENGTH = 16;
+
+    private final IonicKeyResolverFactory keyResolverFactory;
+    private int segmentLength = SegmentCipher.DEFAULT_SEGMENT_LENGTH;
+    private int maxInFlightSegments = 2 * Runtime.getRuntime().availableProcessors();
+    private ExecutorService executor = SHARED_EXECUTOR;
+    private CompressionCodec compression = CompressionCodec.NONE;
+    private boolean compressionSniffing = false;
+    private boolean plaintextDigest = false;
+    private int firstRangeLength = SegmentCipher.DEFAULT_SEGMENT_LENGTH + SegmentCipher.OVERHEAD;
+    private TransferGovernor.Job governorJob = TransferGovernor.Job.UNGOVERNED;
+    private Boolean requireEncryption = null;
+
+    /**
+     * Constructs an IonicBlobTransfer creating and resolving keys with the
+     * IonicKeyResolverFactory.
+     *
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     */
+    public IonicBlobTransfer(IonicKeyResolverFactory keyResolverFactory) {
+        this.keyResolverFactory = keyResolverFactory;
+    }
+
+    /**
+     * Returns the IonicKeyResolverFactory backing this IonicBlobTransfer.
+     *
+     * @return an {@link IonicKeyResolverFactory}
+     */
+    public IonicKeyResolverFactory getKeyResolverFactory() {
+        return keyResolverFactory;
+    }
+
+    /**
+     * Sets the plaintext length of each segment written by upload. Defaults to 4 MiB.
+     *
+     * @param segmentLength the segment length in bytes.
+     */
+    public void setSegmentLength(int segmentLength) {
+        if (segmentLength <= 0) {
+            throw new IllegalArgumentException("segmentLength must be positive");
+        }
+        this.segmentLength = segmentLength;
+    }
+
+    /**
+     * Returns the plaintext length of each segment written by upload.
+     *
+     * @return the segment length in bytes.
+     */
+    public int getSegmentLength() {
+        return segmentLength;
+    }
+
+    /**
+     * Sets the maximum number of segments buffered and transferred concurrently, which bounds
+     * memory use to roughly this many segments. Defaults to twice the available processors.
+     *
+     * @param maxInFlightSegments the maximum number of segments in flight.
+     */
+    public void setMaxInFlightSegments(int maxInFlightSegments) {
+        if (maxInFlightSegments <= 0) {
+            throw new IllegalArgumentException("maxInFlightSegments must be positive");
+        }
+        this.maxInFlightSegments = maxInFlightSegments;
+    }
+
+    /**
+     * Returns the maximum number of segments buffered and transferred concurrently.
+     *
+     * @return the maximum number of segments in flight.
+     */
+    public int getMaxInFlightSegments() {
+        return maxInFlightSegments;
+    }
+
+    /**
+     * Sets the ExecutorService used to encrypt, decrypt and transfer segments. Defaults to a
+     * shared pool of daemon threads.
+     *
+     * @param executor an {@link java.util.concurrent.ExecutorService}.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor == null ? SHARED_EXECUTOR : executor;
+    }
+
+    /**
+     * Returns the ExecutorService used to encrypt, decrypt and transfer segments.
+     *
+     * @return an {@link java.util.concurrent.ExecutorService}
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the codec used to compress plaintext before encryption. Defaults to
+     * {@link CompressionCodec#NONE}.
+     *
+     * @param compression a {@link CompressionCodec}.
+     */
+    public void setCompression(CompressionCodec compression) {
+        this.compression = compression == null ? CompressionCodec.NONE : compression;
+    }
+
+    /**
+     * Returns the codec used to compress plaintext before encryption.
+     *
+     * @return a {@link CompressionCodec}
+     */
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
+    /**
+     * Sets whether the leading bytes of each upload are inspected to decide if the compression
+     * codec is applied. When enabled, content that is already compressed or does not compress
+     * well is uploaded uncompressed. Defaults to false.
+     *
+     * @param compressionSniffing true to sniff content before compressing.
+     */
+    public void setCompressionSniffing(boolean compressionSniffing) {
+        this.compressionSniffing = compressionSniffing;
+    }
+
+    /**
+     * Returns whether content is inspected before compressing.
+     *
+     * @return true if content is sniffed.
+     */
+    public boolean isCompressionSniffing() {
+        return compressionSniffing;
+    }
+
+    /**
+     * Sets whether upload records the SHA-256 digest of the plaintext in the blob's metadata
+     * under {@link #DIGEST_METADATA_KEY}, so that {@link IonicBlobVerifier} can check the
+     * decrypted content end to end. Defaults to false.
+     *
+     * @param plaintextDigest true to record the plaintext digest.
+     */
+    public void setPlaintextDigest(boolean plaintextDigest) {
+        this.plaintextDigest = plaintextDigest;
+    }
+
+    /**
+     * Returns whether upload records the SHA-256 digest of the plaintext.
+     *
+     * @return true if the plaintext digest is recorded.
+     */
+    public boolean isPlaintextDigest() {
+        return plaintextDigest;
+    }
+
+    /**
+     * Sets the length of the range fetched along with the blob's metadata by a whole download.
+     * Defaults to one encrypted segment of the default segment length. Zero fetches the
+     * metadata on its own before any data.
+     *
+     * @param firstRangeLength the first range length in bytes.
+     */
+    public void setFirstRangeLength(int firstRangeLength) {
+        if (firstRangeLength < 0) {
+            throw new IllegalArgumentException("firstRangeLength must not be negative");
+        }
+        this.firstRangeLength = firstRangeLength;
+    }
+
+    /**
+     * Returns the length of the range fetched along with the blob's metadata by a whole
+     * download.
+     *
+     * @return the first range length in bytes.
+     */
+    public int getFirstRangeLength() {
+        return firstRangeLength;
+    }
+
+    /**
+     * Sets the {@link TransferGovernor} job whose budget limits the bytes and requests of the
+     * transfers made by this IonicBlobTransfer. Defaults to null, for no limit.
+     *
+     * @param governorJob a {@link TransferGovernor.Job}, or null.
+     */
+    public void setGovernorJob(TransferGovernor.Job governorJob) {
+        this.governorJob = governorJob == null ? TransferGovernor.Job.UNGOVERNED : governorJob;
+    }
+
+    /**
+     * Returns the {@link TransferGovernor} job limiting the transfers, or null if there is none.
+     *
+     * @return a {@link TransferGovernor.Job}, or null.
+     */
+    public TransferGovernor.Job getGovernorJob() {
+        return governorJob == TransferGovernor.Job.UNGOVERNED ? null : governorJob;
+    }
+
+    TransferGovernor.Job governorJob() {
+        return governorJob;
+    }
+
+    /**
+     * Sets whether downloads fail with a StorageException for blobs without encryption
+     * metadata, rather than returning their content as stored. Defaults to null, which follows
+     * {@link com.microsoft.azure.storage.blob.BlobRequestOptions#requireEncryption()} of the
+     * default request options of the blob's service client.
+     *
+     * @param requireEncryption whether encryption is required, or null.
+     */
+    public void setRequireEncryption(Boolean requireEncryption) {
+        this.requireEncryption = requireEncryption;
+    }
+
+    /**
+     * Returns whether downloads require blobs to be encrypted, or null if the default request
+     * options of the blob's service client decide.
+     *
+     * @return whether encryption is required, or null.
+     */
+    public Boolean getRequireEncryption() {
+        return requireEncryption;
+    }
+
+    /**
+     * Uploads the stream to the blob under a newly created Ionic Key with the default
+     * attributes of the IonicKeyResolverFactory.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param source the plaintext stream, read to its end.
+     * @return the {@link TransferStats} of the upload.
+     * @throws IonicException if the Ionic Key could not be created.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the stream could not be read.
+     */
+    public TransferStats upload(CloudBlockBlob blob, InputStream source)
+            throws IonicException, StorageException, IOException {
+        return upload(blob, source, new CreateKeysRequest.Key(""));
+    }
+
+    /**
+     * Uploads the stream to the blob under a newly created Ionic Key with the attributes of the
+     * CreateKeysRequest.Key merged with the default attributes of the IonicKeyResolverFactory.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param source the plaintext stream, read to its end.
+     * @param key a {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest.Key}.
+     * @return the {@link TransferStats} of the upload.
+     * @throws IonicException if the Ionic Key could not be created.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the stream could not be read.
+     */
+    public TransferStats upload(CloudBlockBlob blob, InputStream source,
+            CreateKeysRequest.Key key) throws IonicException, StorageException, IOException {
+        IonicSpan span = startSpan(IonicTracer.SPAN_BLOB_UPLOAD, blob);
+        try {
+            PhaseClock clock = PhaseClock.forSpan(span, IonicTracer.SPAN_BLOB_UPLOAD);
+            long started = clock.start();
+            IKey created = keyResolverFactory.create(key);
+            clock.key(started);
+            return upload(blob, source, created, span, clock);
+        } catch (IonicException | StorageException | IOException | RuntimeException e) {
+            span.recordException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * Uploads the stream to the blob, wrapping the content key with the specified key.
+     * The blob's existing metadata, as held by the CloudBlockBlob, is written along with the
+     * {@link EncryptionData} and the {@link CompressionCodec} applied.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param source the plaintext stream, read to its end.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @return the {@link TransferStats} of the upload.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the stream could not be read.
+     */
+    public TransferStats upload(CloudBlockBlob blob, InputStream source, IKey key)
+            throws IonicException, StorageException, IOException {
+        IonicSpan span = startSpan(IonicTracer.SPAN_BLOB_UPLOAD, blob);
+        try {
+            return upload(blob, source, key, span,
+                    PhaseClock.forSpan(span, IonicTracer.SPAN_BLOB_UPLOAD));
+        } catch (IonicException | StorageException | IOException | RuntimeException e) {
+            span.recordException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    private TransferStats upload(CloudBlockBlob blob, InputStream source, IKey key,
+            IonicSpan span, PhaseClock clock)
+            throws IonicException, StorageException, IOException {
+        long started = System.nanoTime();
+        span.setAttribute(IonicTracer.KEY_ID, key.getKid());
+        byte[] contentKey = SegmentCipher.generateContentKey();
+        SegmentCipher cipher;
+        Pair<byte[], String> wrapped;
+        long wrapStarted = clock.start();
+        try {
+            wrapped = ContentKeys.wrap(contentKey, key);
+            cipher = new SegmentCipher(contentKey, segmentLength);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+        clock.crypto(wrapStarted);
+
+        MessageDigest digest = plaintextDigest ? sha256() : null;
+        CountingInputStream counted = new CountingInputStream(
+                digest == null ? source : new DigestInputStream(source, digest));
+        InputStream plaintext = counted;
+        CompressionCodec codec = compression;
+        if (codec != CompressionCodec.NONE && compressionSniffing) {
+            PushbackInputStream pushback =
+                    new PushbackInputStream(counted, CompressionCodec.SNIFF_LENGTH);
+            byte[] sample = new byte[CompressionCodec.SNIFF_LENGTH];
+            int sampleLength = readFully(pushback, sample);
+            pushback.unread(sample, 0, sampleLength);
+            if (!CompressionCodec.isCompressible(sample, sampleLength)) {
+                codec = CompressionCodec.NONE;
+            }
+            plaintext = pushback;
+        }
+
+        BlobRequestOptions options = transferOptions();
+        List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+        Deque<Future<Void>> inFlight = new ArrayDeque<Future<Void>>();
+        long streamLength = 0;
+        try (InputStream stream = codec.compress(plaintext)) {
+            byte[] current = new byte[segmentLength];
+            int currentLength = readFully(stream, current);
+            long segment = 0;
+            while (true) {
+                byte[] next = null;
+                int nextLength = 0;
+                boolean last = currentLength < segmentLength;
+                if (!last) {
+                    next = new byte[segmentLength];
+                    nextLength = readFully(stream, next);
+                    last = nextLength == 0;
+                }
+                String blockId = blockId(segment);
+                blocks.add(new BlockEntry(blockId));
+                if (inFlight.size() >= maxInFlightSegments) {
+                    ContentKeys.await(inFlight.removeFirst());
+                }
+                inFlight.addLast(executor.submit(stageSegment(blob, cipher, segment, last,
+                        current, currentLength, blockId, options, governorJob, clock)));
+                streamLength += currentLength;
+                if (last) {
+                    break;
+                }
+                current = next;
+                currentLength = nextLength;
+                segment++;
+            }
+            while (!inFlight.isEmpty()) {
+                ContentKeys.await(inFlight.removeFirst());
+            }
+        } finally {
+            for (Future<Void> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+
+        EncryptionData data = EncryptionData.forGcm(key.getKid(), wrapped.getLeft(),
+                wrapped.getRight(), segmentLength);
+        HashMap<String, String> metadata = blob.getMetadata();
+        metadata.put(EncryptionData.METADATA_KEY, data.toJson());
+        if (codec == CompressionCodec.NONE) {
+            metadata.remove(CompressionCodec.METADATA_KEY);
+        } else {
+            metadata.put(CompressionCodec.METADATA_KEY, codec.getName());
+        }
+        if (digest == null) {
+            metadata.remove(DIGEST_METADATA_KEY);
+        } else {
+            metadata.put(DIGEST_METADATA_KEY,
+                    Base64.getEncoder().encodeToString(digest.digest()));
+        }
+        governorJob.acquire(0);
+        long commitStarted = clock.start();
+        blob.commitBlockList(blocks, null, options, governorJob.context());
+        clock.network(commitStarted);
+        TransferStats stats = new TransferStats(blob.getName(), codec, counted.getCount(),
+                cipher.ciphertextLength(streamLength), System.nanoTime() - started);
+        clock.finish(span, stats);
+        return stats;
+    }
+
+    static Callable<Void> stageSegment(CloudBlockBlob blob, SegmentCipher cipher,
+            long segment, boolean last, byte[] plaintext, int length, String blockId,
+            BlobRequestOptions options, TransferGovernor.Job job, PhaseClock clock) {
+        return () -> {
+            Object event = IonicFlightRecorder.beginSegment();
+            long started = clock.start();
+            byte[] ciphertext = new byte[length + SegmentCipher.OVERHEAD];
+            int encryptedLength = cipher.encrypt(segment, last, plaintext, 0, length,
+                    ciphertext, 0);
+            clock.crypto(started);
+            job.acquire(encryptedLength);
+            started = clock.start();
+            blob.uploadBlock(blockId, new ByteArrayInputStream(ciphertext, 0, encryptedLength),
+                    encryptedLength, null, options, job.context());
+            clock.network(started);
+            IonicFlightRecorder.commitSegment(event, IonicTracer.SPAN_BLOB_UPLOAD, segment,
+                    encryptedLength);
+            return null;
+        };
+    }
+
+    /**
+     * Downloads and decrypts the blob, resolving its key with a new IonicKeyResolver.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param target the stream receiving the plaintext.
+     * @return the {@link TransferStats} of the download.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if a segment failed authentication or target could not be written.
+     */
+    public TransferStats download(CloudBlob blob, OutputStream target)
+            throws IonicException, StorageException, IOException {
+        return download(blob, target, keyResolverFactory.createKeyResolver());
+    }
+
+    /**
+     * Downloads and decrypts the blob, resolving its key with the specified IKeyResolver.
+     * Passing an {@link IonicKeyResolverFactory.IonicKeyResolver} allows the resolved Ionic Key
+     * to be inspected afterwards. Compressed blobs are decompressed into the target.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param target the stream receiving the plaintext.
+     * @param resolver the {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @return the {@link TransferStats} of the download.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if a segment failed authentication or target could not be written.
+     */
+    public TransferStats download(CloudBlob blob, OutputStream target, IKeyResolver resolver)
+            throws IonicException, StorageException, IOException {
+        return transfer(blob, 0, -1, target, resolver, true);
+    }
+
+    /**
+     * Downloads and decrypts a range of the blob's plaintext. For segmented AES-GCM blobs only
+     * the segments overlapping the range are fetched and decrypted. Ranged reads of compressed
+     * blobs are not supported.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param offset the plaintext offset of the range.
+     * @param length the length of the range, or -1 to read to the end of the blob.
+     * @param target the stream receiving the plaintext.
+     * @param resolver the {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @return the {@link TransferStats} of the download.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if a segment failed authentication or target could not be written.
+     */
+    public TransferStats downloadRange(CloudBlob blob, long offset, long length,
+            OutputStream target, IKeyResolver resolver)
+            throws IonicException, StorageException, IOException {
+        return transfer(blob, offset, length, target, resolver, false);
+    }
+
+    private TransferStats transfer(CloudBlob blob, long offset, long length,
+            OutputStream target, IKeyResolver resolver, boolean whole)
+            throws IonicException, StorageException, IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        IonicSpan span = startSpan(IonicTracer.SPAN_BLOB_DOWNLOAD, blob);
+        try {
+            PhaseClock clock = PhaseClock.forSpan(span, IonicTracer.SPAN_BLOB_DOWNLOAD);
+            TransferStats stats = transfer(blob, offset, length, target, resolver, whole, span,
+                    clock);
+            clock.finish(span, stats);
+            return stats;
+        } catch (IonicException | StorageException | IOException | RuntimeException e) {
+            span.recordException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    private TransferStats transfer(CloudBlob blob, long offset, long length,
+            OutputStream target, IKeyResolver resolver, boolean whole, IonicSpan span,
+            PhaseClock clock) throws IonicException, StorageException, IOException {
+        long started = System.nanoTime();
+        IonicBlobBuffers.Buffer prefix = whole ? downloadFirstRange(blob, clock) : null;
+        if (prefix == null) {
+            governorJob.acquire(0);
+            long phaseStarted = clock.start();
+            blob.downloadAttributes(null, transferOptions(), governorJob.context());
+            clock.network(phaseStarted);
+        }
+        EncryptionData data = EncryptionData.fromMetadata(blob.getMetadata());
+        if (data == null) {
+            checkUnencryptedAllowed(blob, requireEncryption);
+        }
+        CompressionCodec codec = CompressionCodec.fromMetadata(blob.getMetadata());
+        if (!whole && codec != CompressionCodec.NONE) {
+            throw new UnsupportedOperationException(
+                    "Ranged reads are not supported for compressed blobs");
+        }
+        CountingOutputStream counted = new CountingOutputStream(target);
+        if (data == null || !data.isGcm()) {
+            if (prefix == null || !downloadFromPrefix(blob, data, prefix, counted, resolver,
+                    clock)) {
+                long phaseStarted = clock.start();
+                downloadLegacy(blob, data, offset, length, counted, resolver);
+                clock.network(phaseStarted);
+            }
+            return new TransferStats(blob.getName(), CompressionCodec.NONE, counted.getCount(),
+                    blob.getProperties().getLength(), System.nanoTime() - started);
+        }
+
+        span.setAttribute(IonicTracer.KEY_ID, data.getKeyId());
+        int segmentLength = data.getSegmentLength();
+        long ciphertextLength = blob.getProperties().getLength();
+        long plaintextLength = SegmentCipher.plaintextLength(ciphertextLength, segmentLength);
+        long end = length < 0 ? plaintextLength : Math.min(plaintextLength, offset + length);
+        if (offset >= end) {
+            return new TransferStats(blob.getName(), codec, 0, 0, System.nanoTime() - started);
+        }
+        AccessCondition condition =
+                AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        long lastSegment = SegmentCipher.segmentCount(plaintextLength, segmentLength) - 1;
+        long firstSegment = offset / segmentLength;
+        long endSegment = (end - 1) / segmentLength;
+
+        // The first segments are queued before the key is resolved, so their ciphertext is
+        // fetched while the key service request is in flight.
+        CompletableFuture<SegmentCipher> cipher = new CompletableFuture<SegmentCipher>();
+        SegmentSource source = new SegmentSource(blob, cipher, segmentLength, ciphertextLength,
+                lastSegment, prefix, condition, governorJob, clock);
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+        long nextSegment = firstSegment;
+        long writeSegment = firstSegment;
+        try (OutputStream stream = codec.decompress(counted)) {
+            while (nextSegment <= endSegment && inFlight.size() < maxInFlightSegments) {
+                inFlight.addLast(executor.submit(source.fetch(nextSegment++)));
+            }
+            resolveCipher(data, resolver, cipher, clock);
+            while (!inFlight.isEmpty()) {
+                writeSegment(segmentLength, ContentKeys.await(inFlight.removeFirst()),
+                        writeSegment++, offset, end, stream);
+                if (nextSegment <= endSegment) {
+                    inFlight.addLast(executor.submit(source.fetch(nextSegment++)));
+                }
+            }
+        } finally {
+            cipher.cancel(false);
+            for (Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        long storedBytes = (endSegment + 1 - firstSegment) * source.encryptedSegmentLength;
+        return new TransferStats(blob.getName(), codec, counted.getCount(),
+                Math.min(storedBytes, ciphertextLength), System.nanoTime() - started);
+    }
+
+    /**
+     * Fetches the first range of the blob, which also populates its metadata and properties.
+     * Returns null if no range is fetched, or the blob is empty and so has no range to fetch.
+     */
+    private IonicBlobBuffers.Buffer downloadFirstRange(CloudBlob blob, PhaseClock clock)
+            throws StorageException, IOException {
+        if (firstRangeLength == 0) {
+            return null;
+        }
+        // The length is known if the blob came from a listing or had its attributes fetched.
+        long knownLength = blob.getProperties().getLength();
+        long expectedLength =
+                knownLength > 0 ? Math.min(knownLength, firstRangeLength) : firstRangeLength;
+        IonicBlobBuffers.Buffer prefix = new IonicBlobBuffers.Buffer(expectedLength);
+        governorJob.acquire(expectedLength);
+        long started = clock.start();
+        try {
+            blob.downloadRange(0, (long) firstRangeLength, prefix, null, transferOptions(),
+                    governorJob.context());
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+                return null;
+            }
+            throw e;
+        } finally {
+            clock.network(started);
+        }
+        return prefix;
+    }
+
+    /**
+     * Completes a download of an unencrypted or AES-CBC blob from its first range. Returns
+     * false if the blob has to be downloaded again through the BlobEncryptionPolicy.
+     */
+    private boolean downloadFromPrefix(CloudBlob blob, EncryptionData data,
+            IonicBlobBuffers.Buffer prefix, OutputStream target, IKeyResolver resolver,
+            PhaseClock clock) throws IonicException, StorageException, IOException {
+        long blobLength = blob.getProperties().getLength();
+        if (data == null) {
+            prefix.writeTo(target);
+            if (prefix.size() < blobLength) {
+                long started = clock.start();
+                downloadRanges(blob, prefix.size(), blobLength, blobLength, target,
+                        transferOptions());
+                clock.network(started);
+            }
+            return true;
+        }
+        if (!data.isCbc() || prefix.size() < blobLength) {
+            return false;
+        }
+        long started = clock.start();
+        byte[] contentKey = ContentKeys.unwrap(data, resolver);
+        started = clock.key(started);
+        int length;
+        try {
+            length = IonicBlobBuffers.decryptCbc(data, contentKey, prefix);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Blob " + blob.getName() + " failed to decrypt", e);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+        clock.crypto(started);
+        target.write(prefix.array(), 0, length);
+        return true;
+    }
+
+    static void resolveCipher(EncryptionData data, IKeyResolver resolver,
+            CompletableFuture<SegmentCipher> cipher, PhaseClock clock)
+            throws IonicException, IOException {
+        long started = clock.start();
+        byte[] contentKey = ContentKeys.unwrap(data, resolver);
+        clock.key(started);
+        try {
+            cipher.complete(new SegmentCipher(contentKey, data.getSegmentLength()));
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Opens a read-only {@link IonicBlobChannel} over the blob's plaintext, resolving its key
+     * with a new IonicKeyResolver.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @return an {@link IonicBlobChannel}
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the blob is not Ionic protected.
+     */
+    public IonicBlobChannel openChannel(CloudBlob blob)
+            throws IonicException, StorageException, IOException {
+        return new IonicBlobChannel(blob, keyResolverFactory.createKeyResolver());
+    }
+
+    /**
+     * Downloads an unencrypted blob, or one whose encryption is performed by the Azure Storage
+     * SDK, in ranges of at most the segment length.
+     */
+    private void downloadLegacy(CloudBlob blob, EncryptionData data, long offset, long length,
+            OutputStream target, IKeyResolver resolver) throws StorageException, IOException {
+        long blobLength = blob.getProperties().getLength();
+        long end = length < 0 ? blobLength : Math.min(blobLength, offset + length);
+        if (data == null) {
+            downloadRanges(blob, offset, end, end, target, transferOptions());
+            return;
+        }
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setEncryptionPolicy(new BlobEncryptionPolicy(null, resolver));
+        // The plaintext is at least the ciphertext less one padding block, so no range but the
+        // last can start past its end.
+        downloadRanges(blob, offset, end, Math.min(end, blobLength - AES_BLOCK_LENGTH), target,
+                options);
+    }
+
+    /**
+     * Downloads the range from offset to end as requests of at most the segment length, each
+     * admitted by the governor and reported through its OperationContext. Every request but
+     * the last starts before safeEnd, and the last one runs to end. The requests are pinned to
+     * the blob's ETag so they all read the same version.
+     */
+    private void downloadRanges(CloudBlob blob, long offset, long end, long safeEnd,
+            OutputStream target, BlobRequestOptions options)
+            throws StorageException, IOException {
+        AccessCondition condition =
+                AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        long start = offset;
+        while (start < end) {
+            long count = start + segmentLength < safeEnd ? segmentLength : end - start;
+            governorJob.acquire(count);
+            blob.downloadRange(start, count, target, condition, options,
+                    governorJob.context());
+            start += count;
+        }
+    }
+
+    private static void writeSegment(int segmentLength, byte[] plaintext, long segment,
+            long offset, long end, OutputStream target) throws IOException {
+        long segmentStart = segment * segmentLength;
+        int from = (int) (Math.max(offset, segmentStart) - segmentStart);
+        int to = (int) (Math.min(end, segmentStart + plaintext.length) - segmentStart);
+        target.write(plaintext, from, to - from);
+    }
+
+    /**
+     * Fetches and decrypts the segments of one download. A segment's ciphertext is taken from
+     * the first range where it was fetched already, and decrypted once the cipher is ready.
+     */
+    static final class SegmentSource {
+
+        private final CloudBlob blob;
+        private final Future<SegmentCipher> cipher;
+        final long encryptedSegmentLength;
+        private final long ciphertextLength;
+        private final long lastSegment;
+        private final byte[] prefix;
+        private final int prefixLength;
+        private final AccessCondition condition;
+        private final BlobRequestOptions options = transferOptions();
+        private final TransferGovernor.Job job;
+        private final PhaseClock clock;
+
+        SegmentSource(CloudBlob blob, Future<SegmentCipher> cipher, int segmentLength,
+                long ciphertextLength, long lastSegment, IonicBlobBuffers.Buffer prefix,
+                AccessCondition condition, TransferGovernor.Job job, PhaseClock clock) {
+            this.blob = blob;
+            this.cipher = cipher;
+            this.encryptedSegmentLength = (long) segmentLength + SegmentCipher.OVERHEAD;
+            this.ciphertextLength = ciphertextLength;
+            this.lastSegment = lastSegment;
+            this.prefix = prefix == null ? null : prefix.array();
+            this.prefixLength = prefix == null ? 0 : prefix.size();
+            this.condition = condition;
+            this.job = job;
+            this.clock = clock;
+        }
+
+        Callable<byte[]> fetch(long segment) {
+            return () -> {
+                Object event = IonicFlightRecorder.beginSegment();
+                long ciphertextOffset = segment * encryptedSegmentLength;
+                int encryptedLength = (int) Math.min(encryptedSegmentLength,
+                        ciphertextLength - ciphertextOffset);
+                byte[] ciphertext = prefix;
+                int base = (int) ciphertextOffset;
+                if (ciphertextOffset + encryptedLength > prefixLength) {
+                    ciphertext = new byte[encryptedLength];
+                    base = 0;
+                    int fromPrefix = (int) Math.max(0, prefixLength - ciphertextOffset);
+                    job.acquire(encryptedLength - fromPrefix);
+                    long started = clock.start();
+                    if (fromPrefix > 0) {
+                        System.arraycopy(prefix, (int) ciphertextOffset, ciphertext, 0,
+                                fromPrefix);
+                    }
+                    int read = blob.downloadRangeToByteArray(ciphertextOffset + fromPrefix,
+                            (long) (encryptedLength - fromPrefix), ciphertext, fromPrefix,
+                            condition, options, job.context());
+                    if (read != encryptedLength - fromPrefix) {
+                        throw new IOException("Short read of segment " + segment);
+                    }
+                    clock.network(started);
+                }
+                SegmentCipher segmentCipher = ContentKeys.get(cipher);
+                long started = clock.start();
+                byte[] plaintext = new byte[encryptedLength - SegmentCipher.OVERHEAD];
+                try {
+                    segmentCipher.decrypt(segment, segment == lastSegment, ciphertext, base,
+                            encryptedLength, plaintext, 0);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Segment " + segment + " failed authentication", e);
+                }
+                clock.crypto(started);
+                IonicFlightRecorder.commitSegment(event, IonicTracer.SPAN_BLOB_DOWNLOAD, segment,
+                        encryptedLength);
+                return plaintext;
+            };
+        }
+    }
+
+    IonicSpan startSpan(String name, CloudBlob blob) {
+        IonicSpan span = keyResolverFactory.getTracer().startSpan(name);
+        if (span.isRecording()) {
+            span.setAttribute(IonicTracer.BLOB_NAME, blob.getName());
+        }
+        return span;
+    }
+
+    /**
+     * Fails if encryption is required for the blob, which has no encryption metadata. A null
+     * requirement follows the default request options of the blob's service client, as the
+     * BlobEncryptionPolicy of the Azure Storage SDK does.
+     */
+    static void checkUnencryptedAllowed(CloudBlob blob, Boolean requireEncryption)
+            throws StorageException {
+        Boolean required = requireEncryption;
+        if (required == null && blob.getServiceClient() != null) {
+            required = blob.getServiceClient().getDefaultRequestOptions().requireEncryption();
+        }
+        if (Boolean.TRUE.equals(required)) {
+            throw new StorageException(StorageErrorCodeStrings.DECRYPTION_ERROR, "Blob "
+                    + blob.getName() + " has no encryption metadata and encryption is required",
+                    null);
+        }
+    }
+
+    /**
+     * Returns request options for transfers whose encryption is performed by this class.
+     * Encryption is explicitly not required so a client default does not reject them.
+     */
+    static BlobRequestOptions transferOptions() {
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setRequireEncryption(false);
+        return options;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    static String blockId(long segment) {
+        return Base64.getEncoder().encodeToString(
+                String.format("%020d", segment).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static int readFully(InputStream source, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = source.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.google.common.util.concurrent.Futures;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Checks that Ionic protected blobs still decrypt, without writing their plaintext anywhere.
+ * Each blob is streamed through decryption into a sink which only counts the plaintext and,
+ * if the blob's metadata holds the digest recorded by an {@link IonicBlobTransfer} with
+ * {@link IonicBlobTransfer#setPlaintextDigest(boolean)} enabled, digests it.
+ *
+ * <p>Segmented AES-GCM blobs are downloaded with {@link IonicBlobTransfer}, which
+ * authenticates every segment, and their plaintext length is checked against their layout.
+ * AES-CBC blobs are decrypted as they stream in, and their padding is checked when the stream
+ * ends. Packed blobs are read a record at a time through {@link IonicPackedBlobReader}, which
+ * authenticates the index and every record. Memory use per blob is bounded by the transfer's
+ * segments in flight, or by the longest record, whatever the blob's length. Unencrypted blobs
+ * are skipped.</p>
+ *
+ * <p>Keys are resolved once per Key ID through a single IKeyResolver shared by every blob of a
+ * run, by default an {@link IonicKeyResolverFactory.IonicKeyResolver} with
+ * {@link KeyRequestPriority#BULK}. A key which cannot be resolved is reported once in the
+ * {@link Report}, and its blobs are counted as unverifiable rather than failed.</p>
+ */
+public class IonicBlobVerifier {
+
+    /**
+     * Default number of blobs listed per page.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Default maximum number of blobs being verified at once.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_BLOBS = 8;
+
+    private static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int AES_BLOCK_LENGTH = 16;
+
+    private final IonicBlobTransfer transfer;
+    private final ExecutorService executor;
+    private IKeyResolver keyResolver;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int maxInFlightBlobs = DEFAULT_MAX_IN_FLIGHT_BLOBS;
+    private boolean digestChecked = true;
+
+    /**
+     * Constructs an IonicBlobVerifier downloading blobs with the IonicBlobTransfer.
+     *
+     * @param transfer an {@link IonicBlobTransfer}.
+     */
+    public IonicBlobVerifier(IonicBlobTransfer transfer) {
+        this(transfer, IonicBlobTransfer.SHARED_EXECUTOR);
+    }
+
+    /**
+     * Constructs an IonicBlobVerifier verifying blobs on the specified ExecutorService.
+     *
+     * @param transfer an {@link IonicBlobTransfer}.
+     * @param executor the {@link java.util.concurrent.ExecutorService} verifying blobs.
+     */
+    public IonicBlobVerifier(IonicBlobTransfer transfer, ExecutorService executor) {
+        this.transfer = transfer;
+        this.executor = executor;
+        this.keyResolver = transfer.getKeyResolverFactory()
+                .createKeyResolver(KeyRequestPriority.BULK);
+    }
+
+    /**
+     * Sets the IKeyResolver shared by the verifications.
+     *
+     * @param keyResolver a {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     */
+    public void setKeyResolver(IKeyResolver keyResolver) {
+        this.keyResolver = keyResolver;
+    }
+
+    /**
+     * Returns the IKeyResolver shared by the verifications.
+     *
+     * @return a {@link com.microsoft.azure.keyvault.core.IKeyResolver}
+     */
+    public IKeyResolver getKeyResolver() {
+        return keyResolver;
+    }
+
+    /**
+     * Sets the number of blobs listed per page.
+     *
+     * @param pageSize the page size, at most 5000.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0 || pageSize > 5000) {
+            throw new IllegalArgumentException("pageSize must be between 1 and 5000");
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the number of blobs listed per page.
+     *
+     * @return the page size.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the maximum number of blobs being verified at once.
+     *
+     * @param maxInFlightBlobs the maximum number of blobs in flight.
+     */
+    public void setMaxInFlightBlobs(int maxInFlightBlobs) {
+        if (maxInFlightBlobs <= 0) {
+            throw new IllegalArgumentException("maxInFlightBlobs must be positive");
+        }
+        this.maxInFlightBlobs = maxInFlightBlobs;
+    }
+
+    /**
+     * Returns the maximum number of blobs being verified at once.
+     *
+     * @return the maximum number of blobs in flight.
+     */
+    public int getMaxInFlightBlobs() {
+        return maxInFlightBlobs;
+    }
+
+    /**
+     * Sets whether the plaintext digest recorded in a blob's metadata is checked. Defaults to
+     * true. Blobs without a recorded digest are verified by decryption alone.
+     *
+     * @param digestChecked true to check recorded digests.
+     */
+    public void setDigestChecked(boolean digestChecked) {
+        this.digestChecked = digestChecked;
+    }
+
+    /**
+     * Returns whether recorded plaintext digests are checked.
+     *
+     * @return true if recorded digests are checked.
+     */
+    public boolean isDigestChecked() {
+        return digestChecked;
+    }
+
+    /**
+     * Verifies every blob in the container.
+     *
+     * @param container a {@link com.microsoft.azure.storage.blob.CloudBlobContainer}.
+     * @return the {@link Report} of the verification.
+     * @throws StorageException if the container could not be listed.
+     * @throws IOException if interrupted while waiting for verifications.
+     */
+    public Report verify(CloudBlobContainer container) throws StorageException, IOException {
+        return verify(container, null);
+    }
+
+    /**
+     * Verifies the blobs in the container whose names start with the prefix, a page of the
+     * listing at a time. Blobs which fail verification are recorded in the {@link Report} and
+     * do not stop the scan.
+     *
+     * @param container a {@link com.microsoft.azure.storage.blob.CloudBlobContainer}.
+     * @param prefix a blob name prefix, or null for every blob.
+     * @return the {@link Report} of the verification.
+     * @throws StorageException if the container could not be listed.
+     * @throws IOException if interrupted while waiting for verifications.
+     */
+    public Report verify(CloudBlobContainer container, String prefix)
+            throws StorageException, IOException {
+        Run run = new Run();
+        ResultContinuation token = null;
+        Deque<Future<?>> inFlight = new ArrayDeque<Future<?>>();
+        try {
+            do {
+                ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(prefix, true,
+                        EnumSet.of(BlobListingDetails.METADATA), pageSize, token,
+                        IonicBlobTransfer.transferOptions(), null);
+                for (ListBlobItem item : segment.getResults()) {
+                    if (!(item instanceof CloudBlob)) {
+                        continue;
+                    }
+                    if (inFlight.size() >= maxInFlightBlobs) {
+                        ContentKeys.await(inFlight.removeFirst());
+                    }
+                    CloudBlob blob = (CloudBlob) item;
+                    inFlight.addLast(executor.submit(() -> verify(blob, run)));
+                }
+                token = segment.getHasMoreResults() ? segment.getContinuationToken() : null;
+            } while (token != null);
+            while (!inFlight.isEmpty()) {
+                ContentKeys.await(inFlight.removeFirst());
+            }
+        } finally {
+            for (Future<?> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        return run.finish();
+    }
+
+    /**
+     * Verifies a single blob, whose metadata is fetched if it was not listed with it.
+     *
+     * @param blob a {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @return the {@link Report} of the verification.
+     */
+    public Report verify(CloudBlob blob) {
+        Run run = new Run();
+        try {
+            if (blob.getMetadata().isEmpty()) {
+                blob.downloadAttributes(null, IonicBlobTransfer.transferOptions(), null);
+            }
+            verify(blob, run);
+        } catch (StorageException e) {
+            run.report.fail(blob.getName(), e);
+        }
+        return run.finish();
+    }
+
+    private void verify(CloudBlob blob, Run run) {
+        Report report = run.report;
+        EncryptionData data;
+        try {
+            data = EncryptionData.fromMetadata(blob.getMetadata());
+        } catch (IllegalArgumentException e) {
+            report.fail(blob.getName(), e);
+            return;
+        }
+        if (data == null) {
+            report.skipped.incrementAndGet();
+            return;
+        }
+        if (!(data.isGcm() || data.isCbc() || data.isPacked())) {
+            report.unsupported.incrementAndGet();
+            return;
+        }
+        IKey key;
+        try {
+            key = run.key(data.getKeyId());
+        } catch (IonicException | IOException | RuntimeException e) {
+            report.unverifiable.incrementAndGet();
+            return;
+        }
+        String recorded = digestChecked ? blob.getMetadata()
+                .get(IonicBlobTransfer.DIGEST_METADATA_KEY) : null;
+        NullSink sink = new NullSink(recorded == null ? null : IonicBlobTransfer.sha256());
+        IKeyResolver resolver = keyId -> keyId.equals(key.getKid())
+                && !ContentKeys.isDestroyed(key) ? Futures.immediateFuture(key)
+                : keyResolver.resolveKeyAsync(keyId);
+        try {
+            long expected;
+            if (data.isGcm()) {
+                transfer.download(blob, sink, resolver);
+                expected = CompressionCodec.fromMetadata(blob.getMetadata())
+                        == CompressionCodec.NONE ? SegmentCipher.plaintextLength(
+                        blob.getProperties().getLength(), data.getSegmentLength()) : -1;
+            } else if (data.isPacked()) {
+                expected = verifyPacked(blob, resolver, sink);
+            } else {
+                expected = verifyCbc(blob, data, resolver, sink);
+            }
+            if (expected >= 0 && sink.count != expected) {
+                throw new IOException("Plaintext is " + sink.count + " bytes, expected "
+                        + expected);
+            }
+            if (recorded != null && !MessageDigest.isEqual(sink.digest.digest(),
+                    Base64.getDecoder().decode(recorded))) {
+                throw new IOException("Plaintext does not match its recorded digest");
+            }
+            report.verified.incrementAndGet();
+            report.plaintextBytes.addAndGet(sink.count);
+            report.storedBytes.addAndGet(blob.getProperties().getLength());
+        } catch (IonicException | StorageException | IOException | RuntimeException e) {
+            report.fail(blob.getName(), e);
+        }
+    }
+
+    /**
+     * Streams the ciphertext through an AES-CBC cipher, whose final block checks the padding.
+     *
+     * @return the expected plaintext length, or -1 if it is only known once decrypted.
+     */
+    private static long verifyCbc(CloudBlob blob, EncryptionData data, IKeyResolver resolver,
+            NullSink sink) throws IonicException, StorageException, IOException {
+        byte[] contentKey = ContentKeys.unwrap(data, resolver);
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance(CBC_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(contentKey, "AES"),
+                    new IvParameterSpec(data.getContentEncryptionIV()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to initialize decryption", e);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+        long ciphertextLength = blob.getProperties().getLength();
+        if (ciphertextLength == 0 || ciphertextLength % AES_BLOCK_LENGTH != 0) {
+            throw new IOException("Ciphertext length " + ciphertextLength
+                    + " is not a positive multiple of the block length");
+        }
+        OutputStream decrypting = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                byte[] plaintext = cipher.update(b, off, len);
+                if (plaintext != null) {
+                    sink.write(plaintext, 0, plaintext.length);
+                }
+            }
+        };
+        blob.download(decrypting, null, IonicBlobTransfer.transferOptions(), null);
+        try {
+            byte[] last = cipher.doFinal();
+            sink.write(last, 0, last.length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Blob " + blob.getName() + " has invalid padding", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Reads every record of a packed blob, each of which is authenticated as it is decrypted.
+     *
+     * @return the expected plaintext length, the sum of the indexed record lengths.
+     */
+    private static long verifyPacked(CloudBlob blob, IKeyResolver resolver, NullSink sink)
+            throws IonicException, StorageException, IOException {
+        IonicPackedBlobReader reader = new IonicPackedBlobReader(blob, resolver);
+        long expected = 0;
+        for (int i = 0; i < reader.getRecordCount(); i++) {
+            byte[] record = reader.read(i);
+            sink.write(record, 0, record.length);
+            expected += record.length;
+        }
+        return expected;
+    }
+
+    /**
+     * Counts and optionally digests the plaintext, discarding it.
+     */
+    private static final class NullSink extends OutputStream {
+
+        private final MessageDigest digest;
+        private long count = 0;
+
+        NullSink(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+            if (digest != null) {
+                digest.update((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * The keys and report of one verification run.
+     */
+    private final class Run {
+
+        private final long started = System.nanoTime();
+        private final Report report = new Report();
+        private final Map<String, CompletableFuture<IKey>> keys =
+                new ConcurrentHashMap<String, CompletableFuture<IKey>>();
+
+        /**
+         * Resolves the key once per run; later callers wait for the first resolution.
+         */
+        IKey key(String keyId) throws IonicException, IOException {
+            CompletableFuture<IKey> resolved = new CompletableFuture<IKey>();
+            CompletableFuture<IKey> existing = keys.putIfAbsent(keyId, resolved);
+            if (existing != null) {
+                return ContentKeys.get(existing);
+            }
+            try {
+                IKey key = ContentKeys.resolve(keyResolver, keyId);
+                resolved.complete(key);
+                return key;
+            } catch (IonicException | IOException | RuntimeException e) {
+                report.keyErrors.put(keyId, e);
+                resolved.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        Report finish() {
+            report.elapsedNanos = System.nanoTime() - started;
+            keys.clear();
+            return report;
+        }
+    }
+
+    /**
+     * The outcome of a verification.
+     */
+    public static final class Report {
+
+        private final AtomicLong verified = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong unverifiable = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong unsupported = new AtomicLong();
+        private final AtomicLong plaintextBytes = new AtomicLong();
+        private final AtomicLong storedBytes = new AtomicLong();
+        private final Map<String, Exception> failures =
+                Collections.synchronizedMap(new HashMap<String, Exception>());
+        private final Map<String, Exception> keyErrors =
+                Collections.synchronizedMap(new HashMap<String, Exception>());
+        private volatile long elapsedNanos = 0;
+
+        Report() {}
+
+        private void fail(String blobName, Exception cause) {
+            failed.incrementAndGet();
+            failures.put(blobName, cause);
+        }
+
+        /**
+         * Returns the number of blobs which decrypted and matched their length and digest.
+         *
+         * @return the verified blob count.
+         */
+        public long getVerified() {
+            return verified.get();
+        }
+
+        /**
+         * Returns the number of blobs which failed verification.
+         *
+         * @return the failed blob count.
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Returns the number of blobs not verified because their key could not be resolved.
+         *
+         * @return the unverifiable blob count.
+         */
+        public long getUnverifiable() {
+            return unverifiable.get();
+        }
+
+        /**
+         * Returns the number of blobs skipped because they are unencrypted.
+         *
+         * @return the skipped blob count.
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Returns the number of blobs not verified because their encryption metadata names a
+         * protocol or algorithm the verifier does not support.
+         *
+         * @return the unsupported blob count.
+         */
+        public long getUnsupported() {
+            return unsupported.get();
+        }
+
+        /**
+         * Returns the number of plaintext bytes decrypted from verified blobs.
+         *
+         * @return the plaintext byte count.
+         */
+        public long getPlaintextBytes() {
+            return plaintextBytes.get();
+        }
+
+        /**
+         * Returns the number of stored bytes of verified blobs.
+         *
+         * @return the stored byte count.
+         */
+        public long getStoredBytes() {
+            return storedBytes.get();
+        }
+
+        /**
+         * Returns the wall clock duration of the verification.
+         *
+         * @return the elapsed time in nanoseconds.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the rate at which stored bytes of verified blobs were processed.
+         *
+         * @return the throughput in bytes per second.
+         */
+        public double getBytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : getStoredBytes() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Returns the cause of each failed verification, by blob name.
+         *
+         * @return the failures by blob name.
+         */
+        public Map<String, Exception> getFailures() {
+            synchronized (failures) {
+                return Collections.unmodifiableMap(new HashMap<String, Exception>(failures));
+            }
+        }
+
+        /**
+         * Returns the cause of each key resolution failure, by Key ID.
+         *
+         * @return the key resolution errors by Key ID.
+         */
+        public Map<String, Exception> getKeyErrors() {
+            synchronized (keyErrors) {
+                return Collections.unmodifiableMap(new HashMap<String, Exception>(keyErrors));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "verified=" + getVerified() + " failed=" + getFailed() + " unverifiable="
+                    + getUnverifiable() + " skipped=" + getSkipped() + " unsupported="
+                    + getUnsupported() + " keyErrors="
+                    + keyErrors.size() + String.format(" throughput=%.1fMB/s",
+                    getBytesPerSecond() / 1e6);
+        }
+    }
+}
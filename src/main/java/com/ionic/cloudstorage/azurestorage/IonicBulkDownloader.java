@@ -0,0 +1,444 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.google.common.util.concurrent.Futures;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads many blobs with {@link IonicBlobTransfer}, ordering the work by Ionic Key so that
+ * each key is fetched from the key service about once however the blobs sharing it are
+ * scattered through the listing.
+ *
+ * <p>Blobs are grouped by the Key ID recorded in the {@link EncryptionData} of their listing
+ * metadata, and the groups are downloaded one after another, up to
+ * {@link #getMaxInFlightKeys()} groups at a time. The keys of the groups being started are
+ * fetched with a single batched request, and each blob of a group is decrypted with its
+ * group's key without another key service request. While a group is in flight its Key ID is
+ * pinned in the factory's {@link IonicKeyStore}, if one is set, so the bounded store cannot
+ * evict the key before the group completes; keys already in the store are not fetched again.
+ * The maximum number of keys in flight should therefore stay below the store's capacity.</p>
+ *
+ * <p>Blobs whose metadata names no key, such as unencrypted blobs or blobs listed without
+ * their metadata, are downloaded last and resolve their key individually. A blob re-uploaded
+ * under another key since it was listed also resolves its key individually. Key service
+ * requests are made with {@link KeyRequestPriority#BULK}.</p>
+ */
+public class IonicBulkDownloader {
+
+    /**
+     * Default maximum number of blobs being downloaded at once.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_BLOBS = 16;
+
+    /**
+     * Default maximum number of key groups being downloaded at once.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_KEYS = 8;
+
+    /**
+     * Opens the stream receiving the plaintext of a blob.
+     */
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * Opens the stream for the blob. The stream is closed once the blob is downloaded.
+         *
+         * @param blob the {@link com.microsoft.azure.storage.blob.CloudBlob} being downloaded.
+         * @return the stream receiving the plaintext.
+         * @throws IOException if the stream could not be opened.
+         */
+        OutputStream open(CloudBlob blob) throws IOException;
+    }
+
+    private final IonicBlobTransfer transfer;
+    private int maxInFlightBlobs = DEFAULT_MAX_IN_FLIGHT_BLOBS;
+    private int maxInFlightKeys = DEFAULT_MAX_IN_FLIGHT_KEYS;
+
+    /**
+     * Constructs an IonicBulkDownloader downloading blobs with the IonicBlobTransfer and its
+     * executor.
+     *
+     * @param transfer an {@link IonicBlobTransfer}.
+     */
+    public IonicBulkDownloader(IonicBlobTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    /**
+     * Sets the maximum number of blobs being downloaded at once.
+     *
+     * @param maxInFlightBlobs the maximum number of blobs in flight.
+     */
+    public void setMaxInFlightBlobs(int maxInFlightBlobs) {
+        if (maxInFlightBlobs <= 0) {
+            throw new IllegalArgumentException("maxInFlightBlobs must be positive");
+        }
+        this.maxInFlightBlobs = maxInFlightBlobs;
+    }
+
+    /**
+     * Returns the maximum number of blobs being downloaded at once.
+     *
+     * @return the maximum number of blobs in flight.
+     */
+    public int getMaxInFlightBlobs() {
+        return maxInFlightBlobs;
+    }
+
+    /**
+     * Sets the maximum number of key groups being downloaded at once, which is the maximum
+     * number of keys pinned in the {@link IonicKeyStore}.
+     *
+     * @param maxInFlightKeys the maximum number of keys in flight.
+     */
+    public void setMaxInFlightKeys(int maxInFlightKeys) {
+        if (maxInFlightKeys <= 0) {
+            throw new IllegalArgumentException("maxInFlightKeys must be positive");
+        }
+        this.maxInFlightKeys = maxInFlightKeys;
+    }
+
+    /**
+     * Returns the maximum number of key groups being downloaded at once.
+     *
+     * @return the maximum number of keys in flight.
+     */
+    public int getMaxInFlightKeys() {
+        return maxInFlightKeys;
+    }
+
+    /**
+     * Lists the blobs of the container whose names start with the prefix, with their metadata,
+     * and downloads them.
+     *
+     * @param container a {@link com.microsoft.azure.storage.blob.CloudBlobContainer}.
+     * @param prefix a blob name prefix, or null for every blob.
+     * @param sink the {@link Sink} opening the stream for each blob.
+     * @return the {@link Result} of the downloads.
+     * @throws StorageException if the container could not be listed.
+     * @throws IOException if interrupted while waiting for downloads.
+     */
+    public Result download(CloudBlobContainer container, String prefix, Sink sink)
+            throws StorageException, IOException {
+        List<CloudBlob> blobs = new ArrayList<CloudBlob>();
+        BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+        ResultContinuation token = null;
+        do {
+            ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(prefix, true,
+                    EnumSet.of(BlobListingDetails.METADATA), null, token, options, null);
+            for (ListBlobItem item : segment.getResults()) {
+                if (item instanceof CloudBlob) {
+                    blobs.add((CloudBlob) item);
+                }
+            }
+            token = segment.getHasMoreResults() ? segment.getContinuationToken() : null;
+        } while (token != null);
+        return download(blobs, sink);
+    }
+
+    /**
+     * Downloads the blobs, grouped by the Key ID in their metadata. Blobs which fail to
+     * download are recorded in the {@link Result} and do not stop the others.
+     *
+     * @param blobs the {@link com.microsoft.azure.storage.blob.CloudBlob}s, with the metadata
+     *        returned by a listing.
+     * @param sink the {@link Sink} opening the stream for each blob.
+     * @return the {@link Result} of the downloads.
+     * @throws IOException if interrupted while waiting for downloads.
+     */
+    public Result download(Collection<? extends CloudBlob> blobs, Sink sink)
+            throws IOException {
+        Result result = new Result();
+        Deque<Group> pending = group(blobs, result);
+        List<Group> active = new ArrayList<Group>();
+        CompletionService<Group> completions =
+                new ExecutorCompletionService<Group>(transfer.getExecutor());
+        int inFlight = 0;
+        try {
+            while (true) {
+                if (active.size() < maxInFlightKeys && !pending.isEmpty()) {
+                    start(pending, active, result);
+                }
+                // Blobs are taken from the earliest group first, so groups complete in turn.
+                Iterator<Group> groups = active.iterator();
+                while (inFlight < maxInFlightBlobs && groups.hasNext()) {
+                    Group group = groups.next();
+                    while (inFlight < maxInFlightBlobs && !group.unsubmitted.isEmpty()) {
+                        CloudBlob blob = group.unsubmitted.removeFirst();
+                        completions.submit(() -> {
+                            download(blob, group, sink, result);
+                            return group;
+                        });
+                        inFlight++;
+                    }
+                }
+                if (inFlight == 0) {
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                Group completed = take(completions);
+                inFlight--;
+                if (--completed.remaining == 0) {
+                    active.remove(completed);
+                    unpin(completed);
+                }
+            }
+        } finally {
+            for (Group group : active) {
+                unpin(group);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the blobs by Key ID in order of first appearance, with blobs naming no key last.
+     */
+    private static Deque<Group> group(Collection<? extends CloudBlob> blobs, Result result) {
+        Map<String, Group> groups = new LinkedHashMap<String, Group>();
+        Group unkeyed = new Group(null);
+        for (CloudBlob blob : blobs) {
+            EncryptionData data;
+            try {
+                data = EncryptionData.fromMetadata(blob.getMetadata());
+            } catch (IllegalArgumentException e) {
+                result.fail(blob.getName(), e);
+                continue;
+            }
+            Group group = data == null ? unkeyed
+                    : groups.computeIfAbsent(data.getKeyId(), Group::new);
+            group.unsubmitted.addLast(blob);
+            group.remaining++;
+        }
+        Deque<Group> ordered = new ArrayDeque<Group>(groups.values());
+        if (unkeyed.remaining > 0) {
+            ordered.addLast(unkeyed);
+        }
+        result.keys.set(groups.size());
+        return ordered;
+    }
+
+    /**
+     * Starts as many groups as there are free slots, pinning their Key IDs and fetching the
+     * keys not already stored with a single request.
+     */
+    private void start(Deque<Group> pending, List<Group> active, Result result) {
+        IonicKeyResolverFactory factory = transfer.getKeyResolverFactory();
+        IonicKeyStore store = factory.getKeyStore();
+        List<Group> starting = new ArrayList<Group>();
+        List<String> missing = new ArrayList<String>();
+        while (active.size() + starting.size() < maxInFlightKeys && !pending.isEmpty()) {
+            Group group = pending.removeFirst();
+            starting.add(group);
+            if (group.keyId == null) {
+                continue;
+            }
+            if (store != null) {
+                store.pin(group.keyId);
+                group.pinned = store;
+                IonicKey stored = store.get(group.keyId);
+                if (stored != null && !stored.isDestroyed()) {
+                    group.key = stored;
+                    continue;
+                }
+            }
+            missing.add(group.keyId);
+        }
+        Map<String, IKey> fetched = Collections.emptyMap();
+        Exception cause = null;
+        if (!missing.isEmpty()) {
+            result.keyRequests.incrementAndGet();
+            try {
+                fetched = factory.withPriority(KeyRequestPriority.BULK,
+                        () -> factory.resolveKeys(missing));
+            } catch (IonicException | RuntimeException e) {
+                cause = e;
+            }
+        }
+        for (Group group : starting) {
+            if (group.keyId != null && group.key == null) {
+                group.key = fetched.get(group.keyId);
+                if (group.key == null) {
+                    unpin(group);
+                    Exception failure = cause != null ? cause
+                            : new IOException("Key " + group.keyId + " could not be resolved");
+                    for (CloudBlob blob : group.unsubmitted) {
+                        result.fail(blob.getName(), failure);
+                    }
+                    continue;
+                }
+            }
+            active.add(group);
+        }
+    }
+
+    private void download(CloudBlob blob, Group group, Sink sink, Result result) {
+        IonicKeyResolverFactory factory = transfer.getKeyResolverFactory();
+        IKeyResolver individual = factory.createKeyResolver(KeyRequestPriority.BULK);
+        IKeyResolver resolver = group.key == null ? individual
+                : keyId -> keyId.equals(group.keyId) ? Futures.immediateFuture(group.key)
+                        : individual.resolveKeyAsync(keyId);
+        try (OutputStream stream = sink.open(blob)) {
+            TransferStats stats = transfer.download(blob, stream, resolver);
+            result.downloaded.incrementAndGet();
+            result.bytes.addAndGet(stats.getPlaintextBytes());
+        } catch (IonicException | StorageException | IOException | RuntimeException e) {
+            result.fail(blob.getName(), e);
+        }
+    }
+
+    private static void unpin(Group group) {
+        if (group.pinned != null) {
+            group.pinned.unpin(group.keyId);
+            group.pinned = null;
+        }
+    }
+
+    private static Group take(CompletionService<Group> completions) throws IOException {
+        try {
+            return completions.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            // Downloads record their own failures; anything else is unexpected.
+            throw ContentKeys.asIOException(e.getCause());
+        }
+    }
+
+    /**
+     * The blobs sharing a key. Only accessed by the thread scheduling the downloads, apart from
+     * the key, which is set before any of the group's downloads is submitted.
+     */
+    private static final class Group {
+
+        private final String keyId;
+        private final Deque<CloudBlob> unsubmitted = new ArrayDeque<CloudBlob>();
+        private int remaining = 0;
+        private volatile IKey key = null;
+        private IonicKeyStore pinned = null;
+
+        Group(String keyId) {
+            this.keyId = keyId;
+        }
+    }
+
+    /**
+     * The outcome of a bulk download.
+     */
+    public static final class Result {
+
+        private final AtomicLong downloaded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong keys = new AtomicLong();
+        private final AtomicLong keyRequests = new AtomicLong();
+        private final Map<String, Exception> failures =
+                Collections.synchronizedMap(new HashMap<String, Exception>());
+
+        Result() {}
+
+        private void fail(String blobName, Exception cause) {
+            failed.incrementAndGet();
+            failures.put(blobName, cause);
+        }
+
+        /**
+         * Returns the number of blobs downloaded.
+         *
+         * @return the downloaded blob count.
+         */
+        public long getDownloaded() {
+            return downloaded.get();
+        }
+
+        /**
+         * Returns the number of blobs which failed to download.
+         *
+         * @return the failed blob count.
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Returns the number of plaintext bytes written to the sinks.
+         *
+         * @return the plaintext byte count.
+         */
+        public long getPlaintextBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Returns the number of distinct Key IDs named in the blobs' metadata.
+         *
+         * @return the distinct key count.
+         */
+        public long getDistinctKeys() {
+            return keys.get();
+        }
+
+        /**
+         * Returns the number of batched key service requests made for the groups, excluding
+         * individual resolutions of blobs whose metadata named no key or another key.
+         *
+         * @return the key request count.
+         */
+        public long getKeyRequests() {
+            return keyRequests.get();
+        }
+
+        /**
+         * Returns the cause of each failure, by blob name.
+         *
+         * @return the failures by blob name.
+         */
+        public Map<String, Exception> getFailures() {
+            synchronized (failures) {
+                return Collections.unmodifiableMap(new HashMap<String, Exception>(failures));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "downloaded=" + getDownloaded() + " failed=" + getFailed() + " keys="
+                    + getDistinctKeys() + " keyRequests=" + getKeyRequests();
+        }
+    }
+}
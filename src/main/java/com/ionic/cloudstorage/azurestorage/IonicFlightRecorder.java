@@ -0,0 +1,279 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.nio.charset.StandardCharsets;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits JDK Flight Recorder events for Ionic key service calls, blob transfers and the
+ * segments they transfer, so key service stalls can be lined up with garbage collection,
+ * thread states and socket I/O in the same recording. The events are named under
+ * {@link #EVENT_PREFIX}; the bundled {@code ionic.jfc} settings enable them with the JDK events
+ * most useful alongside, and {@link IonicRecordingSummary} summarizes a recording offline.
+ *
+ * <p>The event classes are only loaded if the JVM has the jdk.jfr module, so the library
+ * still runs without it. The begin methods return null unless a recording has enabled the
+ * event, and the commit methods return at once given null, so while nothing is recording a
+ * call site costs a field check and a volatile read. Key IDs are recorded as a truncated
+ * SHA-256 hash, which groups the operations on one key without exposing it.</p>
+ */
+final class IonicFlightRecorder {
+
+    static final String EVENT_PREFIX = "com.ionic.cloudstorage.";
+    static final String KEY_OPERATION = EVENT_PREFIX + "KeyOperation";
+    static final String BLOB_TRANSFER = EVENT_PREFIX + "BlobTransfer";
+    static final String SEGMENT_TRANSFER = EVENT_PREFIX + "SegmentTransfer";
+
+    private static final int KEY_ID_HASH_LENGTH = 8;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final boolean AVAILABLE = isAvailable();
+
+    private IonicFlightRecorder() {}
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, IonicFlightRecorder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Begins a key operation event, or returns null if it is not being recorded.
+     */
+    static Object beginKey() {
+        return AVAILABLE ? Events.beginKey() : null;
+    }
+
+    /**
+     * Ends and commits a key operation event begun by {@link #beginKey()}.
+     *
+     * @param operation the name of the span around the operation, from {@link IonicTracer}.
+     * @param keyId the Ionic Key ID, or null if it is not known.
+     */
+    static void commitKey(Object event, String operation, String keyId, int keyCount,
+            boolean cacheHit, boolean succeeded) {
+        if (event != null) {
+            Events.commitKey(event, operation, keyId, keyCount, cacheHit, succeeded);
+        }
+    }
+
+    /**
+     * Begins a blob transfer event, or returns null if it is not being recorded.
+     */
+    static Object beginTransfer() {
+        return AVAILABLE ? Events.beginTransfer() : null;
+    }
+
+    /**
+     * Ends and commits a blob transfer event begun by {@link #beginTransfer()}.
+     */
+    static void commitTransfer(Object event, String operation, TransferStats stats,
+            long keyNanos, long networkNanos, long cryptoNanos) {
+        if (event != null) {
+            Events.commitTransfer(event, operation, stats, keyNanos, networkNanos, cryptoNanos);
+        }
+    }
+
+    /**
+     * Begins a segment transfer event, or returns null if it is not being recorded.
+     */
+    static Object beginSegment() {
+        return AVAILABLE ? Events.beginSegment() : null;
+    }
+
+    /**
+     * Ends and commits a segment transfer event begun by {@link #beginSegment()}.
+     */
+    static void commitSegment(Object event, String operation, long segment, long bytes) {
+        if (event != null) {
+            Events.commitSegment(event, operation, segment, bytes);
+        }
+    }
+
+    static String keyIdHash(String keyId) {
+        if (keyId == null) {
+            return null;
+        }
+        byte[] digest =
+                IonicBlobTransfer.sha256().digest(keyId.getBytes(StandardCharsets.UTF_8));
+        char[] hash = new char[2 * KEY_ID_HASH_LENGTH];
+        for (int i = 0; i < KEY_ID_HASH_LENGTH; i++) {
+            hash[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hash[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hash);
+    }
+
+    /**
+     * Holds every reference to jdk.jfr, so it is only resolved if the module is present.
+     */
+    private static final class Events {
+
+        private static final EventType KEY_TYPE =
+                EventType.getEventType(KeyOperationEvent.class);
+        private static final EventType TRANSFER_TYPE =
+                EventType.getEventType(BlobTransferEvent.class);
+        private static final EventType SEGMENT_TYPE =
+                EventType.getEventType(SegmentTransferEvent.class);
+
+        static Object beginKey() {
+            if (!KEY_TYPE.isEnabled()) {
+                return null;
+            }
+            KeyOperationEvent event = new KeyOperationEvent();
+            event.begin();
+            return event;
+        }
+
+        static void commitKey(Object begun, String operation, String keyId, int keyCount,
+                boolean cacheHit, boolean succeeded) {
+            KeyOperationEvent event = (KeyOperationEvent) begun;
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.keyIdHash = keyIdHash(keyId);
+                event.keyCount = keyCount;
+                event.cacheHit = cacheHit;
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+
+        static Object beginTransfer() {
+            if (!TRANSFER_TYPE.isEnabled()) {
+                return null;
+            }
+            BlobTransferEvent event = new BlobTransferEvent();
+            event.begin();
+            return event;
+        }
+
+        static void commitTransfer(Object begun, String operation, TransferStats stats,
+                long keyNanos, long networkNanos, long cryptoNanos) {
+            BlobTransferEvent event = (BlobTransferEvent) begun;
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.payloadBytes = stats.getPlaintextBytes();
+                event.storedBytes = stats.getStoredBytes();
+                event.compression = stats.getCodec().getName();
+                event.keyTime = keyNanos;
+                event.networkTime = networkNanos;
+                event.cryptoTime = cryptoNanos;
+                event.commit();
+            }
+        }
+
+        static Object beginSegment() {
+            if (!SEGMENT_TYPE.isEnabled()) {
+                return null;
+            }
+            SegmentTransferEvent event = new SegmentTransferEvent();
+            event.begin();
+            return event;
+        }
+
+        static void commitSegment(Object begun, String operation, long segment, long bytes) {
+            SegmentTransferEvent event = (SegmentTransferEvent) begun;
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.segment = segment;
+                event.bytes = bytes;
+                event.commit();
+            }
+        }
+    }
+
+    @Name(KEY_OPERATION)
+    @Label("Ionic Key Operation")
+    @Category({"Ionic", "Key Service"})
+    @Description("Creation, fetch or resolution of Ionic Keys")
+    @StackTrace(false)
+    static final class KeyOperationEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Key ID Hash")
+        @Description("Leading bytes of the SHA-256 hash of the Ionic Key ID")
+        String keyIdHash;
+
+        @Label("Key Count")
+        int keyCount;
+
+        @Label("Cache Hit")
+        boolean cacheHit;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name(BLOB_TRANSFER)
+    @Label("Ionic Blob Transfer")
+    @Category({"Ionic", "Transfer"})
+    @Description("Completed upload or download of an Ionic protected blob")
+    @StackTrace(false)
+    static final class BlobTransferEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Payload Bytes")
+        @DataAmount
+        long payloadBytes;
+
+        @Label("Stored Bytes")
+        @DataAmount
+        long storedBytes;
+
+        @Label("Compression")
+        String compression;
+
+        @Label("Key Time")
+        @Timespan
+        long keyTime;
+
+        @Label("Network Time")
+        @Description("Summed across the threads transferring segments")
+        @Timespan
+        long networkTime;
+
+        @Label("Crypto Time")
+        @Description("Summed across the threads transferring segments")
+        @Timespan
+        long cryptoTime;
+    }
+
+    @Name(SEGMENT_TRANSFER)
+    @Label("Ionic Segment Transfer")
+    @Category({"Ionic", "Transfer"})
+    @Description("Encryption and upload, or download and decryption, of one segment")
+    @StackTrace(false)
+    static final class SegmentTransferEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Segment")
+        long segment;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
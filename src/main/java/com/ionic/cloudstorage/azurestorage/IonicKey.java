@@ -0,0 +1,345 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ionic.sdk.agent.key.AgentKey;
+import com.microsoft.azure.keyvault.core.IKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+
+/**
+ * An implementation of the {@link com.microsoft.azure.keyvault.core.IKey} interface backed by
+ * Ionic Key material held in a direct (off-heap) {@link java.nio.ByteBuffer}.
+ * Unlike {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey} the key material is
+ * zeroed deterministically when the IonicKey is closed or evicted from the
+ * {@link IonicKeyStore} that owns it, after which every cryptographic operation returns a
+ * future failed with a {@link DestroyedKeyException}. A key evicted while in use must be
+ * resolved again.
+ * Key wrap ciphers are pooled per IonicKey already initialized with the key material, so
+ * wrapping or unwrapping a content key does not look up or initialize a
+ * {@link javax.crypto.Cipher}. CBC ciphers require a fresh IV and are cached per thread.
+ *
+ * <p>The material is only copied onto the heap while a Cipher is initialized, when the JCE
+ * provider reads it through {@link javax.crypto.SecretKey#getEncoded()} to derive the key
+ * schedule held by the Cipher. Whether the provider zeroes that copy, and when the key
+ * schedules of dropped ciphers are reclaimed, is up to the provider: destroying an IonicKey
+ * zeroes the stored material but cannot scrub them.</p>
+ */
+public class IonicKey implements IKey {
+
+    /**
+     * Length in bytes of an Ionic (AES-256) Key.
+     */
+    public static final int KEY_LENGTH = 32;
+
+    /**
+     * AES-256 key wrap algorithm (RFC 3394), used by the Azure Storage SDK to wrap content keys.
+     */
+    public static final String KEY_WRAP_ALGORITHM = "A256KW";
+
+    /**
+     * AES-256 CBC algorithm with PKCS7 padding.
+     */
+    public static final String ENCRYPTION_ALGORITHM = "A256CBC";
+
+    static final String WRAP_TRANSFORMATION = "AESWrap";
+    static final String CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    private static final ThreadLocal<Map<String, Cipher>> CIPHERS =
+            ThreadLocal.withInitial(HashMap::new);
+
+    private final String kid;
+    private final ByteBuffer material;
+    private final IonicKeyStore store;
+    private final int slot;
+    private final SecretKey secretKey = new MaterialKey();
+    private final CipherPool wrapCiphers;
+    private final CipherPool unwrapCiphers;
+    private volatile AgentKey agentKey;
+    private boolean destroyed = false;
+
+    /**
+     * Constructs an IonicKey owning its own direct buffer. The supplied array is copied and
+     * may be zeroed by the caller once this constructor returns.
+     *
+     * @param kid the Ionic Key ID.
+     * @param key the raw key bytes.
+     */
+    public IonicKey(String kid, byte[] key) {
+        this(kid, toDirectBuffer(key), null, -1);
+    }
+
+    IonicKey(String kid, ByteBuffer material, IonicKeyStore store, int slot) {
+        if (kid == null) {
+            throw new NullPointerException("kid");
+        }
+        this.kid = kid;
+        this.material = material;
+        this.store = store;
+        this.slot = slot;
+        this.wrapCiphers = new CipherPool(this, WRAP_TRANSFORMATION, Cipher.WRAP_MODE);
+        this.unwrapCiphers = new CipherPool(this, WRAP_TRANSFORMATION, Cipher.UNWRAP_MODE);
+    }
+
+    private static ByteBuffer toDirectBuffer(byte[] key) {
+        checkKeyLength(key);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(KEY_LENGTH);
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            buffer.put(i, key[i]);
+        }
+        return buffer;
+    }
+
+    static void checkKeyLength(byte[] key) {
+        if (key == null || key.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("Ionic Key material must be " + KEY_LENGTH
+                    + " bytes");
+        }
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Returns the AgentKey this key was stored from, with its material zeroed, or null.
+     */
+    AgentKey getAgentKey() {
+        return agentKey;
+    }
+
+    void setAgentKey(AgentKey agentKey) {
+        this.agentKey = agentKey;
+    }
+
+    /**
+     * Returns true if the key material has been zeroed.
+     *
+     * @return true if this IonicKey can no longer be used.
+     */
+    public synchronized boolean isDestroyed() {
+        return destroyed;
+    }
+
+    /**
+     * Zeroes the key material. Called by the owning {@link IonicKeyStore} on eviction.
+     */
+    void destroy() {
+        synchronized (this) {
+            for (int i = 0; i < KEY_LENGTH; i++) {
+                material.put(i, (byte) 0);
+            }
+            destroyed = true;
+        }
+        wrapCiphers.clear();
+        unwrapCiphers.clear();
+    }
+
+    /**
+     * Initializes the cipher with the key material, failing if it has been destroyed. The
+     * material cannot be destroyed while the cipher reads it.
+     */
+    synchronized void init(Cipher cipher, int mode, AlgorithmParameterSpec params)
+            throws GeneralSecurityException {
+        if (destroyed) {
+            throw new DestroyedKeyException(kid);
+        }
+        if (params == null) {
+            cipher.init(mode, secretKey);
+        } else {
+            cipher.init(mode, secretKey, params);
+        }
+    }
+
+    static Cipher cipher(String transformation) throws GeneralSecurityException {
+        Map<String, Cipher> ciphers = CIPHERS.get();
+        Cipher cipher = ciphers.get(transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    @Override
+    public String getDefaultEncryptionAlgorithm() {
+        return ENCRYPTION_ALGORITHM;
+    }
+
+    @Override
+    public String getDefaultKeyWrapAlgorithm() {
+        return KEY_WRAP_ALGORITHM;
+    }
+
+    @Override
+    public String getDefaultSignatureAlgorithm() {
+        return null;
+    }
+
+    @Override
+    public String getKid() {
+        return kid;
+    }
+
+    @Override
+    public ListenableFuture<byte[]> decryptAsync(byte[] ciphertext, byte[] iv,
+            byte[] authenticationData, byte[] authenticationTag, String algorithm)
+            throws NoSuchAlgorithmException {
+        checkAlgorithm(algorithm == null ? ENCRYPTION_ALGORITHM : algorithm,
+                ENCRYPTION_ALGORITHM);
+        try {
+            Cipher cipher = cipher(CBC_TRANSFORMATION);
+            init(cipher, Cipher.DECRYPT_MODE, new IvParameterSpec(iv));
+            return Futures.immediateFuture(cipher.doFinal(ciphertext));
+        } catch (GeneralSecurityException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Triple<byte[], byte[], String>> encryptAsync(byte[] plaintext,
+            byte[] iv, byte[] authenticationData, String algorithm)
+            throws NoSuchAlgorithmException {
+        String alg = algorithm == null ? ENCRYPTION_ALGORITHM : algorithm;
+        checkAlgorithm(alg, ENCRYPTION_ALGORITHM);
+        try {
+            Cipher cipher = cipher(CBC_TRANSFORMATION);
+            init(cipher, Cipher.ENCRYPT_MODE, new IvParameterSpec(iv));
+            byte[] ciphertext = cipher.doFinal(plaintext);
+            return Futures.immediateFuture(Triple.of(ciphertext, (byte[]) null, alg));
+        } catch (GeneralSecurityException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Pair<byte[], String>> wrapKeyAsync(byte[] key, String algorithm)
+            throws NoSuchAlgorithmException {
+        String alg = algorithm == null ? KEY_WRAP_ALGORITHM : algorithm;
+        checkAlgorithm(alg, KEY_WRAP_ALGORITHM);
+        try {
+            Cipher cipher = wrapCiphers.borrow();
+            byte[] wrapped = cipher.wrap(new SecretKeySpec(key, "AES"));
+            wrapCiphers.release(cipher);
+            return Futures.immediateFuture(Pair.of(wrapped, alg));
+        } catch (GeneralSecurityException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<byte[]> unwrapKeyAsync(byte[] encryptedKey, String algorithm)
+            throws NoSuchAlgorithmException {
+        checkAlgorithm(algorithm == null ? KEY_WRAP_ALGORITHM : algorithm, KEY_WRAP_ALGORITHM);
+        try {
+            Cipher cipher = unwrapCiphers.borrow();
+            Key unwrapped = cipher.unwrap(encryptedKey, "AES", Cipher.SECRET_KEY);
+            unwrapCiphers.release(cipher);
+            return Futures.immediateFuture(unwrapped.getEncoded());
+        } catch (GeneralSecurityException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ListenableFuture<Pair<byte[], String>> signAsync(byte[] digest, String algorithm)
+            throws NoSuchAlgorithmException {
+        return Futures.immediateFailedFuture(
+                new UnsupportedOperationException("signAsync is not supported by IonicKey"));
+    }
+
+    @Override
+    public ListenableFuture<Boolean> verifyAsync(byte[] digest, byte[] signature,
+            String algorithm) throws NoSuchAlgorithmException {
+        return Futures.immediateFailedFuture(
+                new UnsupportedOperationException("verifyAsync is not supported by IonicKey"));
+    }
+
+    /**
+     * Zeroes the key material. If this IonicKey is owned by an {@link IonicKeyStore} it is
+     * also evicted from that store.
+     */
+    @Override
+    public void close() {
+        if (store != null) {
+            store.evict(this);
+        } else {
+            destroy();
+        }
+    }
+
+    private static void checkAlgorithm(String algorithm, String supported)
+            throws NoSuchAlgorithmException {
+        if (!supported.equals(algorithm)) {
+            throw new NoSuchAlgorithmException(algorithm);
+        }
+    }
+
+    /**
+     * Thrown, as the cause of a failed future, when an IonicKey whose material has been
+     * destroyed is used.
+     */
+    public static class DestroyedKeyException extends InvalidKeyException {
+
+        private static final long serialVersionUID = 1L;
+
+        DestroyedKeyException(String kid) {
+            super("Key material for " + kid + " has been destroyed");
+        }
+    }
+
+    /**
+     * Exposes the off-heap material to a JCE provider without keeping a copy of it.
+     */
+    private final class MaterialKey implements SecretKey {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String getAlgorithm() {
+            return "AES";
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            synchronized (IonicKey.this) {
+                if (destroyed) {
+                    throw new IllegalStateException("Key material for " + kid
+                            + " has been destroyed");
+                }
+                byte[] encoded = new byte[KEY_LENGTH];
+                for (int i = 0; i < KEY_LENGTH; i++) {
+                    encoded[i] = material.get(i);
+                }
+                return encoded;
+            }
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return IonicKey.this.isDestroyed();
+        }
+    }
+}
@@ -1,174 +1,462 @@
-/*
- * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
- * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
- */
-
-package com.ionic.cloudstorage.azurestorage;
-
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.SettableFuture;
-import com.ionic.sdk.agent.Agent;
-import com.ionic.sdk.agent.data.MetadataMap;
-import com.ionic.sdk.agent.key.AgentKey;
-import com.ionic.sdk.agent.key.KeyAttributesMap;
-import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
-import com.ionic.sdk.agent.request.getkey.GetKeysResponse;
-import com.ionic.sdk.device.profile.persistor.DeviceProfilePersistorBase;
-import com.ionic.sdk.error.IonicException;
-import com.microsoft.azure.keyvault.core.IKey;
-import com.microsoft.azure.keyvault.core.IKeyResolver;
-import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
-import java.util.Arrays;
-
-
-public class IonicKeyResolverFactory {
-
-    private Agent agent = new Agent();
-    private KeyAttributesMap attributes = new KeyAttributesMap();
-
-    public IonicKeyResolverFactory() {}
-
-    public IonicKeyResolverFactory(Agent agent) {
-        setAgent(agent);
-    }
-
-    /**
-     * Sets the Ionic Agent object backing the IonicKeyResolverFactory instance.
-     *
-     * @param agent an {@link com.ionic.sdk.agent.Agent} object.
-     */
-    public void setAgent(Agent agent) {
-        this.agent = agent;
-    }
-
-    /**
-     * Returns the Agent object backing the IonicKeyResolverFactory instance.
-     *
-     * @return a {@link com.ionic.sdk.agent.Agent}
-     */
-    public Agent getAgent() {
-        return this.agent;
-    }
-
-    /**
-     * Sets the default Attributes to be applied to all Agent.keyCreate() requests.
-     *
-     * @param attributes a {@link com.ionic.sdk.agent.key.KeyAttributesMap} object.
-     */
-    public void setDefaultKeyAttributes(KeyAttributesMap attributes) {
-        this.attributes = new KeyAttributesMap(attributes);
-    }
-
-    /**
-     * Gets the default Attributes which are applied to all Agent.keyCreate() requests.
-     *
-     * @return a {@link com.ionic.sdk.agent.key.KeyAttributesMap} object.
-     */
-    public KeyAttributesMap getDefaultKeyAttributes() {
-        return new KeyAttributesMap(this.attributes);
-    }
-
-    /**
-     * Returns a SymmetricKey representation of a newly created Ionic Key using the default
-     * {@link com.ionic.sdk.agent.key.KeyAttributesMap} set on IonicKeyResolverFactory
-     * (empty by default).
-     *
-     * @return a {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey}
-     */
-    public SymmetricKey create() throws IonicException {
-        return create(new CreateKeysRequest.Key(""));
-    }
-
-    /**
-     * Returns a SymmetricKey representation of a newly created Ionic Key using the default
-     * {@link com.ionic.sdk.agent.key.KeyAttributesMap} set on IonicKeyResolverFactory
-     * and the Attributes and MutableAttributes specified on the CreateKeysRequest.Key.
-     * In the event of a collision betwen the default Attributes and the Attributes from
-     * the CreateKeysRequest.Key the CreateKeysRequest.Key Attributes will take precedence.
-     *
-     * @param key a {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest}
-     * @return a {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey}
-     */
-    public SymmetricKey create(CreateKeysRequest.Key key) throws IonicException {
-        return createIonicKey(key);
-    }
-
-    protected SymmetricKey createIonicKey(CreateKeysRequest.Key key) throws IonicException {
-
-        KeyAttributesMap attributesMap = new KeyAttributesMap();
-
-        // Add "Default" attributes set with setKeyAttributes() method
-        attributesMap.putAll(attributes);
-        // Add attributes passed in with CreateKeysRequest.Key key
-
-        attributesMap.putAll(key.getAttributesMap());
-
-        AgentKey ionicKey = Agent.clone(agent).createKey(attributesMap,
-                key.getMutableAttributesMap()).getFirstKey();
-        return ionicKeyToSymmetricKey(ionicKey);
-    }
-
-    private GetKeysResponse.Key getIonicKey(String keyid) throws IonicException {
-        return Agent.clone(agent).getKey(keyid).getFirstKey();
-    }
-
-    protected static SymmetricKey ionicKeyToSymmetricKey(AgentKey key) {
-        return new SymmetricKey(key.getId(), key.getKey());
-    }
-
-    /**
-     * An Implemtation of the {@link com.microsoft.azure.keyvault.core.IKeyResolver}
-     * interface that resolves an Ionic Key Into a
-     * {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey} representation
-     * of the associated Ionic Key.
-     * If the IonicKeyResolver encounters an {@link com.ionic.sdk.error.IonicException}
-     * it will be wrapped in a {@link java.util.concurrent.ExecutionException} which in
-     * turn will be wrapped by a {@link com.microsoft.azure.storage.StorageException}.
-     * If the StorageException is caught {@link java.lang.Throwable#getCause()} must be
-     * used twice to obtain a refrence to the underlying IonicException.
-     * Once a key has been resolved the most recently resolved
-     * {@link com.ionic.sdk.agent.request.getkey.GetKeysResponse.Key} can be obtained
-     * with the {@link #getKey} method.
-     */
-    public class IonicKeyResolver implements IKeyResolver {
-        private GetKeysResponse.Key ionicKey = null;
-
-        /**
-         * Returns the {@link com.ionic.sdk.agent.request.getkey.GetKeysResponse.Key}
-         * for the last Ionic KeyID resolved or null if no key has been resolved.
-         *
-         * @return a {@link com.ionic.sdk.agent.request.getkey.GetKeysResponse.Key}
-         */
-        public GetKeysResponse.Key getKey() {
-            return ionicKey;
-        }
-
-        /**
-         * Map from a keyID to a key. This will be called when decrypting. The data to decrypt will
-         * include the keyID used to encrypt it.
-         *
-         * @param keyId The KeyID to map to a key
-         */
-        @Override
-        public ListenableFuture<IKey> resolveKeyAsync(String keyId) {
-            SettableFuture<IKey> future = SettableFuture.create();
-            try {
-                ionicKey = getIonicKey(keyId);
-                future.set(ionicKeyToSymmetricKey(ionicKey));
-            } catch (IonicException e) {
-                future.setException(e);
-            }
-            return future;
-        }
-    }
-
-    /**
-     * Returns a new instance of IonicKeyResolver.
-     *
-     * @return a IonicKeyResolver
-     */
-    public IonicKeyResolver createKeyResolver() {
-        return new IonicKeyResolver();
-    }
-
-}
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.ionic.sdk.agent.Agent;
+import com.ionic.sdk.agent.data.MetadataMap;
+import com.ionic.sdk.agent.key.AgentKey;
+import com.ionic.sdk.agent.key.KeyAttributesMap;
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.agent.request.getkey.GetKeysRequest;
+import com.ionic.sdk.agent.request.getkey.GetKeysResponse;
+import com.ionic.sdk.device.profile.persistor.DeviceProfilePersistorBase;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class IonicKeyResolverFactory {
+
+    private volatile Agent agent = null;
+    private KeyAttributesMap attributes = new KeyAttributesMap();
+    private IonicKeyStore keyStore = null;
+    private volatile IonicTracer tracer = IonicTracer.NOOP;
+    private volatile KeyRequestScheduler scheduler = null;
+    private final ThreadLocal<KeyRequestPriority> priority =
+            new ThreadLocal<KeyRequestPriority>();
+
+    public IonicKeyResolverFactory() {}
+
+    public IonicKeyResolverFactory(Agent agent) {
+        setAgent(agent);
+    }
+
+    /**
+     * Sets the Ionic Agent object backing the IonicKeyResolverFactory instance.
+     *
+     * @param agent an {@link com.ionic.sdk.agent.Agent} object.
+     */
+    public void setAgent(Agent agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * Returns the Agent object backing the IonicKeyResolverFactory instance. If no Agent has
+     * been set a default Agent is constructed on first use.
+     *
+     * @return a {@link com.ionic.sdk.agent.Agent}
+     */
+    public Agent getAgent() {
+        Agent current = agent;
+        if (current == null) {
+            synchronized (this) {
+                current = agent;
+                if (current == null) {
+                    current = new Agent();
+                    agent = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Sets the default Attributes to be applied to all Agent.keyCreate() requests.
+     *
+     * @param attributes a {@link com.ionic.sdk.agent.key.KeyAttributesMap} object.
+     */
+    public void setDefaultKeyAttributes(KeyAttributesMap attributes) {
+        this.attributes = new KeyAttributesMap(attributes);
+    }
+
+    /**
+     * Gets the default Attributes which are applied to all Agent.keyCreate() requests.
+     *
+     * @return a {@link com.ionic.sdk.agent.key.KeyAttributesMap} object.
+     */
+    public KeyAttributesMap getDefaultKeyAttributes() {
+        return new KeyAttributesMap(this.attributes);
+    }
+
+    /**
+     * Sets the {@link IonicKeyStore} used to hold keys resolved by an IonicKeyResolver.
+     * When set, resolved keys are returned as {@link IonicKey} instances backed by off-heap
+     * material in the store, otherwise as
+     * {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey} (the default).
+     *
+     * @param keyStore an {@link IonicKeyStore} or null.
+     */
+    public void setKeyStore(IonicKeyStore keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    /**
+     * Returns the {@link IonicKeyStore} used to hold resolved keys, or null if none is set.
+     *
+     * @return an {@link IonicKeyStore}
+     */
+    public IonicKeyStore getKeyStore() {
+        return this.keyStore;
+    }
+
+    /**
+     * Sets the {@link IonicTracer} receiving spans for Ionic key service calls and for the
+     * transfers of {@link IonicBlobTransfer}s using this factory. Defaults to
+     * {@link IonicTracer#NOOP}.
+     *
+     * @param tracer an {@link IonicTracer} or null to disable tracing.
+     */
+    public void setTracer(IonicTracer tracer) {
+        this.tracer = tracer == null ? IonicTracer.NOOP : tracer;
+    }
+
+    /**
+     * Returns the {@link IonicTracer} receiving spans for this factory.
+     *
+     * @return an {@link IonicTracer}
+     */
+    public IonicTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Sets the {@link KeyRequestScheduler} through which key service requests are made, so that
+     * requests tagged {@link KeyRequestPriority#BULK} do not delay interactive ones. By default
+     * requests are made immediately.
+     *
+     * @param scheduler a {@link KeyRequestScheduler} or null.
+     */
+    public void setScheduler(KeyRequestScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Returns the {@link KeyRequestScheduler} through which key service requests are made, or
+     * null if none is set.
+     *
+     * @return a {@link KeyRequestScheduler}
+     */
+    public KeyRequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns a SymmetricKey representation of a newly created Ionic Key using the default
+     * {@link com.ionic.sdk.agent.key.KeyAttributesMap} set on IonicKeyResolverFactory
+     * (empty by default). The SymmetricKeys returned by this factory wrap and unwrap A256KW
+     * content keys with pooled, already initialized ciphers.
+     *
+     * @return a {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey}
+     */
+    public SymmetricKey create() throws IonicException {
+        return create(new CreateKeysRequest.Key(""));
+    }
+
+    /**
+     * Returns a SymmetricKey representation of a newly created Ionic Key using the default
+     * {@link com.ionic.sdk.agent.key.KeyAttributesMap} set on IonicKeyResolverFactory
+     * and the Attributes and MutableAttributes specified on the CreateKeysRequest.Key.
+     * In the event of a collision betwen the default Attributes and the Attributes from
+     * the CreateKeysRequest.Key the CreateKeysRequest.Key Attributes will take precedence.
+     *
+     * @param key a {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest}
+     * @return a {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey}
+     */
+    public SymmetricKey create(CreateKeysRequest.Key key) throws IonicException {
+        return createIonicKey(key);
+    }
+
+    /**
+     * Creates an Ionic Key as by {@link #create(CreateKeysRequest.Key)}, queueing the request
+     * in the specified lane of the {@link KeyRequestScheduler} if one is set.
+     *
+     * @param key a {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest}
+     * @param priority the {@link KeyRequestPriority} of the request.
+     * @return a {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey}
+     */
+    public SymmetricKey create(CreateKeysRequest.Key key, KeyRequestPriority priority)
+            throws IonicException {
+        return withPriority(priority, () -> createIonicKey(key));
+    }
+
+    /**
+     * Makes the key service requests of the call, on this thread, with the specified priority.
+     */
+    <T> T withPriority(KeyRequestPriority requested, KeyRequestScheduler.KeyCall<T> call)
+            throws IonicException {
+        KeyRequestPriority previous = priority.get();
+        priority.set(requested);
+        try {
+            return call.call();
+        } finally {
+            if (previous == null) {
+                priority.remove();
+            } else {
+                priority.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Makes a key service request through the scheduler, if one is set.
+     */
+    private <T> T schedule(KeyRequestScheduler.KeyCall<T> call) throws IonicException {
+        KeyRequestScheduler current = scheduler;
+        if (current == null) {
+            return call.call();
+        }
+        KeyRequestPriority requested = priority.get();
+        return current.call(requested == null ? KeyRequestPriority.INTERACTIVE : requested,
+                call);
+    }
+
+    protected SymmetricKey createIonicKey(CreateKeysRequest.Key key) throws IonicException {
+
+        KeyAttributesMap attributesMap = new KeyAttributesMap();
+
+        // Add "Default" attributes set with setKeyAttributes() method
+        attributesMap.putAll(attributes);
+        // Add attributes passed in with CreateKeysRequest.Key key
+
+        attributesMap.putAll(key.getAttributesMap());
+
+        Object event = IonicFlightRecorder.beginKey();
+        String keyId = null;
+        try (IonicSpan span = tracer.startSpan(IonicTracer.SPAN_KEY_CREATE)) {
+            span.setAttribute(IonicTracer.ATTRIBUTE_COUNT, attributesMap.size());
+            try {
+                AgentKey ionicKey = schedule(() -> Agent.clone(getAgent())
+                        .createKey(attributesMap, key.getMutableAttributesMap()).getFirstKey());
+                keyId = ionicKey.getId();
+                span.setAttribute(IonicTracer.KEY_ID, keyId);
+                return ionicKeyToSymmetricKey(ionicKey);
+            } catch (IonicException | RuntimeException e) {
+                span.recordException(e);
+                throw e;
+            }
+        } finally {
+            IonicFlightRecorder.commitKey(event, IonicTracer.SPAN_KEY_CREATE, keyId, 1, false,
+                    keyId != null);
+        }
+    }
+
+    private GetKeysResponse.Key getIonicKey(String keyid) throws IonicException {
+        Object event = IonicFlightRecorder.beginKey();
+        boolean succeeded = false;
+        try (IonicSpan span = tracer.startSpan(IonicTracer.SPAN_KEY_GET)) {
+            span.setAttribute(IonicTracer.KEY_ID, keyid);
+            try {
+                GetKeysResponse.Key key = schedule(() -> Agent.clone(getAgent()).getKey(keyid)
+                        .getFirstKey());
+                span.setAttribute(IonicTracer.ATTRIBUTE_COUNT, key.getAttributesMap().size());
+                succeeded = true;
+                return key;
+            } catch (IonicException | RuntimeException e) {
+                span.recordException(e);
+                throw e;
+            }
+        } finally {
+            IonicFlightRecorder.commitKey(event, IonicTracer.SPAN_KEY_GET, keyid, 1, false,
+                    succeeded);
+        }
+    }
+
+    /**
+     * Fetches several Ionic Keys with a single request and returns their IKey representations,
+     * stored in the {@link IonicKeyStore} if one has been set. Keys which could not be fetched
+     * are absent from the returned map.
+     *
+     * @param keyIds the Ionic Key IDs.
+     * @return the fetched keys by Key ID.
+     * @throws IonicException if the request failed.
+     */
+    protected Map<String, IKey> resolveKeys(Collection<String> keyIds) throws IonicException {
+        Map<String, IKey> keys = new HashMap<String, IKey>();
+        for (GetKeysResponse.Key key : getIonicKeys(keyIds)) {
+            keys.put(key.getId(), ionicKeyToIKey(key));
+        }
+        return keys;
+    }
+
+    /**
+     * Fetches several Ionic Keys with a single request and returns their attributes. The key
+     * material is not retained, not even in the {@link IonicKeyStore}. Keys which could not be
+     * fetched are absent from the returned map.
+     *
+     * @param keyIds the Ionic Key IDs.
+     * @return the attributes of the fetched keys by Key ID.
+     * @throws IonicException if the request failed.
+     */
+    protected Map<String, KeyAttributesMap> resolveKeyAttributes(Collection<String> keyIds)
+            throws IonicException {
+        Map<String, KeyAttributesMap> attributes = new HashMap<String, KeyAttributesMap>();
+        for (GetKeysResponse.Key key : getIonicKeys(keyIds)) {
+            attributes.put(key.getId(), key.getAttributesMap());
+        }
+        return attributes;
+    }
+
+    private List<GetKeysResponse.Key> getIonicKeys(Collection<String> keyIds)
+            throws IonicException {
+        GetKeysRequest request = new GetKeysRequest();
+        for (String keyId : keyIds) {
+            request.add(keyId);
+        }
+        Object event = IonicFlightRecorder.beginKey();
+        boolean succeeded = false;
+        try (IonicSpan span = tracer.startSpan(IonicTracer.SPAN_KEY_GET_BATCH)) {
+            span.setAttribute(IonicTracer.KEY_COUNT, keyIds.size());
+            try {
+                List<GetKeysResponse.Key> keys =
+                        schedule(() -> Agent.clone(getAgent()).getKeys(request).getKeys());
+                succeeded = true;
+                return keys;
+            } catch (IonicException | RuntimeException e) {
+                span.recordException(e);
+                throw e;
+            }
+        } finally {
+            IonicFlightRecorder.commitKey(event, IonicTracer.SPAN_KEY_GET_BATCH, null,
+                    keyIds.size(), false, succeeded);
+        }
+    }
+
+    protected static SymmetricKey ionicKeyToSymmetricKey(AgentKey key) {
+        return new PooledSymmetricKey(key.getId(), key.getKey());
+    }
+
+    protected IKey ionicKeyToIKey(AgentKey key) {
+        IonicKeyStore store = keyStore;
+        if (store != null) {
+            return store.put(key);
+        }
+        return ionicKeyToSymmetricKey(key);
+    }
+
+    /**
+     * An Implemtation of the {@link com.microsoft.azure.keyvault.core.IKeyResolver}
+     * interface that resolves an Ionic Key Into a
+     * {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey} representation
+     * of the associated Ionic Key, or an {@link IonicKey} if an {@link IonicKeyStore}
+     * has been set on the IonicKeyResolverFactory. Either way content keys are unwrapped with
+     * pooled ciphers. Keys already held in the store are returned without a key service
+     * request.
+     * If the IonicKeyResolver encounters an {@link com.ionic.sdk.error.IonicException}
+     * it will be wrapped in a {@link java.util.concurrent.ExecutionException} which in
+     * turn will be wrapped by a {@link com.microsoft.azure.storage.StorageException}.
+     * If the StorageException is caught {@link java.lang.Throwable#getCause()} must be
+     * used twice to obtain a refrence to the underlying IonicException.
+     * Once a key has been resolved the most recently resolved
+     * {@link com.ionic.sdk.agent.request.getkey.GetKeysResponse.Key} can be obtained
+     * with the {@link #getKey} method.
+     */
+    public class IonicKeyResolver implements IKeyResolver {
+        private GetKeysResponse.Key ionicKey = null;
+        private volatile KeyRequestPriority priority = KeyRequestPriority.INTERACTIVE;
+
+        /**
+         * Sets the {@link KeyRequestPriority} of the key service requests of this resolver.
+         *
+         * @param priority a {@link KeyRequestPriority}.
+         */
+        public void setPriority(KeyRequestPriority priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Returns the {@link KeyRequestPriority} of the key service requests of this resolver.
+         *
+         * @return a {@link KeyRequestPriority}
+         */
+        public KeyRequestPriority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Returns the {@link com.ionic.sdk.agent.request.getkey.GetKeysResponse.Key}
+         * for the last Ionic KeyID resolved or null if no key has been resolved. If an
+         * {@link IonicKeyStore} is set the material of the Key has been zeroed, and if the key
+         * was already held in the store it is the Key fetched when it was stored, or null if it
+         * was stored without one.
+         *
+         * @return a {@link com.ionic.sdk.agent.request.getkey.GetKeysResponse.Key}
+         */
+        public GetKeysResponse.Key getKey() {
+            return ionicKey;
+        }
+
+        /**
+         * Map from a keyID to a key. This will be called when decrypting. The data to decrypt will
+         * include the keyID used to encrypt it.
+         *
+         * @param keyId The KeyID to map to a key
+         */
+        @Override
+        public ListenableFuture<IKey> resolveKeyAsync(String keyId) {
+            SettableFuture<IKey> future = SettableFuture.create();
+            Object event = IonicFlightRecorder.beginKey();
+            boolean hit = false;
+            boolean succeeded = false;
+            try (IonicSpan span = tracer.startSpan(IonicTracer.SPAN_KEY_RESOLVE)) {
+                IonicKeyStore store = keyStore;
+                IonicKey cached = store == null ? null : store.get(keyId);
+                hit = cached != null && !cached.isDestroyed();
+                span.setAttribute(IonicTracer.KEY_ID, keyId)
+                        .setAttribute(IonicTracer.CACHE_HIT, hit);
+                try {
+                    if (hit) {
+                        AgentKey agentKey = cached.getAgentKey();
+                        ionicKey = agentKey instanceof GetKeysResponse.Key
+                                ? (GetKeysResponse.Key) agentKey : null;
+                        future.set(cached);
+                    } else {
+                        ionicKey = withPriority(priority, () -> getIonicKey(keyId));
+                        future.set(ionicKeyToIKey(ionicKey));
+                    }
+                    succeeded = true;
+                } catch (IonicException e) {
+                    span.recordException(e);
+                    future.setException(e);
+                }
+            } finally {
+                IonicFlightRecorder.commitKey(event, IonicTracer.SPAN_KEY_RESOLVE, keyId, 1,
+                        hit, succeeded);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * Returns a new instance of IonicKeyResolver.
+     *
+     * @return a IonicKeyResolver
+     */
+    public IonicKeyResolver createKeyResolver() {
+        return new IonicKeyResolver();
+    }
+
+    /**
+     * Returns a new instance of IonicKeyResolver whose key service requests have the specified
+     * priority.
+     *
+     * @param priority a {@link KeyRequestPriority}.
+     * @return a IonicKeyResolver
+     */
+    public IonicKeyResolver createKeyResolver(KeyRequestPriority priority) {
+        IonicKeyResolver resolver = createKeyResolver();
+        resolver.setPriority(priority);
+        return resolver;
+    }
+
+}
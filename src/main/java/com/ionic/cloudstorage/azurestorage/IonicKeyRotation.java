@@ -0,0 +1,548 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobListingDetails;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.ListBlobItem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Rotates the Ionic Keys protecting the blobs of a container without transferring their
+ * content. For each encrypted blob the content key is unwrapped with the Ionic Key named in its
+ * {@link EncryptionData}, wrapped under a newly created Ionic Key, and only the blob's metadata
+ * is rewritten, conditionally on the ETag returned by the listing. Rotating a container
+ * therefore takes one metadata request per blob whatever the blobs' lengths, and the rotated
+ * blobs remain readable by a BlobEncryptionPolicy, {@link IonicBlobTransfer} and the other
+ * readers of this library.
+ *
+ * <p>The container is listed a page at a time with the blobs' metadata. The Ionic Keys of a
+ * page are fetched with batched requests, and one new key is created for each distinct old key,
+ * so blobs sharing a key before rotation share a key afterwards. Up to
+ * {@link #getMaxInFlightBlobs()} blobs are rewritten concurrently. A blob modified since it was
+ * listed has its attributes fetched again and is retried.</p>
+ *
+ * <p>Key service requests are made with {@link KeyRequestPriority#BULK}, so that a rotation
+ * sharing an IonicKeyResolverFactory and its {@link KeyRequestScheduler} with interactive
+ * callers does not delay them.</p>
+ *
+ * <p>If a checkpoint file is set, the listing position is saved after each page completes and
+ * a rotation interrupted by a crash resumes from the last completed page. Blobs of the page in
+ * progress may then be rotated a second time, which is harmless. The checkpoint is deleted once
+ * the rotation completes.</p>
+ */
+public class IonicKeyRotation {
+
+    /**
+     * Default number of blobs listed per page and between checkpoints.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /**
+     * Default maximum number of blobs being rewritten at once.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_BLOBS = 32;
+
+    private static final int KEY_BATCH_SIZE = 64;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final String CHECKPOINT_CONTAINER = "container";
+    private static final String CHECKPOINT_PREFIX = "prefix";
+    private static final String CHECKPOINT_MARKER = "marker";
+    private static final String CHECKPOINT_ROTATED = "rotated";
+    private static final String CHECKPOINT_SKIPPED = "skipped";
+    private static final String CHECKPOINT_FAILED = "failed";
+
+    private final IonicKeyResolverFactory keyResolverFactory;
+    private final ExecutorService executor;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int maxInFlightBlobs = DEFAULT_MAX_IN_FLIGHT_BLOBS;
+    private Predicate<String> keyFilter = keyId -> true;
+    private CreateKeysRequest.Key newKeyRequest = new CreateKeysRequest.Key("");
+    private Path checkpoint = null;
+
+    /**
+     * Constructs an IonicKeyRotation fetching and creating keys with the
+     * IonicKeyResolverFactory.
+     *
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     */
+    public IonicKeyRotation(IonicKeyResolverFactory keyResolverFactory) {
+        this(keyResolverFactory, IonicBlobTransfer.SHARED_EXECUTOR);
+    }
+
+    /**
+     * Constructs an IonicKeyRotation rewriting blobs on the specified ExecutorService.
+     *
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     * @param executor the {@link java.util.concurrent.ExecutorService} rewriting blobs.
+     */
+    public IonicKeyRotation(IonicKeyResolverFactory keyResolverFactory,
+            ExecutorService executor) {
+        this.keyResolverFactory = keyResolverFactory;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the number of blobs listed per page. The checkpoint is saved after each page.
+     *
+     * @param pageSize the page size, at most 5000.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize <= 0 || pageSize > 5000) {
+            throw new IllegalArgumentException("pageSize must be between 1 and 5000");
+        }
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the number of blobs listed per page.
+     *
+     * @return the page size.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the maximum number of blobs being rewritten at once.
+     *
+     * @param maxInFlightBlobs the maximum number of concurrent blob rewrites.
+     */
+    public void setMaxInFlightBlobs(int maxInFlightBlobs) {
+        if (maxInFlightBlobs <= 0) {
+            throw new IllegalArgumentException("maxInFlightBlobs must be positive");
+        }
+        this.maxInFlightBlobs = maxInFlightBlobs;
+    }
+
+    /**
+     * Returns the maximum number of blobs being rewritten at once.
+     *
+     * @return the maximum number of concurrent blob rewrites.
+     */
+    public int getMaxInFlightBlobs() {
+        return maxInFlightBlobs;
+    }
+
+    /**
+     * Restricts rotation to blobs whose current Ionic Key ID matches the filter, for instance
+     * the keys of a compromised device. By default every encrypted blob is rotated.
+     *
+     * @param keyFilter a Predicate on the Ionic Key ID, or null to rotate every blob.
+     */
+    public void setKeyFilter(Predicate<String> keyFilter) {
+        this.keyFilter = keyFilter == null ? keyId -> true : keyFilter;
+    }
+
+    /**
+     * Sets the attributes of the new Ionic Keys, applied over the factory's default
+     * attributes as by {@link IonicKeyResolverFactory#create(CreateKeysRequest.Key)}.
+     *
+     * @param newKeyRequest a
+     *        {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest.Key}.
+     */
+    public void setNewKeyRequest(CreateKeysRequest.Key newKeyRequest) {
+        this.newKeyRequest = newKeyRequest;
+    }
+
+    /**
+     * Sets the file recording the progress of a rotation. If the file exists when a rotation
+     * starts, the rotation resumes from the position it records.
+     *
+     * @param checkpoint the checkpoint {@link java.nio.file.Path}, or null for none.
+     */
+    public void setCheckpoint(Path checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Returns the file recording the progress of a rotation.
+     *
+     * @return the checkpoint {@link java.nio.file.Path}, or null if none is set.
+     */
+    public Path getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Rotates the keys of every blob in the container.
+     *
+     * @param container a {@link com.microsoft.azure.storage.blob.CloudBlobContainer}.
+     * @return the {@link Result} of the rotation.
+     * @throws StorageException if the container could not be listed.
+     * @throws IOException if the checkpoint could not be read or written.
+     */
+    public Result rotate(CloudBlobContainer container) throws StorageException, IOException {
+        return rotate(container, null);
+    }
+
+    /**
+     * Rotates the keys of the blobs in the container whose names start with the prefix. Blobs
+     * which fail to rotate are recorded in the {@link Result} and do not stop the rotation.
+     *
+     * @param container a {@link com.microsoft.azure.storage.blob.CloudBlobContainer}.
+     * @param prefix a blob name prefix, or null for every blob.
+     * @return the {@link Result} of the rotation.
+     * @throws StorageException if the container could not be listed.
+     * @throws IOException if the checkpoint could not be read or written.
+     */
+    public Result rotate(CloudBlobContainer container, String prefix)
+            throws StorageException, IOException {
+        Result result = new Result();
+        ResultContinuation token = readCheckpoint(container, prefix, result);
+        BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+        do {
+            ResultSegment<ListBlobItem> segment = container.listBlobsSegmented(prefix, true,
+                    EnumSet.of(BlobListingDetails.METADATA), pageSize, token, options, null);
+            rotatePage(segment.getResults(), result);
+            token = segment.getHasMoreResults() ? segment.getContinuationToken() : null;
+            if (token != null) {
+                writeCheckpoint(container, prefix, token, result);
+            }
+        } while (token != null);
+        if (checkpoint != null) {
+            Files.deleteIfExists(checkpoint);
+        }
+        return result;
+    }
+
+    /**
+     * Rotates one page of blobs, returning once every blob of the page has been attempted.
+     */
+    private void rotatePage(List<ListBlobItem> items, Result result) throws IOException {
+        List<CloudBlob> blobs = new ArrayList<CloudBlob>();
+        Set<String> keyIds = new LinkedHashSet<String>();
+        for (ListBlobItem item : items) {
+            if (!(item instanceof CloudBlob)) {
+                continue;
+            }
+            CloudBlob blob = (CloudBlob) item;
+            EncryptionData data = parse(blob, result);
+            if (data == null || !keyFilter.test(data.getKeyId())) {
+                result.skipped.incrementAndGet();
+                continue;
+            }
+            blobs.add(blob);
+            keyIds.add(data.getKeyId());
+        }
+        if (blobs.isEmpty()) {
+            return;
+        }
+        Page page = new Page(fetchKeys(keyIds));
+        Deque<Future<?>> inFlight = new ArrayDeque<Future<?>>();
+        for (CloudBlob blob : blobs) {
+            if (inFlight.size() >= maxInFlightBlobs) {
+                waitFor(inFlight.removeFirst());
+            }
+            inFlight.addLast(executor.submit(() -> rotateBlob(blob, page, result)));
+        }
+        while (!inFlight.isEmpty()) {
+            waitFor(inFlight.removeFirst());
+        }
+    }
+
+    /**
+     * Fetches the old keys of a page with batched requests made concurrently. Keys which
+     * cannot be fetched are absent from the map, and their blobs are resolved individually.
+     */
+    private Map<String, IKey> fetchKeys(Set<String> keyIds) throws IOException {
+        List<String> ids = new ArrayList<String>(keyIds);
+        List<Future<Map<String, IKey>>> batches = new ArrayList<Future<Map<String, IKey>>>();
+        for (int i = 0; i < ids.size(); i += KEY_BATCH_SIZE) {
+            List<String> batch = ids.subList(i, Math.min(ids.size(), i + KEY_BATCH_SIZE));
+            batches.add(executor.submit(() -> keyResolverFactory.withPriority(
+                    KeyRequestPriority.BULK, () -> keyResolverFactory.resolveKeys(batch))));
+        }
+        Map<String, IKey> keys = new HashMap<String, IKey>();
+        for (Future<Map<String, IKey>> batch : batches) {
+            try {
+                keys.putAll(ContentKeys.get(batch));
+            } catch (IonicException e) {
+                // Left to the individual resolution of each blob, which records the failure.
+            }
+        }
+        return keys;
+    }
+
+    private void rotateBlob(CloudBlob blob, Page page, Result result) {
+        try (IonicSpan span = keyResolverFactory.getTracer()
+                .startSpan(IonicTracer.SPAN_KEY_ROTATE)) {
+            span.setAttribute(IonicTracer.BLOB_NAME, blob.getName());
+            try {
+                if (rotateBlob(blob, page, span)) {
+                    result.rotated.incrementAndGet();
+                } else {
+                    result.skipped.incrementAndGet();
+                }
+            } catch (IonicException | StorageException | IOException | RuntimeException e) {
+                span.recordException(e);
+                result.fail(blob.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Rewraps the content key of the blob, retrying with fresh attributes if the blob changed
+     * since it was listed.
+     *
+     * @return false if the blob no longer needs rotating.
+     */
+    private boolean rotateBlob(CloudBlob blob, Page page, IonicSpan span)
+            throws IonicException, StorageException, IOException {
+        BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+        for (int attempt = 1; ; attempt++) {
+            EncryptionData data = EncryptionData.fromMetadata(blob.getMetadata());
+            if (data == null || !keyFilter.test(data.getKeyId())) {
+                return false;
+            }
+            span.setAttribute(IonicTracer.KEY_ID, data.getKeyId());
+            byte[] contentKey = page.unwrap(data);
+            try {
+                IKey newKey = page.newKey(data.getKeyId());
+                Pair<byte[], String> wrapped = ContentKeys.wrap(contentKey, newKey);
+                blob.getMetadata().put(EncryptionData.METADATA_KEY, data.withWrappedContentKey(
+                        newKey.getKid(), wrapped.getLeft(), wrapped.getRight()).toJson());
+            } finally {
+                Arrays.fill(contentKey, (byte) 0);
+            }
+            try {
+                blob.uploadMetadata(AccessCondition.generateIfMatchCondition(
+                        blob.getProperties().getEtag()), options, null);
+                return true;
+            } catch (StorageException e) {
+                if (e.getHttpStatusCode() != HttpURLConnection.HTTP_PRECON_FAILED
+                        || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                // Rewritten or re-uploaded since it was listed; its key may have changed.
+                blob.downloadAttributes(null, options, null);
+            }
+        }
+    }
+
+    private static EncryptionData parse(CloudBlob blob, Result result) {
+        try {
+            return EncryptionData.fromMetadata(blob.getMetadata());
+        } catch (IllegalArgumentException e) {
+            result.fail(blob.getName(), e);
+            return null;
+        }
+    }
+
+    private static void waitFor(Future<?> future) throws IOException {
+        try {
+            ContentKeys.await(future);
+        } catch (StorageException e) {
+            // Each task records its own failures.
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private ResultContinuation readCheckpoint(CloudBlobContainer container, String prefix,
+            Result result) throws IOException {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream stream = Files.newInputStream(checkpoint)) {
+            properties.load(stream);
+        }
+        if (!container.getName().equals(properties.getProperty(CHECKPOINT_CONTAINER))
+                || !String.valueOf(prefix).equals(properties.getProperty(CHECKPOINT_PREFIX))) {
+            throw new IOException("Checkpoint " + checkpoint + " is for container "
+                    + properties.getProperty(CHECKPOINT_CONTAINER) + " and prefix "
+                    + properties.getProperty(CHECKPOINT_PREFIX));
+        }
+        result.rotated.set(Long.parseLong(properties.getProperty(CHECKPOINT_ROTATED, "0")));
+        result.skipped.set(Long.parseLong(properties.getProperty(CHECKPOINT_SKIPPED, "0")));
+        result.failed.set(Long.parseLong(properties.getProperty(CHECKPOINT_FAILED, "0")));
+        ResultContinuation token = new ResultContinuation();
+        token.setContinuationType(ResultContinuationType.BLOB);
+        token.setNextMarker(properties.getProperty(CHECKPOINT_MARKER));
+        return token;
+    }
+
+    /**
+     * Replaces the checkpoint atomically, so a crash leaves either the old or the new one.
+     */
+    private void writeCheckpoint(CloudBlobContainer container, String prefix,
+            ResultContinuation token, Result result) throws IOException {
+        if (checkpoint == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(CHECKPOINT_CONTAINER, container.getName());
+        properties.setProperty(CHECKPOINT_PREFIX, String.valueOf(prefix));
+        properties.setProperty(CHECKPOINT_MARKER, token.getNextMarker());
+        properties.setProperty(CHECKPOINT_ROTATED, Long.toString(result.getRotated()));
+        properties.setProperty(CHECKPOINT_SKIPPED, Long.toString(result.getSkipped()));
+        properties.setProperty(CHECKPOINT_FAILED, Long.toString(result.getFailed()));
+        Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temporary)) {
+            properties.store(stream, "IonicKeyRotation checkpoint");
+        }
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The old keys of a page and the new keys replacing them.
+     */
+    private final class Page {
+
+        private final Map<String, IKey> oldKeys;
+        private final Map<String, CompletableFuture<IKey>> newKeys =
+                new ConcurrentHashMap<String, CompletableFuture<IKey>>();
+
+        Page(Map<String, IKey> oldKeys) {
+            this.oldKeys = new ConcurrentHashMap<String, IKey>(oldKeys);
+        }
+
+        /**
+         * Unwraps the content key with the old key, resolving the key again if it has been
+         * evicted from the {@link IonicKeyStore} since the page resolved it.
+         */
+        byte[] unwrap(EncryptionData data) throws IonicException, IOException {
+            try {
+                return ContentKeys.unwrap(data, oldKey(data.getKeyId()));
+            } catch (IOException e) {
+                if (!ContentKeys.isDestroyed(e)) {
+                    throw e;
+                }
+                oldKeys.remove(data.getKeyId());
+                return ContentKeys.unwrap(data, oldKey(data.getKeyId()));
+            }
+        }
+
+        IKey oldKey(String keyId) throws IonicException, IOException {
+            IKey key = oldKeys.get(keyId);
+            if (key == null || ContentKeys.isDestroyed(key)) {
+                key = ContentKeys.resolve(
+                        keyResolverFactory.createKeyResolver(KeyRequestPriority.BULK), keyId);
+                oldKeys.put(keyId, key);
+            }
+            return key;
+        }
+
+        /**
+         * Returns the key replacing the old key, creating it on first use.
+         */
+        IKey newKey(String oldKeyId) throws IonicException, IOException {
+            CompletableFuture<IKey> created = new CompletableFuture<IKey>();
+            CompletableFuture<IKey> existing = newKeys.putIfAbsent(oldKeyId, created);
+            if (existing != null) {
+                return ContentKeys.get(existing);
+            }
+            try {
+                IKey key = keyResolverFactory.create(newKeyRequest, KeyRequestPriority.BULK);
+                created.complete(key);
+                return key;
+            } catch (IonicException | RuntimeException e) {
+                created.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The outcome of a rotation. Counts include blobs rotated before a resumed checkpoint.
+     */
+    public static final class Result {
+
+        private final AtomicLong rotated = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final Map<String, Exception> failures =
+                Collections.synchronizedMap(new HashMap<String, Exception>());
+
+        Result() {}
+
+        private void fail(String blobName, Exception cause) {
+            failed.incrementAndGet();
+            failures.put(blobName, cause);
+        }
+
+        /**
+         * Returns the number of blobs whose content key was rewrapped.
+         *
+         * @return the rotated blob count.
+         */
+        public long getRotated() {
+            return rotated.get();
+        }
+
+        /**
+         * Returns the number of blobs left unchanged because they are not encrypted or their
+         * key does not match the key filter.
+         *
+         * @return the skipped blob count.
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Returns the number of blobs which failed to rotate.
+         *
+         * @return the failed blob count.
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Returns the cause of each failure during this run, by blob name.
+         *
+         * @return the failures by blob name.
+         */
+        public Map<String, Exception> getFailures() {
+            synchronized (failures) {
+                return Collections.unmodifiableMap(new HashMap<String, Exception>(failures));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "rotated=" + getRotated() + " skipped=" + getSkipped() + " failed="
+                    + getFailed();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.agent.key.AgentKey;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded store of resolved Ionic Keys whose material is held off-heap in a single direct
+ * {@link java.nio.ByteBuffer}. Each key occupies a fixed slot which is reused once the key is
+ * evicted, so resolving a key does not allocate new buffers once the store is warm.
+ * When the store is full the least recently used key is evicted. Evicted keys, and all keys
+ * when the store is closed, have their material zeroed, and their use fails with an
+ * {@link IonicKey.DestroyedKeyException}; the transfer helpers resolve such a key again.
+ *
+ * <p>A key ID may be pinned, before or after its key is stored, to keep the key from being
+ * evicted to make room for others while it is in use, for instance by a group of downloads
+ * sharing the key. Pins are counted and the key becomes evictable again once every pin has
+ * been released.</p>
+ */
+public class IonicKeyStore implements Closeable {
+
+    /**
+     * Default number of keys held by an IonicKeyStore.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final ByteBuffer slab;
+    private final int[] freeSlots;
+    private int freeCount;
+    private final LinkedHashMap<String, IonicKey> keys;
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+    private boolean closed = false;
+
+    /**
+     * Constructs an IonicKeyStore with {@link #DEFAULT_CAPACITY} slots.
+     */
+    public IonicKeyStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an IonicKeyStore with the specified number of slots.
+     *
+     * @param capacity the maximum number of keys held.
+     */
+    public IonicKeyStore(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.slab = ByteBuffer.allocateDirect(capacity * IonicKey.KEY_LENGTH);
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i;
+        }
+        this.freeCount = capacity;
+        this.keys = new LinkedHashMap<String, IonicKey>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the maximum number of keys held by this store.
+     *
+     * @return the capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of keys currently held by this store.
+     *
+     * @return the number of keys.
+     */
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * Returns the IonicKey stored for the keyId, or null if it is not present.
+     *
+     * @param keyId an Ionic Key ID.
+     * @return an {@link IonicKey} or null.
+     */
+    public synchronized IonicKey get(String keyId) {
+        checkOpen();
+        return keys.get(keyId);
+    }
+
+    /**
+     * Copies the material of an Ionic Key into the store and zeroes the AgentKey's material, so
+     * the key is only held off-heap. If a key with the same ID is already present the existing
+     * IonicKey is returned and no copy is made. The AgentKey is kept with the stored IonicKey
+     * for its attributes.
+     *
+     * @param key an {@link com.ionic.sdk.agent.key.AgentKey}.
+     * @return the stored {@link IonicKey}.
+     */
+    public IonicKey put(AgentKey key) {
+        byte[] material = key.getKey();
+        try {
+            IonicKey stored = put(key.getId(), material);
+            stored.setAgentKey(key);
+            return stored;
+        } finally {
+            if (material != null) {
+                Arrays.fill(material, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Copies key material into the store. If a key with the same ID is already present the
+     * existing IonicKey is returned and no copy is made.
+     *
+     * @param keyId an Ionic Key ID.
+     * @param keyBytes the raw key bytes.
+     * @return the stored {@link IonicKey}.
+     */
+    public synchronized IonicKey put(String keyId, byte[] keyBytes) {
+        checkOpen();
+        IonicKey existing = keys.get(keyId);
+        if (existing != null) {
+            return existing;
+        }
+        IonicKey.checkKeyLength(keyBytes);
+        if (freeCount == 0) {
+            evictUnpinned();
+        }
+        int slot = freeSlots[--freeCount];
+        int offset = slot * IonicKey.KEY_LENGTH;
+        for (int i = 0; i < IonicKey.KEY_LENGTH; i++) {
+            slab.put(offset + i, keyBytes[i]);
+        }
+        ByteBuffer view = slab.duplicate();
+        view.position(offset);
+        view.limit(offset + IonicKey.KEY_LENGTH);
+        IonicKey key = new IonicKey(keyId, view.slice(), this, slot);
+        keys.put(keyId, key);
+        return key;
+    }
+
+    /**
+     * Evicts the least recently used key which is not pinned.
+     */
+    private void evictUnpinned() {
+        Iterator<Map.Entry<String, IonicKey>> eldest = keys.entrySet().iterator();
+        while (eldest.hasNext()) {
+            IonicKey victim = eldest.next().getValue();
+            if (!pins.containsKey(victim.getKid())) {
+                eldest.remove();
+                release(victim);
+                return;
+            }
+        }
+        throw new IllegalStateException("All keys in the IonicKeyStore are pinned");
+    }
+
+    /**
+     * Pins the key ID so that its key, once stored, is not evicted to make room for other keys.
+     * Each pin must be released with {@link #unpin(String)}.
+     *
+     * @param keyId an Ionic Key ID.
+     */
+    public synchronized void pin(String keyId) {
+        checkOpen();
+        pins.merge(keyId, 1, Integer::sum);
+    }
+
+    /**
+     * Releases one pin of the key ID.
+     *
+     * @param keyId an Ionic Key ID.
+     */
+    public synchronized void unpin(String keyId) {
+        pins.computeIfPresent(keyId, (id, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Returns whether the key ID is pinned.
+     *
+     * @param keyId an Ionic Key ID.
+     * @return true if the key ID has unreleased pins.
+     */
+    public synchronized boolean isPinned(String keyId) {
+        return pins.containsKey(keyId);
+    }
+
+    /**
+     * Evicts the key with the specified ID, zeroing its material. Pinned keys are evicted too.
+     *
+     * @param keyId an Ionic Key ID.
+     * @return true if a key was evicted.
+     */
+    public synchronized boolean evict(String keyId) {
+        IonicKey key = keys.remove(keyId);
+        if (key == null) {
+            return false;
+        }
+        release(key);
+        return true;
+    }
+
+    synchronized void evict(IonicKey key) {
+        if (keys.get(key.getKid()) == key) {
+            keys.remove(key.getKid());
+            release(key);
+        }
+    }
+
+    private void release(IonicKey key) {
+        key.destroy();
+        freeSlots[freeCount++] = key.getSlot();
+    }
+
+    /**
+     * Zeroes and evicts all keys. The store cannot be used after it has been closed.
+     */
+    @Override
+    public synchronized void close() {
+        for (IonicKey key : keys.values()) {
+            release(key);
+        }
+        keys.clear();
+        pins.clear();
+        closed = true;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("IonicKeyStore has been closed");
+        }
+    }
+}
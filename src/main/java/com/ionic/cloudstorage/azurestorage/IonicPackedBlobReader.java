@@ -0,0 +1,194 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads individual records from a blob written by {@link IonicPackedBlobWriter}. Opening the
+ * reader fetches the blob attributes, the footer and the encrypted index; each record is then
+ * fetched with a single range request and decrypted independently.
+ */
+public class IonicPackedBlobReader {
+
+    private final CloudBlob blob;
+    private final AccessCondition condition;
+    private final BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+    private final SegmentCipher cipher;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final List<String> names;
+    private final Map<String, Integer> numbers = new HashMap<String, Integer>();
+
+    /**
+     * Opens the packed blob, resolving its key with the IKeyResolver.
+     *
+     * @param blob the packed {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param resolver an {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the blob is not a valid packed blob.
+     */
+    public IonicPackedBlobReader(CloudBlob blob, IKeyResolver resolver)
+            throws IonicException, StorageException, IOException {
+        this.blob = blob;
+        blob.downloadAttributes(null, options, null);
+        EncryptionData data = EncryptionData.fromMetadata(blob.getMetadata());
+        if (data == null || !data.isPacked()) {
+            throw new IOException("Blob " + blob.getName() + " is not a packed blob");
+        }
+        this.condition = AccessCondition.generateIfMatchCondition(
+                blob.getProperties().getEtag());
+        long length = blob.getProperties().getLength();
+        if (length < IonicPackedBlobWriter.FOOTER_LENGTH) {
+            throw new IOException("Blob " + blob.getName() + " is too short");
+        }
+
+        byte[] contentKey = ContentKeys.unwrap(data, resolver);
+        try {
+            this.cipher = new SegmentCipher(contentKey, data.getSegmentLength());
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+
+        ByteBuffer footer = ByteBuffer.wrap(fetch(length - IonicPackedBlobWriter.FOOTER_LENGTH,
+                IonicPackedBlobWriter.FOOTER_LENGTH));
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        int count = footer.getInt();
+        if (footer.getInt() != IonicPackedBlobWriter.MAGIC || count < 0
+                || indexLength < SegmentCipher.OVERHEAD
+                || indexOffset + indexLength + IonicPackedBlobWriter.FOOTER_LENGTH != length) {
+            throw new IOException("Blob " + blob.getName() + " has an invalid footer");
+        }
+
+        DataInputStream index = new DataInputStream(new ByteArrayInputStream(
+                decryptIndex(indexOffset, indexLength, count)));
+        if (index.readInt() != count) {
+            throw new IOException("Blob " + blob.getName() + " has an invalid index");
+        }
+        this.offsets = new long[count];
+        this.lengths = new int[count];
+        List<String> recordNames = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            offsets[i] = index.readLong();
+            lengths[i] = index.readInt();
+            String name = index.readUTF();
+            recordNames.add(name);
+            if (!name.isEmpty()) {
+                numbers.put(name, i);
+            }
+        }
+        this.names = Collections.unmodifiableList(recordNames);
+    }
+
+    /**
+     * Fetches and decrypts the index, a segment at a time. Its segments are numbered after the
+     * records and only the last one is flagged as final.
+     */
+    private byte[] decryptIndex(long indexOffset, int indexLength, int count)
+            throws StorageException, IOException {
+        int segmentLength = cipher.getEncryptedSegmentLength();
+        long segments = (indexLength + (long) segmentLength - 1) / segmentLength;
+        byte[] plaintext = new byte[(int) (indexLength - segments * SegmentCipher.OVERHEAD)];
+        int plaintextOffset = 0;
+        for (long segment = 0; segment < segments; segment++) {
+            int length = (int) Math.min(segmentLength, indexLength - segment * segmentLength);
+            if (length <= SegmentCipher.OVERHEAD) {
+                throw new IOException("Blob " + blob.getName() + " has an invalid index");
+            }
+            byte[] encrypted = fetch(indexOffset + segment * segmentLength, length);
+            try {
+                plaintextOffset += cipher.decrypt(count + segment, segment == segments - 1,
+                        encrypted, 0, length, plaintext, plaintextOffset);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Index of blob " + blob.getName()
+                        + " failed authentication", e);
+            }
+        }
+        return plaintext;
+    }
+
+    private byte[] fetch(long offset, int length) throws StorageException, IOException {
+        byte[] buffer = new byte[length];
+        int read = blob.downloadRangeToByteArray(offset, (long) length, buffer, 0, condition,
+                options, null);
+        if (read != length) {
+            throw new IOException("Short read at offset " + offset + " of blob "
+                    + blob.getName());
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the number of records in the packed blob.
+     *
+     * @return the record count.
+     */
+    public int getRecordCount() {
+        return offsets.length;
+    }
+
+    /**
+     * Returns the record names, indexed by record number. Unnamed records have an empty name.
+     *
+     * @return an unmodifiable list of names.
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Fetches and decrypts a record by number.
+     *
+     * @param number the record number returned by {@link IonicPackedBlobWriter#append}.
+     * @return the record bytes.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the record failed authentication.
+     */
+    public byte[] read(int number) throws StorageException, IOException {
+        if (number < 0 || number >= offsets.length) {
+            throw new IndexOutOfBoundsException("No record " + number);
+        }
+        byte[] encrypted = fetch(offsets[number], lengths[number]);
+        byte[] plaintext = new byte[lengths[number] - SegmentCipher.OVERHEAD];
+        try {
+            cipher.decrypt(number, false, encrypted, 0, encrypted.length, plaintext, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Record " + number + " failed authentication", e);
+        }
+        return plaintext;
+    }
+
+    /**
+     * Fetches and decrypts a record by name.
+     *
+     * @param name the name the record was appended with.
+     * @return the record bytes, or null if no record has the name.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the record failed authentication.
+     */
+    public byte[] read(String name) throws StorageException, IOException {
+        Integer number = numbers.get(name);
+        return number == null ? null : read(number);
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Packs many small records into a single block blob under one Ionic Key. Each record is
+ * encrypted and authenticated independently with AES-GCM under a content key wrapped by the
+ * Ionic Key, so records can later be read individually with a single range request through
+ * {@link IonicPackedBlobReader}. Records are staged as blocks as they accumulate; closing the
+ * writer appends an encrypted offset index and a fixed-length footer and commits the blob.
+ *
+ * <p>A packed blob is laid out as the encrypted records, the encrypted index and a 20 byte
+ * footer holding the index offset, the index length, the record count and the {@link #MAGIC}
+ * value. The record
+ * number is authenticated with each record. The index is cut into segments of at most
+ * {@link #MAX_RECORD_LENGTH} bytes, numbered after the records and authenticated like them,
+ * the last one flagged as final, so the index of millions of records can still be
+ * written.</p>
+ *
+ * <p>If closing fails, for instance because the commit was rejected, the records are kept and
+ * {@link #close()} can be called again.</p>
+ */
+public class IonicPackedBlobWriter implements Closeable {
+
+    /**
+     * Magic value ending the footer of a packed blob.
+     */
+    public static final int MAGIC = 0x49504b31;
+
+    /**
+     * Length of the footer of a packed blob.
+     */
+    public static final int FOOTER_LENGTH = 20;
+
+    /**
+     * Maximum plaintext length of a single record.
+     */
+    public static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * Default length of the blocks staged while writing.
+     */
+    public static final int DEFAULT_BLOCK_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * Maximum encrypted length of the index, whose length the footer holds as an int and which
+     * is buffered in a single array.
+     */
+    private static final long MAX_INDEX_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final CloudBlockBlob blob;
+    private final IKey key;
+    private final Pair<byte[], String> wrappedContentKey;
+    private final SegmentCipher cipher;
+    private final int blockLength;
+    private final BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+    private final List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final Deque<byte[]> tail = new ArrayDeque<byte[]>();
+    private int count = 0;
+    private long offset = 0;
+    private boolean sealed = false;
+    private boolean closed = false;
+
+    /**
+     * Constructs a writer packing records into the blob under the specified key, typically
+     * from {@link IonicKeyResolverFactory#create()}.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws IOException if the content key could not be wrapped.
+     */
+    public IonicPackedBlobWriter(CloudBlockBlob blob, IKey key)
+            throws IonicException, IOException {
+        this(blob, key, DEFAULT_BLOCK_LENGTH);
+    }
+
+    /**
+     * Constructs a writer packing records into the blob under the specified key, staging
+     * blocks of approximately the specified length.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} wrapping the content key.
+     * @param blockLength the length at which accumulated records are staged as a block.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws IOException if the content key could not be wrapped.
+     */
+    public IonicPackedBlobWriter(CloudBlockBlob blob, IKey key, int blockLength)
+            throws IonicException, IOException {
+        if (blockLength <= 0) {
+            throw new IllegalArgumentException("blockLength must be positive");
+        }
+        this.blob = blob;
+        this.key = key;
+        this.blockLength = blockLength;
+        // Room for the record count, filled in when the index is written.
+        index.write(new byte[4], 0, 4);
+        byte[] contentKey = SegmentCipher.generateContentKey();
+        try {
+            this.wrappedContentKey = ContentKeys.wrap(contentKey, key);
+            this.cipher = new SegmentCipher(contentKey, MAX_RECORD_LENGTH);
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Returns the number of records appended so far.
+     *
+     * @return the record count.
+     */
+    public synchronized int getRecordCount() {
+        return count;
+    }
+
+    /**
+     * Encrypts and appends a record.
+     *
+     * @param name an optional name by which the record can be read, or null.
+     * @param record the record bytes.
+     * @return the record number.
+     * @throws StorageException if a block could not be staged.
+     * @throws IOException if the record could not be encrypted.
+     */
+    public synchronized int append(String name, byte[] record)
+            throws StorageException, IOException {
+        return append(name, record, 0, record.length);
+    }
+
+    /**
+     * Encrypts and appends a record.
+     *
+     * @param name an optional name by which the record can be read, or null.
+     * @param record an array holding the record bytes.
+     * @param off the offset of the record in the array.
+     * @param len the length of the record.
+     * @return the record number.
+     * @throws StorageException if a block could not be staged.
+     * @throws IOException if the record could not be encrypted.
+     */
+    public synchronized int append(String name, byte[] record, int off, int len)
+            throws StorageException, IOException {
+        if (sealed) {
+            throw new IOException("IonicPackedBlobWriter has been closed");
+        }
+        if (len > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Record exceeds " + MAX_RECORD_LENGTH + " bytes");
+        }
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entry);
+        entryOut.writeLong(offset);
+        entryOut.writeInt(len + SegmentCipher.OVERHEAD);
+        entryOut.writeUTF(name == null ? "" : name);
+        if (encryptedIndexLength(index.size() + entry.size()) > MAX_INDEX_LENGTH) {
+            throw new IllegalStateException("The index of the packed blob is full");
+        }
+        int number = count;
+        byte[] ciphertext = encrypt(number, false, record, off, len);
+        block.write(ciphertext, 0, ciphertext.length);
+        entry.writeTo(index);
+        count++;
+        offset += ciphertext.length;
+        if (block.size() >= blockLength) {
+            stageBlock();
+        }
+        return number;
+    }
+
+    /**
+     * Returns the encrypted length of an index of the plaintext length, the record count
+     * followed by the entries, cut into segments of at most {@link #MAX_RECORD_LENGTH} bytes.
+     */
+    private static long encryptedIndexLength(long plaintextLength) {
+        long segments = (plaintextLength + MAX_RECORD_LENGTH - 1) / MAX_RECORD_LENGTH;
+        return plaintextLength + segments * SegmentCipher.OVERHEAD;
+    }
+
+    private byte[] encrypt(long number, boolean last, byte[] plaintext, int off, int len)
+            throws IOException {
+        byte[] ciphertext = new byte[len + SegmentCipher.OVERHEAD];
+        try {
+            cipher.encrypt(number, last, plaintext, off, len, ciphertext, 0);
+            return ciphertext;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void stageBlock() throws StorageException, IOException {
+        if (block.size() == 0) {
+            return;
+        }
+        String blockId = IonicBlobTransfer.blockId(blocks.size());
+        blob.uploadBlock(blockId, new ByteArrayInputStream(block.toByteArray()), block.size(),
+                null, options, null);
+        blocks.add(new BlockEntry(blockId));
+        block.reset();
+    }
+
+    /**
+     * Appends the index and footer and commits the blob. No records can be appended after the
+     * writer has been closed, even if closing failed; closing again resumes staging the index
+     * and retries the commit.
+     *
+     * @throws IOException if the blob could not be committed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (!sealed) {
+            long indexLength = 0;
+            byte[] plaintext = index.toByteArray();
+            ByteBuffer.wrap(plaintext).putInt(count);
+            int position = 0;
+            do {
+                int length = Math.min(MAX_RECORD_LENGTH, plaintext.length - position);
+                byte[] segment = encrypt((long) count + tail.size(),
+                        position + length == plaintext.length, plaintext, position, length);
+                tail.addLast(segment);
+                indexLength += segment.length;
+                position += length;
+            } while (position < plaintext.length);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+            footer.putLong(offset).putInt((int) indexLength).putInt(count).putInt(MAGIC);
+            tail.addLast(footer.array());
+            index.reset();
+
+            EncryptionData data = EncryptionData.forPack(key.getKid(),
+                    wrappedContentKey.getLeft(), wrappedContentKey.getRight(),
+                    MAX_RECORD_LENGTH);
+            blob.getMetadata().put(EncryptionData.METADATA_KEY, data.toJson());
+            sealed = true;
+        }
+        try {
+            while (!tail.isEmpty()) {
+                byte[] piece = tail.removeFirst();
+                block.write(piece, 0, piece.length);
+                if (block.size() >= blockLength) {
+                    stageBlock();
+                }
+            }
+            stageBlock();
+            blob.commitBlockList(blocks, null, options, null);
+        } catch (StorageException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        closed = true;
+    }
+}
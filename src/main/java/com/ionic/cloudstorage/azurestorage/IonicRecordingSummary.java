@@ -0,0 +1,211 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes the Ionic events of JDK Flight Recorder recordings, for offline analysis of a
+ * recording made with the bundled {@code ionic.jfc} settings, for instance with
+ * {@code -XX:StartFlightRecording=settings=ionic.jfc,filename=ionic.jfr}. The settings file is
+ * packaged next to this class in the library jar.
+ *
+ * <p>For each event type and operation the summary lists the number of events and failures,
+ * the total, mean, median, 99th percentile and maximum durations, the bytes transferred, the
+ * key store hits and the number of events which overlapped a garbage collection pause. It
+ * then lists the keys whose operations took longest in total, by the hashed Key ID.</p>
+ *
+ * <pre>
+ * java -cp machina-tools-azure-storage.jar \
+ *     com.ionic.cloudstorage.azurestorage.IonicRecordingSummary ionic.jfr
+ * </pre>
+ */
+public final class IonicRecordingSummary {
+
+    /**
+     * Name of the settings file packaged next to this class.
+     */
+    public static final String SETTINGS_RESOURCE = "ionic.jfc";
+
+    private static final String GC_PAUSE = "jdk.GCPhasePause";
+    private static final int TOP_KEYS = 10;
+
+    private IonicRecordingSummary() {}
+
+    /**
+     * Prints the summary of the recordings named on the command line.
+     *
+     * @param args the paths of the recordings.
+     * @throws IOException if a recording could not be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: IonicRecordingSummary <recording.jfr>...");
+            System.exit(2);
+        }
+        List<Path> recordings = new ArrayList<Path>();
+        for (String arg : args) {
+            recordings.add(Paths.get(arg));
+        }
+        summarize(recordings, System.out);
+    }
+
+    static void summarize(List<Path> recordings, PrintStream out) throws IOException {
+        Map<String, Group> groups = new TreeMap<String, Group>();
+        Map<String, Group> keys = new HashMap<String, Group>();
+        List<long[]> pauses = new ArrayList<long[]>();
+        List<Timed> timed = new ArrayList<Timed>();
+        for (Path recording : recordings) {
+            try (RecordingFile file = new RecordingFile(recording)) {
+                while (file.hasMoreEvents()) {
+                    RecordedEvent event = file.readEvent();
+                    String name = event.getEventType().getName();
+                    if (name.equals(GC_PAUSE)) {
+                        pauses.add(new long[] {nanos(event.getStartTime()),
+                                nanos(event.getEndTime())});
+                    } else if (name.startsWith(IonicFlightRecorder.EVENT_PREFIX)) {
+                        String label = name.substring(IonicFlightRecorder.EVENT_PREFIX.length())
+                                + " " + event.getString("operation");
+                        Group group = groups.computeIfAbsent(label, Group::new);
+                        group.add(event);
+                        timed.add(new Timed(group, nanos(event.getStartTime()),
+                                nanos(event.getEndTime())));
+                        if (event.hasField("keyIdHash") && event.getString("keyIdHash") != null) {
+                            keys.computeIfAbsent(event.getString("keyIdHash"), Group::new)
+                                    .add(event);
+                        }
+                    }
+                }
+            }
+        }
+        countGcOverlaps(timed, pauses);
+
+        out.printf("%-36s %8s %7s %11s %9s %9s %9s %9s %14s %9s %8s%n", "Event", "Count",
+                "Failed", "Total ms", "Mean ms", "p50 ms", "p99 ms", "Max ms", "Bytes",
+                "Cache hit", "In GC");
+        for (Group group : groups.values()) {
+            out.printf("%-36s %8d %7d %11.3f %9.3f %9.3f %9.3f %9.3f %14d %9d %8d%n",
+                    group.name, group.count(), group.failed, millis(group.total),
+                    millis(group.total / Math.max(1, group.count())), millis(group.percentile(50)),
+                    millis(group.percentile(99)), millis(group.percentile(100)), group.bytes,
+                    group.cacheHits, group.gcOverlaps);
+        }
+        out.printf("%d GC pauses%n", pauses.size());
+
+        List<Group> slowest = new ArrayList<Group>(keys.values());
+        Collections.sort(slowest, (a, b) -> Long.compare(b.total, a.total));
+        out.println();
+        out.printf("%-20s %8s %11s %9s%n", "Key ID hash", "Count", "Total ms", "Max ms");
+        for (Group key : slowest.subList(0, Math.min(TOP_KEYS, slowest.size()))) {
+            out.printf("%-20s %8d %11.3f %9.3f%n", key.name, key.count(), millis(key.total),
+                    millis(key.percentile(100)));
+        }
+    }
+
+    /**
+     * Counts the events overlapping a pause. Pauses do not overlap each other, so sorted by
+     * start they are also sorted by end, and only the last pause starting before an event ends
+     * can overlap it.
+     */
+    private static void countGcOverlaps(List<Timed> timed, List<long[]> pauses) {
+        Collections.sort(pauses, (a, b) -> Long.compare(a[0], b[0]));
+        long[] starts = new long[pauses.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = pauses.get(i)[0];
+        }
+        for (Timed event : timed) {
+            int index = Arrays.binarySearch(starts, event.end);
+            int candidate = index >= 0 ? index : -index - 2;
+            if (candidate >= 0 && pauses.get(candidate)[1] > event.start) {
+                event.group.gcOverlaps++;
+            }
+        }
+    }
+
+    private static long nanos(Instant instant) {
+        return instant.getEpochSecond() * 1000000000L + instant.getNano();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class Group {
+
+        private final String name;
+        private final List<Long> durations = new ArrayList<Long>();
+        private long total = 0;
+        private long failed = 0;
+        private long bytes = 0;
+        private long cacheHits = 0;
+        private long gcOverlaps = 0;
+        private boolean sorted = true;
+
+        Group(String name) {
+            this.name = name;
+        }
+
+        void add(RecordedEvent event) {
+            long duration = event.getDuration().toNanos();
+            durations.add(duration);
+            sorted = false;
+            total += duration;
+            if (event.hasField("succeeded") && !event.getBoolean("succeeded")) {
+                failed++;
+            }
+            if (event.hasField("cacheHit") && event.getBoolean("cacheHit")) {
+                cacheHits++;
+            }
+            if (event.hasField("payloadBytes")) {
+                bytes += event.getLong("payloadBytes");
+            } else if (event.hasField("bytes")) {
+                bytes += event.getLong("bytes");
+            }
+        }
+
+        int count() {
+            return durations.size();
+        }
+
+        long percentile(int percentile) {
+            if (durations.isEmpty()) {
+                return 0;
+            }
+            if (!sorted) {
+                Collections.sort(durations);
+                sorted = true;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * durations.size()) - 1;
+            return durations.get(Math.max(0, index));
+        }
+    }
+
+    private static final class Timed {
+
+        private final Group group;
+        private final long start;
+        private final long end;
+
+        Timed(Group group, long start, long end) {
+            this.group = group;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
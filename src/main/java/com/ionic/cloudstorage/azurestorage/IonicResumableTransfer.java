@@ -0,0 +1,399 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.core.IKeyResolver;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockListingFilter;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Uploads files to and downloads files from blobs in the segmented AES-GCM format of
+ * {@link IonicBlobTransfer}, saving progress to a checkpoint file so that a transfer
+ * interrupted by a failure or a crash resumes where it stopped instead of starting over.
+ *
+ * <p>The checkpoint records the blob, the version of the content being transferred, the
+ * {@link EncryptionData} holding the content key wrapped by the Ionic Key, and the number of
+ * leading segments completed. It is saved atomically each time the next segment completes, and
+ * deleted once the transfer completes. Segments are encrypted independently, so the content key
+ * is the only cipher state needed to continue; a resumed upload unwraps it with the same Ionic
+ * Key rather than creating a new one. The content key itself is never written to disk.</p>
+ *
+ * <p>A resumed upload checks the blob's uncommitted block list and stages again any segment
+ * the service no longer holds, such as blocks discarded after a week uncommitted. It fails if
+ * the source file changed since the checkpoint was saved. A resumed download continues only if
+ * the blob's ETag is unchanged, and starts over otherwise. Uploads are not compressed, and
+ * blobs which are compressed or not in the segmented format are downloaded from the start.</p>
+ *
+ * <p>The segment length, concurrency and executor are those of the IonicBlobTransfer.</p>
+ */
+public class IonicResumableTransfer {
+
+    private final IonicBlobTransfer transfer;
+
+    /**
+     * Constructs an IonicResumableTransfer with the configuration of the IonicBlobTransfer.
+     *
+     * @param transfer an {@link IonicBlobTransfer}.
+     */
+    public IonicResumableTransfer(IonicBlobTransfer transfer) {
+        this.transfer = transfer;
+    }
+
+    /**
+     * Returns the IonicBlobTransfer providing the configuration.
+     *
+     * @return an {@link IonicBlobTransfer}
+     */
+    public IonicBlobTransfer getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * Uploads the file to the blob, resuming from the checkpoint if it exists. A new upload
+     * creates an Ionic Key with the default attributes of the IonicKeyResolverFactory.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param source the file to upload.
+     * @param checkpoint the checkpoint {@link java.nio.file.Path}.
+     * @return the {@link TransferStats} of the upload.
+     * @throws IonicException if the Ionic Key could not be created or resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the file or checkpoint could not be read, or the checkpoint is for
+     *         another transfer or an earlier version of the file.
+     */
+    public TransferStats upload(CloudBlockBlob blob, Path source, Path checkpoint)
+            throws IonicException, StorageException, IOException {
+        return upload(blob, source, new CreateKeysRequest.Key(""), checkpoint);
+    }
+
+    /**
+     * Uploads the file to the blob, resuming from the checkpoint if it exists. A new upload
+     * creates an Ionic Key with the attributes of the CreateKeysRequest.Key merged with the
+     * default attributes of the IonicKeyResolverFactory.
+     *
+     * @param blob the destination {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @param source the file to upload.
+     * @param key a {@link com.ionic.sdk.agent.request.createkey.CreateKeysRequest.Key}.
+     * @param checkpoint the checkpoint {@link java.nio.file.Path}.
+     * @return the {@link TransferStats} of the upload.
+     * @throws IonicException if the Ionic Key could not be created or resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if the file or checkpoint could not be read, or the checkpoint is for
+     *         another transfer or an earlier version of the file.
+     */
+    public TransferStats upload(CloudBlockBlob blob, Path source, CreateKeysRequest.Key key,
+            Path checkpoint) throws IonicException, StorageException, IOException {
+        IonicSpan span = transfer.startSpan(IonicTracer.SPAN_BLOB_UPLOAD, blob);
+        try {
+            PhaseClock clock = PhaseClock.forSpan(span, IonicTracer.SPAN_BLOB_UPLOAD);
+            TransferStats stats = upload(blob, source, key, checkpoint, span, clock);
+            clock.finish(span, stats);
+            return stats;
+        } catch (IonicException | StorageException | IOException | RuntimeException e) {
+            span.recordException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    private TransferStats upload(CloudBlockBlob blob, Path source, CreateKeysRequest.Key key,
+            Path checkpoint, IonicSpan span, PhaseClock clock)
+            throws IonicException, StorageException, IOException {
+        long started = System.nanoTime();
+        IonicKeyResolverFactory factory = transfer.getKeyResolverFactory();
+        long length = Files.size(source);
+        String version = length + "@" + Files.getLastModifiedTime(source).toMillis();
+        String uri = blob.getUri().toString();
+
+        TransferCheckpoint state = TransferCheckpoint.load(checkpoint);
+        EncryptionData data;
+        byte[] contentKey;
+        long resumed = 0;
+        if (state != null) {
+            state.check(TransferCheckpoint.UPLOAD, uri);
+            if (!version.equals(state.getVersion())) {
+                throw new IOException("Source " + source + " changed since checkpoint "
+                        + checkpoint + " was saved");
+            }
+            data = EncryptionData.parse(state.getEncryptionData());
+            long phaseStarted = clock.start();
+            contentKey = ContentKeys.unwrap(data, factory.createKeyResolver());
+            clock.key(phaseStarted);
+            resumed = stagedSegments(blob, state.getSegments(), clock);
+        } else {
+            long phaseStarted = clock.start();
+            IKey created = factory.create(key);
+            phaseStarted = clock.key(phaseStarted);
+            contentKey = SegmentCipher.generateContentKey();
+            Pair<byte[], String> wrapped;
+            try {
+                wrapped = ContentKeys.wrap(contentKey, created);
+            } catch (IonicException | IOException | RuntimeException e) {
+                Arrays.fill(contentKey, (byte) 0);
+                throw e;
+            }
+            clock.crypto(phaseStarted);
+            data = EncryptionData.forGcm(created.getKid(), wrapped.getLeft(),
+                    wrapped.getRight(), transfer.getSegmentLength());
+            // Saved before any block is staged, so a crash never loses the key.
+            state = new TransferCheckpoint(checkpoint, TransferCheckpoint.UPLOAD, uri, version,
+                    data.toJson(), 0);
+            state.save();
+        }
+        span.setAttribute(IonicTracer.KEY_ID, data.getKeyId());
+        SegmentCipher cipher;
+        try {
+            cipher = new SegmentCipher(contentKey, data.getSegmentLength());
+        } finally {
+            Arrays.fill(contentKey, (byte) 0);
+        }
+
+        int segmentLength = cipher.getSegmentLength();
+        long segments = cipher.segmentCount(length);
+        BlobRequestOptions options = IonicBlobTransfer.transferOptions();
+        Deque<Future<Void>> inFlight = new ArrayDeque<Future<Void>>();
+        long staged = resumed;
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (long segment = resumed; segment < segments; segment++) {
+                if (inFlight.size() >= transfer.getMaxInFlightSegments()) {
+                    ContentKeys.await(inFlight.removeFirst());
+                    state.setSegments(++staged);
+                    state.save();
+                }
+                long position = segment * segmentLength;
+                int plaintextLength = (int) Math.min(segmentLength, length - position);
+                byte[] plaintext = new byte[plaintextLength];
+                readFully(channel, plaintext, position);
+                inFlight.addLast(transfer.getExecutor().submit(IonicBlobTransfer.stageSegment(
+                        blob, cipher, segment, segment == segments - 1, plaintext,
+                        plaintextLength, IonicBlobTransfer.blockId(segment), options,
+                        transfer.governorJob(), clock)));
+            }
+            while (!inFlight.isEmpty()) {
+                ContentKeys.await(inFlight.removeFirst());
+                state.setSegments(++staged);
+                state.save();
+            }
+        } finally {
+            for (Future<Void> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+
+        List<BlockEntry> blocks = new ArrayList<BlockEntry>();
+        for (long segment = 0; segment < segments; segment++) {
+            blocks.add(new BlockEntry(IonicBlobTransfer.blockId(segment)));
+        }
+        HashMap<String, String> metadata = blob.getMetadata();
+        metadata.put(EncryptionData.METADATA_KEY, data.toJson());
+        metadata.remove(CompressionCodec.METADATA_KEY);
+        metadata.remove(IonicBlobTransfer.DIGEST_METADATA_KEY);
+        transfer.governorJob().acquire(0);
+        long phaseStarted = clock.start();
+        blob.commitBlockList(blocks, null, options, transfer.governorJob().context());
+        clock.network(phaseStarted);
+        state.delete();
+        return new TransferStats(blob.getName(), CompressionCodec.NONE, length,
+                cipher.ciphertextLength(length), System.nanoTime() - started);
+    }
+
+    /**
+     * Returns the number of leading segments which the checkpoint recorded as staged and which
+     * the service still holds as uncommitted blocks.
+     */
+    private static long stagedSegments(CloudBlockBlob blob, long recorded, PhaseClock clock)
+            throws StorageException {
+        if (recorded == 0) {
+            return 0;
+        }
+        long started = clock.start();
+        Set<String> blockIds = new HashSet<String>();
+        for (BlockEntry block : blob.downloadBlockList(BlockListingFilter.UNCOMMITTED, null,
+                IonicBlobTransfer.transferOptions(), null)) {
+            blockIds.add(block.getId());
+        }
+        clock.network(started);
+        for (long segment = 0; segment < recorded; segment++) {
+            if (!blockIds.contains(IonicBlobTransfer.blockId(segment))) {
+                return segment;
+            }
+        }
+        return recorded;
+    }
+
+    /**
+     * Downloads and decrypts the blob to the file, resuming from the checkpoint if it exists and
+     * the blob is unchanged. The key is resolved with a new IonicKeyResolver.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param target the file receiving the plaintext.
+     * @param checkpoint the checkpoint {@link java.nio.file.Path}.
+     * @return the {@link TransferStats} of the download, counting only the segments
+     *         transferred by this call.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if a segment failed authentication, the file could not be written,
+     *         or the checkpoint is for another transfer.
+     */
+    public TransferStats download(CloudBlob blob, Path target, Path checkpoint)
+            throws IonicException, StorageException, IOException {
+        return download(blob, target, checkpoint,
+                transfer.getKeyResolverFactory().createKeyResolver());
+    }
+
+    /**
+     * Downloads and decrypts the blob to the file, resuming from the checkpoint if it exists and
+     * the blob is unchanged. The key is resolved with the specified IKeyResolver.
+     *
+     * @param blob the source {@link com.microsoft.azure.storage.blob.CloudBlob}.
+     * @param target the file receiving the plaintext.
+     * @param checkpoint the checkpoint {@link java.nio.file.Path}.
+     * @param resolver the {@link com.microsoft.azure.keyvault.core.IKeyResolver}.
+     * @return the {@link TransferStats} of the download, counting only the segments
+     *         transferred by this call.
+     * @throws IonicException if the Ionic Key could not be resolved.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws IOException if a segment failed authentication, the file could not be written,
+     *         or the checkpoint is for another transfer.
+     */
+    public TransferStats download(CloudBlob blob, Path target, Path checkpoint,
+            IKeyResolver resolver) throws IonicException, StorageException, IOException {
+        blob.downloadAttributes(null, IonicBlobTransfer.transferOptions(), null);
+        EncryptionData data = EncryptionData.fromMetadata(blob.getMetadata());
+        if (data == null || !data.isGcm()
+                || CompressionCodec.fromMetadata(blob.getMetadata()) != CompressionCodec.NONE) {
+            // Only the segmented format can continue from a segment boundary.
+            try (OutputStream stream = Files.newOutputStream(target)) {
+                return transfer.download(blob, stream, resolver);
+            } finally {
+                Files.deleteIfExists(checkpoint);
+            }
+        }
+        IonicSpan span = transfer.startSpan(IonicTracer.SPAN_BLOB_DOWNLOAD, blob);
+        try {
+            PhaseClock clock = PhaseClock.forSpan(span, IonicTracer.SPAN_BLOB_DOWNLOAD);
+            TransferStats stats = download(blob, data, target, checkpoint, resolver, span,
+                    clock);
+            clock.finish(span, stats);
+            return stats;
+        } catch (IonicException | StorageException | IOException | RuntimeException e) {
+            span.recordException(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+
+    private TransferStats download(CloudBlob blob, EncryptionData data, Path target,
+            Path checkpoint, IKeyResolver resolver, IonicSpan span, PhaseClock clock)
+            throws IonicException, StorageException, IOException {
+        long started = System.nanoTime();
+        span.setAttribute(IonicTracer.KEY_ID, data.getKeyId());
+        String etag = blob.getProperties().getEtag();
+        String uri = blob.getUri().toString();
+        int segmentLength = data.getSegmentLength();
+        long ciphertextLength = blob.getProperties().getLength();
+        long plaintextLength = SegmentCipher.plaintextLength(ciphertextLength, segmentLength);
+        long segments = SegmentCipher.segmentCount(plaintextLength, segmentLength);
+
+        TransferCheckpoint state = TransferCheckpoint.load(checkpoint);
+        long resumed = 0;
+        if (state != null) {
+            state.check(TransferCheckpoint.DOWNLOAD, uri);
+            long written = Math.min(state.getSegments() * segmentLength, plaintextLength);
+            if (etag.equals(state.getVersion()) && Files.exists(target)
+                    && Files.size(target) >= written) {
+                resumed = Math.min(state.getSegments(), segments);
+            }
+        }
+        if (resumed == 0) {
+            state = new TransferCheckpoint(checkpoint, TransferCheckpoint.DOWNLOAD, uri, etag,
+                    data.toJson(), 0);
+        }
+
+        CompletableFuture<SegmentCipher> cipher = new CompletableFuture<SegmentCipher>();
+        IonicBlobTransfer.SegmentSource source = new IonicBlobTransfer.SegmentSource(blob,
+                cipher, segmentLength, ciphertextLength, segments - 1, null,
+                AccessCondition.generateIfMatchCondition(etag), transfer.governorJob(), clock);
+        Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+        long nextSegment = resumed;
+        long written = resumed;
+        long plaintextBytes = 0;
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            long position = resumed * segmentLength;
+            channel.truncate(position);
+            while (nextSegment < segments
+                    && inFlight.size() < transfer.getMaxInFlightSegments()) {
+                inFlight.addLast(transfer.getExecutor().submit(source.fetch(nextSegment++)));
+            }
+            IonicBlobTransfer.resolveCipher(data, resolver, cipher, clock);
+            while (!inFlight.isEmpty()) {
+                byte[] plaintext = ContentKeys.await(inFlight.removeFirst());
+                ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                plaintextBytes += plaintext.length;
+                // The checkpoint never runs ahead of the data on disk.
+                channel.force(false);
+                state.setSegments(++written);
+                state.save();
+                if (nextSegment < segments) {
+                    inFlight.addLast(transfer.getExecutor().submit(source.fetch(nextSegment++)));
+                }
+            }
+        } finally {
+            cipher.cancel(false);
+            for (Future<byte[]> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        state.delete();
+        long storedBytes = ciphertextLength - resumed * source.encryptedSegmentLength;
+        return new TransferStats(blob.getName(), CompressionCodec.NONE, plaintextBytes,
+                Math.max(0, storedBytes), System.nanoTime() - started);
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, long position)
+            throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new EOFException("Source ended before position "
+                        + (position + buffer.length));
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+/**
+ * A timed operation started by an {@link IonicTracer}. A span must be ended, typically with
+ * try-with-resources, on the thread which started it. Spans started on a thread while another
+ * span is open on it are children of that span.
+ */
+public interface IonicSpan extends AutoCloseable {
+
+    /**
+     * A span which records nothing, returned by {@link IonicTracer#NOOP}.
+     */
+    IonicSpan NOOP = new IonicSpan() {
+        @Override
+        public boolean isRecording() {
+            return false;
+        }
+
+        @Override
+        public IonicSpan setAttribute(String key, String value) {
+            return this;
+        }
+
+        @Override
+        public IonicSpan setAttribute(String key, long value) {
+            return this;
+        }
+
+        @Override
+        public IonicSpan setAttribute(String key, boolean value) {
+            return this;
+        }
+
+        @Override
+        public void recordException(Throwable exception) {}
+
+        @Override
+        public void end() {}
+    };
+
+    /**
+     * Returns true if attributes set on this span are recorded. Attributes which are costly to
+     * compute need only be computed for recording spans.
+     *
+     * @return true if this span is recording.
+     */
+    boolean isRecording();
+
+    /**
+     * Sets a string attribute.
+     *
+     * @param key the attribute key.
+     * @param value the attribute value.
+     * @return this span.
+     */
+    IonicSpan setAttribute(String key, String value);
+
+    /**
+     * Sets a numeric attribute.
+     *
+     * @param key the attribute key.
+     * @param value the attribute value.
+     * @return this span.
+     */
+    IonicSpan setAttribute(String key, long value);
+
+    /**
+     * Sets a boolean attribute.
+     *
+     * @param key the attribute key.
+     * @param value the attribute value.
+     * @return this span.
+     */
+    IonicSpan setAttribute(String key, boolean value);
+
+    /**
+     * Records an exception thrown by the operation and marks the span as failed.
+     *
+     * @param exception the exception.
+     */
+    void recordException(Throwable exception);
+
+    /**
+     * Ends the span.
+     */
+    void end();
+
+    /**
+     * Ends the span.
+     */
+    @Override
+    default void close() {
+        end();
+    }
+}
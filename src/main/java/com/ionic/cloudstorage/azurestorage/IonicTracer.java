@@ -0,0 +1,136 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+/**
+ * Starts {@link IonicSpan}s around Ionic key service calls and blob transfers. Set a tracer on
+ * an {@link IonicKeyResolverFactory} to trace its key operations and the transfers of the
+ * {@link IonicBlobTransfer}s using it. The default {@link #NOOP} tracer records nothing and
+ * allocates nothing; {@link RecordingTracer} keeps spans in memory and
+ * {@link OpenTelemetryTracer} exports them through OpenTelemetry.
+ *
+ * <p>Blob transfer spans carry the time spent in the key service, in network requests and in
+ * local encryption as the {@link #KEY_NANOS}, {@link #NETWORK_NANOS} and {@link #CRYPTO_NANOS}
+ * attributes. Segments are transferred concurrently, so network and crypto times are summed
+ * across threads and may exceed the span's duration.</p>
+ */
+public interface IonicTracer {
+
+    /**
+     * A tracer which records nothing.
+     */
+    IonicTracer NOOP = name -> IonicSpan.NOOP;
+
+    /**
+     * Span around the creation of an Ionic Key.
+     */
+    String SPAN_KEY_CREATE = "ionic.key.create";
+
+    /**
+     * Span around fetching an Ionic Key from the key service.
+     */
+    String SPAN_KEY_GET = "ionic.key.get";
+
+    /**
+     * Span around fetching several Ionic Keys with one request.
+     */
+    String SPAN_KEY_GET_BATCH = "ionic.key.get_batch";
+
+    /**
+     * Span around resolving an Ionic Key for decryption.
+     */
+    String SPAN_KEY_RESOLVE = "ionic.key.resolve";
+
+    /**
+     * Span around rewrapping the content key of a blob by {@link IonicKeyRotation}.
+     */
+    String SPAN_KEY_ROTATE = "ionic.key.rotate";
+
+    /**
+     * Span around a blob upload.
+     */
+    String SPAN_BLOB_UPLOAD = "ionic.blob.upload";
+
+    /**
+     * Span around a blob download.
+     */
+    String SPAN_BLOB_DOWNLOAD = "ionic.blob.download";
+
+    /**
+     * The Ionic Key ID.
+     */
+    String KEY_ID = "ionic.key.id";
+
+    /**
+     * The number of Ionic Keys requested.
+     */
+    String KEY_COUNT = "ionic.key.count";
+
+    /**
+     * The number of attributes of a created or fetched Ionic Key.
+     */
+    String ATTRIBUTE_COUNT = "ionic.key.attribute_count";
+
+    /**
+     * Whether the key was served from the {@link IonicKeyStore}.
+     */
+    String CACHE_HIT = "ionic.key.cache_hit";
+
+    /**
+     * The blob name.
+     */
+    String BLOB_NAME = "ionic.blob.name";
+
+    /**
+     * The plaintext bytes transferred.
+     */
+    String PAYLOAD_BYTES = "ionic.payload.bytes";
+
+    /**
+     * The stored bytes transferred.
+     */
+    String STORED_BYTES = "ionic.stored.bytes";
+
+    /**
+     * The {@link CompressionCodec} of the blob.
+     */
+    String COMPRESSION = "ionic.compression";
+
+    /**
+     * Nanoseconds spent creating or resolving the Ionic Key.
+     */
+    String KEY_NANOS = "ionic.key.nanos";
+
+    /**
+     * Nanoseconds spent in Azure Storage requests.
+     */
+    String NETWORK_NANOS = "ionic.network.nanos";
+
+    /**
+     * Nanoseconds spent encrypting or decrypting.
+     */
+    String CRYPTO_NANOS = "ionic.crypto.nanos";
+
+    /**
+     * Starts a span, a child of the span open on the current thread if any.
+     *
+     * @param name the span name.
+     * @return the started {@link IonicSpan}.
+     */
+    IonicSpan startSpan(String name);
+
+    /**
+     * Starts a span, a child of the span open on the current thread if any, without making it
+     * the open span of the current thread, for an operation which may end on another thread.
+     * Tracers keeping no per-thread state can rely on the default, {@link #startSpan(String)}.
+     *
+     * @param name the span name.
+     * @return the started {@link IonicSpan}, which may be ended on any thread.
+     */
+    default IonicSpan startAsyncSpan(String name) {
+        return startSpan(name);
+    }
+}
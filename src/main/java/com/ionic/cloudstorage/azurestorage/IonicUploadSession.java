@@ -0,0 +1,378 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.agent.key.KeyAttributesMap;
+import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.StorageErrorCodeStrings;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobEncryptionPolicy;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlobClient;
+import com.microsoft.azure.storage.blob.CloudBlobContainer;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A long-lived session for uploading Ionic protected blobs with as few service round-trips as
+ * possible. Containers known to exist are cached, so they are only created when an upload
+ * reports them missing, or once before the first upload which cannot be retried. Uploads are
+ * attempted optimistically with an If-None-Match: * condition; only if the blob already exists
+ * are its attributes fetched, and the existing metadata is then merged and written with an
+ * If-Match condition on the fetched ETag. Uploading a small object to a known container
+ * therefore takes a single request.
+ *
+ * <p>Retrying an upload requires re-reading its content. Streams up to
+ * {@link #getMaxBufferedLength()} bytes are marked and reset, and buffered if they do not
+ * support mark and reset, as are ByteArrayInputStreams of any length. Other streams have the
+ * blob's attributes fetched before the upload instead.</p>
+ *
+ * <p>Content of unknown length, from an InputStream or a
+ * {@link java.nio.channels.ReadableByteChannel}, is encrypted and staged in blocks as it is read
+ * through an {@link IonicBlobOutputStream}, so memory use is bounded whatever its length. The
+ * blob's attributes are fetched before the content is read, and if the final commit conflicts
+ * it is retried under a freshly fetched condition without reading the content again.</p>
+ */
+public class IonicUploadSession {
+
+    /**
+     * Default maximum length of content buffered to allow an optimistic upload to be retried.
+     */
+    public static final int DEFAULT_MAX_BUFFERED_LENGTH = 4 * 1024 * 1024;
+
+    private static final int MAX_ATTEMPTS = 4;
+
+    private final CloudBlobClient serviceClient;
+    private final IonicKeyResolverFactory keyResolverFactory;
+    private final Set<String> knownContainers = ConcurrentHashMap.newKeySet();
+    private int maxBufferedLength = DEFAULT_MAX_BUFFERED_LENGTH;
+
+    /**
+     * Constructs an IonicUploadSession uploading through the CloudBlobClient with keys created
+     * by the IonicKeyResolverFactory.
+     *
+     * @param serviceClient a {@link com.microsoft.azure.storage.blob.CloudBlobClient}.
+     * @param keyResolverFactory an {@link IonicKeyResolverFactory}.
+     */
+    public IonicUploadSession(CloudBlobClient serviceClient,
+            IonicKeyResolverFactory keyResolverFactory) {
+        this.serviceClient = serviceClient;
+        this.keyResolverFactory = keyResolverFactory;
+    }
+
+    /**
+     * Returns the CloudBlobClient backing this session.
+     *
+     * @return a {@link com.microsoft.azure.storage.blob.CloudBlobClient}.
+     */
+    public CloudBlobClient getServiceClient() {
+        return serviceClient;
+    }
+
+    /**
+     * Returns the IonicKeyResolverFactory backing this session.
+     *
+     * @return an {@link IonicKeyResolverFactory}.
+     */
+    public IonicKeyResolverFactory getKeyResolverFactory() {
+        return keyResolverFactory;
+    }
+
+    /**
+     * Sets the maximum length of content buffered in memory so that an optimistic upload can
+     * be retried, including the content a stream supporting mark and reset buffers itself.
+     * Content longer than this, unless already held in a ByteArrayInputStream, is uploaded after
+     * fetching the blob's attributes.
+     *
+     * @param maxBufferedLength the maximum buffered length in bytes.
+     */
+    public void setMaxBufferedLength(int maxBufferedLength) {
+        if (maxBufferedLength < 0) {
+            throw new IllegalArgumentException("maxBufferedLength must not be negative");
+        }
+        this.maxBufferedLength = maxBufferedLength;
+    }
+
+    /**
+     * Returns the maximum length of content buffered to allow an optimistic upload to be
+     * retried.
+     *
+     * @return the maximum buffered length in bytes.
+     */
+    public int getMaxBufferedLength() {
+        return maxBufferedLength;
+    }
+
+    /**
+     * Returns true if the container is known to exist by this session.
+     *
+     * @param containerName the container name.
+     * @return true if the container is cached as existing.
+     */
+    public boolean isKnownContainer(String containerName) {
+        return knownContainers.contains(containerName);
+    }
+
+    /**
+     * Forgets a cached container, for instance after it has been deleted.
+     *
+     * @param containerName the container name.
+     */
+    public void forgetContainer(String containerName) {
+        knownContainers.remove(containerName);
+    }
+
+    /**
+     * Encrypts and uploads the stream under a new Ionic Key with the factory's default
+     * attributes, retaining any existing metadata of the blob.
+     *
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     * @param inputStream the content.
+     * @param length the length of the content in bytes, or -1 if it is not known.
+     * @return the uploaded {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @throws IonicException if the Ionic Key could not be created.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws URISyntaxException if the container or blob name is invalid.
+     * @throws IOException if the content could not be read.
+     */
+    public CloudBlockBlob upload(String containerName, String blobName, InputStream inputStream,
+            long length) throws IonicException, StorageException, URISyntaxException,
+            IOException {
+        return upload(containerName, blobName, inputStream, length, null,
+                keyResolverFactory.create());
+    }
+
+    /**
+     * Encrypts and uploads the stream under a new Ionic Key with the specified attributes,
+     * retaining any existing metadata of the blob.
+     *
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     * @param inputStream the content.
+     * @param length the length of the content in bytes, or -1 if it is not known.
+     * @param attributes the attributes of the new Ionic Key, or null for the default attributes.
+     * @return the uploaded {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @throws IonicException if the Ionic Key could not be created.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws URISyntaxException if the container or blob name is invalid.
+     * @throws IOException if the content could not be read.
+     */
+    public CloudBlockBlob upload(String containerName, String blobName, InputStream inputStream,
+            long length, KeyAttributesMap attributes) throws IonicException, StorageException,
+            URISyntaxException, IOException {
+        IKey key = attributes == null ? keyResolverFactory.create()
+                : keyResolverFactory.create(new CreateKeysRequest.Key("", 1, attributes));
+        return upload(containerName, blobName, inputStream, length, null, key);
+    }
+
+    /**
+     * Encrypts and uploads the stream under the specified key. The metadata is merged over any
+     * existing metadata of the blob.
+     *
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     * @param inputStream the content.
+     * @param length the length of the content in bytes, or -1 if it is not known.
+     * @param metadata metadata to set on the blob, or null.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} used for encryption.
+     * @return the uploaded {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws URISyntaxException if the container or blob name is invalid.
+     * @throws IOException if the content could not be read.
+     */
+    public CloudBlockBlob upload(String containerName, String blobName, InputStream inputStream,
+            long length, Map<String, String> metadata, IKey key)
+            throws IonicException, StorageException, URISyntaxException, IOException {
+        if (length < 0) {
+            return upload(containerName, blobName, Channels.newChannel(inputStream), metadata,
+                    key);
+        }
+        CloudBlobContainer container = serviceClient.getContainerReference(containerName);
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setEncryptionPolicy(new BlobEncryptionPolicy(key, null));
+
+        // A mark may buffer everything read after it, so only in-memory streams are replayed
+        // beyond the maximum buffered length.
+        InputStream content = inputStream;
+        boolean replayable = content instanceof ByteArrayInputStream
+                || length <= maxBufferedLength;
+        if (replayable && !content.markSupported()) {
+            content = new BufferedInputStream(inputStream, (int) length + 1);
+        }
+        if (replayable) {
+            content.mark((int) length + 1);
+        }
+
+        // Without a replayable stream, prepare first so that the single upload attempt succeeds.
+        AccessCondition condition;
+        if (replayable) {
+            condition = AccessCondition.generateIfNoneMatchCondition("*");
+        } else {
+            if (!knownContainers.contains(containerName)) {
+                container.createIfNotExists();
+                knownContainers.add(containerName);
+            }
+            condition = fetchCondition(blob);
+        }
+        for (int attempt = 1; ; attempt++) {
+            blob.setMetadata(mergeMetadata(blob, metadata));
+            try {
+                blob.upload(content, length, condition, options, null);
+                knownContainers.add(containerName);
+                return blob;
+            } catch (StorageException e) {
+                if (!replayable || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                if (isContainerNotFound(e)) {
+                    knownContainers.remove(containerName);
+                    container.createIfNotExists();
+                    knownContainers.add(containerName);
+                } else if (isConflict(e)) {
+                    condition = fetchCondition(blob);
+                } else {
+                    throw e;
+                }
+                content.reset();
+            }
+        }
+    }
+
+    /**
+     * Encrypts and uploads the content of the channel, read to its end, under a new Ionic Key
+     * with the specified attributes, retaining any existing metadata of the blob.
+     *
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     * @param channel the content.
+     * @param attributes the attributes of the new Ionic Key, or null for the default attributes.
+     * @return the uploaded {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @throws IonicException if the Ionic Key could not be created.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws URISyntaxException if the container or blob name is invalid.
+     * @throws IOException if the content could not be read.
+     */
+    public CloudBlockBlob upload(String containerName, String blobName,
+            ReadableByteChannel channel, KeyAttributesMap attributes) throws IonicException,
+            StorageException, URISyntaxException, IOException {
+        IKey key = attributes == null ? keyResolverFactory.create()
+                : keyResolverFactory.create(new CreateKeysRequest.Key("", 1, attributes));
+        return upload(containerName, blobName, channel, null, key);
+    }
+
+    /**
+     * Encrypts and uploads the content of the channel, read to its end, under the specified
+     * key. The metadata is merged over any existing metadata of the blob.
+     *
+     * @param containerName the container name.
+     * @param blobName the blob name.
+     * @param channel the content.
+     * @param metadata metadata to set on the blob, or null.
+     * @param key the {@link com.microsoft.azure.keyvault.core.IKey} used for encryption.
+     * @return the uploaded {@link com.microsoft.azure.storage.blob.CloudBlockBlob}.
+     * @throws IonicException if the content key could not be wrapped.
+     * @throws StorageException if the Azure Storage service reported an error.
+     * @throws URISyntaxException if the container or blob name is invalid.
+     * @throws IOException if the content could not be read.
+     */
+    public CloudBlockBlob upload(String containerName, String blobName,
+            ReadableByteChannel channel, Map<String, String> metadata, IKey key)
+            throws IonicException, StorageException, URISyntaxException, IOException {
+        CloudBlobContainer container = serviceClient.getContainerReference(containerName);
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        if (!knownContainers.contains(containerName)) {
+            container.createIfNotExists();
+            knownContainers.add(containerName);
+        }
+        AccessCondition condition = fetchCondition(blob);
+
+        IonicBlobOutputStream stream = new IonicBlobOutputStream(blob, key);
+        try {
+            stream.transferFrom(channel);
+            stream.finish();
+            for (int attempt = 1; ; attempt++) {
+                blob.setMetadata(mergeMetadata(blob, metadata));
+                try {
+                    stream.commit(condition);
+                    return blob;
+                } catch (StorageException e) {
+                    if (!isConflict(e) || attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    // The staged blocks survive a failed commit, so only the condition changes.
+                    condition = fetchCondition(blob);
+                }
+            }
+        } catch (StorageException e) {
+            if (isContainerNotFound(e)) {
+                knownContainers.remove(containerName);
+            }
+            throw e;
+        } finally {
+            stream.abort();
+        }
+    }
+
+    /**
+     * Fetches the blob's attributes and returns the condition under which it may be written:
+     * If-Match on its ETag if it exists, otherwise If-None-Match: *.
+     */
+    private AccessCondition fetchCondition(CloudBlockBlob blob) throws StorageException {
+        try {
+            blob.downloadAttributes(null, IonicBlobTransfer.transferOptions(), null);
+            return AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        } catch (StorageException e) {
+            if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw e;
+            }
+            blob.getMetadata().clear();
+            return AccessCondition.generateIfNoneMatchCondition("*");
+        }
+    }
+
+    /**
+     * Merges the requested metadata over the blob's current metadata, dropping entries
+     * describing the previous content.
+     */
+    private static HashMap<String, String> mergeMetadata(CloudBlockBlob blob,
+            Map<String, String> metadata) {
+        HashMap<String, String> merged = new HashMap<String, String>(blob.getMetadata());
+        merged.remove(EncryptionData.METADATA_KEY);
+        merged.remove(CompressionCodec.METADATA_KEY);
+        merged.remove(IonicBlobTransfer.DIGEST_METADATA_KEY);
+        if (metadata != null) {
+            merged.putAll(metadata);
+        }
+        return merged;
+    }
+
+    private static boolean isContainerNotFound(StorageException e) {
+        return e.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND
+                && StorageErrorCodeStrings.CONTAINER_NOT_FOUND.equals(e.getErrorCode());
+    }
+
+    private static boolean isConflict(StorageException e) {
+        return e.getHttpStatusCode() == HttpURLConnection.HTTP_CONFLICT
+                || e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED;
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+/**
+ * The lane in which a {@link KeyRequestScheduler} queues an Ionic key service request.
+ */
+public enum KeyRequestPriority {
+
+    /**
+     * Requests on behalf of a waiting user. The default.
+     */
+    INTERACTIVE,
+
+    /**
+     * Requests of background jobs such as bulk restores, key rotation and inventory updates.
+     */
+    BULK
+}
@@ -0,0 +1,327 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.ionic.sdk.error.AgentErrorModuleConstants;
+import com.ionic.sdk.error.IonicException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent Ionic key service requests made through an
+ * {@link IonicKeyResolverFactory} and decides which waiting request goes next, so that bulk
+ * jobs sharing a factory with user-facing calls do not queue ahead of them.
+ *
+ * <p>Requests wait in one FIFO lane per {@link KeyRequestPriority}. While requests wait in
+ * several lanes, free slots are shared between the lanes in proportion to their weights by
+ * smooth weighted round robin, {@link #DEFAULT_INTERACTIVE_WEIGHT} to
+ * {@link #DEFAULT_BULK_WEIGHT} by default. A request which has waited longer than
+ * {@link #getMaxWaitMillis()} is served before any other, so no lane starves however busy the
+ * others are. A request arriving while a slot is free and no request is waiting is made
+ * immediately.</p>
+ */
+public class KeyRequestScheduler {
+
+    /**
+     * Default maximum number of concurrent key service requests.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+
+    /**
+     * Default weight of the {@link KeyRequestPriority#INTERACTIVE} lane.
+     */
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 4;
+
+    /**
+     * Default weight of the {@link KeyRequestPriority#BULK} lane.
+     */
+    public static final int DEFAULT_BULK_WEIGHT = 1;
+
+    /**
+     * Default time after which a waiting request is served ahead of the others.
+     */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+
+    /**
+     * A key service request.
+     *
+     * @param <T> the result type.
+     */
+    @FunctionalInterface
+    public interface KeyCall<T> {
+
+        /**
+         * Makes the request.
+         *
+         * @return the result.
+         * @throws IonicException if the request failed.
+         */
+        T call() throws IonicException;
+    }
+
+    private final int maxConcurrentRequests;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<KeyRequestPriority, Lane> lanes =
+            new EnumMap<KeyRequestPriority, Lane>(KeyRequestPriority.class);
+    private volatile long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_WAIT_MILLIS);
+    private int active = 0;
+
+    /**
+     * Constructs a KeyRequestScheduler allowing {@link #DEFAULT_MAX_CONCURRENT_REQUESTS}
+     * concurrent requests.
+     */
+    public KeyRequestScheduler() {
+        this(DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /**
+     * Constructs a KeyRequestScheduler allowing the specified number of concurrent requests.
+     *
+     * @param maxConcurrentRequests the maximum number of concurrent key service requests.
+     */
+    public KeyRequestScheduler(int maxConcurrentRequests) {
+        if (maxConcurrentRequests <= 0) {
+            throw new IllegalArgumentException("maxConcurrentRequests must be positive");
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        lanes.put(KeyRequestPriority.INTERACTIVE, new Lane(DEFAULT_INTERACTIVE_WEIGHT));
+        lanes.put(KeyRequestPriority.BULK, new Lane(DEFAULT_BULK_WEIGHT));
+    }
+
+    /**
+     * Returns the maximum number of concurrent key service requests.
+     *
+     * @return the maximum number of concurrent requests.
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Sets the share of free slots given to a lane while several lanes have waiting requests.
+     *
+     * @param priority a {@link KeyRequestPriority}.
+     * @param weight the lane's weight.
+     */
+    public void setWeight(KeyRequestPriority priority, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        lock.lock();
+        try {
+            lanes.get(priority).weight = weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the weight of a lane.
+     *
+     * @param priority a {@link KeyRequestPriority}.
+     * @return the lane's weight.
+     */
+    public int getWeight(KeyRequestPriority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time after which a waiting request is served ahead of the others.
+     *
+     * @param maxWaitMillis the maximum wait in milliseconds.
+     */
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        if (maxWaitMillis < 0) {
+            throw new IllegalArgumentException("maxWaitMillis must not be negative");
+        }
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Returns the time after which a waiting request is served ahead of the others.
+     *
+     * @return the maximum wait in milliseconds.
+     */
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    /**
+     * Returns the number of requests waiting in a lane.
+     *
+     * @param priority a {@link KeyRequestPriority}.
+     * @return the number of waiting requests.
+     */
+    public int getQueueLength(KeyRequestPriority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests in progress.
+     *
+     * @return the number of active requests.
+     */
+    public int getActiveRequests() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the request once a slot is granted to its lane.
+     *
+     * @param <T> the result type.
+     * @param priority the {@link KeyRequestPriority} of the request.
+     * @param call the request.
+     * @return the result of the request.
+     * @throws IonicException if the request failed or the thread was interrupted while waiting.
+     */
+    public <T> T call(KeyRequestPriority priority, KeyCall<T> call) throws IonicException {
+        acquire(priority);
+        try {
+            return call.call();
+        } finally {
+            release();
+        }
+    }
+
+    private void acquire(KeyRequestPriority priority) throws IonicException {
+        lock.lock();
+        try {
+            if (active < maxConcurrentRequests && !hasWaiters()) {
+                active++;
+                return;
+            }
+            Waiter waiter = new Waiter(lock.newCondition(), System.nanoTime());
+            lanes.get(priority).waiters.addLast(waiter);
+            while (!waiter.granted) {
+                try {
+                    waiter.condition.await();
+                } catch (InterruptedException e) {
+                    if (waiter.granted) {
+                        // The slot was handed over already; pass it on.
+                        grant();
+                    } else {
+                        lanes.get(priority).waiters.remove(waiter);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new IonicException(AgentErrorModuleConstants.ISAGENT_ERROR.value(),
+                            "Interrupted waiting for a key service request slot");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            grant();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the slot being released to the next waiter, or frees it if none is waiting.
+     */
+    private void grant() {
+        Lane next = next();
+        if (next == null) {
+            active--;
+            return;
+        }
+        Waiter waiter = next.waiters.removeFirst();
+        if (next.waiters.isEmpty()) {
+            // An idle lane neither accrues credit nor carries debt into its next busy period.
+            next.current = 0;
+        }
+        waiter.granted = true;
+        waiter.condition.signal();
+    }
+
+    /**
+     * Selects the lane of the next waiter: the lane whose head has waited longest if any has
+     * waited beyond the maximum wait, otherwise by smooth weighted round robin.
+     */
+    private Lane next() {
+        long now = System.nanoTime();
+        Lane overdue = null;
+        Lane selected = null;
+        int totalWeight = 0;
+        for (Lane lane : lanes.values()) {
+            if (lane.waiters.isEmpty()) {
+                continue;
+            }
+            long waited = now - lane.waiters.peekFirst().enqueuedNanos;
+            if (waited > maxWaitNanos && (overdue == null || lane.waiters.peekFirst()
+                    .enqueuedNanos < overdue.waiters.peekFirst().enqueuedNanos)) {
+                overdue = lane;
+            }
+            lane.current += lane.weight;
+            totalWeight += lane.weight;
+            if (selected == null || lane.current > selected.current) {
+                selected = lane;
+            }
+        }
+        Lane next = overdue != null ? overdue : selected;
+        if (next != null) {
+            next.current -= totalWeight;
+        }
+        return next;
+    }
+
+    private boolean hasWaiters() {
+        for (Lane lane : lanes.values()) {
+            if (!lane.waiters.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Lane {
+
+        private final Deque<Waiter> waiters = new ArrayDeque<Waiter>();
+        private int weight;
+        private int current = 0;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final Condition condition;
+        private final long enqueuedNanos;
+        private boolean granted = false;
+
+        Waiter(Condition condition, long enqueuedNanos) {
+            this.condition = condition;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
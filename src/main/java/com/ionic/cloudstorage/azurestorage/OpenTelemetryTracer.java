@@ -0,0 +1,91 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
+/**
+ * An {@link IonicTracer} exporting spans through an OpenTelemetry
+ * {@link io.opentelemetry.api.trace.Tracer}. Each span is made current while it is open, so
+ * spans started by the application around a transfer become parents of the transfer's spans.
+ * Requires the optional opentelemetry-api dependency.
+ */
+public class OpenTelemetryTracer implements IonicTracer {
+
+    private final Tracer tracer;
+
+    /**
+     * Constructs an OpenTelemetryTracer starting spans with the Tracer, for example from
+     * {@code openTelemetry.getTracer("machina-tools-azure-storage")}.
+     *
+     * @param tracer an OpenTelemetry {@link io.opentelemetry.api.trace.Tracer}.
+     */
+    public OpenTelemetryTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public IonicSpan startSpan(String name) {
+        Span span = tracer.spanBuilder(name).startSpan();
+        return new OpenTelemetrySpan(span, span.makeCurrent());
+    }
+
+    @Override
+    public IonicSpan startAsyncSpan(String name) {
+        return new OpenTelemetrySpan(tracer.spanBuilder(name).startSpan(), null);
+    }
+
+    private static final class OpenTelemetrySpan implements IonicSpan {
+
+        private final Span span;
+        private final Scope scope;
+
+        OpenTelemetrySpan(Span span, Scope scope) {
+            this.span = span;
+            this.scope = scope;
+        }
+
+        @Override
+        public boolean isRecording() {
+            return span.isRecording();
+        }
+
+        @Override
+        public IonicSpan setAttribute(String key, String value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public IonicSpan setAttribute(String key, long value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public IonicSpan setAttribute(String key, boolean value) {
+            span.setAttribute(key, value);
+            return this;
+        }
+
+        @Override
+        public void recordException(Throwable exception) {
+            span.recordException(exception);
+            span.setStatus(StatusCode.ERROR);
+        }
+
+        @Override
+        public void end() {
+            if (scope != null) {
+                scope.close();
+            }
+            span.end();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates the time a transfer spends waiting on the key service, on the network and in
+ * encryption, across the threads working on it, and reports it on the transfer's span and
+ * Flight Recorder event. The disabled clock reads no timers, so transfers with neither a
+ * recording span nor a recorded event pay only a field check.
+ */
+final class PhaseClock {
+
+    static final PhaseClock DISABLED = new PhaseClock(false, null, null);
+
+    private final boolean enabled;
+    private final String operation;
+    private final Object event;
+    private final LongAdder keyNanos = new LongAdder();
+    private final LongAdder networkNanos = new LongAdder();
+    private final LongAdder cryptoNanos = new LongAdder();
+
+    private PhaseClock(boolean enabled, String operation, Object event) {
+        this.enabled = enabled;
+        this.operation = operation;
+        this.event = event;
+    }
+
+    /**
+     * Returns a clock for the span of the named operation, which is enabled only if the span
+     * is recording or a Flight Recorder recording has enabled the transfer event.
+     */
+    static PhaseClock forSpan(IonicSpan span, String operation) {
+        Object event = IonicFlightRecorder.beginTransfer();
+        return span.isRecording() || event != null ? new PhaseClock(true, operation, event)
+                : DISABLED;
+    }
+
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    long key(long started) {
+        return add(keyNanos, started);
+    }
+
+    long network(long started) {
+        return add(networkNanos, started);
+    }
+
+    long crypto(long started) {
+        return add(cryptoNanos, started);
+    }
+
+    /**
+     * Sets the accumulated phase times and the transfer statistics on the span, and commits
+     * the Flight Recorder event.
+     */
+    void finish(IonicSpan span, TransferStats stats) {
+        if (!enabled) {
+            return;
+        }
+        IonicFlightRecorder.commitTransfer(event, operation, stats, keyNanos.sum(),
+                networkNanos.sum(), cryptoNanos.sum());
+        span.setAttribute(IonicTracer.PAYLOAD_BYTES, stats.getPlaintextBytes())
+                .setAttribute(IonicTracer.STORED_BYTES, stats.getStoredBytes())
+                .setAttribute(IonicTracer.COMPRESSION, stats.getCodec().getName())
+                .setAttribute(IonicTracer.KEY_NANOS, keyNanos.sum())
+                .setAttribute(IonicTracer.NETWORK_NANOS, networkNanos.sum())
+                .setAttribute(IonicTracer.CRYPTO_NANOS, cryptoNanos.sum());
+    }
+
+    private long add(LongAdder adder, long started) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        adder.add(now - started);
+        return now;
+    }
+}
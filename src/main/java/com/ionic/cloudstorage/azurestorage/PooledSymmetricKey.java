@@ -0,0 +1,53 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
+import java.security.NoSuchAlgorithmException;
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * A {@link com.microsoft.azure.keyvault.cryptography.SymmetricKey} wrapping and unwrapping
+ * content keys with the pooled ciphers of an {@link IonicKey} over the same material, so keys
+ * returned by an {@link IonicKeyResolverFactory} without an {@link IonicKeyStore} do not
+ * initialize a {@link javax.crypto.Cipher} per call either. Other algorithms and operations are
+ * left to the SymmetricKey.
+ */
+final class PooledSymmetricKey extends SymmetricKey {
+
+    private final IonicKey pooled;
+
+    PooledSymmetricKey(String kid, byte[] key) {
+        super(kid, key);
+        this.pooled = key != null && key.length == IonicKey.KEY_LENGTH
+                ? new IonicKey(kid, key) : null;
+    }
+
+    @Override
+    public ListenableFuture<Pair<byte[], String>> wrapKeyAsync(byte[] key, String algorithm)
+            throws NoSuchAlgorithmException {
+        if (isPooled(algorithm)) {
+            return pooled.wrapKeyAsync(key, IonicKey.KEY_WRAP_ALGORITHM);
+        }
+        return super.wrapKeyAsync(key, algorithm);
+    }
+
+    @Override
+    public ListenableFuture<byte[]> unwrapKeyAsync(byte[] encryptedKey, String algorithm)
+            throws NoSuchAlgorithmException {
+        if (isPooled(algorithm)) {
+            return pooled.unwrapKeyAsync(encryptedKey, IonicKey.KEY_WRAP_ALGORITHM);
+        }
+        return super.unwrapKeyAsync(encryptedKey, algorithm);
+    }
+
+    private boolean isPooled(String algorithm) {
+        return pooled != null && (algorithm == null
+                ? IonicKey.KEY_WRAP_ALGORITHM.equals(getDefaultKeyWrapAlgorithm())
+                : IonicKey.KEY_WRAP_ALGORITHM.equals(algorithm));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link IonicTracer} which keeps finished spans in memory, for tests and offline
+ * diagnostics without a tracing backend.
+ */
+public class RecordingTracer implements IonicTracer {
+
+    private final ThreadLocal<Deque<Span>> open = ThreadLocal.withInitial(ArrayDeque::new);
+    private final List<Span> finished = new ArrayList<Span>();
+
+    @Override
+    public IonicSpan startSpan(String name) {
+        Deque<Span> stack = open.get();
+        Span span = new Span(name, stack.peek());
+        stack.push(span);
+        return span;
+    }
+
+    @Override
+    public IonicSpan startAsyncSpan(String name) {
+        return new Span(name, open.get().peek());
+    }
+
+    /**
+     * Returns the spans ended so far, in the order they ended.
+     *
+     * @return a snapshot of the finished spans.
+     */
+    public List<Span> getFinishedSpans() {
+        synchronized (finished) {
+            return new ArrayList<Span>(finished);
+        }
+    }
+
+    /**
+     * Returns the finished spans with the specified name.
+     *
+     * @param name a span name.
+     * @return the matching finished spans.
+     */
+    public List<Span> getFinishedSpans(String name) {
+        List<Span> spans = new ArrayList<Span>();
+        for (Span span : getFinishedSpans()) {
+            if (span.getName().equals(name)) {
+                spans.add(span);
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Discards the finished spans.
+     */
+    public void clear() {
+        synchronized (finished) {
+            finished.clear();
+        }
+    }
+
+    /**
+     * A span recorded by a RecordingTracer.
+     */
+    public final class Span implements IonicSpan {
+
+        private final String name;
+        private final Span parent;
+        private final long startNanos = System.nanoTime();
+        private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        private volatile long endNanos = -1;
+        private volatile Throwable exception;
+
+        private Span(String name, Span parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        /**
+         * Returns the span name.
+         *
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the span which was open on the starting thread when this span was started.
+         *
+         * @return the parent span or null.
+         */
+        public Span getParent() {
+            return parent;
+        }
+
+        /**
+         * Returns the attributes set on the span.
+         *
+         * @return an unmodifiable map of attributes.
+         */
+        public synchronized Map<String, Object> getAttributes() {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, Object>(attributes));
+        }
+
+        /**
+         * Returns the value of an attribute.
+         *
+         * @param key the attribute key.
+         * @return the value, or null if it was not set.
+         */
+        public synchronized Object getAttribute(String key) {
+            return attributes.get(key);
+        }
+
+        /**
+         * Returns the exception recorded on the span.
+         *
+         * @return the exception or null.
+         */
+        public Throwable getException() {
+            return exception;
+        }
+
+        /**
+         * Returns the duration of the span, or -1 if it has not ended.
+         *
+         * @return the duration in nanoseconds.
+         */
+        public long getDurationNanos() {
+            long end = endNanos;
+            return end < 0 ? -1 : end - startNanos;
+        }
+
+        @Override
+        public boolean isRecording() {
+            return endNanos < 0;
+        }
+
+        @Override
+        public synchronized IonicSpan setAttribute(String key, String value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized IonicSpan setAttribute(String key, long value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized IonicSpan setAttribute(String key, boolean value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public void recordException(Throwable exception) {
+            this.exception = exception;
+        }
+
+        @Override
+        public void end() {
+            if (endNanos >= 0) {
+                return;
+            }
+            endNanos = System.nanoTime();
+            open.get().remove(this);
+            synchronized (finished) {
+                finished.add(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + getAttributes();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts the fixed-size authenticated segments of the segmented AES-GCM blob
+ * format. Each encrypted segment is laid out as a random nonce, the ciphertext and the GCM tag.
+ * The segment index and a final-segment flag are bound to each segment as additional
+ * authenticated data, so reordered, duplicated or truncated segments fail authentication.
+ * Segments are independent and may be processed concurrently.
+ */
+final class SegmentCipher {
+
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+    static final int OVERHEAD = NONCE_LENGTH + TAG_LENGTH;
+    static final int DEFAULT_SEGMENT_LENGTH = 4 * 1024 * 1024;
+    static final int CONTENT_KEY_LENGTH = 32;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>();
+
+    private final SecretKeySpec contentKey;
+    private final int segmentLength;
+
+    SegmentCipher(byte[] contentKey, int segmentLength) {
+        if (contentKey == null || contentKey.length != CONTENT_KEY_LENGTH) {
+            throw new IllegalArgumentException("Content key must be " + CONTENT_KEY_LENGTH
+                    + " bytes");
+        }
+        if (segmentLength <= 0) {
+            throw new IllegalArgumentException("Segment length must be positive");
+        }
+        this.contentKey = new SecretKeySpec(contentKey, "AES");
+        this.segmentLength = segmentLength;
+    }
+
+    static byte[] generateContentKey() {
+        byte[] key = new byte[CONTENT_KEY_LENGTH];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    int getSegmentLength() {
+        return segmentLength;
+    }
+
+    int getEncryptedSegmentLength() {
+        return segmentLength + OVERHEAD;
+    }
+
+    /**
+     * Returns the number of segments in a blob with the specified plaintext length. An empty
+     * blob has a single empty segment.
+     */
+    long segmentCount(long plaintextLength) {
+        return segmentCount(plaintextLength, segmentLength);
+    }
+
+    static long segmentCount(long plaintextLength, int segmentLength) {
+        return Math.max(1, (plaintextLength + segmentLength - 1) / segmentLength);
+    }
+
+    long ciphertextLength(long plaintextLength) {
+        return plaintextLength + segmentCount(plaintextLength) * OVERHEAD;
+    }
+
+    long plaintextLength(long ciphertextLength) {
+        return plaintextLength(ciphertextLength, segmentLength);
+    }
+
+    /**
+     * Returns the plaintext length of a blob from its layout alone, before the content key is
+     * available.
+     */
+    static long plaintextLength(long ciphertextLength, int segmentLength) {
+        long encryptedSegmentLength = (long) segmentLength + OVERHEAD;
+        long segments = Math.max(1,
+                (ciphertextLength + encryptedSegmentLength - 1) / encryptedSegmentLength);
+        long length = ciphertextLength - segments * OVERHEAD;
+        if (length < 0) {
+            throw new IllegalArgumentException("Invalid ciphertext length " + ciphertextLength);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the offset of the encrypted segment in the blob.
+     */
+    long ciphertextOffset(long segment) {
+        return segment * getEncryptedSegmentLength();
+    }
+
+    /**
+     * Encrypts one segment.
+     *
+     * @return the number of bytes written to out.
+     */
+    int encrypt(long segment, boolean last, byte[] in, int inOffset, int length, byte[] out,
+            int outOffset) throws GeneralSecurityException {
+        return encrypt(aad(segment, last), in, inOffset, length, out, outOffset);
+    }
+
+    /**
+     * Encrypts one segment, authenticating the specified additional data with it.
+     *
+     * @return the number of bytes written to out.
+     */
+    int encrypt(byte[] aad, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        if (length > segmentLength) {
+            throw new IllegalArgumentException("Segment exceeds segment length");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        Cipher cipher = cipher();
+        cipher.init(Cipher.ENCRYPT_MODE, contentKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(aad);
+        System.arraycopy(nonce, 0, out, outOffset, NONCE_LENGTH);
+        return NONCE_LENGTH
+                + cipher.doFinal(in, inOffset, length, out, outOffset + NONCE_LENGTH);
+    }
+
+    /**
+     * Decrypts and authenticates one segment.
+     *
+     * @return the number of bytes written to out.
+     * @throws javax.crypto.AEADBadTagException if the segment fails authentication.
+     */
+    int decrypt(long segment, boolean last, byte[] in, int inOffset, int length, byte[] out,
+            int outOffset) throws GeneralSecurityException {
+        return decrypt(aad(segment, last), in, inOffset, length, out, outOffset);
+    }
+
+    /**
+     * Decrypts and authenticates one segment and the additional data it was encrypted with.
+     *
+     * @return the number of bytes written to out.
+     * @throws javax.crypto.AEADBadTagException if the segment fails authentication.
+     */
+    int decrypt(byte[] aad, byte[] in, int inOffset, int length, byte[] out, int outOffset)
+            throws GeneralSecurityException {
+        if (length < OVERHEAD || length > getEncryptedSegmentLength()) {
+            throw new IllegalArgumentException("Invalid encrypted segment length " + length);
+        }
+        Cipher cipher = cipher();
+        cipher.init(Cipher.DECRYPT_MODE, contentKey,
+                new GCMParameterSpec(TAG_LENGTH * 8, in, inOffset, NONCE_LENGTH));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(in, inOffset + NONCE_LENGTH, length - NONCE_LENGTH, out,
+                outOffset);
+    }
+
+    private static byte[] aad(long segment, boolean last) {
+        byte[] aad = new byte[9];
+        for (int i = 0; i < 8; i++) {
+            aad[i] = (byte) (segment >>> (56 - 8 * i));
+        }
+        aad[8] = (byte) (last ? 1 : 0);
+        return aad;
+    }
+
+    private static Cipher cipher() throws GeneralSecurityException {
+        Cipher cipher = CIPHERS.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            CIPHERS.set(cipher);
+        }
+        return cipher;
+    }
+}
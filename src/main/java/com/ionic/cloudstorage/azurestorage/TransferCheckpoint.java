@@ -0,0 +1,117 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The saved progress of an {@link IonicResumableTransfer}: the blob and the version of the
+ * content being transferred, the {@link EncryptionData} holding the wrapped content key, and the
+ * number of leading segments known to be staged or written. The content key itself is never
+ * saved; a resumed transfer unwraps it again with the same Ionic Key.
+ */
+final class TransferCheckpoint {
+
+    static final String UPLOAD = "upload";
+    static final String DOWNLOAD = "download";
+
+    private static final String KIND = "kind";
+    private static final String BLOB = "blob";
+    private static final String VERSION = "version";
+    private static final String ENCRYPTION_DATA = "encryptionData";
+    private static final String SEGMENTS = "segments";
+
+    private final Path path;
+    private final String kind;
+    private final String blob;
+    private final String version;
+    private final String encryptionData;
+    private long segments;
+
+    TransferCheckpoint(Path path, String kind, String blob, String version,
+            String encryptionData, long segments) {
+        this.path = path;
+        this.kind = kind;
+        this.blob = blob;
+        this.version = version;
+        this.encryptionData = encryptionData;
+        this.segments = segments;
+    }
+
+    /**
+     * Reads the checkpoint, or returns null if the file does not exist.
+     */
+    static TransferCheckpoint load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream stream = Files.newInputStream(path)) {
+            properties.load(stream);
+        }
+        try {
+            return new TransferCheckpoint(path, properties.getProperty(KIND),
+                    properties.getProperty(BLOB), properties.getProperty(VERSION),
+                    properties.getProperty(ENCRYPTION_DATA),
+                    Long.parseLong(properties.getProperty(SEGMENTS, "0")));
+        } catch (NumberFormatException e) {
+            throw new IOException("Checkpoint " + path + " is corrupt", e);
+        }
+    }
+
+    /**
+     * Checks that the checkpoint was saved by the same kind of transfer of the same blob.
+     */
+    void check(String expectedKind, String expectedBlob) throws IOException {
+        if (!expectedKind.equals(kind) || !expectedBlob.equals(blob)) {
+            throw new IOException("Checkpoint " + path + " is for the " + kind + " of " + blob);
+        }
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    String getEncryptionData() {
+        return encryptionData;
+    }
+
+    long getSegments() {
+        return segments;
+    }
+
+    void setSegments(long segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Replaces the checkpoint atomically, so a crash leaves either the old or the new one.
+     */
+    void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KIND, kind);
+        properties.setProperty(BLOB, blob);
+        properties.setProperty(VERSION, version);
+        properties.setProperty(ENCRYPTION_DATA, encryptionData);
+        properties.setProperty(SEGMENTS, Long.toString(segments));
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temporary)) {
+            properties.store(stream, "IonicResumableTransfer checkpoint");
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+}
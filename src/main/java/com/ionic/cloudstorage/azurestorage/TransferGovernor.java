@@ -0,0 +1,560 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.microsoft.azure.storage.OperationContext;
+import com.microsoft.azure.storage.ResponseReceivedEvent;
+import com.microsoft.azure.storage.StorageEvent;
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the bytes and requests per second of the transfers sharing it, so that bulk jobs on
+ * a JVM stay within the bandwidth of a shared uplink and the throughput limits of the storage
+ * account. Set a {@link Job} of the governor on each {@link IonicBlobTransfer} with
+ * {@link IonicBlobTransfer#setGovernorJob(Job)}; {@link #getShared()} returns a governor
+ * shared by the whole JVM.
+ *
+ * <p>Each segment request waits for its bytes and one request from two token buckets refilled
+ * at the configured rates, holding up to {@link #getBurstMillis()} of either. A request which
+ * is larger than the bucket waits only for a full bucket and leaves it in debt. While
+ * requests wait, the buckets are shared between jobs in proportion to their weights by
+ * start-time fair queueing, so a job of weight 2 moves twice the bytes of a job of weight 1
+ * and an idle job accrues no credit.</p>
+ *
+ * <p>The rates adapt to throttling by additive increase and multiplicative decrease: a
+ * ServerBusy (503) response halves the effective rates, at most once per
+ * {@link #getAdjustmentMillis()}, down to {@link #MIN_RATE_FACTOR} of the configured rates;
+ * successful responses raise them again by {@link #RATE_INCREASE} of the configured rates per
+ * adjustment interval. Aggregate throughput thus settles just under the rate the account
+ * sustains rather than oscillating between full rate and throttling. The Azure Storage SDK
+ * still retries throttled requests under its own retry policy.</p>
+ */
+public class TransferGovernor {
+
+    /**
+     * Default time for which the buckets accrue tokens.
+     */
+    public static final long DEFAULT_BURST_MILLIS = 1000;
+
+    /**
+     * Default minimum interval between rate adjustments.
+     */
+    public static final long DEFAULT_ADJUSTMENT_MILLIS = 1000;
+
+    /**
+     * Lowest fraction of the configured rates to which throttling reduces the effective rates.
+     */
+    public static final double MIN_RATE_FACTOR = 1.0 / 32;
+
+    /**
+     * Fraction of the configured rates restored per adjustment interval without throttling.
+     */
+    public static final double RATE_INCREASE = 0.05;
+
+    private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_MULTIPLE_CHOICES = 300;
+
+    private static final TransferGovernor SHARED = new TransferGovernor(0, 0);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>(
+            (a, b) -> a.start != b.start ? Double.compare(a.start, b.start)
+                    : Long.compare(a.order, b.order));
+    private final AtomicLong throttledResponses = new AtomicLong();
+    private long bytesPerSecond;
+    private long requestsPerSecond;
+    private long burstNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BURST_MILLIS);
+    private long adjustmentNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_ADJUSTMENT_MILLIS);
+    private double rateFactor = 1;
+    private long lastAdjustment = System.nanoTime();
+    private long lastDecrease = lastAdjustment;
+    private double byteTokens;
+    private double requestTokens;
+    private long refilled = System.nanoTime();
+    private double virtualTime = 0;
+    private long order = 0;
+
+    /**
+     * Returns the governor shared by every transfer in the JVM which sets one of its jobs,
+     * unlimited until its rates are set.
+     *
+     * @return the shared TransferGovernor.
+     */
+    public static TransferGovernor getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Constructs a TransferGovernor with the specified limits.
+     *
+     * @param bytesPerSecond the byte rate limit, or 0 for no limit.
+     * @param requestsPerSecond the request rate limit, or 0 for no limit.
+     */
+    public TransferGovernor(long bytesPerSecond, long requestsPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+        setRequestsPerSecond(requestsPerSecond);
+        byteTokens = byteCapacity();
+        requestTokens = requestCapacity();
+    }
+
+    /**
+     * Creates a job of the specified weight sharing the governor's budget.
+     *
+     * @param name the name of the job.
+     * @param weight the share of the budget given to the job while others wait, relative to
+     *        their weights.
+     * @return a {@link Job}.
+     */
+    public Job newJob(String name, double weight) {
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        return new Job(this, name, weight);
+    }
+
+    /**
+     * Sets the byte rate limit.
+     *
+     * @param bytesPerSecond the byte rate limit, or 0 for no limit.
+     */
+    public void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("bytesPerSecond must not be negative");
+        }
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            this.bytesPerSecond = bytesPerSecond;
+            byteTokens = Math.min(byteTokens, byteCapacity());
+            signalHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the byte rate limit.
+     *
+     * @return the byte rate limit, or 0 if there is no limit.
+     */
+    public long getBytesPerSecond() {
+        lock.lock();
+        try {
+            return bytesPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the request rate limit.
+     *
+     * @param requestsPerSecond the request rate limit, or 0 for no limit.
+     */
+    public void setRequestsPerSecond(long requestsPerSecond) {
+        if (requestsPerSecond < 0) {
+            throw new IllegalArgumentException("requestsPerSecond must not be negative");
+        }
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            this.requestsPerSecond = requestsPerSecond;
+            requestTokens = Math.min(requestTokens, requestCapacity());
+            signalHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the request rate limit.
+     *
+     * @return the request rate limit, or 0 if there is no limit.
+     */
+    public long getRequestsPerSecond() {
+        lock.lock();
+        try {
+            return requestsPerSecond;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time for which the buckets accrue tokens, which bounds the burst allowed after
+     * an idle period.
+     *
+     * @param burstMillis the burst time in milliseconds.
+     */
+    public void setBurstMillis(long burstMillis) {
+        if (burstMillis <= 0) {
+            throw new IllegalArgumentException("burstMillis must be positive");
+        }
+        lock.lock();
+        try {
+            this.burstNanos = TimeUnit.MILLISECONDS.toNanos(burstMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the time for which the buckets accrue tokens.
+     *
+     * @return the burst time in milliseconds.
+     */
+    public long getBurstMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(burstNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the minimum interval between rate adjustments, which should be about the time
+     * throttling takes to show in responses.
+     *
+     * @param adjustmentMillis the adjustment interval in milliseconds.
+     */
+    public void setAdjustmentMillis(long adjustmentMillis) {
+        if (adjustmentMillis < 0) {
+            throw new IllegalArgumentException("adjustmentMillis must not be negative");
+        }
+        lock.lock();
+        try {
+            this.adjustmentNanos = TimeUnit.MILLISECONDS.toNanos(adjustmentMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the minimum interval between rate adjustments.
+     *
+     * @return the adjustment interval in milliseconds.
+     */
+    public long getAdjustmentMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(adjustmentNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fraction of the configured rates currently in effect, lowered by throttling.
+     *
+     * @return the rate factor, between {@link #MIN_RATE_FACTOR} and 1.
+     */
+    public double getRateFactor() {
+        lock.lock();
+        try {
+            return rateFactor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of ServerBusy responses seen so far.
+     *
+     * @return the throttled response count.
+     */
+    public long getThrottledResponses() {
+        return throttledResponses.get();
+    }
+
+    /**
+     * Returns the number of requests waiting for tokens.
+     *
+     * @return the number of waiting requests.
+     */
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the job may make one request transferring the specified number of bytes.
+     */
+    void acquire(Job job, long bytes) throws InterruptedIOException {
+        long started = System.nanoTime();
+        lock.lock();
+        try {
+            if (bytesPerSecond == 0 && requestsPerSecond == 0) {
+                return;
+            }
+            refill(started);
+            double start = Math.max(virtualTime, job.finish);
+            job.finish = start + (bytes + 1) / job.weight;
+            if (waiters.isEmpty() && available(bytes)) {
+                take(bytes);
+                virtualTime = start;
+                return;
+            }
+            Waiter waiter = new Waiter(lock.newCondition(), start, order++);
+            waiters.add(waiter);
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    refill(now);
+                    if (waiters.peek() == waiter) {
+                        long deficitNanos = deficitNanos(bytes);
+                        if (deficitNanos <= 0) {
+                            break;
+                        }
+                        waiter.condition.awaitNanos(deficitNanos);
+                    } else {
+                        waiter.condition.await();
+                    }
+                }
+            } catch (InterruptedException e) {
+                waiters.remove(waiter);
+                signalHead();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for transfer budget");
+            }
+            waiters.poll();
+            take(bytes);
+            virtualTime = start;
+            signalHead();
+        } finally {
+            lock.unlock();
+            job.waitNanos.addAndGet(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Records a response, lowering the rates on ServerBusy and raising them on success.
+     */
+    void onResponse(int statusCode) {
+        boolean throttled = statusCode == HTTP_SERVICE_UNAVAILABLE;
+        if (throttled) {
+            throttledResponses.incrementAndGet();
+        } else if (statusCode < HTTP_OK || statusCode >= HTTP_MULTIPLE_CHOICES) {
+            return;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (throttled) {
+                // Responses to requests sent before the last decrease do not count again.
+                if (now - lastDecrease >= adjustmentNanos && rateFactor > MIN_RATE_FACTOR) {
+                    refill(now);
+                    rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+                    byteTokens = Math.min(byteTokens, byteCapacity());
+                    requestTokens = Math.min(requestTokens, requestCapacity());
+                    lastDecrease = now;
+                    lastAdjustment = now;
+                }
+            } else if (rateFactor < 1 && now - lastAdjustment >= adjustmentNanos) {
+                refill(now);
+                rateFactor = Math.min(1, rateFactor + RATE_INCREASE);
+                lastAdjustment = now;
+                signalHead();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private double byteCapacity() {
+        return bytesPerSecond * rateFactor * burstNanos / 1e9;
+    }
+
+    private double requestCapacity() {
+        return Math.max(1, requestsPerSecond * rateFactor * burstNanos / 1e9);
+    }
+
+    private void refill(long now) {
+        double seconds = (now - refilled) / 1e9;
+        refilled = now;
+        if (bytesPerSecond > 0) {
+            byteTokens = Math.min(byteCapacity(),
+                    byteTokens + seconds * bytesPerSecond * rateFactor);
+        }
+        if (requestsPerSecond > 0) {
+            requestTokens = Math.min(requestCapacity(),
+                    requestTokens + seconds * requestsPerSecond * rateFactor);
+        }
+    }
+
+    private boolean available(long bytes) {
+        return deficitNanos(bytes) <= 0;
+    }
+
+    /**
+     * Returns the time until the buckets hold enough tokens for the request.
+     */
+    private long deficitNanos(long bytes) {
+        double seconds = 0;
+        if (bytesPerSecond > 0) {
+            double needed = Math.min(bytes, byteCapacity()) - byteTokens;
+            seconds = Math.max(seconds, needed / (bytesPerSecond * rateFactor));
+        }
+        if (requestsPerSecond > 0) {
+            double needed = 1 - requestTokens;
+            seconds = Math.max(seconds, needed / (requestsPerSecond * rateFactor));
+        }
+        return seconds <= 0 ? 0 : Math.max(1, (long) Math.ceil(seconds * 1e9));
+    }
+
+    private void take(long bytes) {
+        if (bytesPerSecond > 0) {
+            byteTokens -= bytes;
+        }
+        if (requestsPerSecond > 0) {
+            requestTokens -= 1;
+        }
+    }
+
+    private void signalHead() {
+        Waiter head = waiters.peek();
+        if (head != null) {
+            head.condition.signal();
+        }
+    }
+
+    /**
+     * A transfer job sharing the budget of a {@link TransferGovernor} in proportion to its
+     * weight.
+     */
+    public static final class Job {
+
+        /**
+         * A job which never waits, used by transfers without a governor.
+         */
+        static final Job UNGOVERNED = new Job(null, "ungoverned", 1);
+
+        private final TransferGovernor governor;
+        private final String name;
+        private final double weight;
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final StorageEvent<ResponseReceivedEvent> listener;
+        // Guarded by the governor's lock.
+        private double finish = 0;
+
+        private Job(TransferGovernor governor, String name, double weight) {
+            this.governor = governor;
+            this.name = name;
+            this.weight = weight;
+            this.listener = new StorageEvent<ResponseReceivedEvent>() {
+                @Override
+                public void eventOccurred(ResponseReceivedEvent event) {
+                    governor.onResponse(event.getRequestResult().getStatusCode());
+                }
+            };
+        }
+
+        /**
+         * Returns the TransferGovernor of the job.
+         *
+         * @return a {@link TransferGovernor}.
+         */
+        public TransferGovernor getGovernor() {
+            return governor;
+        }
+
+        /**
+         * Returns the name of the job.
+         *
+         * @return the name.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the weight of the job.
+         *
+         * @return the weight.
+         */
+        public double getWeight() {
+            return weight;
+        }
+
+        /**
+         * Returns the number of bytes the job has been granted.
+         *
+         * @return the byte count.
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * Returns the number of requests the job has been granted.
+         *
+         * @return the request count.
+         */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * Returns the total time the job's requests have waited for the budget.
+         *
+         * @return the wait time in nanoseconds.
+         */
+        public long getWaitNanos() {
+            return waitNanos.get();
+        }
+
+        /**
+         * Waits until the job may make one request transferring the specified number of
+         * bytes.
+         */
+        void acquire(long length) throws InterruptedIOException {
+            if (governor == null) {
+                return;
+            }
+            governor.acquire(this, length);
+            bytes.addAndGet(length);
+            requests.incrementAndGet();
+        }
+
+        /**
+         * Returns an OperationContext reporting the responses of a request to the governor, or
+         * null for the ungoverned job.
+         */
+        OperationContext context() {
+            if (governor == null) {
+                return null;
+            }
+            OperationContext context = new OperationContext();
+            context.getResponseReceivedEventHandler().addListener(listener);
+            return context;
+        }
+    }
+
+    private static final class Waiter {
+
+        private final Condition condition;
+        private final double start;
+        private final long order;
+
+        Waiter(Condition condition, double start, long order) {
+            this.condition = condition;
+            this.start = start;
+            this.order = order;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+/**
+ * Per-blob statistics reported by {@link IonicBlobTransfer} uploads and downloads.
+ */
+public final class TransferStats {
+
+    private final String blobName;
+    private final CompressionCodec codec;
+    private final long plaintextBytes;
+    private final long storedBytes;
+    private final long elapsedNanos;
+
+    TransferStats(String blobName, CompressionCodec codec, long plaintextBytes,
+            long storedBytes, long elapsedNanos) {
+        this.blobName = blobName;
+        this.codec = codec;
+        this.plaintextBytes = plaintextBytes;
+        this.storedBytes = storedBytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the name of the blob transferred.
+     *
+     * @return the blob name.
+     */
+    public String getBlobName() {
+        return blobName;
+    }
+
+    /**
+     * Returns the compression codec applied to the blob.
+     *
+     * @return a {@link CompressionCodec}
+     */
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Returns the number of plaintext bytes read for upload or written by download.
+     *
+     * @return the plaintext byte count.
+     */
+    public long getPlaintextBytes() {
+        return plaintextBytes;
+    }
+
+    /**
+     * Returns the number of bytes stored in or fetched from Azure Storage.
+     *
+     * @return the stored byte count.
+     */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Returns the duration of the transfer.
+     *
+     * @return the elapsed time in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the ratio of plaintext bytes to stored bytes, including encryption overhead.
+     *
+     * @return the compression ratio, or 0 if nothing was stored.
+     */
+    public double getRatio() {
+        return storedBytes == 0 ? 0 : (double) plaintextBytes / storedBytes;
+    }
+
+    /**
+     * Returns the plaintext throughput of the transfer.
+     *
+     * @return the throughput in bytes per second.
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : plaintextBytes * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d plaintext bytes, %d stored bytes (%s, ratio %.2f), "
+                + "%.1f MB/s", blobName, plaintextBytes, storedBytes, codec.getName(),
+                getRatio(), getThroughput() / 1e6);
+    }
+}
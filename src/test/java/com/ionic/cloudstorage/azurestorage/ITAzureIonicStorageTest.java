@@ -12,7 +12,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringBufferInputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ionic.sdk.agent.Agent;
 import com.ionic.sdk.agent.key.KeyAttributesMap;
@@ -20,9 +27,11 @@ import com.ionic.sdk.agent.request.createkey.CreateKeysRequest;
 import com.ionic.sdk.agent.request.getkey.GetKeysResponse;
 import com.ionic.sdk.error.IonicException;
 
+import com.microsoft.azure.keyvault.core.IKey;
 import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
 import com.microsoft.azure.storage.blob.BlobRequestOptions;
 import com.microsoft.azure.storage.blob.BlobEncryptionPolicy;
+import com.microsoft.azure.storage.blob.CloudAppendBlob;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
 import com.microsoft.azure.storage.blob.CloudBlockBlob;
@@ -179,4 +188,378 @@ public class ITAzureIonicStorageTest {
             testString.getBytes(), downloadedBlobBytes);
     }
 
+    @Test
+    public void seekableChannelReadsRange() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String blobName = TestUtils.getTestObjectKey();
+        if (blobName == null) {
+            blobName = "seekableChannelReadsRange";
+        }
+
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+
+        byte[] payload = new byte[100000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        SymmetricKey key = ionicKeyResolverFactory.create();
+        BlobRequestOptions blobRequestOptions = new BlobRequestOptions();
+        blobRequestOptions.setEncryptionPolicy(new BlobEncryptionPolicy(key, null));
+        log.info("Uploading Blob " + blobName + " to container " + testContainerString + " for Storage " + storageAccount +" with Azure Ionic Storage");
+        blob.upload(new ByteArrayInputStream(payload), payload.length, null, blobRequestOptions, null);
+
+        log.info("Reading range of Blob " + blobName + " from container " + testContainerString + " with IonicBlobChannel");
+        IonicBlobChannel channel = new IonicBlobChannel(blob, ionicKeyResolverFactory.createKeyResolver(), 4096);
+        assertEquals("Channel size does not match plaintext length", payload.length, channel.size());
+        ByteBuffer buffer = ByteBuffer.allocate(10000);
+        channel.position(54321);
+        while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+        }
+        channel.close();
+
+        assertArrayEquals("Decrypted range does not match original bytes",
+            Arrays.copyOfRange(payload, 54321, 64321), buffer.array());
+    }
+
+    @Test
+    public void packedBlobReadsRecords() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String blobName = TestUtils.getTestObjectKey();
+        if (blobName == null) {
+            blobName = "packedBlobReadsRecords";
+        }
+
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+
+        log.info("Writing packed Blob " + blobName + " to container " + testContainerString + " with IonicPackedBlobWriter");
+        IonicPackedBlobWriter writer = new IonicPackedBlobWriter(blob, ionicKeyResolverFactory.create(), 1024);
+        for (int i = 0; i < 100; i++) {
+            writer.append("record" + i, ("Record payload " + i).getBytes("UTF-8"));
+        }
+        writer.close();
+
+        log.info("Reading records of packed Blob " + blobName + " with IonicPackedBlobReader");
+        IonicPackedBlobReader reader = new IonicPackedBlobReader(blob, ionicKeyResolverFactory.createKeyResolver());
+        assertEquals("Record count does not match", 100, reader.getRecordCount());
+        assertArrayEquals("Record does not match original bytes",
+            "Record payload 42".getBytes("UTF-8"), reader.read(42));
+        assertArrayEquals("Named record does not match original bytes",
+            "Record payload 99".getBytes("UTF-8"), reader.read("record99"));
+    }
+
+    @Test
+    public void uploadSessionRetainsMetadata() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String blobName = TestUtils.getTestObjectKey();
+        if (blobName == null) {
+            blobName = "uploadSessionRetainsMetadata";
+        }
+
+        IonicUploadSession session = new IonicUploadSession(client, ionicKeyResolverFactory);
+        byte[] first = "First upload".getBytes("UTF-8");
+        byte[] second = "Second upload".getBytes("UTF-8");
+
+        log.info("Uploading Blob " + blobName + " to container " + testContainerString + " with IonicUploadSession");
+        session.upload(testContainerString, blobName, new ByteArrayInputStream(first), first.length,
+            Collections.singletonMap("owner", "session"), ionicKeyResolverFactory.create());
+        assertTrue("Container was not cached", session.isKnownContainer(testContainerString));
+        CloudBlockBlob blob = session.upload(testContainerString, blobName,
+            new ByteArrayInputStream(second), second.length);
+
+        assertEquals("Metadata was not retained", "session", blob.getMetadata().get("owner"));
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setEncryptionPolicy(new BlobEncryptionPolicy(null, ionicKeyResolverFactory.createKeyResolver()));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        container.getBlockBlobReference(blobName).download(os, null, options, null);
+        assertArrayEquals("Decrypted Blob does not match second upload", second, os.toByteArray());
+    }
+
+    @Test
+    public void uploadSessionStreamsUnknownLength() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String blobName = TestUtils.getTestObjectKey();
+        if (blobName == null) {
+            blobName = "uploadSessionStreamsUnknownLength";
+        }
+
+        IonicUploadSession session = new IonicUploadSession(client, ionicKeyResolverFactory);
+        byte[] payload = new byte[IonicBlobOutputStream.DEFAULT_BLOCK_LENGTH * 2 + 1000];
+        new Random().nextBytes(payload);
+
+        log.info("Uploading Blob " + blobName + " of unknown length to container " + testContainerString);
+        session.upload(testContainerString, blobName, new ByteArrayInputStream(payload), -1);
+
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setEncryptionPolicy(new BlobEncryptionPolicy(null, ionicKeyResolverFactory.createKeyResolver()));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        container.getBlockBlobReference(blobName).download(os, null, options, null);
+        assertArrayEquals("Decrypted Blob does not match upload", payload, os.toByteArray());
+    }
+
+    @Test
+    public void bufferHelpersRoundTripText() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String blobName = TestUtils.getTestObjectKey();
+        if (blobName == null) {
+            blobName = "bufferHelpersRoundTripText";
+        }
+
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        String text = "{\"greeting\": \"gr\u00fc\u00df dich \u4e16\u754c\"}";
+
+        log.info("Uploading Blob " + blobName + " to container " + testContainerString + " with IonicBlobBuffers");
+        IonicBlobBuffers.uploadText(blob, text, ionicKeyResolverFactory.create());
+
+        CloudBlockBlob downloaded = container.getBlockBlobReference(blobName);
+        assertEquals("Decrypted Blob does not match original String", text,
+            IonicBlobBuffers.downloadText(downloaded, ionicKeyResolverFactory.createKeyResolver()));
+
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setEncryptionPolicy(new BlobEncryptionPolicy(null, ionicKeyResolverFactory.createKeyResolver()));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        container.getBlockBlobReference(blobName).download(os, null, options, null);
+        assertArrayEquals("BlobEncryptionPolicy does not decrypt the upload",
+            text.getBytes("UTF-8"), os.toByteArray());
+
+        ByteBuffer buffer = IonicBlobBuffers.download(downloaded, ionicKeyResolverFactory.createKeyResolver());
+        assertTrue("Downloaded buffer is writable", buffer.isReadOnly());
+        assertEquals("Downloaded buffer has the wrong length", text.getBytes("UTF-8").length,
+            buffer.remaining());
+    }
+
+    @Test
+    public void keyRotationRewrapsContentKey() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String blobName = "keyRotationRewrapsContentKey/blob";
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        byte[] payload = "Rotated payload".getBytes("UTF-8");
+
+        log.info("Uploading Blob " + blobName + " to container " + testContainerString + " for key rotation");
+        IonicBlobBuffers.upload(blob, payload, ionicKeyResolverFactory.create());
+        String oldKeyId = EncryptionData.fromMetadata(blob.getMetadata()).getKeyId();
+
+        IonicKeyRotation rotation = new IonicKeyRotation(ionicKeyResolverFactory);
+        rotation.setKeyFilter(oldKeyId::equals);
+        IonicKeyRotation.Result result = rotation.rotate(container, "keyRotationRewrapsContentKey/");
+
+        assertEquals("Blob was not rotated: " + result.getFailures(), 1, result.getRotated());
+        CloudBlockBlob rotated = container.getBlockBlobReference(blobName);
+        BlobRequestOptions options = new BlobRequestOptions();
+        options.setEncryptionPolicy(new BlobEncryptionPolicy(null, ionicKeyResolverFactory.createKeyResolver()));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        rotated.download(os, null, options, null);
+        assertArrayEquals("Rotated Blob does not decrypt to original bytes", payload, os.toByteArray());
+        assertNotEquals("Blob is still wrapped under the old key", oldKeyId,
+            EncryptionData.fromMetadata(rotated.getMetadata()).getKeyId());
+    }
+
+    @Test
+    public void resumableTransferContinuesFromCheckpoint() throws IonicException,
+            URISyntaxException, StorageException, IOException {
+        String blobName = "resumableTransferContinuesFromCheckpoint";
+        CloudBlockBlob blob = container.getBlockBlobReference(blobName);
+        byte[] payload = new byte[5000];
+        new Random().nextBytes(payload);
+        Path source = Files.createTempFile("resumable", ".src");
+        Path target = Files.createTempFile("resumable", ".dst");
+        Path checkpoint = Files.createTempFile("resumable", ".checkpoint");
+        Files.delete(checkpoint);
+        try {
+            Files.write(source, payload);
+            IonicBlobTransfer transfer = new IonicBlobTransfer(ionicKeyResolverFactory);
+            transfer.setSegmentLength(1024);
+            IonicResumableTransfer resumable = new IonicResumableTransfer(transfer);
+
+            log.info("Uploading Blob " + blobName + " to container " + testContainerString + " with a checkpoint");
+            resumable.upload(blob, source, checkpoint);
+            assertFalse("Checkpoint was not deleted after upload", Files.exists(checkpoint));
+
+            CloudBlockBlob downloaded = container.getBlockBlobReference(blobName);
+            resumable.download(downloaded, target, checkpoint);
+            assertArrayEquals("Downloaded file does not match original bytes", payload,
+                Files.readAllBytes(target));
+
+            // Pretend the download stopped after two segments with a partial third written.
+            Files.write(target, Arrays.copyOf(payload, 2500));
+            new TransferCheckpoint(checkpoint, TransferCheckpoint.DOWNLOAD,
+                downloaded.getUri().toString(), downloaded.getProperties().getEtag(),
+                EncryptionData.fromMetadata(downloaded.getMetadata()).toJson(), 2).save();
+            TransferStats stats = resumable.download(downloaded, target, checkpoint);
+            assertEquals("Resumed download fetched segments already written", 5000 - 2048,
+                stats.getPlaintextBytes());
+            assertArrayEquals("Resumed file does not match original bytes", payload,
+                Files.readAllBytes(target));
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(checkpoint);
+        }
+    }
+
+    @Test
+    public void bulkDownloadFetchesEachKeyOnce() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String prefix = "bulkDownloadFetchesEachKeyOnce/";
+        IonicBlobTransfer transfer = new IonicBlobTransfer(ionicKeyResolverFactory);
+        IKey[] keys = {ionicKeyResolverFactory.create(), ionicKeyResolverFactory.create()};
+        for (int i = 0; i < 6; i++) {
+            byte[] payload = ("Blob " + i).getBytes("UTF-8");
+            transfer.upload(container.getBlockBlobReference(prefix + i),
+                new ByteArrayInputStream(payload), keys[i % 2]);
+        }
+
+        Map<String, ByteArrayOutputStream> downloads = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+        IonicBulkDownloader downloader = new IonicBulkDownloader(transfer);
+        IonicBulkDownloader.Result result = downloader.download(container, prefix, blob -> {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            downloads.put(blob.getName(), os);
+            return os;
+        });
+
+        assertEquals("Blobs failed to download: " + result.getFailures(), 6, result.getDownloaded());
+        assertEquals(2, result.getDistinctKeys());
+        assertEquals("Keys were not fetched in one request", 1, result.getKeyRequests());
+        for (int i = 0; i < 6; i++) {
+            assertEquals("Blob " + i, downloads.get(prefix + i).toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void verifierChecksRecordedDigest() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String prefix = "verifierChecksRecordedDigest/";
+        IonicBlobTransfer transfer = new IonicBlobTransfer(ionicKeyResolverFactory);
+        transfer.setPlaintextDigest(true);
+        byte[] payload = new byte[3000];
+        new Random().nextBytes(payload);
+        CloudBlockBlob intact = container.getBlockBlobReference(prefix + "intact");
+        transfer.upload(intact, new ByteArrayInputStream(payload));
+        CloudBlockBlob altered = container.getBlockBlobReference(prefix + "altered");
+        transfer.upload(altered, new ByteArrayInputStream(payload));
+        altered.getMetadata().put(IonicBlobTransfer.DIGEST_METADATA_KEY,
+            java.util.Base64.getEncoder().encodeToString(new byte[32]));
+        altered.uploadMetadata();
+        IonicBlobBuffers.upload(container.getBlockBlobReference(prefix + "cbc"), payload,
+            ionicKeyResolverFactory.create());
+
+        IonicBlobVerifier.Report report = new IonicBlobVerifier(transfer).verify(container, prefix);
+
+        assertEquals("Blobs failed verification: " + report.getFailures(), 2, report.getVerified());
+        assertEquals(Collections.singleton(prefix + "altered"), report.getFailures().keySet());
+        assertTrue(report.getKeyErrors().isEmpty());
+        assertEquals(2L * payload.length, report.getPlaintextBytes());
+    }
+
+    @Test
+    public void verifierReadsPackedRecords() throws IonicException, URISyntaxException,
+            StorageException, IOException {
+        String prefix = "verifierReadsPackedRecords/";
+        IonicBlobTransfer transfer = new IonicBlobTransfer(ionicKeyResolverFactory);
+        IonicPackedBlobWriter writer = new IonicPackedBlobWriter(
+            container.getBlockBlobReference(prefix + "packed"), ionicKeyResolverFactory.create(), 1024);
+        long plaintextBytes = 0;
+        for (int i = 0; i < 50; i++) {
+            byte[] record = ("Record payload " + i).getBytes("UTF-8");
+            writer.append("record" + i, record);
+            plaintextBytes += record.length;
+        }
+        writer.close();
+
+        IonicBlobVerifier.Report report = new IonicBlobVerifier(transfer).verify(container, prefix);
+
+        assertEquals("Blobs failed verification: " + report.getFailures(), 1, report.getVerified());
+        assertEquals(0, report.getSkipped());
+        assertEquals(0, report.getUnsupported());
+        assertEquals(plaintextBytes, report.getPlaintextBytes());
+    }
+
+    @Test
+    public void appendBlobWriterRollsKeysAndReaderTails() throws IonicException,
+            URISyntaxException, StorageException, IOException {
+        CloudAppendBlob blob = container.getAppendBlobReference("appendBlobWriterRollsKeysAndReaderTails");
+        blob.deleteIfExists();
+        IonicAppendBlobWriter writer = new IonicAppendBlobWriter(blob, ionicKeyResolverFactory);
+        writer.setFrameLength(1024);
+        writer.setCommitLength(4096);
+        writer.setCommitInterval(0);
+        writer.setFramesPerKey(3);
+        IonicAppendBlobReader reader = new IonicAppendBlobReader(blob,
+            ionicKeyResolverFactory.createKeyResolver());
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream tailed = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 20; i++) {
+            byte[] line = ("Log line " + i + " " + new String(new char[300]).replace('\0', 'x')
+                + "\n").getBytes("UTF-8");
+            writer.write(line);
+            expected.write(line);
+            if (i % 7 == 6) {
+                writer.flush();
+                reader.poll(tailed);
+                assertArrayEquals(expected.toByteArray(), tailed.toByteArray());
+            }
+        }
+        writer.close();
+        reader.poll(tailed);
+
+        assertArrayEquals(expected.toByteArray(), tailed.toByteArray());
+        assertEquals(writer.getFrameCount(), reader.getSequence());
+        assertEquals(writer.getCommittedLength(), reader.getPosition());
+        assertTrue("Writer did not roll keys", writer.getKeyCount() > 1);
+        assertEquals(0, reader.poll(tailed));
+    }
+
+    @Test
+    public void uncompressedTransferLeavesCallerStreamsOpen() throws IonicException,
+            URISyntaxException, StorageException, IOException {
+        CloudBlockBlob blob = container.getBlockBlobReference(
+            "uncompressedTransferLeavesCallerStreamsOpen");
+        IonicBlobTransfer transfer = new IonicBlobTransfer(ionicKeyResolverFactory);
+        transfer.setCompression(CompressionCodec.NONE);
+        boolean[] closed = new boolean[2];
+        ByteArrayInputStream source = new ByteArrayInputStream(testString.getBytes()) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        ByteArrayOutputStream target = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[1] = true;
+            }
+        };
+
+        transfer.upload(blob, source);
+        transfer.download(container.getBlockBlobReference(blob.getName()), target);
+
+        assertFalse("Upload closed the source", closed[0]);
+        assertFalse("Download closed the target", closed[1]);
+        assertArrayEquals(testString.getBytes(), target.toByteArray());
+    }
+
+    @Test
+    public void downloadRejectsUnencryptedBlobWhenRequired() throws IonicException,
+            URISyntaxException, StorageException, IOException {
+        CloudBlockBlob blob = container.getBlockBlobReference(
+            "downloadRejectsUnencryptedBlobWhenRequired");
+        BlobRequestOptions plain = new BlobRequestOptions();
+        plain.setRequireEncryption(false);
+        blob.uploadText(testString, "UTF-8", null, plain, null);
+        IonicBlobTransfer transfer = new IonicBlobTransfer(ionicKeyResolverFactory);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        transfer.setRequireEncryption(false);
+        transfer.download(container.getBlockBlobReference(blob.getName()), target);
+        assertEquals(testString, target.toString("UTF-8"));
+
+        transfer.setRequireEncryption(true);
+        try {
+            transfer.download(container.getBlockBlobReference(blob.getName()),
+                new ByteArrayOutputStream());
+            fail("Unencrypted blob was downloaded although encryption is required");
+        } catch (StorageException e) {
+            log.info("Unencrypted blob rejected: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares content key wrap/unwrap through a per-resolve SymmetricKey (the default
+ * IonicKeyResolver path) with a stored IonicKey using pooled ciphers.
+ * Run after {@code mvn test-compile} with:
+ * {@code java -cp target/test-classes:target/classes:<test classpath> org.openjdk.jmh.Main
+ * IonicKeyBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class IonicKeyBenchmark {
+
+    private static final String KEY_ID = "benchmark";
+
+    private byte[] keyBytes = new byte[IonicKey.KEY_LENGTH];
+    private byte[] contentKey = new byte[IonicKey.KEY_LENGTH];
+    private byte[] wrappedContentKey;
+    private IonicKeyStore store;
+
+    @Setup
+    public void setup() throws Exception {
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(keyBytes);
+        random.nextBytes(contentKey);
+        store = new IonicKeyStore();
+        wrappedContentKey = store.put(KEY_ID, keyBytes)
+                .wrapKeyAsync(contentKey, IonicKey.KEY_WRAP_ALGORITHM).get().getLeft();
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    public byte[] symmetricKeyWrap() throws Exception {
+        return new SymmetricKey(KEY_ID, keyBytes)
+                .wrapKeyAsync(contentKey, IonicKey.KEY_WRAP_ALGORITHM).get().getLeft();
+    }
+
+    @Benchmark
+    public byte[] symmetricKeyUnwrap() throws Exception {
+        return new SymmetricKey(KEY_ID, keyBytes)
+                .unwrapKeyAsync(wrappedContentKey, IonicKey.KEY_WRAP_ALGORITHM).get();
+    }
+
+    @Benchmark
+    public byte[] ionicKeyWrap() throws Exception {
+        return store.put(KEY_ID, keyBytes)
+                .wrapKeyAsync(contentKey, IonicKey.KEY_WRAP_ALGORITHM).get().getLeft();
+    }
+
+    @Benchmark
+    public byte[] ionicKeyUnwrap() throws Exception {
+        return store.put(KEY_ID, keyBytes)
+                .unwrapKeyAsync(wrappedContentKey, IonicKey.KEY_WRAP_ALGORITHM).get();
+    }
+}
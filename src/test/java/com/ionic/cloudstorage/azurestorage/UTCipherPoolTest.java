@@ -0,0 +1,61 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import org.junit.Rule;
+import org.junit.rules.ExpectedException;
+import org.junit.Test;
+
+public class UTCipherPoolTest {
+
+    private byte[] keyBytes = new byte[] {0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31};
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void releasedCipherIsReused() throws GeneralSecurityException {
+        IonicKey key = new IonicKey("1234", keyBytes);
+        CipherPool pool = new CipherPool(key, IonicKey.WRAP_TRANSFORMATION, Cipher.WRAP_MODE);
+
+        Cipher cipher = pool.borrow();
+        pool.release(cipher);
+
+        assertEquals(1, pool.idleCount());
+        assertSame("Pool did not reuse the released Cipher", cipher, pool.borrow());
+        assertEquals(0, pool.idleCount());
+    }
+
+    @Test
+    public void poolIsBounded() throws GeneralSecurityException {
+        IonicKey key = new IonicKey("1234", keyBytes);
+        CipherPool pool = new CipherPool(key, IonicKey.WRAP_TRANSFORMATION, Cipher.WRAP_MODE, 1);
+
+        Cipher first = pool.borrow();
+        Cipher second = pool.borrow();
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test
+    public void destroyedKeyCannotBorrow() throws GeneralSecurityException {
+        IonicKey key = new IonicKey("1234", keyBytes);
+        CipherPool pool = new CipherPool(key, IonicKey.WRAP_TRANSFORMATION, Cipher.WRAP_MODE);
+        pool.release(pool.borrow());
+        key.close();
+        pool.clear();
+
+        assertEquals(0, pool.idleCount());
+        thrown.expect(IonicKey.DestroyedKeyException.class);
+        pool.borrow();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.rules.ExpectedException;
+import org.junit.Test;
+
+public class UTCompressionCodecTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private byte[] text() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append("{\"id\":").append(i).append(",\"name\":\"record\"}\n");
+        }
+        return builder.toString().getBytes();
+    }
+
+    @Test
+    public void deflateRoundTrip() throws IOException {
+        byte[] plaintext = text();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (InputStream in = CompressionCodec.DEFLATE.compress(
+                new ByteArrayInputStream(plaintext))) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                compressed.write(buffer, 0, read);
+            }
+        }
+        assertTrue("Text did not compress", compressed.size() < plaintext.length / 5);
+
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (OutputStream out = CompressionCodec.DEFLATE.decompress(decompressed)) {
+            out.write(compressed.toByteArray());
+        }
+        assertArrayEquals("Decompressed bytes do not match plaintext",
+            plaintext, decompressed.toByteArray());
+    }
+
+    @Test
+    public void closingCodecStreamsLeavesCallerStreamsOpen() throws IOException {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            boolean[] closed = new boolean[2];
+            InputStream source = new ByteArrayInputStream(text()) {
+                @Override
+                public void close() {
+                    closed[0] = true;
+                }
+            };
+            OutputStream target = new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    closed[1] = true;
+                }
+            };
+            try (InputStream in = codec.compress(source)) {
+                assertTrue(in.read() >= 0);
+            }
+            try (OutputStream out = codec.decompress(target)) {
+                out.flush();
+            }
+            assertFalse(codec + " closed the source", closed[0]);
+            assertFalse(codec + " closed the target", closed[1]);
+        }
+    }
+
+    @Test
+    public void sniffCompressibleContent() {
+        byte[] plaintext = text();
+        assertTrue(CompressionCodec.isCompressible(plaintext, plaintext.length));
+
+        byte[] random = new byte[65536];
+        new Random(42).nextBytes(random);
+        assertFalse(CompressionCodec.isCompressible(random, random.length));
+
+        byte[] gzip = text();
+        gzip[0] = (byte) 0x1f;
+        gzip[1] = (byte) 0x8b;
+        assertFalse(CompressionCodec.isCompressible(gzip, gzip.length));
+    }
+
+    @Test
+    public void codecFromMetadata() {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        assertEquals(CompressionCodec.NONE, CompressionCodec.fromMetadata(metadata));
+        metadata.put(CompressionCodec.METADATA_KEY, "deflate");
+        assertEquals(CompressionCodec.DEFLATE, CompressionCodec.fromMetadata(metadata));
+
+        metadata.put(CompressionCodec.METADATA_KEY, "brotli");
+        thrown.expect(IllegalArgumentException.class);
+        CompressionCodec.fromMetadata(metadata);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import org.junit.Rule;
+import org.junit.rules.ExpectedException;
+import org.junit.Test;
+
+public class UTEncryptionDataTest {
+
+    private String cbcJson = "{\"EncryptionMode\":\"FullBlob\",\"WrappedContentKey\":"
+        + "{\"KeyId\":\"D7Gx1234\",\"EncryptedKey\":\"AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8gISIjJCUmJw==\","
+        + "\"Algorithm\":\"A256KW\"},\"EncryptionAgent\":{\"Protocol\":\"1.0\","
+        + "\"EncryptionAlgorithm\":\"AES_CBC_256\"},\"ContentEncryptionIV\":"
+        + "\"AAECAwQFBgcICQoLDA0ODw==\",\"KeyWrappingMetadata\":"
+        + "{\"EncryptionLibrary\":\"Java 8.6.5\"}}";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void parseCbcEncryptionData() {
+        EncryptionData data = EncryptionData.parse(cbcJson);
+
+        assertTrue(data.isCbc());
+        assertFalse(data.isGcm());
+        assertEquals("D7Gx1234", data.getKeyId());
+        assertEquals("A256KW", data.getKeyWrapAlgorithm());
+        assertEquals(40, data.getEncryptedKey().length);
+        assertEquals(16, data.getContentEncryptionIV().length);
+    }
+
+    @Test
+    public void gcmEncryptionDataRoundTrip() {
+        EncryptionData data = EncryptionData.forGcm("D7Gx1234", new byte[40], "A256KW", 1024);
+        EncryptionData parsed = EncryptionData.parse(data.toJson());
+
+        assertTrue(parsed.isGcm());
+        assertEquals("D7Gx1234", parsed.getKeyId());
+        assertEquals(1024, parsed.getSegmentLength());
+        assertNull(parsed.getContentEncryptionIV());
+    }
+
+    @Test
+    public void packEncryptionDataRoundTrip() {
+        EncryptionData data = EncryptionData.forPack("D7Gx1234", new byte[40], "A256KW", 4096);
+        EncryptionData parsed = EncryptionData.parse(data.toJson());
+
+        assertTrue(parsed.isPacked());
+        assertFalse(parsed.isGcm());
+        assertEquals(4096, parsed.getSegmentLength());
+    }
+
+    @Test
+    public void cbcEncryptionDataRoundTrip() {
+        byte[] iv = new byte[16];
+        iv[0] = 1;
+        EncryptionData data = EncryptionData.forCbc("D7Gx1234", new byte[40], "A256KW", iv);
+        EncryptionData parsed = EncryptionData.parse(data.toJson());
+
+        assertTrue(parsed.isCbc());
+        assertEquals("D7Gx1234", parsed.getKeyId());
+        assertArrayEquals(iv, parsed.getContentEncryptionIV());
+    }
+
+    @Test
+    public void withWrappedContentKeyPreservesFields() {
+        EncryptionData data = EncryptionData.parse(cbcJson)
+            .withWrappedContentKey("D7Gx5678", new byte[40], "A256KW");
+
+        assertEquals("D7Gx5678", data.getKeyId());
+        assertTrue(data.isCbc());
+        assertEquals(16, data.getContentEncryptionIV().length);
+        assertTrue(data.toJson().contains("KeyWrappingMetadata"));
+    }
+
+    @Test
+    public void fromMetadataWithoutEncryptionData() {
+        assertNull(EncryptionData.fromMetadata(new HashMap<String, String>()));
+    }
+
+    @Test
+    public void malformedEncryptionData() {
+        thrown.expect(IllegalArgumentException.class);
+        EncryptionData.parse("{\"EncryptionMode\":\"FullBlob\"}");
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import com.ionic.sdk.error.IonicException;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+public class UTIonicAsyncKeyEncryptionKeyResolverTest {
+
+    private byte[] keyBytes = new byte[] {0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31};
+
+    private Scheduler scheduler = Schedulers.newSingle("test-key-service");
+    private List<Collection<String>> requests = new ArrayList<Collection<String>>();
+
+    private IonicKeyResolverFactory factory = new IonicKeyResolverFactory() {
+        @Override
+        protected Map<String, IKey> resolveKeys(Collection<String> keyIds) throws IonicException {
+            synchronized (requests) {
+                requests.add(new ArrayList<String>(keyIds));
+            }
+            Map<String, IKey> keys = new HashMap<String, IKey>();
+            for (String keyId : keyIds) {
+                if (!keyId.startsWith("missing")) {
+                    keys.put(keyId, new SymmetricKey(keyId, keyBytes));
+                }
+            }
+            return keys;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        scheduler.dispose();
+    }
+
+    @Test
+    public void concurrentRequestsAreCoalescedAndBatched() {
+        IonicAsyncKeyEncryptionKeyResolver resolver =
+            new IonicAsyncKeyEncryptionKeyResolver(factory, scheduler);
+        resolver.setBatchDelayMillis(200);
+
+        List<CompletableFuture<IonicAsyncKeyEncryptionKey>> futures =
+            new ArrayList<CompletableFuture<IonicAsyncKeyEncryptionKey>>();
+        for (String keyId : Arrays.asList("a", "b", "c", "a", "b")) {
+            futures.add(resolver.buildAsyncKeyEncryptionKey(keyId).toFuture());
+        }
+
+        assertEquals("b", futures.get(4).join().getKeyId().block());
+        for (CompletableFuture<IonicAsyncKeyEncryptionKey> future : futures) {
+            future.join();
+        }
+        assertEquals("Requests were not batched", 1, requests.size());
+        assertEquals("Requests were not coalesced", 3, requests.get(0).size());
+    }
+
+    @Test
+    public void batchesAreLimitedToMaxBatchSize() {
+        IonicAsyncKeyEncryptionKeyResolver resolver =
+            new IonicAsyncKeyEncryptionKeyResolver(factory, scheduler);
+        resolver.setBatchDelayMillis(200);
+        resolver.setMaxBatchSize(2);
+
+        List<CompletableFuture<IonicAsyncKeyEncryptionKey>> futures =
+            new ArrayList<CompletableFuture<IonicAsyncKeyEncryptionKey>>();
+        for (String keyId : Arrays.asList("a", "b", "c", "d", "e")) {
+            futures.add(resolver.buildAsyncKeyEncryptionKey(keyId).toFuture());
+        }
+        for (CompletableFuture<IonicAsyncKeyEncryptionKey> future : futures) {
+            future.join();
+        }
+        assertEquals(3, requests.size());
+    }
+
+    @Test
+    public void missingKeyFails() {
+        IonicAsyncKeyEncryptionKeyResolver resolver =
+            new IonicAsyncKeyEncryptionKeyResolver(factory, scheduler);
+
+        try {
+            resolver.buildAsyncKeyEncryptionKey("missing").toFuture().join();
+            fail("Missing key was resolved");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IonicException);
+        }
+    }
+
+    @Test
+    public void storedKeyResolvesWithoutRequest() {
+        IonicKeyStore store = new IonicKeyStore(4);
+        store.put("stored", keyBytes);
+        factory.setKeyStore(store);
+        IonicAsyncKeyEncryptionKeyResolver resolver =
+            new IonicAsyncKeyEncryptionKeyResolver(factory, scheduler);
+
+        IonicAsyncKeyEncryptionKey key = resolver.buildAsyncKeyEncryptionKey("stored").block();
+
+        assertSame(store.get("stored"), key.getKey());
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void resolveSpansRecordCacheHit() {
+        IonicKeyStore store = new IonicKeyStore(4);
+        store.put("stored", keyBytes);
+        factory.setKeyStore(store);
+        RecordingTracer tracer = new RecordingTracer();
+        factory.setTracer(tracer);
+        IonicAsyncKeyEncryptionKeyResolver resolver =
+            new IonicAsyncKeyEncryptionKeyResolver(factory, scheduler);
+
+        resolver.buildAsyncKeyEncryptionKey("stored").block();
+        resolver.buildAsyncKeyEncryptionKey("fetched").block();
+
+        List<RecordingTracer.Span> spans = tracer.getFinishedSpans(IonicTracer.SPAN_KEY_RESOLVE);
+        assertEquals(2, spans.size());
+        assertEquals("stored", spans.get(0).getAttribute(IonicTracer.KEY_ID));
+        assertEquals(Boolean.TRUE, spans.get(0).getAttribute(IonicTracer.CACHE_HIT));
+        assertEquals(Boolean.FALSE, spans.get(1).getAttribute(IonicTracer.CACHE_HIT));
+    }
+
+    @Test
+    public void resolveSpanCoversFailedFetch() {
+        RecordingTracer tracer = new RecordingTracer();
+        factory.setTracer(tracer);
+        IonicAsyncKeyEncryptionKeyResolver resolver =
+            new IonicAsyncKeyEncryptionKeyResolver(factory, scheduler);
+
+        try {
+            resolver.buildAsyncKeyEncryptionKey("missing").block();
+            fail("Missing key was resolved");
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        List<RecordingTracer.Span> spans = tracer.getFinishedSpans(IonicTracer.SPAN_KEY_RESOLVE);
+        assertEquals(1, spans.size());
+        assertTrue("Span ended before the fetch failed",
+            spans.get(0).getException() instanceof IonicException);
+    }
+
+    @Test
+    public void wrapUnwrapRoundTrip() {
+        IonicAsyncKeyEncryptionKey key = new IonicAsyncKeyEncryptionKey(
+            new IonicKey("wrap", keyBytes));
+        byte[] contentKey = new byte[32];
+        Arrays.fill(contentKey, (byte) 7);
+
+        byte[] wrapped = key.wrapKey(IonicKey.KEY_WRAP_ALGORITHM, contentKey).block();
+        byte[] unwrapped = key.unwrapKey(IonicKey.KEY_WRAP_ALGORITHM, wrapped).block();
+
+        assertArrayEquals(contentKey, unwrapped);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UTIonicBlobInventoryTest {
+
+    private IonicBlobInventory inventory;
+
+    private static Map<String, List<String>> attributes(String name, String... values) {
+        Map<String, List<String>> attributes = new HashMap<String, List<String>>();
+        attributes.put(name, Arrays.asList(values));
+        return attributes;
+    }
+
+    @Before
+    public void setUp() {
+        inventory = new IonicBlobInventory(new IonicKeyResolverFactory());
+        inventory.put("finance", "q1.csv", "KEY1");
+        inventory.put("finance", "q2.csv", "KEY1");
+        inventory.put("hr", "staff.json", "KEY2");
+        inventory.putAttributes("KEY1", attributes("classification", "restricted"));
+        inventory.putAttributes("KEY2", attributes("classification", "internal", "pii"));
+    }
+
+    @Test
+    public void findBlobsByAttribute() {
+        assertEquals(new HashSet<String>(Arrays.asList("finance/q1.csv", "finance/q2.csv")),
+            new HashSet<String>(inventory.findBlobs("classification", "restricted")));
+        assertEquals(Collections.singletonList("hr/staff.json"),
+            inventory.findBlobs("classification", "pii"));
+        assertTrue(inventory.findBlobs("classification", "public").isEmpty());
+        assertEquals(Collections.singleton("KEY2"), inventory.getKeyIds("classification", "internal"));
+    }
+
+    @Test
+    public void reuploadMovesBlobToNewKey() {
+        inventory.put("hr", "staff.json", "KEY3");
+
+        assertEquals("KEY3", inventory.getKeyId("hr", "staff.json"));
+        assertTrue("Key protecting no blob was kept",
+            inventory.getKeyIds("classification", "pii").isEmpty());
+        assertEquals(2, inventory.getKeyCount());
+        assertEquals(1, inventory.getUnresolvedKeyCount());
+        assertNull(inventory.getAttributes("KEY3"));
+    }
+
+    @Test
+    public void unencryptedBlobIsRemoved() {
+        inventory.put("finance", "q1.csv", null);
+
+        assertNull(inventory.getKeyId("finance", "q1.csv"));
+        assertEquals(Collections.singletonList("finance/q2.csv"), inventory.getBlobs("KEY1"));
+        assertEquals(2, inventory.getBlobCount());
+    }
+
+    @Test
+    public void saveAndLoadRoundTrip() throws IOException {
+        Path path = Files.createTempFile("inventory", ".idx");
+        try {
+            inventory.save(path);
+            IonicBlobInventory loaded =
+                IonicBlobInventory.load(path, new IonicKeyResolverFactory());
+
+            assertEquals(3, loaded.getBlobCount());
+            assertEquals(2, loaded.getKeyCount());
+            assertEquals("KEY2", loaded.getKeyId("hr", "staff.json"));
+            assertEquals(Arrays.asList("internal", "pii"),
+                loaded.getAttributes("KEY2").get("classification"));
+            assertEquals(new HashSet<String>(inventory.findBlobs("classification", "restricted")),
+                new HashSet<String>(loaded.findBlobs("classification", "restricted")));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void loadRejectsOtherFiles() throws IOException {
+        Path path = Files.createTempFile("inventory", ".idx");
+        try {
+            Files.write(path, new byte[] {1, 2, 3, 4});
+            IonicBlobInventory.load(path, new IonicKeyResolverFactory());
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -33,6 +33,25 @@ public class UTIonicKeyResolverFactoryTest {
         new IonicKeyResolverFactory(agent);
     }
 
+    @Test
+    public void defaultAgentIsCreatedOnce() {
+        IonicKeyResolverFactory storage = new IonicKeyResolverFactory();
+
+        Agent agent = storage.getAgent();
+        assertNotNull("Default Agent was not created.", agent);
+        assertSame("Default Agent was created more than once.", agent, storage.getAgent());
+    }
+
+    @Test
+    public void setAgentReplacesDefaultAgent() {
+        Agent agent = new Agent();
+        IonicKeyResolverFactory storage = new IonicKeyResolverFactory();
+        storage.setAgent(agent);
+
+        assertSame("getAgent() did not return the Agent set with setAgent()", agent,
+            storage.getAgent());
+    }
+
     @Test
     public void setGetDefaultKeyAttributes() {
         IonicKeyResolverFactory storage = new IonicKeyResolverFactory();
@@ -59,9 +78,42 @@ public class UTIonicKeyResolverFactoryTest {
         // Should check that symmetricKey.keyBytes == keyBytes, but no getters exposed
     }
 
+    @Test
+    public void symmetricKeyWrapsWithPooledCiphers() throws Exception {
+        SymmetricKey symmetricKey = IonicKeyResolverFactory.ionicKeyToSymmetricKey(
+            new AgentKey("1234", keyBytes));
+        byte[] contentKey = new byte[32];
+        java.util.Arrays.fill(contentKey, (byte) 7);
+
+        byte[] wrapped = symmetricKey.wrapKeyAsync(contentKey, IonicKey.KEY_WRAP_ALGORITHM).get()
+            .getLeft();
+        byte[] direct = new IonicKey("1234", keyBytes)
+            .wrapKeyAsync(contentKey, IonicKey.KEY_WRAP_ALGORITHM).get().getLeft();
+
+        assertTrue(symmetricKey instanceof PooledSymmetricKey);
+        assertArrayEquals(direct, wrapped);
+        assertArrayEquals(contentKey, symmetricKey.unwrapKeyAsync(wrapped,
+            IonicKey.KEY_WRAP_ALGORITHM).get());
+    }
+
     @Test
     public void createKeyResolver() {
         IonicKeyResolverFactory storage = new IonicKeyResolverFactory();
         IonicKeyResolverFactory.IonicKeyResolver resolver = storage.createKeyResolver();
     }
+
+    @Test
+    public void storedKeyIsResolvedWithoutRequest() throws Exception {
+        IonicKeyResolverFactory storage = new IonicKeyResolverFactory();
+        IonicKeyStore store = new IonicKeyStore(2);
+        IonicKey stored = store.put("1234", keyBytes);
+        RecordingTracer tracer = new RecordingTracer();
+        storage.setKeyStore(store);
+        storage.setTracer(tracer);
+
+        assertSame(stored, storage.createKeyResolver().resolveKeyAsync("1234").get());
+        assertTrue(tracer.getFinishedSpans(IonicTracer.SPAN_KEY_GET).isEmpty());
+        assertEquals(true, tracer.getFinishedSpans(IonicTracer.SPAN_KEY_RESOLVE).get(0)
+            .getAttribute(IonicTracer.CACHE_HIT));
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import com.google.common.util.concurrent.Futures;
+import com.ionic.sdk.agent.key.AgentKey;
+import com.microsoft.azure.keyvault.core.IKey;
+import com.microsoft.azure.keyvault.cryptography.SymmetricKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.Rule;
+import org.junit.rules.ExpectedException;
+import org.junit.Test;
+
+public class UTIonicKeyStoreTest {
+
+    private byte[] keyBytes = new byte[] {0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31};
+    private byte[] contentKey = new byte[] {31,30,29,28,27,26,25,24,23,22,21,20,19,18,17,16,15,14,13,12,11,10,9,8,7,6,5,4,3,2,1,0};
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void putReturnsExistingKey() {
+        IonicKeyStore store = new IonicKeyStore(4);
+        IonicKey first = store.put(new AgentKey("1234", keyBytes));
+        IonicKey second = store.put(new AgentKey("1234", keyBytes));
+
+        assertSame("put() did not return the stored IonicKey", first, second);
+        assertSame("get() did not return the stored IonicKey", first, store.get("1234"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void unwrapSymmetricKeyWrappedContentKey() throws Exception {
+        SymmetricKey symmetricKey = new SymmetricKey("1234", keyBytes);
+        byte[] wrapped = symmetricKey.wrapKeyAsync(contentKey, IonicKey.KEY_WRAP_ALGORITHM)
+                .get().getLeft();
+
+        IonicKeyStore store = new IonicKeyStore(4);
+        IonicKey ionicKey = store.put("1234", keyBytes);
+
+        assertArrayEquals("IonicKey did not unwrap a SymmetricKey wrapped content key",
+            contentKey, ionicKey.unwrapKeyAsync(wrapped, IonicKey.KEY_WRAP_ALGORITHM).get());
+        assertArrayEquals("IonicKey wrapped content key does not match SymmetricKey",
+            wrapped, ionicKey.wrapKeyAsync(contentKey, null).get().getLeft());
+    }
+
+    @Test
+    public void storedAgentKeyMaterialIsZeroed() throws Exception {
+        Cipher cipher = Cipher.getInstance(IonicKey.WRAP_TRANSFORMATION);
+        cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(keyBytes, "AES"));
+        byte[] wrapped = cipher.wrap(new SecretKeySpec(contentKey, "AES"));
+
+        IonicKeyStore store = new IonicKeyStore(4);
+        AgentKey agentKey = new AgentKey("1234", keyBytes.clone());
+        IonicKey ionicKey = store.put(agentKey);
+
+        assertArrayEquals("AgentKey material was not zeroed", new byte[IonicKey.KEY_LENGTH],
+            agentKey.getKey());
+        assertSame(agentKey, ionicKey.getAgentKey());
+        assertArrayEquals(contentKey, ionicKey.unwrapKeyAsync(wrapped, null).get());
+    }
+
+    @Test
+    public void leastRecentlyUsedKeyEvicted() {
+        IonicKeyStore store = new IonicKeyStore(2);
+        IonicKey first = store.put("1", keyBytes);
+        IonicKey second = store.put("2", keyBytes);
+        store.get("1");
+        store.put("3", keyBytes);
+
+        assertFalse(first.isDestroyed());
+        assertTrue("Evicted key material was not destroyed", second.isDestroyed());
+        assertNull(store.get("2"));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void pinnedKeyIsNotEvicted() {
+        IonicKeyStore store = new IonicKeyStore(2);
+        store.pin("1");
+        IonicKey first = store.put("1", keyBytes);
+        IonicKey second = store.put("2", keyBytes);
+        store.put("3", keyBytes);
+
+        assertFalse("Pinned key was evicted", first.isDestroyed());
+        assertTrue(second.isDestroyed());
+
+        store.unpin("1");
+        assertFalse(store.isPinned("1"));
+        store.put("4", keyBytes);
+        assertTrue("Unpinned key was not evicted", first.isDestroyed());
+    }
+
+    @Test
+    public void evictedKeyCannotBeUsed() throws Exception {
+        IonicKeyStore store = new IonicKeyStore(2);
+        IonicKey key = store.put("1234", keyBytes);
+        assertTrue(store.evict("1234"));
+
+        try {
+            key.wrapKeyAsync(contentKey, null).get();
+            fail("Evicted key wrapped a content key");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IonicKey.DestroyedKeyException);
+        }
+    }
+
+    @Test
+    public void evictedKeyIsResolvedAgain() throws Exception {
+        IonicKeyStore store = new IonicKeyStore(2);
+        IonicKey evicted = store.put("1234", keyBytes);
+        byte[] wrapped = evicted.wrapKeyAsync(contentKey, null).get().getLeft();
+        store.evict("1234");
+        IonicKey stored = store.put("1234", keyBytes);
+        List<IKey> resolved = new ArrayList<IKey>(Arrays.asList(evicted, stored));
+
+        byte[] unwrapped = ContentKeys.unwrap(wrapped, IonicKey.KEY_WRAP_ALGORITHM,
+            keyId -> Futures.immediateFuture(resolved.remove(0)), "1234");
+
+        assertArrayEquals(contentKey, unwrapped);
+        assertTrue(resolved.isEmpty());
+    }
+
+    @Test
+    public void closeDestroysAllKeys() {
+        IonicKeyStore store = new IonicKeyStore(2);
+        IonicKey first = store.put("1", keyBytes);
+        IonicKey second = store.put("2", keyBytes);
+        store.close();
+
+        assertTrue(first.isDestroyed());
+        assertTrue(second.isDestroyed());
+
+        thrown.expect(IllegalStateException.class);
+        store.get("1");
+    }
+
+    @Test
+    public void invalidKeyLength() {
+        IonicKeyStore store = new IonicKeyStore(2);
+
+        thrown.expect(IllegalArgumentException.class);
+        store.put("1234", new byte[16]);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.junit.Test;
+
+public class UTIonicRecordingSummaryTest {
+
+    @Test
+    public void eventsAreNotBegunWhileNothingIsRecording() {
+        assertNull(IonicFlightRecorder.beginKey());
+        assertNull(IonicFlightRecorder.beginSegment());
+        IonicFlightRecorder.commitKey(null, IonicTracer.SPAN_KEY_GET, "key", 1, false, true);
+    }
+
+    @Test
+    public void summaryAggregatesRecordedEvents() throws Exception {
+        Configuration configuration;
+        try (Reader reader = new InputStreamReader(IonicRecordingSummary.class
+                .getResourceAsStream(IonicRecordingSummary.SETTINGS_RESOURCE),
+                StandardCharsets.UTF_8)) {
+            configuration = Configuration.create(reader);
+        }
+        Path path = Files.createTempFile("ionic", ".jfr");
+        try {
+            try (Recording recording = new Recording(configuration)) {
+                recording.start();
+                for (int i = 0; i < 3; i++) {
+                    Object event = IonicFlightRecorder.beginKey();
+                    assertNotNull(event);
+                    IonicFlightRecorder.commitKey(event, IonicTracer.SPAN_KEY_GET, "key-" + i,
+                            1, i > 0, i < 2);
+                }
+                Object segment = IonicFlightRecorder.beginSegment();
+                IonicFlightRecorder.commitSegment(segment, IonicTracer.SPAN_BLOB_UPLOAD, 0,
+                        4096);
+                recording.stop();
+                recording.dump(path);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            IonicRecordingSummary.summarize(Collections.singletonList(path),
+                    new PrintStream(out, true, "UTF-8"));
+            String summary = new String(out.toByteArray(), StandardCharsets.UTF_8);
+
+            assertTrue(summary, summary.matches("(?s).*KeyOperation "
+                    + IonicTracer.SPAN_KEY_GET + " +3 +1 .* 2 +\\d+\\R.*"));
+            assertTrue(summary, summary.matches("(?s).*SegmentTransfer "
+                    + IonicTracer.SPAN_BLOB_UPLOAD + " +1 +0 .* 4096 .*"));
+            assertTrue(summary, summary.contains(IonicFlightRecorder.keyIdHash("key-0")));
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
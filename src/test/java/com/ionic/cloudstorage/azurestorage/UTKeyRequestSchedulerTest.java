@@ -0,0 +1,120 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import com.ionic.sdk.error.IonicException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class UTKeyRequestSchedulerTest {
+
+    private final List<KeyRequestPriority> order =
+        Collections.synchronizedList(new ArrayList<KeyRequestPriority>());
+
+    /**
+     * Occupies the scheduler's only slot until the latch is released.
+     */
+    private Thread occupy(KeyRequestScheduler scheduler, CountDownLatch release)
+            throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.call(KeyRequestPriority.BULK, () -> {
+                    started.countDown();
+                    awaitUninterruptibly(release);
+                    return null;
+                });
+            } catch (IonicException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        started.await();
+        return thread;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // Keep waiting; the test releases the latch.
+            }
+        }
+    }
+
+    private Thread enqueue(KeyRequestScheduler scheduler, KeyRequestPriority priority)
+            throws InterruptedException {
+        int queued = scheduler.getQueueLength(priority);
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.call(priority, () -> order.add(priority));
+            } catch (IonicException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        while (scheduler.getQueueLength(priority) == queued) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    @Test
+    public void freeSlotIsUsedImmediately() throws IonicException {
+        KeyRequestScheduler scheduler = new KeyRequestScheduler(2);
+        assertEquals("key", scheduler.call(KeyRequestPriority.BULK, () -> "key"));
+        assertEquals(0, scheduler.getActiveRequests());
+    }
+
+    @Test
+    public void lanesShareSlotsByWeight() throws InterruptedException {
+        KeyRequestScheduler scheduler = new KeyRequestScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(occupy(scheduler, release));
+        for (int i = 0; i < 10; i++) {
+            threads.add(enqueue(scheduler, KeyRequestPriority.BULK));
+        }
+        for (int i = 0; i < 8; i++) {
+            threads.add(enqueue(scheduler, KeyRequestPriority.INTERACTIVE));
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(18, order.size());
+        int interactive = Collections.frequency(order.subList(0, 10),
+            KeyRequestPriority.INTERACTIVE);
+        assertEquals("Interactive requests did not get their 4:1 share", 8, interactive);
+        assertEquals(0, scheduler.getActiveRequests());
+    }
+
+    @Test
+    public void overdueRequestIsServedFirst() throws InterruptedException {
+        KeyRequestScheduler scheduler = new KeyRequestScheduler(1);
+        scheduler.setMaxWaitMillis(0);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(occupy(scheduler, release));
+        threads.add(enqueue(scheduler, KeyRequestPriority.BULK));
+        threads.add(enqueue(scheduler, KeyRequestPriority.INTERACTIVE));
+        threads.add(enqueue(scheduler, KeyRequestPriority.INTERACTIVE));
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(KeyRequestPriority.BULK, order.get(0));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import org.junit.Test;
+
+public class UTRecordingTracerTest {
+
+    @Test
+    public void nestedSpansRecordParentAndAttributes() {
+        RecordingTracer tracer = new RecordingTracer();
+
+        try (IonicSpan outer = tracer.startSpan(IonicTracer.SPAN_BLOB_UPLOAD)) {
+            outer.setAttribute(IonicTracer.BLOB_NAME, "blob");
+            try (IonicSpan inner = tracer.startSpan(IonicTracer.SPAN_KEY_CREATE)) {
+                inner.setAttribute(IonicTracer.ATTRIBUTE_COUNT, 2);
+            }
+        }
+
+        List<RecordingTracer.Span> spans = tracer.getFinishedSpans();
+        assertEquals(2, spans.size());
+        RecordingTracer.Span inner = spans.get(0);
+        RecordingTracer.Span outer = spans.get(1);
+        assertEquals(IonicTracer.SPAN_KEY_CREATE, inner.getName());
+        assertSame(outer, inner.getParent());
+        assertNull(outer.getParent());
+        assertEquals(2L, inner.getAttribute(IonicTracer.ATTRIBUTE_COUNT));
+        assertEquals("blob", outer.getAttribute(IonicTracer.BLOB_NAME));
+        assertFalse(outer.isRecording());
+        assertTrue(outer.getDurationNanos() >= inner.getDurationNanos());
+    }
+
+    @Test
+    public void exceptionIsRecorded() {
+        RecordingTracer tracer = new RecordingTracer();
+        IllegalStateException failure = new IllegalStateException();
+
+        try (IonicSpan span = tracer.startSpan(IonicTracer.SPAN_KEY_GET)) {
+            span.recordException(failure);
+        }
+        try (IonicSpan span = tracer.startSpan(IonicTracer.SPAN_KEY_GET)) {
+            assertNull("Ended span is still open", ((RecordingTracer.Span) span).getParent());
+        }
+
+        assertSame(failure, tracer.getFinishedSpans(IonicTracer.SPAN_KEY_GET).get(0)
+            .getException());
+        tracer.clear();
+        assertTrue(tracer.getFinishedSpans().isEmpty());
+    }
+
+    @Test
+    public void asyncSpanEndsOnAnotherThread() throws InterruptedException {
+        RecordingTracer tracer = new RecordingTracer();
+
+        IonicSpan span;
+        try (IonicSpan outer = tracer.startSpan(IonicTracer.SPAN_BLOB_DOWNLOAD)) {
+            span = tracer.startAsyncSpan(IonicTracer.SPAN_KEY_RESOLVE);
+            assertSame(outer, ((RecordingTracer.Span) span).getParent());
+            try (IonicSpan inner = tracer.startSpan(IonicTracer.SPAN_KEY_GET)) {
+                assertSame("Async span was made current", outer,
+                    ((RecordingTracer.Span) inner).getParent());
+            }
+        }
+        Thread thread = new Thread(span::end);
+        thread.start();
+        thread.join();
+
+        assertEquals(1, tracer.getFinishedSpans(IonicTracer.SPAN_KEY_RESOLVE).size());
+        try (IonicSpan next = tracer.startSpan(IonicTracer.SPAN_KEY_GET)) {
+            assertNull(((RecordingTracer.Span) next).getParent());
+        }
+    }
+
+    @Test
+    public void noopTracerDoesNotRecord() {
+        IonicSpan span = IonicTracer.NOOP.startSpan(IonicTracer.SPAN_BLOB_DOWNLOAD);
+
+        assertFalse(span.isRecording());
+        assertSame(span, span.setAttribute(IonicTracer.PAYLOAD_BYTES, 1L));
+        span.end();
+    }
+}
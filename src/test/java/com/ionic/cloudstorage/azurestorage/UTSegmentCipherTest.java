@@ -0,0 +1,102 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.AEADBadTagException;
+import org.junit.Rule;
+import org.junit.rules.ExpectedException;
+import org.junit.Test;
+
+public class UTSegmentCipherTest {
+
+    private byte[] plaintext = "The quick brown fox jumps over the lazy dog".getBytes();
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void encryptDecryptSegment() throws GeneralSecurityException {
+        SegmentCipher cipher = new SegmentCipher(SegmentCipher.generateContentKey(), 64);
+        byte[] ciphertext = new byte[cipher.getEncryptedSegmentLength()];
+        int encryptedLength = cipher.encrypt(3, true, plaintext, 0, plaintext.length,
+            ciphertext, 0);
+        assertEquals(plaintext.length + SegmentCipher.OVERHEAD, encryptedLength);
+
+        byte[] decrypted = new byte[plaintext.length];
+        cipher.decrypt(3, true, ciphertext, 0, encryptedLength, decrypted, 0);
+        assertArrayEquals("Decrypted segment does not match plaintext", plaintext, decrypted);
+    }
+
+    @Test
+    public void reorderedSegmentFailsAuthentication() throws GeneralSecurityException {
+        SegmentCipher cipher = new SegmentCipher(SegmentCipher.generateContentKey(), 64);
+        byte[] ciphertext = new byte[cipher.getEncryptedSegmentLength()];
+        int encryptedLength = cipher.encrypt(3, false, plaintext, 0, plaintext.length,
+            ciphertext, 0);
+
+        thrown.expect(AEADBadTagException.class);
+        cipher.decrypt(4, false, ciphertext, 0, encryptedLength, new byte[plaintext.length], 0);
+    }
+
+    @Test
+    public void truncatedBlobFailsAuthentication() throws GeneralSecurityException {
+        SegmentCipher cipher = new SegmentCipher(SegmentCipher.generateContentKey(), 64);
+        byte[] ciphertext = new byte[cipher.getEncryptedSegmentLength()];
+        int encryptedLength = cipher.encrypt(0, false, plaintext, 0, plaintext.length,
+            ciphertext, 0);
+
+        thrown.expect(AEADBadTagException.class);
+        cipher.decrypt(0, true, ciphertext, 0, encryptedLength, new byte[plaintext.length], 0);
+    }
+
+    @Test
+    public void tamperedSegmentFailsAuthentication() throws GeneralSecurityException {
+        SegmentCipher cipher = new SegmentCipher(SegmentCipher.generateContentKey(), 64);
+        byte[] ciphertext = new byte[cipher.getEncryptedSegmentLength()];
+        int encryptedLength = cipher.encrypt(0, true, plaintext, 0, plaintext.length,
+            ciphertext, 0);
+        ciphertext[SegmentCipher.NONCE_LENGTH] ^= 1;
+
+        thrown.expect(AEADBadTagException.class);
+        cipher.decrypt(0, true, ciphertext, 0, encryptedLength, new byte[plaintext.length], 0);
+    }
+
+    @Test
+    public void alteredAdditionalDataFailsAuthentication() throws GeneralSecurityException {
+        SegmentCipher cipher = new SegmentCipher(SegmentCipher.generateContentKey(), 64);
+        byte[] header = {1, 2, 3, 4};
+        byte[] ciphertext = new byte[cipher.getEncryptedSegmentLength()];
+        int encryptedLength = cipher.encrypt(header, plaintext, 0, plaintext.length,
+            ciphertext, 0);
+        byte[] decrypted = new byte[plaintext.length];
+        cipher.decrypt(header, ciphertext, 0, encryptedLength, decrypted, 0);
+        assertArrayEquals(plaintext, decrypted);
+        header[3] ^= 1;
+
+        thrown.expect(AEADBadTagException.class);
+        cipher.decrypt(header, ciphertext, 0, encryptedLength, decrypted, 0);
+    }
+
+    @Test
+    public void lengthCalculations() {
+        SegmentCipher cipher = new SegmentCipher(SegmentCipher.generateContentKey(), 64);
+        for (long length : Arrays.asList(0L, 1L, 63L, 64L, 65L, 128L, 1000L)) {
+            long ciphertextLength = cipher.ciphertextLength(length);
+            assertEquals("Plaintext length not recovered for " + length,
+                length, cipher.plaintextLength(ciphertextLength));
+            assertEquals("Layout-only plaintext length differs for " + length,
+                length, SegmentCipher.plaintextLength(ciphertextLength, 64));
+        }
+        assertEquals(1, cipher.segmentCount(0));
+        assertEquals(2, cipher.segmentCount(128));
+        assertEquals(3, cipher.segmentCount(129));
+        assertEquals(2 * (64 + SegmentCipher.OVERHEAD), cipher.ciphertextOffset(2));
+    }
+}
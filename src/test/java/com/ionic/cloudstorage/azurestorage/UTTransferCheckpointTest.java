@@ -0,0 +1,63 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UTTransferCheckpointTest {
+
+    private static final String BLOB = "https://account.blob.core.windows.net/c/big.bin";
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = Files.createTempFile("transfer", ".checkpoint");
+        Files.delete(path);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void missingCheckpointLoadsAsNull() throws IOException {
+        assertNull(TransferCheckpoint.load(path));
+    }
+
+    @Test
+    public void saveAndLoadRoundTrip() throws IOException {
+        TransferCheckpoint checkpoint = new TransferCheckpoint(path, TransferCheckpoint.UPLOAD,
+            BLOB, "1024@1600000000000", "{\"EncryptionAgent\":{}}", 0);
+        checkpoint.save();
+        checkpoint.setSegments(7);
+        checkpoint.save();
+
+        TransferCheckpoint loaded = TransferCheckpoint.load(path);
+        loaded.check(TransferCheckpoint.UPLOAD, BLOB);
+        assertEquals("1024@1600000000000", loaded.getVersion());
+        assertEquals("{\"EncryptionAgent\":{}}", loaded.getEncryptionData());
+        assertEquals(7, loaded.getSegments());
+
+        loaded.delete();
+        assertFalse(Files.exists(path));
+    }
+
+    @Test(expected = IOException.class)
+    public void checkRejectsOtherTransfer() throws IOException {
+        new TransferCheckpoint(path, TransferCheckpoint.DOWNLOAD, BLOB, "\"0x8D\"", "{}", 3)
+            .save();
+        TransferCheckpoint.load(path).check(TransferCheckpoint.UPLOAD, BLOB);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * (c) 2019-2021 Ionic Security Inc. By using this code, I agree to the Terms & Conditions
+ * (https://dev.ionic.com/use) and the Privacy Policy (https://www.ionic.com/privacy-notice/).
+ */
+
+package com.ionic.cloudstorage.azurestorage;
+
+import static org.junit.Assert.*;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+
+public class UTTransferGovernorTest {
+
+    @Test
+    public void unlimitedGovernorDoesNotWait() throws InterruptedIOException {
+        TransferGovernor governor = new TransferGovernor(0, 0);
+        TransferGovernor.Job job = governor.newJob("unlimited", 1);
+        for (int i = 0; i < 1000; i++) {
+            job.acquire(1024 * 1024);
+        }
+        assertEquals(1000, job.getRequests());
+        assertEquals(0, governor.getQueueLength());
+    }
+
+    @Test
+    public void requestRateIsLimited() throws InterruptedIOException {
+        TransferGovernor governor = new TransferGovernor(0, 20);
+        governor.setBurstMillis(50);
+        TransferGovernor.Job job = governor.newJob("limited", 1);
+        long started = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            job.acquire(0);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        // One request is available at once, the other ten arrive at 20 per second.
+        assertTrue("Took only " + elapsedMillis + "ms", elapsedMillis >= 450);
+    }
+
+    @Test
+    public void waitingJobsShareBytesByWeight() throws Exception {
+        TransferGovernor governor = new TransferGovernor(4 * 1024 * 1024, 0);
+        governor.setBurstMillis(10);
+        TransferGovernor.Job heavy = governor.newJob("heavy", 3);
+        TransferGovernor.Job light = governor.newJob("light", 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int i = 0; i < futures.length; i++) {
+                TransferGovernor.Job job = i % 2 == 0 ? heavy : light;
+                futures[i] = executor.submit(() -> {
+                    while (running.get()) {
+                        job.acquire(16 * 1024);
+                    }
+                    return null;
+                });
+            }
+            Thread.sleep(1000);
+            running.set(false);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        double ratio = (double) heavy.getBytes() / light.getBytes();
+        assertTrue("Heavy to light ratio " + ratio, ratio > 2.4 && ratio < 3.6);
+    }
+
+    @Test
+    public void serverBusyHalvesRateOncePerInterval() {
+        TransferGovernor governor = new TransferGovernor(1024, 10);
+        governor.setAdjustmentMillis(0);
+        governor.onResponse(503);
+        assertEquals(0.5, governor.getRateFactor(), 1e-9);
+        governor.onResponse(201);
+        assertEquals(0.55, governor.getRateFactor(), 1e-9);
+        for (int i = 0; i < 20; i++) {
+            governor.onResponse(503);
+        }
+        assertEquals(TransferGovernor.MIN_RATE_FACTOR, governor.getRateFactor(), 1e-9);
+        assertEquals(21, governor.getThrottledResponses());
+
+        governor.setAdjustmentMillis(60000);
+        governor.onResponse(200);
+        assertEquals(TransferGovernor.MIN_RATE_FACTOR, governor.getRateFactor(), 1e-9);
+        governor.onResponse(404);
+        assertEquals(TransferGovernor.MIN_RATE_FACTOR, governor.getRateFactor(), 1e-9);
+    }
+}